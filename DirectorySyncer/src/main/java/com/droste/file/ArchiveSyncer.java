@@ -0,0 +1,108 @@
+package com.droste.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.droste.file.report.Report;
+
+/**
+ * Syncs a source directory into a {@link PackStore} instead of a target directory.<br/>
+ * The source is walked once and every file is looked up in the index of the store by its relative path: a file with
+ * the size and modification time of the index is unchanged and not read. A changed file is appended again. A new file
+ * whose content is stored already, e.g. because it was moved or copied in the source, is only added to the index and
+ * reported as relocated, all other new files are appended. Files are never removed from the store. The target paths
+ * in the report are the paths inside the store directory, they don't exist as files.
+ */
+public class ArchiveSyncer
+{
+	private final Path source;
+	private final PackStore store;
+	private final boolean isSimulationMode;
+	private final Report report = new Report();
+	private final long startTime = System.currentTimeMillis();
+	private Throttle throttle;
+
+	public ArchiveSyncer(String source, PackStore store, boolean isSimulationMode)
+	{
+		this.source = new File(source).toPath();
+		this.store = store;
+		this.isSimulationMode = isSimulationMode;
+	}
+
+	/** Limits the bytes and files per second that are read from the source. */
+	public void setThrottle(Throttle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	public Report getReport()
+	{
+		return report;
+	}
+
+	/** Walks the source and flushes the store at the end, even if the sync fails. */
+	public Report sync() throws IOException
+	{
+		try
+		{
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+				{
+					report.countDirectories();
+					return super.preVisitDirectory(dir, attrs);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+				{
+					if (!DirectorySyncer.isIgnoredName(file))
+						archive(file, attrs);
+					return super.visitFile(file, attrs);
+				}
+			});
+		} finally
+		{
+			if (!isSimulationMode)
+				store.flush();
+		}
+		report.setSyncTime(System.currentTimeMillis() - startTime);
+		return report;
+	}
+
+	private void archive(Path file, BasicFileAttributes attrs) throws IOException
+	{
+		report.countSourceFiles();
+		String path = source.relativize(file).toString();
+		long size = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		PackStore.Entry entry = store.get(path);
+		if (entry != null && entry.getSize() == size && entry.getLastModified() == lastModified)
+			return;
+
+		Path storedPath = store.getDirectory().resolve(path);
+		if (entry == null)
+		{
+			PackStore.Entry sameContent = store.findSameContent(file, size);
+			if (sameContent != null)
+			{
+				report.addRelocatedFile(file, store.getDirectory().resolve(sameContent.getPath()));
+				if (!isSimulationMode)
+					store.link(path, sameContent, lastModified);
+				return;
+			}
+			report.addNewFile(file, storedPath);
+		} else
+		{
+			report.addChangedFile(file, storedPath);
+		}
+		if (isSimulationMode)
+			return;
+		if (throttle != null)
+			throttle.acquire(1, size);
+		store.add(path, file, lastModified);
+	}
+}
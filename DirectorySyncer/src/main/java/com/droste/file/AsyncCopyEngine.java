@@ -0,0 +1,253 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * Copies with {@link AsynchronousFileChannel}s, many files at the same time on a few threads.<br/>
+ * {@link #copy(Path, Path)} only starts the transfer and returns. Every transfer holds one direct buffer of a fixed
+ * pool while it runs and reads, hashes and writes through it chunk by chunk in completion handlers. When all buffers
+ * are in use the next copy waits for one, so the number of files in flight and the memory are bounded. {@link #await()}
+ * waits for all transfers and reports the failed ones, a failed target is deleted.<br/>
+ * Not for use with a journal or deduplication: both expect the target to be complete when copy returns.
+ */
+public class AsyncCopyEngine implements FileCopier, Closeable
+{
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private final ExecutorService executor;
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final List<String> failures = new ArrayList<String>();
+	private int inFlight = 0;
+	private CopyListener listener;
+
+	/** 4 threads and 16 buffers of 1 MB */
+	public AsyncCopyEngine()
+	{
+		this(4, 16);
+	}
+
+	/**
+	 * @param threads the threads that run the completion handlers
+	 * @param buffers the buffers of 1 MB, the most files in flight at the same time
+	 */
+	public AsyncCopyEngine(int threads, int buffers)
+	{
+		if (threads < 1 || buffers < 1)
+			throw new IllegalArgumentException("at least one thread and one buffer are needed");
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "async-copy");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		for (int i = 0; i < buffers; i++)
+			this.buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+	}
+
+	/** Gets every completed copy, called on a thread of the engine. */
+	public void setListener(CopyListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/** Starts the transfer, it may still run when this returns. */
+	@Override
+	public CopyStrategy copy(Path source, Path target) throws IOException
+	{
+		ByteBuffer buffer;
+		try
+		{
+			buffer = buffers.take();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a buffer");
+		}
+		AsynchronousFileChannel in = null;
+		try
+		{
+			in = AsynchronousFileChannel.open(source, EnumSet.of(StandardOpenOption.READ), executor);
+			AsynchronousFileChannel out = AsynchronousFileChannel.open(target,
+					EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), executor);
+			synchronized (this)
+			{
+				inFlight++;
+			}
+			new Transfer(source, target, in, out, buffer).read();
+			return CopyStrategy.ASYNC;
+		} catch (IOException | RuntimeException e)
+		{
+			if (in != null)
+				in.close();
+			buffers.add(buffer);
+			throw e;
+		}
+	}
+
+	/** Waits until all started transfers are done. @throws IOException if one of them failed */
+	public void await() throws IOException
+	{
+		synchronized (this)
+		{
+			try
+			{
+				while (inFlight > 0)
+					wait();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the copies");
+			}
+			if (!failures.isEmpty())
+			{
+				String message = failures.size() + " copies failed, first: " + failures.get(0);
+				failures.clear();
+				throw new IOException(message);
+			}
+		}
+	}
+
+	/** Waits for the transfers and stops the threads. */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			await();
+		} finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/** One file on its way, a read and a write of the buffer after each other until the end of the source. */
+	private class Transfer
+	{
+		private final Path source;
+		private final Path target;
+		private final AsynchronousFileChannel in;
+		private final AsynchronousFileChannel out;
+		private final ByteBuffer buffer;
+		private final Adler32 checksum = new Adler32();
+		private long position = 0;
+
+		private final CompletionHandler<Integer, Void> readDone = new CompletionHandler<Integer, Void>()
+		{
+			@Override
+			public void completed(Integer read, Void attachment)
+			{
+				if (read < 0)
+				{
+					finish(null);
+					return;
+				}
+				buffer.flip();
+				checksum.update(buffer.duplicate());
+				write();
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment)
+			{
+				finish(exc);
+			}
+		};
+
+		private final CompletionHandler<Integer, Void> writeDone = new CompletionHandler<Integer, Void>()
+		{
+			@Override
+			public void completed(Integer written, Void attachment)
+			{
+				position += written;
+				if (buffer.hasRemaining())
+					write();
+				else
+					read();
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment)
+			{
+				finish(exc);
+			}
+		};
+
+		Transfer(Path source, Path target, AsynchronousFileChannel in, AsynchronousFileChannel out, ByteBuffer buffer)
+		{
+			this.source = source;
+			this.target = target;
+			this.in = in;
+			this.out = out;
+			this.buffer = buffer;
+		}
+
+		void read()
+		{
+			buffer.clear();
+			try
+			{
+				in.read(buffer, position, null, readDone);
+			} catch (RuntimeException e)
+			{
+				finish(e);
+			}
+		}
+
+		void write()
+		{
+			try
+			{
+				out.write(buffer, position, null, writeDone);
+			} catch (RuntimeException e)
+			{
+				finish(e);
+			}
+		}
+
+		private void finish(Throwable failure)
+		{
+			try
+			{
+				in.close();
+				out.close();
+				if (failure == null && listener != null)
+					listener.copied(source, target, checksum.getValue());
+			} catch (IOException | RuntimeException e)
+			{
+				if (failure == null)
+					failure = e;
+			}
+			if (failure != null)
+			{
+				try
+				{
+					Files.deleteIfExists(target);
+				} catch (IOException e)
+				{
+					// the failure of the copy is reported
+				}
+			}
+			buffers.add(buffer);
+			synchronized (AsyncCopyEngine.this)
+			{
+				if (failure != null)
+					failures.add(source + " -> " + target + ": " + failure);
+				inFlight--;
+				AsyncCopyEngine.this.notifyAll();
+			}
+		}
+	}
+}
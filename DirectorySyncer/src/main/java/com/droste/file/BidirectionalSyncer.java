@@ -0,0 +1,277 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+
+/**
+ * Syncs two directories in both directions.<br/>
+ * 1. both trees are walked at the same time, each exactly once, into an index of size and modification time per
+ * relative path. No file is read for this. <br/>
+ * 2. every path is compared with the {@link SyncState} of the last sync: a side changed if its size or modification
+ * time differs from the state. A change on one side is copied to the other, a file deleted on one side is deleted on
+ * the other, new files are copied. <br/>
+ * 3. a file that changed on both sides, or changed on one and was deleted on the other, is a conflict and left alone on
+ * both sides. Only if both sides have the same size the contents are compared; equal files are no conflict. A conflict
+ * is resolved by making both files equal.<br/>
+ * Copies and content comparisons wait for the throttle if there is one.<br/>
+ * The state is updated in memory, the caller saves it. Paths are compared case insensitive like in
+ * {@link DirectorySyncer}, empty directories are not synced.
+ */
+public class BidirectionalSyncer
+{
+	private static final String TEMP_ENDING = ".dsync.tmp";
+	private final Path sideA;
+	private final Path sideB;
+	private final boolean isSimulationMode;
+	private final SyncState state;
+	private final Report report = new Report();
+	private final long startTime = System.currentTimeMillis();
+	private FileCopier copier = new CopyEngine();
+	private Throttle throttle;
+
+	/** The files of one side, keyed by the lower case relative path. */
+	private static class Side
+	{
+		private final Path root;
+		private final Map<String, Path> files = new HashMap<String, Path>();
+		private final Map<String, FileInfo> infos = new HashMap<String, FileInfo>();
+
+		Side(Path root)
+		{
+			this.root = root;
+		}
+	}
+
+	public BidirectionalSyncer(String sideA, String sideB, SyncState state, boolean isSimulationMode)
+	{
+		this.sideA = new File(sideA).toPath();
+		this.sideB = new File(sideB).toPath();
+		this.state = state;
+		this.isSimulationMode = isSimulationMode;
+	}
+
+	/** Everything that is copied goes through this copier, default is a {@link CopyEngine}. */
+	public void setFileCopier(FileCopier copier)
+	{
+		this.copier = copier;
+	}
+
+	/** Limits the bytes and files per second that are copied or compared. */
+	public void setThrottle(Throttle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	/** Files copied from A to B are reported as source and target, files from B to A the other way round. */
+	public Report getReport()
+	{
+		return report;
+	}
+
+	public Report sync() throws IOException
+	{
+		List<Side> sides = index();
+		Side a = sides.get(0);
+		Side b = sides.get(1);
+		Set<String> keys = new TreeSet<String>(a.files.keySet());
+		keys.addAll(b.files.keySet());
+		keys.addAll(state.keys());
+		for (String key : keys)
+			sync(key, a, b);
+		report.setSyncTime(System.currentTimeMillis() - startTime);
+		return report;
+	}
+
+	/** the three-way decision for one file */
+	private void sync(String key, Side a, Side b) throws IOException
+	{
+		FileInfo infoA = a.infos.get(key);
+		FileInfo infoB = b.infos.get(key);
+		SyncState.Entry base = state.get(key);
+		boolean changedA = infoA != null && (base == null || !base.isUnchangedA(infoA));
+		boolean changedB = infoB != null && (base == null || !base.isUnchangedB(infoB));
+		if (infoA != null && infoB != null)
+		{
+			if (!changedA && !changedB)
+				return;
+			if (base != null && !changedB)
+				copy(key, a, b, true);
+			else if (base != null && !changedA)
+				copy(key, b, a, true);
+			else if (infoA.getSize() == infoB.getSize() && sameContent(a.files.get(key), b.files.get(key)))
+				updateState(key, a.root.relativize(a.files.get(key)).toString(), a, b);
+			else
+				report.addConflict(a.files.get(key), b.files.get(key));
+		} else if (infoA != null)
+		{
+			if (base == null)
+				copy(key, a, b, false);
+			else if (changedA)
+				report.addConflict(a.files.get(key), b.root.resolve(base.getPath()));
+			else
+				delete(key, a);
+		} else if (infoB != null)
+		{
+			if (base == null)
+				copy(key, b, a, false);
+			else if (changedB)
+				report.addConflict(a.root.resolve(base.getPath()), b.files.get(key));
+			else
+				delete(key, b);
+		} else if (!isSimulationMode)
+		{
+			// deleted on both sides
+			state.remove(key);
+		}
+	}
+
+	private void copy(String key, Side from, Side to, boolean replace) throws IOException
+	{
+		Path file = from.files.get(key);
+		String relativePath = from.root.relativize(file).toString();
+		Path target = replace ? to.files.get(key) : to.root.resolve(relativePath);
+		if (replace)
+			report.addChangedFile(file, target);
+		else
+			report.addNewFile(file, target);
+		if (isSimulationMode)
+			return;
+
+		Path parent = target.getParent();
+		if (!Files.isDirectory(parent))
+		{
+			Files.createDirectories(parent);
+			report.addNewDirectory(parent);
+		}
+		// a replaced file is written next to the old one first, so it is never half written
+		Path tempFile = replace ? target.resolveSibling(target.getFileName() + TEMP_ENDING) : target;
+		Files.deleteIfExists(tempFile);
+		throttle(1, from.infos.get(key).getSize());
+		CopyStrategy copyStrategy = copier.copy(file, tempFile);
+		Files.setLastModifiedTime(tempFile, FileTime.fromMillis(from.infos.get(key).getLastModified()));
+		if (replace)
+			Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		report.addCopyStrategy(target, copyStrategy);
+		to.files.put(key, target);
+		to.infos.put(key, new FileInfo(Files.readAttributes(target, BasicFileAttributes.class)));
+		updateState(key, relativePath, from, to);
+	}
+
+	private void delete(String key, Side side) throws IOException
+	{
+		Path file = side.files.get(key);
+		report.addDeletedFile(file);
+		if (isSimulationMode)
+			return;
+		Files.deleteIfExists(file);
+		state.remove(key);
+	}
+
+	private void updateState(String key, String relativePath, Side one, Side other)
+	{
+		if (isSimulationMode)
+			return;
+		Side a = (one.root == sideA) ? one : other;
+		Side b = (a == one) ? other : one;
+		state.put(relativePath, a.infos.get(key), b.infos.get(key));
+	}
+
+	/** walks both sides in parallel */
+	private List<Side> index() throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			Future<Side> a = executor.submit(indexer(sideA));
+			Future<Side> b = executor.submit(indexer(sideB));
+			return Arrays.asList(a.get(), b.get());
+		} catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("indexing failed", e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while indexing");
+		} finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private Callable<Side> indexer(final Path root)
+	{
+		return new Callable<Side>()
+		{
+			@Override
+			public Side call() throws IOException
+			{
+				final Side side = new Side(root);
+				final Path stateFile = state.getStateFile().toAbsolutePath().normalize();
+				Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+				{
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+					{
+						if (DirectorySyncer.isIgnoredName(file) || file.getFileName().toString().endsWith(TEMP_ENDING)
+								|| file.toAbsolutePath().normalize().equals(stateFile))
+							return super.visitFile(file, attrs);
+						if (root == sideA)
+							report.countSourceFiles();
+						else
+							report.countTargetFiles();
+						String key = root.relativize(file).toString().toLowerCase();
+						side.files.put(key, file);
+						side.infos.put(key, new FileInfo(attrs));
+						return super.visitFile(file, attrs);
+					}
+				});
+				return side;
+			}
+		};
+	}
+
+	private boolean sameContent(Path file1, Path file2) throws IOException
+	{
+		throttle(2, 0);
+		try (InputStream in1 = Files.newInputStream(file1); InputStream in2 = Files.newInputStream(file2))
+		{
+			byte[] buffer1 = new byte[64 * 1024];
+			byte[] buffer2 = new byte[buffer1.length];
+			while (true)
+			{
+				int read1 = fill(in1, buffer1);
+				int read2 = fill(in2, buffer2);
+				throttle(0, read1 + read2);
+				if (read1 != read2 || !Arrays.equals(buffer1, buffer2))
+					return false;
+				if (read1 < buffer1.length)
+					return true;
+			}
+		}
+	}
+
+	private void throttle(int fileCount, long byteCount) throws InterruptedIOException
+	{
+		if (throttle != null)
+			throttle.acquire(fileCount, byteCount);
+	}
+
+	/** @return the number of bytes read, less than the buffer only at the end of the stream */
+	private static int fill(InputStream in, byte[] buffer) throws IOException
+	{
+		int total = 0;
+		int read;
+		while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) > -1)
+			total += read;
+		return total;
+	}
+}
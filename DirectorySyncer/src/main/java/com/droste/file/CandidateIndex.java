@@ -0,0 +1,128 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.Adler32;
+
+/**
+ * The target files for {@link HashStrategy#STAGED}, grouped by size while the target is walked without reading them.
+ * <br/>
+ * A lookup narrows the candidates in three stages: the files of the same size, of those the ones with the same hash
+ * over the first 4 KB and of those the ones with the same content hash. A stage is only computed if the previous one
+ * left candidates, so a file of a size that is unique in the target is never read, and of a bucket of photos with
+ * equal size only the first 4 KB are. Hashes of target files are computed once and kept for later lookups.
+ */
+class CandidateIndex
+{
+	static final int HEAD_SIZE = 4096;
+
+	/** Computes the hashes of the stages, null if the file can't be read. */
+	interface Hasher
+	{
+		Long headHash(Path file, long size);
+
+		Long fullHash(Path file, long size, long lastModified);
+	}
+
+	private final Hasher hasher;
+	private final Map<Long, List<Candidate>> candidatesBySize = new HashMap<Long, List<Candidate>>();
+
+	private static class Candidate
+	{
+		private final Path file;
+		private final long lastModified;
+		private Long headHash;
+		private Long fullHash;
+
+		Candidate(Path file, long lastModified)
+		{
+			this.file = file;
+			this.lastModified = lastModified;
+		}
+	}
+
+	CandidateIndex(Hasher hasher)
+	{
+		this.hasher = hasher;
+	}
+
+	synchronized void add(Path file, long size, long lastModified)
+	{
+		List<Candidate> candidates = candidatesBySize.get(size);
+		if (candidates == null)
+		{
+			candidates = new ArrayList<Candidate>(1);
+			candidatesBySize.put(size, candidates);
+		}
+		candidates.add(new Candidate(file, lastModified));
+	}
+
+	/** @return the target files with the same content as the file, null if there are none */
+	List<Path> find(Path file, long size, long lastModified)
+	{
+		List<Candidate> candidates = candidatesBySize.get(size);
+		if (candidates == null)
+			return null;
+
+		Long headHash = hasher.headHash(file, size);
+		if (headHash == null)
+			return null;
+		List<Candidate> sameHead = new ArrayList<Candidate>();
+		for (Candidate candidate : candidates)
+		{
+			if (candidate.headHash == null)
+				candidate.headHash = hasher.headHash(candidate.file, size);
+			if (headHash.equals(candidate.headHash))
+				sameHead.add(candidate);
+		}
+		if (sameHead.isEmpty())
+			return null;
+
+		List<Path> matches = new ArrayList<Path>();
+		if (size <= HEAD_SIZE)
+		{
+			// the head is the whole file
+			for (Candidate candidate : sameHead)
+				matches.add(candidate.file);
+			return matches;
+		}
+		Long fullHash = hasher.fullHash(file, size, lastModified);
+		if (fullHash == null)
+			return null;
+		for (Candidate candidate : sameHead)
+		{
+			if (candidate.fullHash == null)
+				candidate.fullHash = hasher.fullHash(candidate.file, size, candidate.lastModified);
+			if (fullHash.equals(candidate.fullHash))
+				matches.add(candidate.file);
+		}
+		return matches.isEmpty() ? null : matches;
+	}
+
+	/** Adler32 over the first 4 KB of the file */
+	static long headHash(Path file, long size) throws IOException
+	{
+		int length = (int) Math.min(size, HEAD_SIZE);
+		byte[] head = new byte[length];
+		int total = 0;
+		try (InputStream inputStream = Files.newInputStream(file))
+		{
+			int read;
+			while (total < length && (read = inputStream.read(head, total, length - total)) > -1)
+				total += read;
+		}
+		Adler32 adler = new Adler32();
+		adler.update(head, 0, total);
+		return adler.getValue();
+	}
+
+	synchronized int size()
+	{
+		int size = 0;
+		for (List<Candidate> candidates : candidatesBySize.values())
+			size += candidates.size();
+		return size;
+	}
+}
@@ -0,0 +1,217 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * Copies with the cheapest strategy that works:<br/>
+ * 1. source and target on the same file store: a copy-on-write clone (reflink), no data is copied. Only tried for
+ * files of at least {@link #setReflinkMinSize(long) 1 MB} on file stores of a type that can clone. Each file store is
+ * probed once with a small file, and not tried again where a clone failed once. <br/>
+ * 2. {@link FileChannel#transferTo}, the kernel copies without going through the JVM. A source that shrinks during
+ * the copy is copied again through the buffer. <br/>
+ * 3. a plain buffered copy<br/>
+ * With a {@link CopyListener} every file is copied through the buffer, so the content is hashed on its way to the
+ * target and needs no read of its own.
+ */
+public class CopyEngine implements FileCopier
+{
+	private static final boolean IS_LINUX = System.getProperty("os.name", "").toLowerCase().contains("linux");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** the file store types with clones, a process is only forked on these */
+	private static final Set<String> REFLINK_TYPES = new HashSet<String>(Arrays.asList("btrfs", "xfs", "bcachefs",
+			"ocfs2", "zfs"));
+	private final Map<Path, FileStore> fileStores = new ConcurrentHashMap<Path, FileStore>();
+	private final Map<FileStore, Boolean> reflinkSupport = new ConcurrentHashMap<FileStore, Boolean>();
+	private long reflinkMinSize = 1024 * 1024;
+	private CopyListener listener;
+
+	/** Smaller files are not worth starting a clone for. */
+	public void setReflinkMinSize(long reflinkMinSize)
+	{
+		this.reflinkMinSize = reflinkMinSize;
+	}
+
+	/** Gets every copied file with its checksum, in the thread that copied it. */
+	public void setListener(CopyListener listener)
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public CopyStrategy copy(Path source, Path target) throws IOException
+	{
+		if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+			throw new FileAlreadyExistsException(target.toString());
+		if (listener != null)
+		{
+			long checksum = bufferedCopy(source, target);
+			try
+			{
+				listener.copied(source, target, checksum);
+			} catch (IOException | RuntimeException e)
+			{
+				Files.deleteIfExists(target);
+				throw e;
+			}
+			return CopyStrategy.BUFFERED;
+		}
+		if (IS_LINUX && Files.size(source) >= reflinkMinSize)
+		{
+			FileStore sourceStore = fileStore(source.toAbsolutePath().getParent());
+			if (sourceStore.equals(fileStore(target.toAbsolutePath().getParent()))
+					&& canReflink(sourceStore, target.toAbsolutePath().getParent()))
+			{
+				if (reflink(source, target))
+				{
+					reflinkSupport.put(sourceStore, true);
+					return CopyStrategy.REFLINK;
+				}
+				reflinkSupport.put(sourceStore, false);
+			}
+		}
+		try
+		{
+			transfer(source, target);
+			return CopyStrategy.TRANSFER_TO;
+		} catch (IOException e)
+		{
+			Logger.getLogger(CopyEngine.class.getName()).log(Level.FINE, "transferTo failed for " + source, e);
+			Files.deleteIfExists(target);
+		}
+		bufferedCopy(source, target);
+		return CopyStrategy.BUFFERED;
+	}
+
+	/** The file store of every directory is looked up once, the lookup is expensive on some systems. */
+	private FileStore fileStore(Path directory) throws IOException
+	{
+		FileStore fileStore = fileStores.get(directory);
+		if (fileStore == null)
+		{
+			fileStore = Files.getFileStore(directory);
+			fileStores.put(directory, fileStore);
+		}
+		return fileStore;
+	}
+
+	/** checks the type of the store and clones a small file once per store, the answer is kept */
+	private boolean canReflink(FileStore store, Path directory)
+	{
+		Boolean supported = reflinkSupport.get(store);
+		if (supported != null)
+			return supported;
+		synchronized (reflinkSupport)
+		{
+			supported = reflinkSupport.get(store);
+			if (supported == null)
+			{
+				supported = REFLINK_TYPES.contains(store.type().toLowerCase()) && probeReflink(directory);
+				reflinkSupport.put(store, supported);
+			}
+			return supported;
+		}
+	}
+
+	private boolean probeReflink(Path directory)
+	{
+		Path probe = null;
+		Path clone = null;
+		try
+		{
+			probe = Files.write(Files.createTempFile(directory, ".dirsync-probe", null), new byte[] { 1 });
+			clone = probe.resolveSibling(probe.getFileName() + ".clone");
+			return reflink(probe, clone);
+		} catch (IOException e)
+		{
+			Logger.getLogger(CopyEngine.class.getName()).log(Level.FINE, "no reflink probe in " + directory, e);
+			return false;
+		} finally
+		{
+			try
+			{
+				if (probe != null)
+					Files.deleteIfExists(probe);
+				if (clone != null)
+					Files.deleteIfExists(clone);
+			} catch (IOException e)
+			{
+				Logger.getLogger(CopyEngine.class.getName()).log(Level.FINE, "probe not deleted", e);
+			}
+		}
+	}
+
+	/** There is no java API for clones, cp --reflink=always does the FICLONE ioctl and fails without creating a copy. */
+	private boolean reflink(Path source, Path target) throws IOException
+	{
+		Process process = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString())
+				.redirectErrorStream(true).start();
+		try (InputStream output = process.getInputStream())
+		{
+			while (output.read() > -1)
+				; // the error message is not needed, only the exit code
+			if (process.waitFor() == 0)
+				return true;
+		} catch (InterruptedException e)
+		{
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while cloning " + source);
+		}
+		Files.deleteIfExists(target);
+		return false;
+	}
+
+	private void transfer(Path source, Path target) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+		{
+			transfer(in, in.size(), out);
+		}
+	}
+
+	/** @throws IOException if the source ends before size, because it shrank since its size was read */
+	static void transfer(FileChannel in, long size, FileChannel out) throws IOException
+	{
+		long position = 0;
+		while (position < size)
+		{
+			long transferred = in.transferTo(position, size - position, out);
+			if (transferred == 0 && in.size() <= position)
+				throw new IOException("the source shrank to " + in.size() + " of " + size + " bytes during the copy");
+			position += transferred;
+		}
+	}
+
+	/** @return the Adler32 of the content */
+	private long bufferedCopy(Path source, Path target) throws IOException
+	{
+		Adler32 adler = new Adler32();
+		try (InputStream in = Files.newInputStream(source);
+				OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW))
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) > -1)
+			{
+				adler.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException | RuntimeException e)
+		{
+			// a partial file under the name of the target would look like a finished copy
+			Files.deleteIfExists(target);
+			throw e;
+		}
+		return adler.getValue();
+	}
+}
@@ -0,0 +1,17 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Gets every file a copier completed, with the checksum computed while the data went through. A copier that does not
+ * read the data, like a clone, does not call it.
+ */
+public interface CopyListener
+{
+	/**
+	 * @param checksum the Adler32 of the content, like the content hash of the {@link DirectorySyncer}
+	 * @throws IOException to fail the copy, the target is deleted then
+	 */
+	void copied(Path source, Path target, long checksum) throws IOException;
+}
@@ -0,0 +1,16 @@
+package com.droste.file;
+
+/**
+ * The order in which {@link DirectorySyncer} copies the new and changed files. The copies run while the source is
+ * walked, so an order only holds among the copies queued so far: a file the walk finds later doesn't overtake a copy
+ * that already runs.
+ */
+public enum CopyOrder
+{
+	/** every file is copied when the walk over the source finds it. This is the default. */
+	WALK,
+	/** the copies are queued during the walk, the smallest queued file is copied next */
+	SMALLEST_FIRST,
+	/** the copies are queued during the walk, the most recently modified queued file is copied next */
+	NEWEST_FIRST
+}
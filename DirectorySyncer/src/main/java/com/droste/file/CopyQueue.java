@@ -0,0 +1,253 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * The copies of a sync in the order of a {@link CopyOrder}, copied while the walk is still finding more.<br/>
+ * Files matching one of the priority patterns come first, in the order of the patterns, then all others. Within the
+ * same priority the copy order decides, ties keep the order of the walk. The order holds among the copies queued so
+ * far, a file the walk finds later can't overtake a copy that already runs. Files bigger than the large file size are
+ * copied by a second thread in the same order, so a few huge files don't hold back thousands of small ones.<br/>
+ * A copy is only handed back to {@link Copier#copied} once it is done, on the thread that adds the copies. A failed
+ * or cancelled queue lets the running copies finish and skips the others, so no copy is left half written.
+ */
+class CopyQueue
+{
+	/** Copies one file and learns about the finished copies. */
+	interface Copier
+	{
+		/** called on one of the two copy threads */
+		CopyStrategy copy(Path source, long size, Path target) throws IOException;
+
+		/** called on the thread of the sync for every copy that is done */
+		void copied(SyncPlan.Type type, Path source, Path target, CopyStrategy copyStrategy);
+	}
+
+	private static class QueuedCopy
+	{
+		private final SyncPlan.Type type;
+		private final Path source;
+		private final Path target;
+		private final long size;
+		private final long lastModified;
+		private final int priority;
+		private final long sequence;
+		private CopyStrategy copyStrategy;
+
+		QueuedCopy(SyncPlan.Type type, Path source, Path target, long size, long lastModified, int priority,
+				long sequence)
+		{
+			this.type = type;
+			this.source = source;
+			this.target = target;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+	}
+
+	/** sorts after every copy and ends a copy thread */
+	private static final QueuedCopy END = new QueuedCopy(null, null, null, 0, 0, Integer.MAX_VALUE, Long.MAX_VALUE);
+	private final RuleMatcher priorities = new RuleMatcher();
+	private final int noOfPriorities;
+	private final long largeFileSize;
+	private final Copier copier;
+	private final BlockingQueue<QueuedCopy> smallCopies;
+	private final BlockingQueue<QueuedCopy> largeCopies;
+	private final Queue<QueuedCopy> completed = new ConcurrentLinkedQueue<QueuedCopy>();
+	private final List<Future<Void>> copyThreads = new ArrayList<Future<Void>>();
+	private ExecutorService executor;
+	/** the first failed copy, the copy threads skip everything after it */
+	private volatile IOException failure;
+	private volatile boolean cancelled = false;
+	private long sequence = 0;
+
+	/**
+	 * @param priorityPatterns gitignore patterns relative to the source, the first has the highest priority
+	 * @param largeFileSize bigger files are copied by the second thread
+	 */
+	CopyQueue(final CopyOrder order, List<String> priorityPatterns, long largeFileSize, Copier copier)
+	{
+		// the last rule wins in the matcher, so the first pattern is added last
+		for (int i = priorityPatterns.size() - 1; i >= 0; i--)
+		{
+			if (!priorities.add(Collections.<String> emptyList(), priorityPatterns.get(i)))
+				throw new IllegalArgumentException("no pattern: " + priorityPatterns.get(i));
+		}
+		this.noOfPriorities = priorityPatterns.size();
+		this.largeFileSize = largeFileSize;
+		this.copier = copier;
+		Comparator<QueuedCopy> comparator = new Comparator<QueuedCopy>()
+		{
+			@Override
+			public int compare(QueuedCopy a, QueuedCopy b)
+			{
+				if (a.priority != b.priority)
+					return Integer.compare(a.priority, b.priority);
+				int compared = 0;
+				if (order == CopyOrder.SMALLEST_FIRST)
+					compared = Long.compare(a.size, b.size);
+				else if (order == CopyOrder.NEWEST_FIRST)
+					compared = Long.compare(b.lastModified, a.lastModified);
+				return (compared != 0) ? compared : Long.compare(a.sequence, b.sequence);
+			}
+		};
+		this.smallCopies = new PriorityBlockingQueue<QueuedCopy>(1024, comparator);
+		this.largeCopies = new PriorityBlockingQueue<QueuedCopy>(64, comparator);
+	}
+
+	/**
+	 * Queues a copy and hands back the copies done so far. Starts the copy threads with the first copy.
+	 * @param relativePath the path of the source file relative to the source
+	 * @throws IOException if an earlier copy failed, the sync should stop then
+	 */
+	void add(SyncPlan.Type type, Path source, Path relativePath, long size, long lastModified, Path target)
+			throws IOException
+	{
+		reportCompleted();
+		if (failure != null)
+			throw failure;
+		if (executor == null)
+			start();
+		QueuedCopy copy = new QueuedCopy(type, source, target, size, lastModified, priority(relativePath),
+				sequence++);
+		(size <= largeFileSize ? smallCopies : largeCopies).add(copy);
+	}
+
+	private void start()
+	{
+		executor = Executors.newFixedThreadPool(2);
+		copyThreads.add(executor.submit(new CopyThread(smallCopies)));
+		copyThreads.add(executor.submit(new CopyThread(largeCopies)));
+		executor.shutdown();
+	}
+
+	/** 0 for the first pattern, the number of patterns if none matches */
+	private int priority(Path relativePath)
+	{
+		if (noOfPriorities == 0)
+			return 0;
+		RuleMatcher.State state = priorities.start();
+		for (Path name : relativePath)
+			state = priorities.step(state, name.toString());
+		int rule = priorities.lastRule(state, false);
+		return (rule < 0) ? noOfPriorities : noOfPriorities - 1 - rule;
+	}
+
+	/**
+	 * Waits until all queued copies are done and hands them back. If the thread is interrupted, the copies not started
+	 * yet are dropped and the running ones finish before it returns.
+	 * @throws IOException the first failed copy, the copies after it were not made
+	 */
+	void finish() throws IOException
+	{
+		if (executor == null)
+			return;
+		smallCopies.add(END);
+		largeCopies.add(END);
+		try
+		{
+			for (Future<Void> copyThread : copyThreads)
+				copyThread.get();
+		} catch (InterruptedException e)
+		{
+			cancel();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while copying");
+		} catch (ExecutionException e)
+		{
+			cancel();
+			throw new IOException("a copy thread failed", e.getCause());
+		}
+		reportCompleted();
+		if (failure != null)
+			throw failure;
+	}
+
+	/** Drops the copies not started yet and waits for the running ones, for a sync that stops early. */
+	void cancel()
+	{
+		if (executor == null)
+			return;
+		cancelled = true;
+		smallCopies.clear();
+		largeCopies.clear();
+		smallCopies.add(END);
+		largeCopies.add(END);
+		boolean interrupted = false;
+		for (Future<Void> copyThread : copyThreads)
+		{
+			while (true)
+			{
+				try
+				{
+					copyThread.get();
+					break;
+				} catch (InterruptedException e)
+				{
+					// a half written file is worse than waiting for the running copy
+					interrupted = true;
+				} catch (ExecutionException e)
+				{
+					Logger.getLogger(CopyQueue.class.getName()).log(Level.WARNING, "a copy thread failed",
+							e.getCause());
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		reportCompleted();
+	}
+
+	private void reportCompleted()
+	{
+		QueuedCopy copy;
+		while ((copy = completed.poll()) != null)
+			copier.copied(copy.type, copy.source, copy.target, copy.copyStrategy);
+	}
+
+	/** takes the copies of one queue until {@link #END} */
+	private class CopyThread implements Callable<Void>
+	{
+		private final BlockingQueue<QueuedCopy> copies;
+
+		CopyThread(BlockingQueue<QueuedCopy> copies)
+		{
+			this.copies = copies;
+		}
+
+		@Override
+		public Void call() throws InterruptedException
+		{
+			QueuedCopy copy;
+			while ((copy = copies.take()) != END)
+			{
+				if (failure != null || cancelled)
+					continue;
+				try
+				{
+					copy.copyStrategy = copier.copy(copy.source, copy.size, copy.target);
+					completed.add(copy);
+				} catch (IOException e)
+				{
+					synchronized (CopyQueue.this)
+					{
+						if (failure == null)
+							failure = e;
+					}
+				}
+			}
+			return null;
+		}
+	}
+}
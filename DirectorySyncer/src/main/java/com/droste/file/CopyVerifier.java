@@ -0,0 +1,129 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.droste.file.report.Report;
+
+/**
+ * The copies of a sync waiting for verification, with the hash computed while they were copied.<br/>
+ * {@link #verify()} reads all waiting targets back in parallel and returns the ones that differ. A target that can't
+ * be read counts as different, so it is copied again as well.
+ */
+class CopyVerifier
+{
+	/** Reads the content hash of a target file, in the lane of the I/O scheduler. */
+	interface Hasher
+	{
+		long hash(Path target) throws IOException;
+	}
+
+	/** A copied file and the hash of the data that was written. */
+	static class Copy
+	{
+		private final Path source;
+		private final Path target;
+		private final long checksum;
+
+		Copy(Path source, Path target, long checksum)
+		{
+			this.source = source;
+			this.target = target;
+			this.checksum = checksum;
+		}
+
+		Path getSource()
+		{
+			return source;
+		}
+
+		Path getTarget()
+		{
+			return target;
+		}
+	}
+
+	private final Report report;
+	private final int threads;
+	private final Hasher hasher;
+	private final List<Copy> waiting = new ArrayList<Copy>();
+
+	CopyVerifier(Report report, int threads, Hasher hasher)
+	{
+		this.report = report;
+		this.threads = threads;
+		this.hasher = hasher;
+	}
+
+	/** called in the thread of the copy */
+	synchronized void add(Path source, Path target, long checksum)
+	{
+		waiting.add(new Copy(source, target, checksum));
+	}
+
+	synchronized boolean isEmpty()
+	{
+		return waiting.isEmpty();
+	}
+
+	/** Verifies the waiting copies and forgets them. @return the copies whose target differs from the source */
+	List<Copy> verify() throws IOException
+	{
+		List<Copy> copies;
+		synchronized (this)
+		{
+			copies = new ArrayList<Copy>(waiting);
+			waiting.clear();
+		}
+		List<Copy> mismatches = new ArrayList<Copy>();
+		if (copies.isEmpty())
+			return mismatches;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, copies.size()));
+		try
+		{
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (final Copy copy : copies)
+			{
+				futures.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call()
+					{
+						try
+						{
+							return hasher.hash(copy.target) == copy.checksum;
+						} catch (IOException e)
+						{
+							Logger.getLogger(CopyVerifier.class.getName()).log(Level.WARNING,
+									"can't read " + copy.target, e);
+							return false;
+						}
+					}
+				}));
+			}
+			for (int i = 0; i < copies.size(); i++)
+			{
+				if (futures.get(i).get())
+					report.countVerifiedFile();
+				else
+					mismatches.add(copies.get(i));
+			}
+		} catch (ExecutionException e)
+		{
+			throw new IOException("verifying failed", e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while verifying");
+		} finally
+		{
+			executor.shutdownNow();
+		}
+		return mismatches;
+	}
+}
@@ -0,0 +1,17 @@
+package com.droste.file;
+
+/**
+ * What happens with a source file whose content was already written to the target during the same sync.
+ */
+public enum DedupMode
+{
+	/** every file is copied from the source, this is the default */
+	OFF,
+	/** the new target file becomes a hard link to the one already written. Falls back to a local copy. */
+	HARDLINK,
+	/**
+	 * the new target file is copied from the one already written. The source is not read again, but the data is read
+	 * from and written to the target, so this only pays off with a source that is slower than the target.
+	 */
+	LOCAL_COPY
+}
@@ -0,0 +1,127 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * Remembers the files written into the target during one sync, to find a written file with the same content as a
+ * new source file.<br/>
+ * Files are grouped by size first, then by a hash over their first 4 KB like in the {@link CandidateIndex}, then by
+ * the Adler32 of the content the {@link DirectorySyncer} uses for relocations. The content hash of a written file comes
+ * from its copy, which hashes the data while it goes through, so a written file is not read again for it. A new source
+ * file is only hashed if it shares size and first 4 KB with a written file.
+ */
+class Deduplicator
+{
+	private final DedupMode mode;
+	private final CandidateIndex.Hasher hasher;
+	private final Map<Long, List<WrittenFile>> writtenFilesBySize = new HashMap<Long, List<WrittenFile>>();
+	/** the content hashes of the finished copies by source, until the copy is reported as written */
+	private final Map<Path, Long> copyHashes = new ConcurrentHashMap<Path, Long>();
+
+	private static class WrittenFile
+	{
+		private final Path source;
+		private final Path target;
+		private final long lastModified;
+		private Long headHash;
+		private Long hash;
+
+		WrittenFile(Path source, Path target, long lastModified, Long hash)
+		{
+			this.source = source;
+			this.target = target;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	/** @param hasher the full hash must be the content hash, not the size */
+	Deduplicator(DedupMode mode, CandidateIndex.Hasher hasher)
+	{
+		this.mode = mode;
+		this.hasher = hasher;
+	}
+
+	DedupMode getMode()
+	{
+		return mode;
+	}
+
+	/** @return a target file written during this sync that has the same content as the source file, or null */
+	Path findWrittenCopy(Path source, long size, long lastModified)
+	{
+		List<WrittenFile> candidates = writtenFilesBySize.get(size);
+		if (candidates == null)
+			return null;
+		Long headHash = hasher.headHash(source, size);
+		if (headHash == null)
+			return null;
+		Long hash = null;
+		for (WrittenFile candidate : candidates)
+		{
+			if (candidate.headHash == null)
+				candidate.headHash = hasher.headHash(candidate.source, size);
+			if (!headHash.equals(candidate.headHash))
+				continue;
+			if (hash == null)
+				hash = hasher.fullHash(source, size, lastModified);
+			if (hash == null)
+				return null;
+			// only in a simulation, or if the copy did not hash the data
+			if (candidate.hash == null)
+				candidate.hash = hasher.fullHash(candidate.source, size, candidate.lastModified);
+			if (hash.equals(candidate.hash))
+				return candidate.target;
+		}
+		return null;
+	}
+
+	/** Called by the listener of the copier, on the thread of the copy. */
+	void copied(Path source, long hash)
+	{
+		copyHashes.put(source, hash);
+	}
+
+	void written(Path source, Path target, long size, long lastModified)
+	{
+		List<WrittenFile> writtenFiles = writtenFilesBySize.get(size);
+		if (writtenFiles == null)
+		{
+			writtenFiles = new ArrayList<WrittenFile>(1);
+			writtenFilesBySize.put(size, writtenFiles);
+		}
+		writtenFiles.add(new WrittenFile(source, target, lastModified, copyHashes.remove(source)));
+	}
+
+	/** Creates the new target file from the already written one, using the mode of this deduplicator. */
+	CopyStrategy copyFromTarget(Path writtenFile, Path newTargetPath, FileCopier copier) throws IOException
+	{
+		if (mode == DedupMode.HARDLINK)
+		{
+			try
+			{
+				Files.createLink(newTargetPath, writtenFile);
+				return CopyStrategy.HARDLINK;
+			} catch (UnsupportedOperationException | IOException e)
+			{
+				Logger.getLogger(Deduplicator.class.getName()).log(Level.FINE,
+						"no hard link possible for " + newTargetPath + ", copying", e);
+			}
+		}
+		try
+		{
+			return copier.copy(writtenFile, newTargetPath);
+		} finally
+		{
+			// the listener reports this copy, too
+			copyHashes.remove(writtenFile);
+		}
+	}
+}
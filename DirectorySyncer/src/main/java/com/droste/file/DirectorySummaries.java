@@ -0,0 +1,197 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Summaries of the directories of source and target after the last sync, to skip subtrees that did not change since.
+ * <br/>
+ * The summary of a directory is a hash over the sorted names, sizes and modification times of its files and the
+ * summaries of its subdirectories, computed bottom-up. A directory is remembered with the summaries of both sides only
+ * if the sync found every file in it unchanged at the same place in the target. If both summaries are the same in the
+ * next run, the whole subtree is in sync: its target files are left out of the target map and are not hashed, and the
+ * source walk does not enter it. Only the attributes of both sides are read for it.<br/>
+ * The file has one line per directory: source summary, target summary and the lower case path relative to the roots,
+ * separated by tabs.
+ */
+public class DirectorySummaries
+{
+	private final Path summaryFile;
+	private final Map<String, long[]> entries = new HashMap<String, long[]>();
+
+	/** Hash, number of files and directories of one subtree. */
+	static class Summary
+	{
+		private final long hash;
+		private final int files;
+		private final int directories;
+
+		Summary(long hash, int files, int directories)
+		{
+			this.hash = hash;
+			this.files = files;
+			this.directories = directories;
+		}
+
+		long getHash()
+		{
+			return hash;
+		}
+
+		int getFiles()
+		{
+			return files;
+		}
+
+		int getDirectories()
+		{
+			return directories;
+		}
+	}
+
+	public DirectorySummaries(Path summaryFile)
+	{
+		this.summaryFile = summaryFile;
+	}
+
+	/** Reads the summary file if it exists. Broken lines are skipped. */
+	public DirectorySummaries load() throws IOException
+	{
+		if (!Files.exists(summaryFile))
+			return this;
+		try (BufferedReader reader = Files.newBufferedReader(summaryFile, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split("\t", 3);
+				if (fields.length < 3)
+					continue;
+				try
+				{
+					entries.put(fields[2], new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]) });
+				} catch (NumberFormatException e)
+				{
+					// skip the broken line, the directory is simply visited again
+				}
+			}
+		}
+		return this;
+	}
+
+	/** Writes to a temporary file first, like the {@link HashCache}. */
+	public void save() throws IOException
+	{
+		Path tempFile = summaryFile.resolveSibling(summaryFile.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+		{
+			for (Map.Entry<String, long[]> entry : entries.entrySet())
+			{
+				writer.write(entry.getValue()[0] + "\t" + entry.getValue()[1] + "\t" + entry.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(tempFile, summaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/** true if source and target directory both have the summaries of the last sync */
+	boolean isUnchanged(String directory, Summary sourceSummary, Summary targetSummary)
+	{
+		long[] entry = entries.get(directory);
+		return entry != null && sourceSummary != null && targetSummary != null
+				&& entry[0] == sourceSummary.getHash() && entry[1] == targetSummary.getHash();
+	}
+
+	void put(String directory, Summary sourceSummary, Summary targetSummary)
+	{
+		entries.put(directory, new long[] { sourceSummary.getHash(), targetSummary.getHash() });
+	}
+
+	void remove(String directory)
+	{
+		entries.remove(directory);
+	}
+
+	/**
+	 * Computes the summaries of all directories of one walk. The visitor calls {@link #enter(Path)},
+	 * {@link #file(Path, BasicFileAttributes)} and {@link #leave(Path)}, the results are keyed by the lower case path
+	 * relative to the root.
+	 */
+	static class Collector
+	{
+		private final Path root;
+		private final Map<String, Summary> summaries = new HashMap<String, Summary>();
+		private final Deque<List<String>> children = new ArrayDeque<List<String>>();
+		private final Deque<int[]> counts = new ArrayDeque<int[]>();
+
+		Collector(Path root)
+		{
+			this.root = root;
+		}
+
+		void enter(Path dir)
+		{
+			children.push(new ArrayList<String>());
+			counts.push(new int[2]);
+		}
+
+		void file(Path file, BasicFileAttributes attrs)
+		{
+			children.peek().add(file.getFileName() + "\0f\0" + attrs.size() + "\0" + attrs.lastModifiedTime().toMillis());
+			counts.peek()[0]++;
+		}
+
+		void leave(Path dir)
+		{
+			List<String> entries = children.pop();
+			int[] count = counts.pop();
+			Collections.sort(entries);
+			Summary summary = new Summary(digest(entries), count[0], count[1] + 1);
+			summaries.put(key(root, dir), summary);
+			if (!children.isEmpty())
+			{
+				children.peek().add(dir.getFileName() + "\0d\0" + summary.getHash());
+				counts.peek()[0] += summary.getFiles();
+				counts.peek()[1] += summary.getDirectories();
+			}
+		}
+
+		Map<String, Summary> getSummaries()
+		{
+			return summaries;
+		}
+
+		private static long digest(List<String> entries)
+		{
+			try
+			{
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				for (String entry : entries)
+				{
+					digest.update(entry.getBytes(StandardCharsets.UTF_8));
+					digest.update((byte) '\n');
+				}
+				return ByteBuffer.wrap(digest.digest()).getLong();
+			} catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException("SHA-1 is not available", e);
+			}
+		}
+	}
+
+	static String key(Path root, Path dir)
+	{
+		return root.relativize(dir).toString().toLowerCase();
+	}
+}
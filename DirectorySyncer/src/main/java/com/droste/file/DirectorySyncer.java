@@ -1,357 +1,1515 @@
-package com.droste.file;
-
-import java.io.*;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.zip.Adler32;
-import java.util.zip.Checksum;
-
-import com.droste.file.report.Report;
-
-/**
- * 1. put the target files into a map, key is the subpath under target, value the file.<br/>
- * 2. for every file in source: see if key exists in targetmap. <br/>
- * 2.1 if exists then compare hash <br/>
- * 2.1.1 if equal nothing to do <br/>
- * 2.1.2 if different copy file from source to target, but add (n) to the name. collisiondetection for different n's
- * needed <br/>
- * 2.2.1 if not exists then copy from source to target, keep the subpath. <br/>
- * 2.2.2 BUT (perhaps optional): search for file(hash) in the whole target. if exists then we asume there was a move in
- * the target and don't copy. <br/>
- * 2.2.2.1 Problem 1: Licence-files: ProductX is with licence1 in target, productY should be synced from the source. the
- * licence must be in the target! <br/>
- * 2.2.2.2 problem 2: mp3-folder was renamed/moved in target. The old location must not be resynced from the source. <br/>
- * => compare with siblings, offer (un)do in results-dialog
- */
-public class DirectorySyncer
-{
-	private static final LinkOption NFL = LinkOption.NOFOLLOW_LINKS;
-	private final Path target;
-	private final Path source;
-	private final long startTime = System.currentTimeMillis();
-	private final Report report;
-	private final boolean isSimulationMode;
-	private final Map<Long, List<Path>> hashedTargetMap = new HashMap<Long, List<Path>>();
-	private final Checksum adler = new Adler32();
-	private static final Set<String> NOHASH_FILES = new HashSet<String>();
-	private static final Set<String> IGNORE_FILES = new HashSet<String>();
-	static
-	{
-		NOHASH_FILES.addAll(Arrays.asList(new String[] { "png", "jpg", "jpeg", "mpg", "asf", "avi", "m4v", "mov",
-				"pdf", "mp3", "mp4", "mp4v", "mov", "wm", "wmv", "aif", "mpe", "mpeg", "mpg", "mpv2", "gif" }));
-		IGNORE_FILES.addAll(Arrays.asList(new String[] { "thumbs.db", "desktop.ini" }));
-	}
-
-	public DirectorySyncer(String source, String target, boolean isSimulationMode)
-	{
-		this.source = new File(source).toPath();
-		this.target = new File(target).toPath();
-		this.isSimulationMode = isSimulationMode;
-
-		assert (Files.exists(this.source, NFL) && Files.exists(this.target, NFL));
-		this.report = new Report();
-	}
-
-	public Map<String, Path> buildTargetFileMap() throws IOException
-	{
-		final Map<String, Path> targetMap = new HashMap<String, Path>();
-		Files.walkFileTree(target, new SimpleFileVisitor<Path>()
-		{
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
-			{
-				if (IGNORE_FILES.contains(file.getFileName().toString().toLowerCase()))
-					return super.visitFile(file, attrs);
-
-				report.countTargetFiles();
-				targetMap.put(target.relativize(file).toString().toLowerCase(), file);
-				Long hash = hash(file);
-				if (hash != null)
-				{
-					addToHashedTargets(file, hash);
-				}
-				return super.visitFile(file, attrs);
-			}
-		});
-		return targetMap;
-	}
-
-	public Report findAndHandleSourcesInTargetMap(final Map<String, Path> targetMap) throws IOException
-	{
-		Files.walkFileTree(source, new SimpleFileVisitor<Path>()
-		{
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
-			{
-				if (IGNORE_FILES.contains(file.getFileName().toString().toLowerCase()))
-					return super.visitFile(file, attrs);
-
-				report.countSourceFiles();
-				Path targetPath = targetMap.get(source.relativize(file).toString().toLowerCase());
-				if (targetPath != null)
-				{
-					if (Files.size(file) != Files.size(targetPath))
-					{
-						handleChangedFile(file, targetPath);
-					}
-				} else
-				{
-					if (!checkIfRelocated(file))
-						handleNewFile(file);
-				}
-				return super.visitFile(file, attrs);
-			}
-
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
-			{ // TODO this might create empty dirs if the files in the source are recognized as
-				// relocated in the target.
-				report.countDirectories();
-				Path newdir = target.resolve(source.relativize(dir));
-				if (!Files.exists(newdir))
-				{
-					if (!isSimulationMode)
-						Files.createDirectory(newdir);
-					report.addNewDirectory(newdir);
-				}
-				return super.preVisitDirectory(dir, attrs);
-			}
-
-			private void handleNewFile(Path file) throws IOException
-			{
-				final Path newTargetPath = target.resolve(source.relativize(file));
-				if (!isSimulationMode)
-					Files.copy(file, newTargetPath);
-				report.addNewFile(file, newTargetPath);
-			}
-
-			private void handleChangedFile(Path file, final Path targetPath) throws IOException
-			{
-				Path newTargetPath = targetPath;
-				int counter = 1;
-				while (Files.exists(newTargetPath))
-				{
-					if (Files.size(newTargetPath) == Files.size(file))
-						return;
-					String newName = renameDuplicateFile(targetPath, counter);
-					counter++;
-					newTargetPath = targetPath.getParent().resolve(newName);
-				}
-				if (!isSimulationMode)
-					Files.copy(file, newTargetPath);
-				report.addChangedFile(file, newTargetPath);
-			}
-
-			/**
-			 * Search for file(hash) in the whole target. if exists then <br/>
-			 * 1. check if the new location is in the source, too. If so, copy, because it's an add-on.<br/>
-			 * 2. else Compare the siblings in the source with the new target location. If all siblings are at the new
-			 * location in the target, too, we assume a move and don't copy.
-			 */
-			private boolean checkIfRelocated(Path file) throws IOException
-			{
-				boolean isRelocated = false;
-				Long hash = hash(file);
-				List<Path> filesInTarget = hashedTargetMap.get(hash);
-				if (filesInTarget != null)
-				{
-					for (Path fileInTarget : filesInTarget)
-					{
-						if (fileInTarget != null && getFileEnding(fileInTarget).equalsIgnoreCase(getFileEnding(file)))
-						{
-							if (locationExistsInSource(fileInTarget))
-							{
-								report.addAdditionalFile(file, filesInTarget); // copy it
-							} else if (!allSiblingsExistInNewTarget(file.getParent(), fileInTarget.getParent()))
-							{
-								report.addAdditionalFile(file, filesInTarget); // copy it
-							} else
-							{
-								report.addRelocatedFile(file, fileInTarget);
-								isRelocated = true;
-							}
-						}
-					}
-					filterAdditionalFiles();
-				}
-				return isRelocated;
-			}
-
-			private boolean allSiblingsExistInNewTarget(final Path folderInSource, final Path folderInTarget)
-					throws IOException
-			{
-				final boolean[] allSibilingsExistInNewTarget = { true };
-				Files.walkFileTree(folderInSource, new SimpleFileVisitor<Path>()
-				{
-					@Override
-					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
-					{
-						if (IGNORE_FILES.contains(file.getFileName().toString().toLowerCase()))
-							return super.visitFile(file, attrs);
-
-						Path relativized = folderInSource.relativize(file);
-						Path resolved = folderInTarget.resolve(relativized);
-						if (!Files.exists(resolved))
-						{
-							allSibilingsExistInNewTarget[0] = false;
-						}
-						return super.visitFile(file, attrs);
-					}
-				});
-
-				return allSibilingsExistInNewTarget[0];
-			}
-		});
-		report.setSyncTime(System.currentTimeMillis() - startTime);
-		return report;
-	}
-
-	/**
-	 * If a file is multiple times in the target then it might once be marked as relocated and once as additional. <br/>
-	 * But if it is relocated then it's not additional any more
-	 */
-	protected void filterAdditionalFiles()
-	{
-		Map<Path, List<Path>> additionalFilesMap = report.getAdditionalFiles();
-		Set<Path> additionalFiles = additionalFilesMap.keySet();
-		for (Path relocated : report.getRelocatedFiles().keySet())
-		{
-			if (additionalFiles.contains(relocated))
-			{
-				additionalFilesMap.remove(relocated);
-			}
-		}
-	}
-
-	String renameDuplicateFile(Path file, int counter)
-	{
-		String[] split = file.getFileName().toString().split("\\.");
-		StringBuilder newName = new StringBuilder();
-		for (int i = 0; i < split.length; i++)
-		{
-			newName.append(split[i]);
-			if (i == split.length - 2)
-				newName.append(" (").append(counter).append(")");
-			newName.append(".");
-		}
-		newName.deleteCharAt(newName.length() - 1);
-		return newName.toString();
-	}
-
-	private boolean locationExistsInSource(Path fileInTarget)
-	{
-		return Files.exists(source.resolve(target.relativize(fileInTarget)));
-	}
-
-	/**
-	 * "non-changing" multimedia files are fake-hashed the length to increase speed. <br/>
-	 * All other files get a real hash.
-	 */
-	Long hash(Path file) throws IOException
-	{
-		if (NOHASH_FILES.contains(getFileEnding(file)))
-		{
-			return Files.size(file);
-		}
-
-		InputStream inputStream = null;
-		try
-		{
-			inputStream = Files.newInputStream(file);
-			byte[] currentChunk = new byte[8192];
-			while (inputStream.read(currentChunk) > -1)
-			{
-				adler.update(currentChunk, 0, currentChunk.length);
-			}
-			long value = adler.getValue();
-			adler.reset();
-			return value;
-		} catch (IOException ex)
-		{
-			Logger.getLogger(DirectorySyncer.class.getName()).log(Level.SEVERE, null, ex);
-			return null;
-		} finally
-		{
-			try
-			{
-				inputStream.close();
-			} catch (IOException e)
-			{
-				e.printStackTrace();
-			}
-		}
-	}
-
-	private String getFileEnding(Path file)
-	{
-		String[] nameElements = file.getFileName().toString().split("\\.");
-		String ending = nameElements[nameElements.length - 1];
-		return ending;
-	}
-
-	private void addToHashedTargets(Path file, Long hash)
-	{
-		List<Path> pathsForHash = hashedTargetMap.get(hash);
-		if (pathsForHash == null)
-		{
-			pathsForHash = new ArrayList<Path>();
-		}
-		pathsForHash.add(file);
-		hashedTargetMap.put(hash, pathsForHash);
-	}
-
-	public Map<Long, List<Path>> getHashedTargetMap()
-	{
-		return Collections.unmodifiableMap(hashedTargetMap);
-	}
-
-	/**
-	 * If the content of a folder was moved to another location in the target, none of the files will be copied (->
-	 * relocated). However the whole directory tree is moved. As a result there are new empty directories in the target. <br/>
-	 * Remove them from the filesystem and the report.
-	 */
-	public Report cleanupDirs(Report report) throws IOException
-	{
-		List<Path> newDirectories = new ArrayList<Path>();
-		for (Path path : report.getNewDirectories())
-		{
-			newDirectories.add(path);
-		}
-		Collections.sort(newDirectories, new Comparator<Path>()
-		{
-			@Override
-			public int compare(Path o1, Path o2)
-			{
-				return o1.toString().length() > o2.toString().length() ? -1 : 1;
-			}
-		});
-		for (Path targetDir : newDirectories)
-		{
-			if (isDirectoryEmpty(targetDir))
-			{
-				if (!isDirectoryEmpty(source.resolve(target.relativize(targetDir))))
-				{
-					if (!this.isSimulationMode)
-					{
-						Files.delete(targetDir);
-					}
-					report.removeDirectory(targetDir);
-				}
-			}
-		}
-		return report;
-	}
-
-	private boolean isDirectoryEmpty(Path directory) throws IOException
-	{
-		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
-		{
-			Iterator<Path> iterator = stream.iterator();
-			boolean hasNext = iterator.hasNext();
-			return !hasNext;
-		}
-	}
-}
+package com.droste.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+
+/**
+ * 1. put the target files into a map, key is the subpath under target, value the file.<br/>
+ * 2. for every file in source: see if key exists in targetmap. <br/>
+ * 2.1 if exists then compare hash <br/>
+ * 2.1.1 if equal nothing to do <br/>
+ * 2.1.2 if different copy file from source to target, but add (n) to the name. collisiondetection for different n's
+ * needed <br/>
+ * 2.2.1 if not exists then copy from source to target, keep the subpath. <br/>
+ * 2.2.2 BUT (perhaps optional): search for file(hash) in the whole target. if exists then we asume there was a move in
+ * the target and don't copy. <br/>
+ * 2.2.2.1 Problem 1: Licence-files: ProductX is with licence1 in target, productY should be synced from the source. the
+ * licence must be in the target! <br/>
+ * 2.2.2.2 problem 2: mp3-folder was renamed/moved in target. The old location must not be resynced from the source. <br/>
+ * => compare with siblings, offer (un)do in results-dialog
+ */
+public class DirectorySyncer
+{
+	private static final LinkOption NFL = LinkOption.NOFOLLOW_LINKS;
+	private final Path target;
+	private final Path source;
+	private final long startTime = System.currentTimeMillis();
+	private final Report report;
+	private final boolean isSimulationMode;
+	private final Map<Long, List<Path>> hashedTargetMap = new HashMap<Long, List<Path>>();
+	private HashStrategy hashStrategy = HashStrategy.MIXED;
+	private HashCache hashCache;
+	private int threads = 1;
+	private FileCopier copier = new CopyEngine();
+	private boolean hashWhileCopy = false;
+	private boolean verifyCopies = false;
+	private int verifyRetries = 2;
+	private CopyVerifier verifier;
+	private Deduplicator deduplicator;
+	private SyncJournal journal;
+	private final SyncPlan plan;
+	/** target directories known to exist, or to be created in simulation mode */
+	private final Set<Path> existingDirectories = new HashSet<Path>();
+	private final RenameIndex renameIndex = new RenameIndex();
+	/** attributes of the target files from the walk in {@link #buildTargetFileMap()} */
+	private final Map<Path, FileInfo> targetFiles = new HashMap<Path, FileInfo>();
+	/** result of the sibling check per source folder and target folder, the folder is walked only once */
+	private final Map<String, Boolean> siblingChecks = new HashMap<String, Boolean>();
+	private DirectorySummaries summaries;
+	private IoScheduler ioScheduler;
+	/** false if the copier only records the copies and their I/O goes through the scheduler elsewhere */
+	private boolean schedulesCopies = true;
+	private Throttle throttle;
+	private RelocationFilter relocationFilter = new RelocationFilter();
+	/** the target files for {@link HashStrategy#STAGED}, which are not hashed during the walk */
+	private final CandidateIndex candidateIndex = new CandidateIndex(new CandidateIndex.Hasher()
+	{
+		@Override
+		public Long headHash(Path file, long size)
+		{
+			return DirectorySyncer.this.headHash(file, size);
+		}
+
+		@Override
+		public Long fullHash(Path file, long size, long lastModified)
+		{
+			return hash(file, size, lastModified);
+		}
+	});
+	private Map<String, DirectorySummaries.Summary> sourceSummaries = Collections.emptyMap();
+	private Map<String, DirectorySummaries.Summary> targetSummaries = Collections.emptyMap();
+	/** source directories (relative, lower case) with a file that was not simply found unchanged in the target */
+	private final Set<String> uncleanDirectories = new HashSet<String>();
+	/** directories (relative, lower case) whose source and target did not change since the last sync */
+	private final Set<String> unchangedSubtrees = new HashSet<String>();
+	private boolean mirror = false;
+	private int maxDeletes = 1000;
+	/** for a mirror: the lower case relative paths of the source files and directories */
+	private final Set<String> sourceEntries = new HashSet<String>();
+	private final List<String> skippedSubtrees = new ArrayList<String>();
+	private final List<Path> targetDirectories = new ArrayList<Path>();
+	/** relocated target files that are moved to the place of their source file, null if moves are not replayed */
+	private MoveReplay moveReplay;
+	private SyncRules rules = new SyncRules();
+	private CopyOrder copyOrder = CopyOrder.WALK;
+	private List<String> copyPriorities = Collections.emptyList();
+	private long largeFileSize = 64L * 1024 * 1024;
+	/** the ordered copies, made by their own threads during the walk, null if they are made right away */
+	private CopyQueue copyQueue;
+
+	public DirectorySyncer(String source, String target, boolean isSimulationMode)
+	{
+		this.source = new File(source).toPath();
+		this.target = new File(target).toPath();
+		this.isSimulationMode = isSimulationMode;
+
+		assert (Files.exists(this.source, NFL) && Files.exists(this.target, NFL));
+		this.report = new Report();
+		this.plan = isSimulationMode ? new SyncPlan(this.source, this.target) : null;
+	}
+
+	/**
+	 * Files and subtrees of source and target the sync leaves alone, and the files identified by their size for
+	 * {@link HashStrategy#MIXED}. Default are the rules of a new {@link SyncRules}.
+	 */
+	public void setRules(SyncRules rules)
+	{
+		this.rules = rules;
+	}
+
+	/** Decides which files get a real content hash, default is {@link HashStrategy#MIXED}. */
+	public void setHashStrategy(HashStrategy hashStrategy)
+	{
+		this.hashStrategy = hashStrategy;
+	}
+
+	/** Hashes of unchanged files are taken from this cache instead of reading the files again. */
+	public void setHashCache(HashCache hashCache)
+	{
+		this.hashCache = hashCache;
+	}
+
+	/** Number of threads hashing the target files while the target map is built. */
+	public void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("at least one thread is needed, got " + threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Everything that is copied into the target goes through this copier, default is a {@link CopyEngine}. The sync
+	 * waits for an {@link AsyncCopyEngine} before it moves or deletes anything in the target.
+	 * @throws IllegalStateException for an {@link AsyncCopyEngine} with dedup or a journal, which need the copy to be
+	 *         done when the copier returns
+	 */
+	public void setFileCopier(FileCopier copier)
+	{
+		if (copier instanceof AsyncCopyEngine && (deduplicator != null || journal != null))
+			throw new IllegalStateException("an async copy engine can't be used with dedup or a journal");
+		this.copier = copier;
+		updateCopyListener();
+	}
+
+	/**
+	 * The content hash of a file is computed while it is copied and goes into the hash cache for the source and the new
+	 * target file, so neither is read again for its hash, in this sync or in the next one. Needs a {@link CopyEngine}
+	 * or an {@link AsyncCopyEngine} as copier. Default is off.
+	 */
+	public void setHashWhileCopy(boolean hashWhileCopy)
+	{
+		this.hashWhileCopy = hashWhileCopy;
+		updateCopyListener();
+	}
+
+	/**
+	 * After the copies every copied file is read back from the target and compared with the hash computed while
+	 * copying, by the threads of {@link #setThreads(int)} in the hash lane of the I/O scheduler. A copy that differs is
+	 * copied again, one that still differs after the retries is reported as corrupt and fails the sync. Hashes while
+	 * copying, like {@link #setHashWhileCopy(boolean)}. Default is off.
+	 */
+	public void setVerifyCopies(boolean verifyCopies)
+	{
+		this.verifyCopies = verifyCopies;
+		updateCopyListener();
+	}
+
+	/** How often a copy that failed verification is copied again, default is 2. */
+	public void setVerifyRetries(int verifyRetries)
+	{
+		if (verifyRetries < 0)
+			throw new IllegalArgumentException("retries can't be negative, got " + verifyRetries);
+		this.verifyRetries = verifyRetries;
+	}
+
+	/**
+	 * The order of the copies, default is {@link CopyOrder#WALK}. In any other order the copies are queued while the
+	 * source is walked and made by two threads of their own from the start, see {@link CopyQueue} and
+	 * {@link #setLargeFileSize(long)}. A file is reported as new or changed once its copy is done. With deduplication
+	 * the copies are always made in the order of the walk, the files written so far are the ones it links to.
+	 */
+	public void setCopyOrder(CopyOrder copyOrder)
+	{
+		this.copyOrder = copyOrder;
+	}
+
+	/**
+	 * gitignore patterns relative to the source for the files that are copied first, the first pattern has the highest
+	 * priority. The copy order decides between files of the same priority. Like an order other than
+	 * {@link CopyOrder#WALK}, priorities queue the copies. Default is none.
+	 */
+	public void setCopyPriorities(List<String> copyPriorities)
+	{
+		this.copyPriorities = new ArrayList<String>(copyPriorities);
+	}
+
+	/**
+	 * When the copies are ordered, files bigger than this are copied by a second thread in the same order while the
+	 * smaller files are copied, default is 64 MB.
+	 */
+	public void setLargeFileSize(long largeFileSize)
+	{
+		if (largeFileSize < 0)
+			throw new IllegalArgumentException("the size can't be negative, got " + largeFileSize);
+		this.largeFileSize = largeFileSize;
+	}
+
+	/**
+	 * Source files with the same content as a file already written during this sync are created from that target file
+	 * instead of being copied from the source again. A {@link CopyEngine} hashes the data of every copy then, so the
+	 * written files are not read again to find the duplicates. Default is {@link DedupMode#OFF}.
+	 * @throws IllegalStateException with an {@link AsyncCopyEngine} as copier, whose target files may not be written
+	 *         yet when a duplicate is created from them
+	 */
+	public void setDedupMode(DedupMode dedupMode)
+	{
+		if (dedupMode != DedupMode.OFF && copier instanceof AsyncCopyEngine)
+			throw new IllegalStateException("dedup can't be used with an async copy engine");
+		this.deduplicator = (dedupMode == DedupMode.OFF) ? null : new Deduplicator(dedupMode,
+				new CandidateIndex.Hasher()
+				{
+					@Override
+					public Long headHash(Path file, long size)
+					{
+						return DirectorySyncer.this.headHash(file, size);
+					}
+
+					@Override
+					public Long fullHash(Path file, long size, long lastModified)
+					{
+						return contentHash(file, size, lastModified);
+					}
+				});
+		updateCopyListener();
+	}
+
+	/**
+	 * Copies go through the journal, source files it lists as done are skipped. Without a hash cache the one of the
+	 * journal is used.
+	 * @throws IllegalStateException with an {@link AsyncCopyEngine} as copier, the journal would write DONE before
+	 *         the copy is done
+	 */
+	public void setJournal(SyncJournal journal)
+	{
+		if (copier instanceof AsyncCopyEngine)
+			throw new IllegalStateException("a journal can't be used with an async copy engine");
+		this.journal = journal;
+		if (hashCache == null)
+			hashCache = journal.getHashCache();
+	}
+
+	/**
+	 * Subtrees whose source and target did not change since the last sync with these summaries are skipped. After a
+	 * sync that is no simulation the summaries are updated, the caller saves them.
+	 */
+	public void setDirectorySummaries(DirectorySummaries summaries)
+	{
+		this.summaries = summaries;
+	}
+
+	/**
+	 * Hashing reads, copies and directory creation go through the lanes of the scheduler, target files are hashed in
+	 * inode order after the walk.
+	 */
+	public void setIoScheduler(IoScheduler ioScheduler)
+	{
+		this.ioScheduler = ioScheduler;
+	}
+
+	/**
+	 * For a copier that does no I/O itself, like the one of the {@link FanOutSyncer}: its copies don't take a place
+	 * in the copy lane of the scheduler, which would count them as very fast copies.
+	 */
+	void setSchedulesCopies(boolean schedulesCopies)
+	{
+		this.schedulesCopies = schedulesCopies;
+	}
+
+	/** Hashing reads and copies wait for the throttle, whose rates can be changed while the sync runs. */
+	public void setThrottle(Throttle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	/**
+	 * New source files are checked against a Bloom filter over size and sampled fingerprint of the target files before
+	 * they are hashed for the relocation lookup, default is on. The target files are sampled while the target map is
+	 * built, so this must be set before. {@link HashStrategy#STAGED} does not need it.
+	 */
+	public void setRelocationPrefilter(boolean prefilter)
+	{
+		this.relocationFilter = prefilter ? new RelocationFilter() : null;
+	}
+
+	/**
+	 * Makes the target a mirror: after the sync, target files and directories that are gone in the source are deleted.
+	 * Files the source was found relocated to and "(n)" variants of source files are kept. Default is off.
+	 */
+	public void setMirror(boolean mirror)
+	{
+		this.mirror = mirror;
+	}
+
+	/**
+	 * A mirror refuses to delete more files than this, it fails before deleting anything. A simulation reports all of
+	 * them anyway. Default is 1000.
+	 */
+	public void setMaxDeletes(int maxDeletes)
+	{
+		if (maxDeletes < 0)
+			throw new IllegalArgumentException("the limit can't be negative, got " + maxDeletes);
+		this.maxDeletes = maxDeletes;
+	}
+
+	/**
+	 * Relocated files are moved to the place of their source file in the target, so moves and renames of folders in
+	 * the source are replayed instead of only being reported. A folder whose files all moved is moved in one
+	 * operation. Default is off.
+	 */
+	public void setReplayMoves(boolean replayMoves)
+	{
+		this.moveReplay = replayMoves ? new MoveReplay() : null;
+	}
+
+	/** The decisions of a simulation, null if this is no simulation. Complete after the source was handled. */
+	public SyncPlan getPlan()
+	{
+		return plan;
+	}
+
+	/** Report of this sync, filled while the source is handled. Listeners can be added before the sync starts. */
+	public Report getReport()
+	{
+		return report;
+	}
+
+	public Map<String, Path> buildTargetFileMap() throws IOException
+	{
+		final Map<String, Path> targetMap = new HashMap<String, Path>();
+		final ExecutorService hashers = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+		final DirectorySummaries.Collector collector = (summaries == null) ? null : new DirectorySummaries.Collector(
+				target);
+		// with summaries the files are only added after the walk, when the unchanged subtrees are known
+		final Map<Path, BasicFileAttributes> walkedFiles = new LinkedHashMap<Path, BasicFileAttributes>();
+		final Map<Path, BasicFileAttributes> filesToHash = new LinkedHashMap<Path, BasicFileAttributes>();
+		final SyncRules.Walk rulesWalk = rules.walk(target, source);
+		if (summaries != null)
+			sourceSummaries = summarizeSource();
+		try
+		{
+			Files.walkFileTree(target, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+				{
+					if (!rulesWalk.enter(dir))
+						return FileVisitResult.SKIP_SUBTREE;
+					existingDirectories.add(dir);
+					if (mirror)
+						targetDirectories.add(dir);
+					if (collector != null)
+						collector.enter(dir);
+					return super.preVisitDirectory(dir, attrs);
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+				{
+					rulesWalk.leave();
+					if (collector != null)
+						collector.leave(dir);
+					return super.postVisitDirectory(dir, exc);
+				}
+
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException
+				{
+					if (isIgnored(rulesWalk, file, attrs))
+						return super.visitFile(file, attrs);
+
+					report.countTargetFiles();
+					if (collector == null)
+					{
+						addTargetFile(targetMap, file, attrs, hashers, filesToHash);
+					} else
+					{
+						collector.file(file, attrs);
+						walkedFiles.put(file, attrs);
+					}
+					return super.visitFile(file, attrs);
+				}
+			});
+			if (collector != null)
+			{
+				targetSummaries = collector.getSummaries();
+				findUnchangedSubtrees();
+				// the source walk skips these subtrees, so their target files are neither looked up nor hashed
+				Path lastDir = null;
+				boolean isUnchanged = false;
+				for (Map.Entry<Path, BasicFileAttributes> file : walkedFiles.entrySet())
+				{
+					Path dir = file.getKey().getParent();
+					if (!dir.equals(lastDir))
+					{
+						lastDir = dir;
+						isUnchanged = isInUnchangedSubtree(dir);
+					}
+					if (!isUnchanged)
+						addTargetFile(targetMap, file.getKey(), file.getValue(), hashers, filesToHash);
+				}
+			}
+			// reading in inode order saves seeks on disks that keep the files in that order
+			List<Path> sortedFiles = new ArrayList<Path>(filesToHash.keySet());
+			IoScheduler.sortByInode(sortedFiles, filesToHash);
+			for (Path file : sortedFiles)
+				hashTargetFile(hashers, file, filesToHash.get(file));
+		} finally
+		{
+			if (hashers != null)
+				awaitTermination(hashers);
+		}
+		return targetMap;
+	}
+
+	/**
+	 * Adds a target file to the maps and hashes it, with an {@link IoScheduler} it is put into filesToHash instead, to
+	 * be hashed in inode order after the walk.
+	 */
+	private void addTargetFile(Map<String, Path> targetMap, Path file, BasicFileAttributes attrs,
+			ExecutorService hashers, Map<Path, BasicFileAttributes> filesToHash) throws IOException
+	{
+		targetMap.put(target.relativize(file).toString().toLowerCase(), file);
+		targetFiles.put(file, new FileInfo(attrs));
+		renameIndex.add(file, attrs.size());
+		if (hashStrategy == HashStrategy.STAGED)
+			candidateIndex.add(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+		else if (ioScheduler == null)
+			hashTargetFile(hashers, file, attrs);
+		else
+			filesToHash.put(file, attrs);
+	}
+
+	/**
+	 * A subtree that is unchanged on both sides needs no target hashes: a source file elsewhere that has the content of
+	 * one of its files is copied anyway, since that file is still in the source.
+	 */
+	private void findUnchangedSubtrees()
+	{
+		for (Map.Entry<String, DirectorySummaries.Summary> sourceSummary : sourceSummaries.entrySet())
+		{
+			String directory = sourceSummary.getKey();
+			if (summaries.isUnchanged(directory, sourceSummary.getValue(), targetSummaries.get(directory)))
+				unchangedSubtrees.add(directory);
+		}
+	}
+
+	private boolean isInUnchangedSubtree(Path targetDir)
+	{
+		for (Path dir = targetDir; dir != null && dir.startsWith(target); dir = dir.getParent())
+		{
+			if (unchangedSubtrees.contains(DirectorySummaries.key(target, dir)))
+				return true;
+		}
+		return false;
+	}
+
+	private void hashTargetFile(ExecutorService hashers, final Path file, final BasicFileAttributes attrs)
+			throws IOException
+	{
+		if (hashers == null)
+		{
+			hashTargetFile(file, attrs);
+			return;
+		}
+		hashers.submit(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws IOException
+			{
+				hashTargetFile(file, attrs);
+				return null;
+			}
+		});
+	}
+
+	private void hashTargetFile(Path file, BasicFileAttributes attrs) throws IOException
+	{
+		Long hash = hash(file, attrs);
+		if (hash != null)
+		{
+			addToHashedTargets(file, hash);
+			if (relocationFilter != null && usesContentHash(file))
+			{
+				try
+				{
+					relocationFilter.add(attrs.size(), fingerprint(file, attrs));
+				} catch (IOException ex)
+				{
+					Logger.getLogger(DirectorySyncer.class.getName()).log(Level.WARNING, null, ex);
+					relocationFilter.addUnknown();
+				}
+			}
+		}
+	}
+
+	private void awaitTermination(ExecutorService executor) throws IOException
+	{
+		executor.shutdown();
+		try
+		{
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+				Logger.getLogger(DirectorySyncer.class.getName()).fine("still hashing target files");
+		} catch (InterruptedException e)
+		{
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while hashing the target");
+		}
+	}
+
+	public Report findAndHandleSourcesInTargetMap(final Map<String, Path> targetMap) throws IOException
+	{
+		try
+		{
+			Files.walkFileTree(source, new SourceVisitor(targetMap));
+		} catch (IOException | RuntimeException e)
+		{
+			cancelQueuedCopies();
+			throw e;
+		}
+		finishQueuedCopies();
+		awaitCopies();
+		verifyCopies();
+		replayMoves();
+		deleteMissing(targetMap);
+		finishSync();
+		if (summaries != null && !isSimulationMode)
+			updateSummaries();
+		return report;
+	}
+
+	/**
+	 * A walk that only reads the attributes, to know the summaries before the target files are hashed and the subtrees
+	 * are visited.
+	 */
+	private Map<String, DirectorySummaries.Summary> summarizeSource() throws IOException
+	{
+		final DirectorySummaries.Collector collector = new DirectorySummaries.Collector(source);
+		final SyncRules.Walk rulesWalk = rules.walk(source, source);
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				if (!rulesWalk.enter(dir))
+					return FileVisitResult.SKIP_SUBTREE;
+				collector.enter(dir);
+				return super.preVisitDirectory(dir, attrs);
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				if (!isIgnored(rulesWalk, file, attrs))
+					collector.file(file, attrs);
+				return super.visitFile(file, attrs);
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				rulesWalk.leave();
+				collector.leave(dir);
+				return super.postVisitDirectory(dir, exc);
+			}
+		});
+		return collector.getSummaries();
+	}
+
+	/**
+	 * Remembers the directories in which every file was found unchanged in the target. The others are forgotten, their
+	 * target was written or they depend on files elsewhere in the target, e.g. relocated files.
+	 */
+	private void updateSummaries()
+	{
+		for (Map.Entry<String, DirectorySummaries.Summary> sourceSummary : sourceSummaries.entrySet())
+		{
+			String directory = sourceSummary.getKey();
+			DirectorySummaries.Summary targetSummary = targetSummaries.get(directory);
+			if (targetSummary == null || uncleanDirectories.contains(directory))
+				summaries.remove(directory);
+			else
+				summaries.put(directory, sourceSummary.getValue(), targetSummary);
+		}
+	}
+
+	private void markUnclean(Path sourceDir)
+	{
+		for (Path dir = sourceDir; dir != null && dir.startsWith(source); dir = dir.getParent())
+		{
+			if (!uncleanDirectories.add(DirectorySummaries.key(source, dir)))
+				break; // the parents are marked already
+		}
+	}
+
+	/**
+	 * Executes the plan of an earlier simulation without walking the source and target again. A step whose source file
+	 * changed size or modification time since then, or whose target is not as planned any more, is not executed but
+	 * reported as stale.
+	 */
+	public Report applyPlan(SyncPlan syncPlan) throws IOException
+	{
+		if (isSimulationMode)
+			throw new IllegalStateException("a plan can't be applied in simulation mode");
+		if (!syncPlan.isFor(source, target))
+			throw new IllegalArgumentException("plan was made for " + syncPlan.getSource() + " -> "
+					+ syncPlan.getTarget());
+		for (SyncPlan.Step step : syncPlan.getSteps())
+		{
+			if (step.getType() == SyncPlan.Type.MKDIR)
+			{
+				if (!Files.exists(step.getTarget(), NFL))
+				{
+					Files.createDirectories(step.getTarget());
+					report.addNewDirectory(step.getTarget());
+				}
+				continue;
+			}
+			report.countSourceFiles();
+			if (journal != null && journal.isCompleted(step.getSource()))
+			{
+				report.countResumedFile();
+				continue;
+			}
+			if (!isUnchanged(step))
+			{
+				report.addStaleFile(step.getSource());
+				continue;
+			}
+			switch (step.getType())
+			{
+			case COPY_NEW:
+			case COPY_CHANGED:
+				copyToTarget(step.getType(), step.getSource(), step.getSize(), step.getLastModified(),
+						step.getTarget());
+				break;
+			case RELOCATED:
+				report.addRelocatedFile(step.getSource(), step.getTarget());
+				break;
+			default:
+				// skipped, nothing to do
+			}
+		}
+		finishQueuedCopies();
+		awaitCopies();
+		verifyCopies();
+		finishSync();
+		return report;
+	}
+
+	/** cheap revalidation of a planned step: the source is as planned and the target exists only if it should */
+	private boolean isUnchanged(SyncPlan.Step step) throws IOException
+	{
+		BasicFileAttributes attrs;
+		try
+		{
+			attrs = Files.readAttributes(step.getSource(), BasicFileAttributes.class, NFL);
+		} catch (NoSuchFileException e)
+		{
+			return false;
+		}
+		if (attrs.size() != step.getSize() || attrs.lastModifiedTime().toMillis() != step.getLastModified())
+			return false;
+		if (step.getType() == SyncPlan.Type.RELOCATED)
+			return Files.exists(step.getTarget(), NFL);
+		if (step.getType() == SyncPlan.Type.SKIP)
+			return true;
+		return !Files.exists(step.getTarget(), NFL);
+	}
+
+	/**
+	 * Creates the target directory and its missing parents when the first file needs it. Directories are only checked
+	 * and created once, the ones seen while building the target map are not checked at all.
+	 */
+	private void ensureDirectory(Path targetDir) throws IOException
+	{
+		if (existingDirectories.contains(targetDir))
+			return;
+		Deque<Path> missing = new ArrayDeque<Path>();
+		for (Path dir = targetDir; dir != null && !existingDirectories.contains(dir); dir = dir.getParent())
+		{
+			if (Files.isDirectory(dir))
+			{
+				existingDirectories.add(dir);
+				break;
+			}
+			missing.push(dir);
+		}
+		while (!missing.isEmpty())
+		{
+			final Path newdir = missing.pop();
+			if (!isSimulationMode)
+				scheduled(IoScheduler.Lane.METADATA, newdir.getParent(), 0, new IoScheduler.IoTask<Path>()
+				{
+					@Override
+					public Path run() throws IOException
+					{
+						return Files.createDirectory(newdir);
+					}
+				});
+			existingDirectories.add(newdir);
+			report.addNewDirectory(newdir);
+			addToPlan(SyncPlan.Type.MKDIR, source.resolve(target.relativize(newdir)), newdir, 0, 0);
+		}
+	}
+
+	private void addToPlan(SyncPlan.Type type, Path file, Path targetPath, BasicFileAttributes attrs)
+	{
+		addToPlan(type, file, targetPath, attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+
+	private void addToPlan(SyncPlan.Type type, Path file, Path targetPath, long size, long lastModified)
+	{
+		if (plan != null)
+			plan.add(type, file, targetPath, size, lastModified);
+	}
+
+	/**
+	 * Copies the file, unless the same content was already written to the target during this sync and deduplication
+	 * is switched on. The file is reported as new or changed when its copy is done, a queued copy later.
+	 * @param type {@link SyncPlan.Type#COPY_NEW} or {@link SyncPlan.Type#COPY_CHANGED}
+	 */
+	private void copyToTarget(SyncPlan.Type type, Path file, long size, long lastModified, final Path newTargetPath)
+			throws IOException
+	{
+		if (deduplicator != null)
+		{
+			final Path writtenFile = deduplicator.findWrittenCopy(file, size, lastModified);
+			if (writtenFile != null)
+			{
+				// a simulation assumes the hard link works
+				boolean sharesData = isSimulationMode && deduplicator.getMode() == DedupMode.HARDLINK;
+				if (!isSimulationMode)
+				{
+					throttle(1, size);
+					CopyStrategy copyStrategy = scheduled(IoScheduler.Lane.COPY, newTargetPath, size,
+							new IoScheduler.IoTask<CopyStrategy>()
+							{
+								@Override
+								public CopyStrategy run() throws IOException
+								{
+									return deduplicator.copyFromTarget(writtenFile, newTargetPath, activeCopier());
+								}
+							});
+					report.addCopyStrategy(newTargetPath, copyStrategy);
+					sharesData = copyStrategy == CopyStrategy.HARDLINK || copyStrategy == CopyStrategy.REFLINK;
+				}
+				// a local copy takes the same space as a copy from the source
+				report.addDeduplicatedFile(file, writtenFile, sharesData ? size : 0);
+				reportCopy(type, file, newTargetPath);
+				return;
+			}
+		}
+		if (!isSimulationMode)
+		{
+			if (deduplicator == null && (copyOrder != CopyOrder.WALK || !copyPriorities.isEmpty()))
+			{
+				copyQueue().add(type, file, source.relativize(file), size, lastModified, newTargetPath);
+				return;
+			}
+			throttle(1, size);
+			report.addCopyStrategy(newTargetPath, copy(file, size, newTargetPath));
+		}
+		reportCopy(type, file, newTargetPath);
+		if (deduplicator != null)
+			deduplicator.written(file, newTargetPath, size, lastModified);
+	}
+
+	private void reportCopy(SyncPlan.Type type, Path file, Path newTargetPath)
+	{
+		if (type == SyncPlan.Type.COPY_CHANGED)
+			report.addChangedFile(file, newTargetPath);
+		else
+			report.addNewFile(file, newTargetPath);
+	}
+
+	/** the queue for ordered copies, it starts copying with the first file */
+	private CopyQueue copyQueue()
+	{
+		if (copyQueue == null)
+		{
+			copyQueue = new CopyQueue(copyOrder, copyPriorities, largeFileSize, new CopyQueue.Copier()
+			{
+				@Override
+				public CopyStrategy copy(Path file, long size, Path target) throws IOException
+				{
+					throttle(1, size);
+					return DirectorySyncer.this.copy(file, size, target);
+				}
+
+				@Override
+				public void copied(SyncPlan.Type type, Path file, Path target, CopyStrategy copyStrategy)
+				{
+					report.addCopyStrategy(target, copyStrategy);
+					reportCopy(type, file, target);
+				}
+			});
+		}
+		return copyQueue;
+	}
+
+	/** waits for the ordered copies that are still queued or running */
+	private void finishQueuedCopies() throws IOException
+	{
+		if (copyQueue != null)
+			copyQueue.finish();
+	}
+
+	/** the sync stops early: the running copies finish, the others are dropped */
+	private void cancelQueuedCopies()
+	{
+		if (copyQueue != null)
+			copyQueue.cancel();
+	}
+
+	private void throttle(int files, long bytes) throws InterruptedIOException
+	{
+		if (throttle != null)
+			throttle.acquire(files, bytes);
+	}
+
+	/** size from the target walk, only files the walk did not see are asked again */
+	private long targetSize(Path targetFile) throws IOException
+	{
+		FileInfo info = targetFiles.get(targetFile);
+		return (info == null) ? Files.size(targetFile) : info.getSize();
+	}
+
+	private CopyStrategy copy(final Path file, long size, final Path newTargetPath) throws IOException
+	{
+		if (!schedulesCopies)
+			return activeCopier().copy(file, newTargetPath);
+		return scheduled(IoScheduler.Lane.COPY, newTargetPath, size, new IoScheduler.IoTask<CopyStrategy>()
+		{
+			@Override
+			public CopyStrategy run() throws IOException
+			{
+				return activeCopier().copy(file, newTargetPath);
+			}
+		});
+	}
+
+	private void updateCopyListener()
+	{
+		CopyListener listener = null;
+		if (hashWhileCopy || verifyCopies || deduplicator != null)
+		{
+			listener = new CopyListener()
+			{
+				@Override
+				public void copied(Path source, Path target, long checksum) throws IOException
+				{
+					copiedWithHash(source, target, checksum);
+				}
+			};
+		}
+		if (copier instanceof CopyEngine)
+			((CopyEngine) copier).setListener(listener);
+		else if (copier instanceof AsyncCopyEngine)
+			((AsyncCopyEngine) copier).setListener(listener);
+	}
+
+	/** the hash of the copied data, called in the thread of the copy */
+	private void copiedWithHash(Path source, Path target, long checksum) throws IOException
+	{
+		if (deduplicator != null)
+			deduplicator.copied(source, checksum);
+		if (verifyCopies)
+			verifier().add(source, SyncJournal.targetOf(target), checksum);
+		if (hashCache == null || !usesContentHash(source))
+			return;
+		BasicFileAttributes sourceAttrs = Files.readAttributes(source, BasicFileAttributes.class, NFL);
+		hashCache.put(source, sourceAttrs.size(), sourceAttrs.lastModifiedTime().toMillis(), checksum);
+		// with a journal this is the temporary file, the rename keeps size and modification time
+		BasicFileAttributes targetAttrs = Files.readAttributes(target, BasicFileAttributes.class, NFL);
+		hashCache.put(SyncJournal.targetOf(target), targetAttrs.size(), targetAttrs.lastModifiedTime().toMillis(),
+				checksum);
+	}
+
+	private synchronized CopyVerifier verifier()
+	{
+		if (verifier == null)
+		{
+			verifier = new CopyVerifier(report, threads, new CopyVerifier.Hasher()
+			{
+				@Override
+				public long hash(final Path target) throws IOException
+				{
+					return scheduled(IoScheduler.Lane.HASH, target, Files.size(target), new IoScheduler.IoTask<Long>()
+					{
+						@Override
+						public Long run() throws IOException
+						{
+							return readHash(target);
+						}
+					});
+				}
+			});
+		}
+		return verifier;
+	}
+
+	/** verifies the copies, copies the ones that differ again and verifies those, until the retries are used up */
+	private void verifyCopies() throws IOException
+	{
+		if (!verifyCopies || isSimulationMode)
+			return;
+		for (int attempt = 0; !verifier().isEmpty(); attempt++)
+		{
+			List<CopyVerifier.Copy> mismatches = verifier().verify();
+			if (mismatches.isEmpty())
+				return;
+			if (attempt == verifyRetries)
+			{
+				for (CopyVerifier.Copy mismatch : mismatches)
+					report.addCorruptFile(mismatch.getTarget());
+				throw new IOException(mismatches.size() + " copies still differ from the source after " + verifyRetries
+						+ " retries, first: " + mismatches.get(0).getTarget());
+			}
+			for (CopyVerifier.Copy mismatch : mismatches)
+			{
+				Logger.getLogger(DirectorySyncer.class.getName()).warning("copy again: " + mismatch.getTarget());
+				report.countRetriedCopy();
+				Files.deleteIfExists(mismatch.getTarget());
+				copy(mismatch.getSource(), Files.size(mismatch.getSource()), mismatch.getTarget());
+			}
+			awaitCopies();
+		}
+	}
+
+	/** an asynchronous copier may still be writing, everything after the copies needs the complete target */
+	private void awaitCopies() throws IOException
+	{
+		if (copier instanceof AsyncCopyEngine)
+			((AsyncCopyEngine) copier).await();
+	}
+
+	/** runs the task in its lane of the I/O scheduler, or directly without a scheduler */
+	private <T> T scheduled(IoScheduler.Lane lane, Path file, long bytes, IoScheduler.IoTask<T> task)
+			throws IOException
+	{
+		return (ioScheduler == null) ? task.run() : ioScheduler.run(lane, file, bytes, task);
+	}
+
+	private FileCopier activeCopier()
+	{
+		return (journal == null) ? copier : journal.journaling(copier);
+	}
+
+	private boolean isIgnored(SyncRules.Walk rulesWalk, Path file, BasicFileAttributes attrs)
+	{
+		return !rulesWalk.includes(file, attrs) || SyncJournal.isJournalFile(file);
+	}
+
+	/** files like thumbs.db that the default {@link SyncRules} ignore, for the syncers without rules */
+	static boolean isIgnoredName(Path file)
+	{
+		return SyncRules.isIgnoredByDefault(file);
+	}
+
+	/** Moves the relocated target files to the place of their source files, grouped by directory. */
+	void replayMoves() throws IOException
+	{
+		if (moveReplay == null || moveReplay.isEmpty())
+			return;
+		Set<Path> staying = new HashSet<Path>();
+		for (Path dir : existingDirectories)
+		{
+			if (Files.isDirectory(source.resolve(target.relativize(dir).toString()), NFL))
+				staying.add(dir);
+		}
+		for (final MoveReplay.Move move : moveReplay.plan(targetFiles.keySet(), existingDirectories, staying))
+		{
+			ensureDirectory(move.getTo().getParent());
+			if (!isSimulationMode)
+			{
+				try
+				{
+					scheduled(IoScheduler.Lane.METADATA, move.getFrom(), 0, new IoScheduler.IoTask<Path>()
+					{
+						@Override
+						public Path run() throws IOException
+						{
+							return Files.move(move.getFrom(), move.getTo());
+						}
+					});
+				} catch (IOException ex)
+				{
+					// the file stays where it was found, like a relocated file without replay
+					Logger.getLogger(DirectorySyncer.class.getName()).log(Level.WARNING, "move failed", ex);
+					continue;
+				}
+			}
+			if (move.isDirectory())
+				existingDirectories.add(move.getTo());
+			report.countMoveOperation();
+			for (MoveReplay.FileMove file : move.getFiles())
+				report.addMovedFile(file.getSource(), file.getFrom(), file.getTo());
+		}
+	}
+
+	/** for a mirror: deletes the target files and directories the source walk did not find */
+	void deleteMissing(Map<String, Path> targetMap) throws IOException
+	{
+		if (!mirror)
+			return;
+		Set<Path> relocatedTargets = new HashSet<Path>(report.getRelocatedFiles().values());
+		Set<Path> movedTargets = report.getMovedFiles().keySet();
+		List<Path> files = new ArrayList<Path>();
+		List<Path> keptFiles = new ArrayList<Path>();
+		for (Map.Entry<String, Path> entry : targetMap.entrySet())
+		{
+			Path file = entry.getValue();
+			if (movedTargets.contains(file))
+				continue; // not there any more, its old folder may go
+			if (sourceEntries.contains(entry.getKey()) || isInSkippedSubtree(entry.getKey())
+					|| relocatedTargets.contains(file)
+					|| renameIndex.isVariant(file) && sourceEntries
+							.contains(target.relativize(RenameIndex.original(file)).toString().toLowerCase()))
+				keptFiles.add(file);
+			else
+				files.add(file);
+		}
+		if (files.size() > maxDeletes)
+		{
+			String message = "the mirror would delete " + files.size() + " files, more than the limit of " + maxDeletes;
+			if (!isSimulationMode)
+				throw new IOException(message);
+			Logger.getLogger(DirectorySyncer.class.getName()).warning(message);
+		}
+		List<Path> directories = new ArrayList<Path>();
+		for (Path dir : targetDirectories)
+		{
+			String key = target.relativize(dir).toString().toLowerCase();
+			if (!key.isEmpty() && !sourceEntries.contains(key) && !isInSkippedSubtree(key))
+				directories.add(dir);
+		}
+		new MirrorDeletes(report, threads, isSimulationMode).delete(files, directories, keptFiles);
+	}
+
+	private boolean isInSkippedSubtree(String key)
+	{
+		for (String subtree : skippedSubtrees)
+		{
+			if (key.equals(subtree) || key.startsWith(subtree + File.separator))
+				return true;
+		}
+		return false;
+	}
+
+	void finishSync()
+	{
+		report.setSyncTime(System.currentTimeMillis() - startTime);
+	}
+
+	Path getSource()
+	{
+		return source;
+	}
+
+	Path getTarget()
+	{
+		return target;
+	}
+
+	/**
+	 * Handles the source files and directories against the target map. {@link FanOutSyncer} drives one of these per
+	 * target from a single walk over the source.
+	 */
+	class SourceVisitor extends SimpleFileVisitor<Path>
+	{
+		private final Map<String, Path> targetMap;
+		/** number of entries found so far in each directory that is currently walked */
+		private final Deque<int[]> entriesPerDirectory = new ArrayDeque<int[]>();
+		private final SyncRules.Walk rulesWalk = rules.walk(source, source);
+
+		SourceVisitor(Map<String, Path> targetMap)
+		{
+			this.targetMap = targetMap;
+		}
+
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+		{
+			entriesPerDirectory.peek()[0]++;
+			if (isIgnored(rulesWalk, file, attrs))
+				return super.visitFile(file, attrs);
+
+			report.countSourceFiles();
+			String key = source.relativize(file).toString().toLowerCase();
+			if (mirror)
+				sourceEntries.add(key);
+			if (journal != null && journal.isCompleted(file))
+			{
+				report.countResumedFile();
+				markUnclean(file.getParent());
+				return super.visitFile(file, attrs);
+			}
+			Path targetPath = targetMap.get(key);
+			if (targetPath != null && attrs.size() == targetSize(targetPath))
+			{
+				addToPlan(SyncPlan.Type.SKIP, file, null, attrs);
+				return super.visitFile(file, attrs);
+			}
+			markUnclean(file.getParent());
+			if (targetPath != null)
+			{
+				handleChangedFile(file, targetPath, attrs);
+			} else
+			{
+				if (!checkIfRelocated(file, attrs))
+					handleNewFile(file, attrs);
+			}
+			return super.visitFile(file, attrs);
+		}
+
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+		{
+			// target directories are created by the first file that needs them, so relocated folders leave no empty
+			// directories behind
+			if (!entriesPerDirectory.isEmpty())
+				entriesPerDirectory.peek()[0]++;
+			// excluded subtrees are not listed at all
+			if (!rulesWalk.enter(dir))
+				return FileVisitResult.SKIP_SUBTREE;
+			if (summaries != null)
+			{
+				String directory = DirectorySummaries.key(source, dir);
+				if (unchangedSubtrees.contains(directory))
+				{
+					DirectorySummaries.Summary sourceSummary = sourceSummaries.get(directory);
+					rulesWalk.leave();
+					if (mirror)
+						skippedSubtrees.add(directory);
+					report.countUnchangedSubtree(sourceSummary.getFiles(), sourceSummary.getDirectories());
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+			}
+			report.countDirectories();
+			if (mirror)
+				sourceEntries.add(source.relativize(dir).toString().toLowerCase());
+			entriesPerDirectory.push(new int[1]);
+			return super.preVisitDirectory(dir, attrs);
+		}
+
+		/** Directories that are empty in the source are created in the target, too. */
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+		{
+			rulesWalk.leave();
+			if (entriesPerDirectory.pop()[0] == 0)
+				ensureDirectory(target.resolve(source.relativize(dir)));
+			return super.postVisitDirectory(dir, exc);
+		}
+
+		private void handleNewFile(Path file, BasicFileAttributes attrs) throws IOException
+		{
+			final Path newTargetPath = target.resolve(source.relativize(file));
+			ensureDirectory(newTargetPath.getParent());
+			copyToTarget(SyncPlan.Type.COPY_NEW, file, attrs.size(), attrs.lastModifiedTime().toMillis(),
+					newTargetPath);
+			addToPlan(SyncPlan.Type.COPY_NEW, file, newTargetPath, attrs);
+		}
+
+		private void handleChangedFile(Path file, final Path targetPath, BasicFileAttributes attrs) throws IOException
+		{
+			Path newTargetPath = renameIndex.nextVariant(targetPath, attrs.size());
+			if (newTargetPath == null)
+			{
+				// an earlier sync already copied it under a "(n)" name
+				addToPlan(SyncPlan.Type.SKIP, file, null, attrs);
+				return;
+			}
+			copyToTarget(SyncPlan.Type.COPY_CHANGED, file, attrs.size(), attrs.lastModifiedTime().toMillis(),
+					newTargetPath);
+			renameIndex.add(newTargetPath, attrs.size());
+			addToPlan(SyncPlan.Type.COPY_CHANGED, file, newTargetPath, attrs);
+		}
+
+		/**
+		 * Search for file(hash) in the whole target. if exists then <br/>
+		 * 1. check if the new location is in the source, too. If so, copy, because it's an add-on.<br/>
+		 * 2. else Compare the siblings in the source with the new target location. If all siblings are at the new
+		 * location in the target, too, we assume a move and don't copy.
+		 */
+		private boolean checkIfRelocated(Path file, BasicFileAttributes attrs) throws IOException
+		{
+			boolean isRelocated = false;
+			Path relocatedTo = null;
+			List<Path> filesInTarget;
+			if (hashStrategy == HashStrategy.STAGED)
+			{
+				filesInTarget = candidateIndex.find(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+			} else
+			{
+				boolean prefiltered = relocationFilter != null && readsContent(file, attrs);
+				if (prefiltered && !passesPrefilter(file, attrs))
+					return false;
+				filesInTarget = hashedTargetMap.get(hash(file, attrs));
+				if (filesInTarget == null && prefiltered)
+					report.countPrefilterFalsePositive();
+			}
+			if (filesInTarget != null)
+			{
+				for (Path fileInTarget : filesInTarget)
+				{
+					if (fileInTarget != null && getFileEnding(fileInTarget).equalsIgnoreCase(getFileEnding(file)))
+					{
+						if (locationExistsInSource(fileInTarget))
+						{
+							report.addAdditionalFile(file, filesInTarget); // copy it
+						} else if (!allSiblingsExistInNewTarget(file.getParent(), fileInTarget.getParent()))
+						{
+							report.addAdditionalFile(file, filesInTarget); // copy it
+						} else if (moveReplay != null && moveReplay.isMoved(fileInTarget))
+						{
+							// already moved to the place of another source file
+							report.addAdditionalFile(file, filesInTarget); // copy it
+						} else
+						{
+							report.addRelocatedFile(file, fileInTarget);
+							isRelocated = true;
+							relocatedTo = fileInTarget;
+						}
+					}
+				}
+				filterAdditionalFiles();
+			}
+			if (isRelocated)
+			{
+				addToPlan(SyncPlan.Type.RELOCATED, file, relocatedTo, attrs);
+				if (moveReplay != null)
+					moveReplay.add(file, relocatedTo, target.resolve(source.relativize(file).toString()));
+			}
+			return isRelocated;
+		}
+
+		/** false if no target file has the size and sampled fingerprint of the file, so it can't be relocated */
+		private boolean passesPrefilter(Path file, BasicFileAttributes attrs)
+		{
+			long size = attrs.size();
+			try
+			{
+				boolean passes = relocationFilter.mightContain(size, fingerprint(file, attrs));
+				report.countPrefilterCheck(!passes, passes ? 0 : size - RelocationFilter.sampledBytes(size));
+				return passes;
+			} catch (IOException ex)
+			{
+				// the full hash decides
+				Logger.getLogger(DirectorySyncer.class.getName()).log(Level.WARNING, null, ex);
+				return true;
+			}
+		}
+
+		private boolean allSiblingsExistInNewTarget(final Path folderInSource, final Path folderInTarget)
+				throws IOException
+		{
+			String key = folderInSource + File.pathSeparator + folderInTarget;
+			Boolean checked = siblingChecks.get(key);
+			if (checked == null)
+			{
+				checked = walkSiblings(folderInSource, folderInTarget);
+				siblingChecks.put(key, checked);
+			}
+			return checked;
+		}
+
+		private boolean walkSiblings(final Path folderInSource, final Path folderInTarget) throws IOException
+		{
+			final boolean[] allSibilingsExistInNewTarget = { true };
+			final SyncRules.Walk siblingRules = rules.walk(source, source);
+			Files.walkFileTree(folderInSource, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+				{
+					if (!siblingRules.enter(dir))
+						return FileVisitResult.SKIP_SUBTREE;
+					return super.preVisitDirectory(dir, attrs);
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+				{
+					siblingRules.leave();
+					return super.postVisitDirectory(dir, exc);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+				{
+					if (isIgnored(siblingRules, file, attrs))
+						return super.visitFile(file, attrs);
+
+					Path relativized = folderInSource.relativize(file);
+					Path resolved = folderInTarget.resolve(relativized);
+					if (!targetFiles.containsKey(resolved))
+					{
+						allSibilingsExistInNewTarget[0] = false;
+					}
+					return super.visitFile(file, attrs);
+				}
+			});
+
+			return allSibilingsExistInNewTarget[0];
+		}
+	}
+
+	/**
+	 * If a file is multiple times in the target then it might once be marked as relocated and once as additional. <br/>
+	 * But if it is relocated then it's not additional any more
+	 */
+	protected void filterAdditionalFiles()
+	{
+		Map<Path, List<Path>> additionalFilesMap = report.getAdditionalFiles();
+		Set<Path> additionalFiles = additionalFilesMap.keySet();
+		for (Path relocated : report.getRelocatedFiles().keySet())
+		{
+			if (additionalFiles.contains(relocated))
+			{
+				additionalFilesMap.remove(relocated);
+			}
+		}
+	}
+
+	String renameDuplicateFile(Path file, int counter)
+	{
+		return RenameIndex.variantName(file.getFileName().toString(), counter);
+	}
+
+	private boolean locationExistsInSource(Path fileInTarget)
+	{
+		return Files.exists(source.resolve(target.relativize(fileInTarget)));
+	}
+
+	/**
+	 * "non-changing" multimedia files are fake-hashed the length to increase speed. <br/>
+	 * All other files get a real hash.
+	 */
+	Long hash(Path file) throws IOException
+	{
+		return hash(file, Files.readAttributes(file, BasicFileAttributes.class, NFL));
+	}
+
+	/**
+	 * Like {@link #hash(Path)}, but uses the attributes from the walk. If a hash cache is set, files with unchanged size
+	 * and modification time are not read again.
+	 */
+	Long hash(Path file, BasicFileAttributes attrs)
+	{
+		return hash(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+
+	private Long hash(final Path file, long size, long lastModified)
+	{
+		if (!usesContentHash(file))
+		{
+			return size;
+		}
+		return contentHash(file, size, lastModified);
+	}
+
+	/** the Adler32 of the content, from the hash cache if it is there, null if the file can't be read */
+	private Long contentHash(final Path file, long size, long lastModified)
+	{
+		if (hashCache != null)
+		{
+			Long cached = hashCache.get(file, size, lastModified);
+			if (cached != null)
+				return cached;
+		}
+
+		try
+		{
+			long value = scheduled(IoScheduler.Lane.HASH, file, size, new IoScheduler.IoTask<Long>()
+			{
+				@Override
+				public Long run() throws IOException
+				{
+					return readHash(file);
+				}
+			});
+			if (hashCache != null)
+				hashCache.put(file, size, lastModified, value);
+			return value;
+		} catch (IOException ex)
+		{
+			Logger.getLogger(DirectorySyncer.class.getName()).log(Level.SEVERE, null, ex);
+			return null;
+		}
+	}
+
+	/** false if the size is taken as hash of the file */
+	private boolean usesContentHash(Path file)
+	{
+		return hashStrategy == HashStrategy.CONTENT || hashStrategy == HashStrategy.STAGED
+				|| (hashStrategy == HashStrategy.MIXED && rules.usesContentHash(file));
+	}
+
+	/** true if {@link #hash(Path, BasicFileAttributes)} has to read the file */
+	private boolean readsContent(Path file, BasicFileAttributes attrs)
+	{
+		return usesContentHash(file)
+				&& (hashCache == null || hashCache.get(file, attrs.size(), attrs.lastModifiedTime().toMillis()) == null);
+	}
+
+	/** the sampled fingerprint for the {@link RelocationFilter}, from the hash cache if the file was sampled before */
+	private long fingerprint(Path file, BasicFileAttributes attrs) throws IOException
+	{
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		Long cached = (hashCache == null) ? null : hashCache.getFingerprint(file, attrs.size(), lastModified);
+		if (cached != null)
+			return cached;
+		long fingerprint = fingerprint(file, attrs.size());
+		if (hashCache != null)
+			hashCache.putFingerprint(file, attrs.size(), lastModified, fingerprint);
+		return fingerprint;
+	}
+
+	private long fingerprint(final Path file, final long size) throws IOException
+	{
+		return scheduled(IoScheduler.Lane.HASH, file, RelocationFilter.sampledBytes(size),
+				new IoScheduler.IoTask<Long>()
+				{
+					@Override
+					public Long run() throws IOException
+					{
+						throttle(1, RelocationFilter.sampledBytes(size));
+						return RelocationFilter.fingerprint(file, size);
+					}
+				});
+	}
+
+	/** Adler32 over the first 4 KB, null if the file can't be read */
+	private Long headHash(final Path file, final long size)
+	{
+		final int length = (int) Math.min(size, CandidateIndex.HEAD_SIZE);
+		try
+		{
+			return scheduled(IoScheduler.Lane.HASH, file, length, new IoScheduler.IoTask<Long>()
+			{
+				@Override
+				public Long run() throws IOException
+				{
+					throttle(1, length);
+					return CandidateIndex.headHash(file, size);
+				}
+			});
+		} catch (IOException ex)
+		{
+			Logger.getLogger(DirectorySyncer.class.getName()).log(Level.SEVERE, null, ex);
+			return null;
+		}
+	}
+
+	private long readHash(Path file) throws IOException
+	{
+		throttle(1, 0);
+		try (InputStream inputStream = Files.newInputStream(file))
+		{
+			Checksum adler = new Adler32();
+			byte[] currentChunk = new byte[8192];
+			int read;
+			while ((read = inputStream.read(currentChunk)) > -1)
+			{
+				throttle(0, read);
+				adler.update(currentChunk, 0, read);
+			}
+			return adler.getValue();
+		}
+	}
+
+	private String getFileEnding(Path file)
+	{
+		String[] nameElements = file.getFileName().toString().split("\\.");
+		String ending = nameElements[nameElements.length - 1];
+		return ending;
+	}
+
+	private synchronized void addToHashedTargets(Path file, Long hash)
+	{
+		List<Path> pathsForHash = hashedTargetMap.get(hash);
+		if (pathsForHash == null)
+		{
+			pathsForHash = new ArrayList<Path>();
+		}
+		pathsForHash.add(file);
+		hashedTargetMap.put(hash, pathsForHash);
+	}
+
+	public Map<Long, List<Path>> getHashedTargetMap()
+	{
+		return Collections.unmodifiableMap(hashedTargetMap);
+	}
+}
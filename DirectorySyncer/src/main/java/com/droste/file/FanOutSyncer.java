@@ -0,0 +1,444 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+
+/**
+ * Syncs one source into several targets.<br/>
+ * 1. the target maps are built in parallel, one thread per target <br/>
+ * 2. the source is walked once, every file is handed to the {@link DirectorySyncer} of each target. Source hashes are
+ * shared, so every source file is hashed at most once. <br/>
+ * 3. a file that has to be copied into several targets is read once. The chunks go into a separate queue per target,
+ * written by its own thread, so a slow target only holds back the others once its queue is full. With an
+ * {@link IoScheduler} every chunk is written in the copy lane of its target.
+ */
+public class FanOutSyncer
+{
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final Chunk END_OF_SYNC = new Chunk(null, null, 0);
+	private static final int CLOSE = -1;
+	private static final int ABORT = -2;
+	private final Path source;
+	private final List<DirectorySyncer> syncers = new ArrayList<DirectorySyncer>();
+	private final List<Path> pendingCopies = new ArrayList<Path>();
+	private IoScheduler ioScheduler;
+	private int queuedChunksPerTarget = 64;
+
+	public FanOutSyncer(String source, List<String> targets, boolean isSimulationMode)
+	{
+		if (targets.isEmpty())
+			throw new IllegalArgumentException("at least one target is needed");
+		this.source = new File(source).toPath();
+		HashCache sharedHashes = new HashCache();
+		for (int i = 0; i < targets.size(); i++)
+		{
+			DirectorySyncer syncer = new DirectorySyncer(source, targets.get(i), isSimulationMode);
+			syncer.setHashCache(sharedHashes);
+			syncer.setFileCopier(new PendingCopy(i));
+			syncer.setSchedulesCopies(false);
+			syncers.add(syncer);
+			pendingCopies.add(null);
+		}
+	}
+
+	/** A persisted cache instead of the in-memory one, shared by all targets. */
+	public void setHashCache(HashCache hashCache)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setHashCache(hashCache);
+	}
+
+	public void setHashStrategy(HashStrategy hashStrategy)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setHashStrategy(hashStrategy);
+	}
+
+	/** The same rules for all targets, so the single walk over the source skips the same subtrees for each. */
+	public void setRules(SyncRules rules)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setRules(rules);
+	}
+
+	/** Threads hashing the files of each single target. */
+	public void setThreads(int threads)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setThreads(threads);
+	}
+
+	/** One scheduler for all targets, so targets on the same device share its limits. */
+	public void setIoScheduler(IoScheduler ioScheduler)
+	{
+		this.ioScheduler = ioScheduler;
+		for (DirectorySyncer syncer : syncers)
+			syncer.setIoScheduler(ioScheduler);
+	}
+
+	/** Turns the Bloom filter in front of the relocation lookup of each target on or off, default is on. */
+	public void setRelocationPrefilter(boolean prefilter)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setRelocationPrefilter(prefilter);
+	}
+
+	/** Makes every target a mirror of the source, see {@link DirectorySyncer#setMirror(boolean)}. */
+	public void setMirror(boolean mirror)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setMirror(mirror);
+	}
+
+	/** Replays moves of source folders in every target, see {@link DirectorySyncer#setReplayMoves(boolean)}. */
+	public void setReplayMoves(boolean replayMoves)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setReplayMoves(replayMoves);
+	}
+
+	/** The limit of deletes per target. */
+	public void setMaxDeletes(int maxDeletes)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setMaxDeletes(maxDeletes);
+	}
+
+	/** One throttle for all targets, so the limits hold for the whole sync. */
+	public void setThrottle(Throttle throttle)
+	{
+		for (DirectorySyncer syncer : syncers)
+			syncer.setThrottle(throttle);
+	}
+
+	/** How many chunks of 1 MB may wait for a target before the reading of the source has to wait for it. */
+	public void setQueuedChunksPerTarget(int queuedChunksPerTarget)
+	{
+		if (queuedChunksPerTarget < 1)
+			throw new IllegalArgumentException("at least one chunk must fit into the queue");
+		this.queuedChunksPerTarget = queuedChunksPerTarget;
+	}
+
+	/** One report per target, in the order of the targets. Listeners can be added before the sync starts. */
+	public List<Report> getReports()
+	{
+		List<Report> reports = new ArrayList<Report>();
+		for (DirectorySyncer syncer : syncers)
+			reports.add(syncer.getReport());
+		return reports;
+	}
+
+	public List<Report> sync() throws IOException
+	{
+		final List<Map<String, Path>> targetMaps = buildTargetFileMaps();
+		final List<TargetWriter> writers = new ArrayList<TargetWriter>();
+		final List<DirectorySyncer.SourceVisitor> visitors = new ArrayList<DirectorySyncer.SourceVisitor>();
+		for (int i = 0; i < syncers.size(); i++)
+		{
+			visitors.add(syncers.get(i).new SourceVisitor(targetMaps.get(i)));
+			writers.add(new TargetWriter(queuedChunksPerTarget, ioScheduler));
+		}
+		try
+		{
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+				{
+					// all targets have the same rules, they skip the same subtrees
+					FileVisitResult result = FileVisitResult.CONTINUE;
+					for (DirectorySyncer.SourceVisitor visitor : visitors)
+						result = visitor.preVisitDirectory(dir, attrs);
+					return result;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+				{
+					for (DirectorySyncer.SourceVisitor visitor : visitors)
+						visitor.visitFile(file, attrs);
+					copyToPendingTargets(file, writers);
+					return super.visitFile(file, attrs);
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+				{
+					for (DirectorySyncer.SourceVisitor visitor : visitors)
+						visitor.postVisitDirectory(dir, exc);
+					return super.postVisitDirectory(dir, exc);
+				}
+			});
+		} finally
+		{
+			for (TargetWriter writer : writers)
+				writer.finish();
+		}
+		List<String> failures = new ArrayList<String>();
+		for (TargetWriter writer : writers)
+			failures.addAll(writer.failures);
+		if (!failures.isEmpty())
+			throw new IOException(failures.size() + " copies failed, first: " + failures.get(0));
+		List<Report> reports = new ArrayList<Report>();
+		for (int i = 0; i < syncers.size(); i++)
+		{
+			syncers.get(i).replayMoves();
+			syncers.get(i).deleteMissing(targetMaps.get(i));
+			syncers.get(i).finishSync();
+			reports.add(syncers.get(i).getReport());
+		}
+		return reports;
+	}
+
+	private List<Map<String, Path>> buildTargetFileMaps() throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(syncers.size());
+		try
+		{
+			List<Future<Map<String, Path>>> futures = new ArrayList<Future<Map<String, Path>>>();
+			for (final DirectorySyncer syncer : syncers)
+			{
+				futures.add(executor.submit(new Callable<Map<String, Path>>()
+				{
+					@Override
+					public Map<String, Path> call() throws IOException
+					{
+						return syncer.buildTargetFileMap();
+					}
+				}));
+			}
+			List<Map<String, Path>> targetMaps = new ArrayList<Map<String, Path>>();
+			for (Future<Map<String, Path>> future : futures)
+				targetMaps.add(future.get());
+			return targetMaps;
+		} catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("building a target map failed", e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while building the target maps");
+		} finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/** Reads the file once and queues every chunk for all targets that need the file. */
+	private void copyToPendingTargets(Path file, List<TargetWriter> writers) throws IOException
+	{
+		List<TargetWriter> receivers = new ArrayList<TargetWriter>();
+		for (int i = 0; i < pendingCopies.size(); i++)
+		{
+			Path targetFile = pendingCopies.get(i);
+			if (targetFile != null)
+			{
+				writers.get(i).put(new Chunk(targetFile, null, 0));
+				receivers.add(writers.get(i));
+				pendingCopies.set(i, null);
+			}
+		}
+		if (receivers.isEmpty())
+			return;
+		int endOfFile = ABORT;
+		try (InputStream inputStream = Files.newInputStream(file))
+		{
+			int read;
+			do
+			{
+				byte[] data = new byte[CHUNK_SIZE];
+				read = readFully(inputStream, data);
+				for (TargetWriter writer : receivers)
+					writer.put(new Chunk(null, data, read));
+			} while (read == CHUNK_SIZE);
+			endOfFile = CLOSE;
+		} finally
+		{
+			for (TargetWriter writer : receivers)
+				writer.put(new Chunk(null, null, endOfFile));
+		}
+	}
+
+	private int readFully(InputStream inputStream, byte[] data) throws IOException
+	{
+		int total = 0;
+		int read;
+		while (total < data.length && (read = inputStream.read(data, total, data.length - total)) > -1)
+			total += read;
+		return total;
+	}
+
+	/**
+	 * Remembers the copy the syncer of one target wants to do, it is done after all targets decided. The writer of the
+	 * target streams the chunks into the file, a failed write fails the sync.
+	 */
+	private class PendingCopy implements FileCopier
+	{
+		private final int targetIndex;
+
+		PendingCopy(int targetIndex)
+		{
+			this.targetIndex = targetIndex;
+		}
+
+		@Override
+		public CopyStrategy copy(Path source, Path target)
+		{
+			pendingCopies.set(targetIndex, target);
+			return CopyStrategy.BUFFERED;
+		}
+	}
+
+	/**
+	 * A chunk starting a file has a target, a chunk with length {@link #CLOSE} ends the file, {@link #ABORT} removes
+	 * it again because the source could not be read. {@link #END_OF_SYNC} stops the writer.
+	 */
+	private static class Chunk
+	{
+		private final Path target;
+		private final byte[] data;
+		private final int length;
+
+		Chunk(Path target, byte[] data, int length)
+		{
+			this.target = target;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private static class TargetWriter implements Runnable
+	{
+		private final BlockingQueue<Chunk> queue;
+		/** null to write without one */
+		private final IoScheduler ioScheduler;
+		private final Thread thread;
+		private final List<String> failures = new ArrayList<String>();
+		private Path currentFile;
+		private OutputStream outputStream;
+
+		TargetWriter(int capacity, IoScheduler ioScheduler)
+		{
+			this.queue = new ArrayBlockingQueue<Chunk>(capacity);
+			this.ioScheduler = ioScheduler;
+			this.thread = new Thread(this, "fan-out writer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void put(Chunk chunk) throws InterruptedIOException
+		{
+			try
+			{
+				queue.put(chunk);
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while queueing for " + currentFile);
+			}
+		}
+
+		void finish() throws InterruptedIOException
+		{
+			put(END_OF_SYNC);
+			try
+			{
+				thread.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the writer");
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				Chunk chunk;
+				while ((chunk = queue.take()) != END_OF_SYNC)
+					write(chunk);
+			} catch (InterruptedException e)
+			{
+				failures.add("writer interrupted at " + currentFile);
+			}
+		}
+
+		private void write(Chunk chunk)
+		{
+			try
+			{
+				if (chunk.target != null)
+				{
+					currentFile = chunk.target;
+					// the chunks are large, every write goes straight to the file
+					outputStream = Files.newOutputStream(currentFile, StandardOpenOption.CREATE_NEW,
+							StandardOpenOption.WRITE);
+				} else if (chunk.length == ABORT)
+				{
+					if (outputStream != null)
+						failures.add(currentFile + ": reading the source failed");
+					discardCurrentFile();
+				} else if (chunk.length == CLOSE)
+				{
+					if (outputStream != null)
+						outputStream.close();
+					outputStream = null;
+				} else if (outputStream != null)
+				{
+					writeData(chunk);
+				}
+			} catch (IOException e)
+			{
+				Logger.getLogger(FanOutSyncer.class.getName()).log(Level.SEVERE, "copy to " + currentFile + " failed",
+						e);
+				failures.add(currentFile + ": " + e);
+				discardCurrentFile();
+			}
+		}
+
+		private void writeData(final Chunk chunk) throws IOException
+		{
+			if (ioScheduler == null)
+			{
+				outputStream.write(chunk.data, 0, chunk.length);
+				return;
+			}
+			ioScheduler.run(IoScheduler.Lane.COPY, currentFile, chunk.length, new IoScheduler.IoTask<Void>()
+			{
+				@Override
+				public Void run() throws IOException
+				{
+					outputStream.write(chunk.data, 0, chunk.length);
+					return null;
+				}
+			});
+		}
+
+		private void discardCurrentFile()
+		{
+			if (outputStream == null)
+				return;
+			try
+			{
+				outputStream.close();
+				Files.deleteIfExists(currentFile);
+			} catch (IOException e)
+			{
+				Logger.getLogger(FanOutSyncer.class.getName()).log(Level.WARNING, "can't remove " + currentFile, e);
+			}
+			outputStream = null;
+		}
+	}
+}
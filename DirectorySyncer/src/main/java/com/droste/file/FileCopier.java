@@ -0,0 +1,27 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * Writes a source file to its new location in the target. The target file does not exist yet.
+ */
+public interface FileCopier
+{
+	/** plain {@link Files#copy(Path, Path, java.nio.file.CopyOption...)} */
+	FileCopier FILES_COPY = new FileCopier()
+	{
+		@Override
+		public CopyStrategy copy(Path source, Path target) throws IOException
+		{
+			Files.copy(source, target);
+			return CopyStrategy.FILES_COPY;
+		}
+	};
+
+	/** @return how the file was copied, null if the copy is not done yet and the strategy is not known */
+	CopyStrategy copy(Path source, Path target) throws IOException;
+}
@@ -0,0 +1,29 @@
+package com.droste.file;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Size and modification time of a file, taken from the attributes the walk delivers, so later comparisons need no
+ * further stat calls.
+ */
+final class FileInfo
+{
+	private final long size;
+	private final long lastModified;
+
+	FileInfo(BasicFileAttributes attrs)
+	{
+		this.size = attrs.size();
+		this.lastModified = attrs.lastModifiedTime().toMillis();
+	}
+
+	long getSize()
+	{
+		return size;
+	}
+
+	long getLastModified()
+	{
+		return lastModified;
+	}
+}
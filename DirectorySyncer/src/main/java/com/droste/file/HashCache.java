@@ -0,0 +1,157 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the hashes of files between runs. An entry is only valid as long as size and modification time of the
+ * file did not change.<br/>
+ * The cache is a text file with one line per file: size, modification time in millis, hash and absolute path,
+ * separated by tabs. The sampled fingerprint of a file for the {@link RelocationFilter} follows its hash after a colon
+ * once it was taken, so a cached target file is not sampled again either.
+ */
+public class HashCache
+{
+	private final Path cacheFile;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private static class Entry
+	{
+		private final long size;
+		private final long lastModified;
+		private final long hash;
+		/** null if not sampled yet */
+		private final Long fingerprint;
+
+		Entry(long size, long lastModified, long hash, Long fingerprint)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.fingerprint = fingerprint;
+		}
+
+		boolean isValid(long size, long lastModified)
+		{
+			return this.size == size && this.lastModified == lastModified;
+		}
+	}
+
+	public HashCache(Path cacheFile)
+	{
+		this.cacheFile = cacheFile;
+	}
+
+	/** A cache that only lives in memory, it can't be loaded or saved. */
+	public HashCache()
+	{
+		this(null);
+	}
+
+	/** Reads the cache file if it exists. Broken lines are skipped. */
+	public HashCache load() throws IOException
+	{
+		if (cacheFile == null || !Files.exists(cacheFile))
+			return this;
+		try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split("\t", 4);
+				if (fields.length < 4)
+					continue;
+				try
+				{
+					String[] hashes = fields[2].split(":", 2);
+					Long fingerprint = (hashes.length == 2) ? Long.valueOf(hashes[1]) : null;
+					entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long
+							.parseLong(hashes[0]), fingerprint));
+				} catch (NumberFormatException e)
+				{
+					// skip the broken line, the file is simply hashed again
+				}
+			}
+		}
+		return this;
+	}
+
+	/** Writes the cache to a temporary file first, so a crash never leaves a half written cache behind. */
+	public void save() throws IOException
+	{
+		if (cacheFile == null)
+			throw new IllegalStateException("in-memory cache can't be saved");
+		Path parent = cacheFile.toAbsolutePath().getParent();
+		if (parent != null)
+			Files.createDirectories(parent);
+		Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+		{
+			for (Map.Entry<String, Entry> entry : entries.entrySet())
+			{
+				Entry value = entry.getValue();
+				String hashes = (value.fingerprint == null) ? String.valueOf(value.hash) : value.hash + ":"
+						+ value.fingerprint;
+				writer.write(value.size + "\t" + value.lastModified + "\t" + hashes + "\t" + entry.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** @return the cached hash or null if the file is unknown or was modified since it was hashed */
+	public Long get(Path file, long size, long lastModified)
+	{
+		Entry entry = entries.get(key(file));
+		if (entry == null || !entry.isValid(size, lastModified))
+			return null;
+		return entry.hash;
+	}
+
+	/** Keeps the fingerprint of the file if it did not change. */
+	public void put(Path file, long size, long lastModified, long hash)
+	{
+		String key = key(file);
+		Entry old = entries.get(key);
+		Long fingerprint = (old != null && old.isValid(size, lastModified) && old.hash == hash) ? old.fingerprint
+				: null;
+		entries.put(key, new Entry(size, lastModified, hash, fingerprint));
+	}
+
+	/** @return the cached sampled fingerprint or null if the file is unknown, modified or was not sampled yet */
+	Long getFingerprint(Path file, long size, long lastModified)
+	{
+		Entry entry = entries.get(key(file));
+		if (entry == null || !entry.isValid(size, lastModified))
+			return null;
+		return entry.fingerprint;
+	}
+
+	/** Only kept if the hash of the file is cached for the same size and modification time. */
+	void putFingerprint(Path file, long size, long lastModified, long fingerprint)
+	{
+		String key = key(file);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.isValid(size, lastModified))
+			entries.put(key, new Entry(size, lastModified, entry.hash, fingerprint));
+	}
+
+	/** @return the file the cache is saved to, null for an in-memory cache */
+	public Path getCacheFile()
+	{
+		return cacheFile;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	private String key(Path file)
+	{
+		return file.toAbsolutePath().normalize().toString();
+	}
+}
@@ -0,0 +1,19 @@
+package com.droste.file;
+
+/**
+ * Which files get a real content hash (Adler32) and which are only identified by their size.
+ */
+public enum HashStrategy
+{
+	/** multimedia files are identified by their size, all other files are hashed. This is the default. */
+	MIXED,
+	/** every file is hashed, slow for big multimedia collections */
+	CONTENT,
+	/** every file is identified by its size only, fastest but relocation detection gets unreliable */
+	SIZE,
+	/**
+	 * files are grouped by size, then by a hash of their first 4 KB, then by their content hash. Only files that still
+	 * share their group with others are read for the next stage, so most files are never read.
+	 */
+	STAGED
+}
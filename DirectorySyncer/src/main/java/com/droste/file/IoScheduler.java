@@ -0,0 +1,189 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Coordinates the I/O of a sync per device (file store). Metadata probes, hashing reads and copies run in separate
+ * lanes, each lane has its own concurrency limit on every device.<br/>
+ * The limits adapt to the observed latency: a lane whose recent latency is more than twice its long term average is
+ * congested and gets fewer concurrent operations, otherwise it gets one more, up to the device limit. So a spinning
+ * disk settles at few parallel streams, an SSD or a network share with high parallelism at many. Hashing reads and
+ * copies together never exceed the device limit, metadata probes are short and don't wait for the bulk lanes.
+ */
+public class IoScheduler
+{
+	public enum Lane
+	{
+		METADATA, HASH, COPY
+	}
+
+	/** An I/O operation that runs when its lane has room. */
+	public interface IoTask<T>
+	{
+		T run() throws IOException;
+	}
+
+	private static final double CONGESTED = 2.0;
+	private static final double RECENT_WEIGHT = 0.5;
+	private static final double LONG_TERM_WEIGHT = 0.05;
+	/** latency is compared per 64 KB, so large and small files can be compared */
+	private static final double LATENCY_UNIT = 64 * 1024;
+	private static final Pattern INODE = Pattern.compile("ino=(\\d+)");
+	private final int deviceLimit;
+	private final Map<Path, FileStore> fileStores = new ConcurrentHashMap<Path, FileStore>();
+	private final ConcurrentMap<FileStore, Device> devices = new ConcurrentHashMap<FileStore, Device>();
+
+	/** @param deviceLimit the most concurrent hashing reads and copies on one device */
+	public IoScheduler(int deviceLimit)
+	{
+		if (deviceLimit < 1)
+			throw new IllegalArgumentException("at least one operation per device is needed, got " + deviceLimit);
+		this.deviceLimit = deviceLimit;
+	}
+
+	/**
+	 * Runs the task in the lane of the device of the file, waits while the lane is full.
+	 *
+	 * @param bytes the amount of data the task reads or writes, 0 for metadata
+	 */
+	public <T> T run(Lane lane, Path file, long bytes, IoTask<T> task) throws IOException
+	{
+		Device device = device(file);
+		device.acquire(lane);
+		long start = System.nanoTime();
+		try
+		{
+			return task.run();
+		} finally
+		{
+			device.release(lane, System.nanoTime() - start, bytes);
+		}
+	}
+
+	/** the current concurrency limit of the lane on the device of the file */
+	public int getLimit(Lane lane, Path file) throws IOException
+	{
+		Device device = device(file);
+		synchronized (device)
+		{
+			return device.limits[lane.ordinal()];
+		}
+	}
+
+	/**
+	 * Sorts the files by inode, which is close to their physical order on most unix file systems. Files without an
+	 * inode keep their order, after the others.
+	 */
+	public static <T> void sortByInode(List<T> files, final Map<T, BasicFileAttributes> attributes)
+	{
+		Collections.sort(files, new Comparator<T>()
+		{
+			@Override
+			public int compare(T file1, T file2)
+			{
+				long inode1 = inode(attributes.get(file1));
+				long inode2 = inode(attributes.get(file2));
+				if (inode1 < 0 || inode2 < 0)
+					return (inode1 < 0) ? ((inode2 < 0) ? 0 : 1) : -1;
+				return Long.compare(inode1, inode2);
+			}
+		});
+	}
+
+	/** the inode from the file key, -1 if the file system does not tell it */
+	static long inode(BasicFileAttributes attrs)
+	{
+		Object fileKey = attrs.fileKey();
+		if (fileKey == null)
+			return -1;
+		Matcher matcher = INODE.matcher(fileKey.toString());
+		return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+	private Device device(Path file) throws IOException
+	{
+		Path directory = file.toAbsolutePath().getParent();
+		FileStore fileStore = fileStores.get(directory);
+		if (fileStore == null)
+		{
+			fileStore = Files.getFileStore(directory);
+			fileStores.put(directory, fileStore);
+		}
+		Device device = devices.get(fileStore);
+		if (device == null)
+		{
+			device = new Device();
+			Device existing = devices.putIfAbsent(fileStore, device);
+			if (existing != null)
+				device = existing;
+		}
+		return device;
+	}
+
+	private class Device
+	{
+		private final int[] limits = new int[Lane.values().length];
+		private final int[] inFlight = new int[Lane.values().length];
+		private final int[] samples = new int[Lane.values().length];
+		private final double[] recentLatency = new double[Lane.values().length];
+		private final double[] longTermLatency = new double[Lane.values().length];
+		private int bulkInFlight = 0;
+
+		Device()
+		{
+			Arrays.fill(limits, deviceLimit);
+		}
+
+		synchronized void acquire(Lane lane) throws InterruptedIOException
+		{
+			int index = lane.ordinal();
+			try
+			{
+				while (inFlight[index] >= limits[index] || (lane != Lane.METADATA && bulkInFlight >= deviceLimit))
+					wait();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the " + lane + " lane");
+			}
+			inFlight[index]++;
+			if (lane != Lane.METADATA)
+				bulkInFlight++;
+		}
+
+		synchronized void release(Lane lane, long nanos, long bytes)
+		{
+			int index = lane.ordinal();
+			inFlight[index]--;
+			if (lane != Lane.METADATA)
+				bulkInFlight--;
+			double latency = nanos / (1.0 + bytes / LATENCY_UNIT);
+			if (samples[index] == 0)
+			{
+				recentLatency[index] = latency;
+				longTermLatency[index] = latency;
+			} else
+			{
+				recentLatency[index] += RECENT_WEIGHT * (latency - recentLatency[index]);
+				longTermLatency[index] += LONG_TERM_WEIGHT * (latency - longTermLatency[index]);
+			}
+			// the limit is adjusted once per window of as many operations as it allows
+			if (++samples[index] % limits[index] == 0)
+			{
+				if (recentLatency[index] > CONGESTED * longTermLatency[index])
+					limits[index] = Math.max(1, limits[index] * 3 / 4);
+				else if (limits[index] < deviceLimit)
+					limits[index]++;
+			}
+			notifyAll();
+		}
+	}
+}
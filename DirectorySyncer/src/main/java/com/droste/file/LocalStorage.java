@@ -0,0 +1,94 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A directory of the local file system as {@link StorageProvider}, e.g. on a mounted file server. A file is written to
+ * a part file next to it first, like with a {@link SyncJournal}, and renamed when it is complete.
+ */
+public class LocalStorage implements StorageProvider
+{
+	private final Path root;
+
+	public LocalStorage(Path root)
+	{
+		this.root = root;
+	}
+
+	@Override
+	public List<Entry> list(String directory) throws IOException
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(resolve(directory)))
+		{
+			for (Path child : children)
+			{
+				if (SyncJournal.isJournalFile(child))
+					continue;
+				BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				entries.add(entry(child, attrs));
+			}
+		}
+		return entries;
+	}
+
+	@Override
+	public Entry stat(String path) throws IOException
+	{
+		try
+		{
+			Path file = resolve(path);
+			return entry(file, Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+		} catch (NoSuchFileException e)
+		{
+			return null;
+		}
+	}
+
+	@Override
+	public InputStream openRead(String path) throws IOException
+	{
+		return Files.newInputStream(resolve(path));
+	}
+
+	@Override
+	public void write(String path, InputStream content, long lastModified) throws IOException
+	{
+		Path file = resolve(path);
+		Path partFile = file.resolveSibling(file.getFileName() + SyncJournal.PART_SUFFIX);
+		try
+		{
+			Files.copy(content, partFile, StandardCopyOption.REPLACE_EXISTING);
+			Files.setLastModifiedTime(partFile, FileTime.fromMillis(lastModified));
+			Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e)
+		{
+			Files.deleteIfExists(partFile);
+			throw e;
+		}
+	}
+
+	@Override
+	public void mkdir(String path) throws IOException
+	{
+		Files.createDirectory(resolve(path));
+	}
+
+	private Path resolve(String path)
+	{
+		return path.isEmpty() ? root : root.resolve(path);
+	}
+
+	private Entry entry(Path file, BasicFileAttributes attrs)
+	{
+		String path = root.relativize(file).toString().replace(root.getFileSystem().getSeparator(), "/");
+		return new Entry(path, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+}
@@ -0,0 +1,154 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.droste.file.report.Report;
+
+/**
+ * Deletes the target files and directories of a mirror that are gone in the source.<br/>
+ * The files go first, in one task per directory, several directories in parallel. Then the directories follow bottom
+ * up: one batch per depth, the deepest first, the directories of a batch in parallel. A directory is only deleted if no
+ * file stays below it, so folders that hold relocated files survive. In simulation mode the deletes are only reported.
+ */
+class MirrorDeletes
+{
+	private final Report report;
+	private final int threads;
+	private final boolean isSimulationMode;
+	private final List<String> failures = new ArrayList<String>();
+
+	MirrorDeletes(Report report, int threads, boolean isSimulationMode)
+	{
+		this.report = report;
+		this.threads = threads;
+		this.isSimulationMode = isSimulationMode;
+	}
+
+	/**
+	 * @param files the target files to delete
+	 * @param directories the target directories that are gone in the source, deleted if nothing stays in them
+	 * @param keptFiles the target files that stay
+	 */
+	void delete(List<Path> files, Collection<Path> directories, Collection<Path> keptFiles) throws IOException
+	{
+		Set<Path> keptDirectories = new HashSet<Path>();
+		for (Path kept : keptFiles)
+		{
+			Path dir = kept.getParent();
+			while (dir != null && keptDirectories.add(dir))
+				dir = dir.getParent();
+		}
+		Map<Path, List<Path>> filesByDirectory = new HashMap<Path, List<Path>>();
+		for (Path file : files)
+		{
+			List<Path> filesInDirectory = filesByDirectory.get(file.getParent());
+			if (filesInDirectory == null)
+			{
+				filesInDirectory = new ArrayList<Path>();
+				filesByDirectory.put(file.getParent(), filesInDirectory);
+			}
+			filesInDirectory.add(file);
+		}
+		TreeMap<Integer, List<Path>> directoriesByDepth = new TreeMap<Integer, List<Path>>(Collections.reverseOrder());
+		for (Path dir : directories)
+		{
+			if (keptDirectories.contains(dir))
+				continue;
+			List<Path> batch = directoriesByDepth.get(dir.getNameCount());
+			if (batch == null)
+			{
+				batch = new ArrayList<Path>();
+				directoriesByDepth.put(dir.getNameCount(), batch);
+			}
+			batch.add(dir);
+		}
+
+		ExecutorService executor = isSimulationMode ? null : Executors.newFixedThreadPool(threads);
+		try
+		{
+			for (Path deleted : run(executor, filesByDirectory.values()))
+				report.addDeletedFile(deleted);
+			for (List<Path> batch : directoriesByDepth.values())
+			{
+				List<List<Path>> tasks = new ArrayList<List<Path>>();
+				for (Path dir : batch)
+					tasks.add(Collections.singletonList(dir));
+				for (Path deleted : run(executor, tasks))
+					report.addDeletedDirectory(deleted);
+			}
+		} finally
+		{
+			if (executor != null)
+				executor.shutdownNow();
+		}
+		if (!failures.isEmpty())
+			throw new IOException(failures.size() + " deletes failed, first: " + failures.get(0));
+	}
+
+	/** runs one task per list of paths and waits for all of them, @return the deleted paths */
+	private List<Path> run(ExecutorService executor, Collection<List<Path>> tasks) throws IOException
+	{
+		List<Path> deleted = new ArrayList<Path>();
+		if (executor == null)
+		{
+			for (List<Path> paths : tasks)
+				deleted.addAll(paths);
+			return deleted;
+		}
+		List<Future<List<Path>>> futures = new ArrayList<Future<List<Path>>>();
+		for (final List<Path> paths : tasks)
+		{
+			futures.add(executor.submit(new Callable<List<Path>>()
+			{
+				@Override
+				public List<Path> call()
+				{
+					return deleteAll(paths);
+				}
+			}));
+		}
+		try
+		{
+			for (Future<List<Path>> future : futures)
+				deleted.addAll(future.get());
+		} catch (ExecutionException e)
+		{
+			throw new IOException("deleting failed", e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while deleting");
+		}
+		return deleted;
+	}
+
+	private List<Path> deleteAll(List<Path> paths)
+	{
+		List<Path> deleted = new ArrayList<Path>(paths.size());
+		for (Path path : paths)
+		{
+			try
+			{
+				Files.deleteIfExists(path);
+				deleted.add(path);
+			} catch (DirectoryNotEmptyException e)
+			{
+				// holds files the sync does not know, like ignored ones
+				Logger.getLogger(MirrorDeletes.class.getName()).log(Level.FINE, "not empty, kept: " + path);
+			} catch (IOException e)
+			{
+				synchronized (failures)
+				{
+					failures.add(path + ": " + e);
+				}
+			}
+		}
+		return deleted;
+	}
+}
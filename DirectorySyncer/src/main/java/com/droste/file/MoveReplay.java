@@ -0,0 +1,159 @@
+package com.droste.file;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * The target files that were found relocated and are moved to the place of their source file, to replay moves and
+ * renames of folders in the source.<br/>
+ * The moves are grouped by directory: if all files of a target directory go to the same new directory under the same
+ * names, and that directory does not exist yet, the whole directory is moved in one operation. Otherwise each file is
+ * moved on its own.
+ */
+class MoveReplay
+{
+	/** A target file that moves to the place of its source file. */
+	static class FileMove
+	{
+		private final Path source;
+		private final Path from;
+		private final Path to;
+
+		FileMove(Path source, Path from, Path to)
+		{
+			this.source = source;
+			this.from = from;
+			this.to = to;
+		}
+
+		Path getSource()
+		{
+			return source;
+		}
+
+		Path getFrom()
+		{
+			return from;
+		}
+
+		Path getTo()
+		{
+			return to;
+		}
+	}
+
+	/** One move operation on the target, of a single file or of a directory with all its files. */
+	static class Move
+	{
+		private final Path from;
+		private final Path to;
+		private final List<FileMove> files;
+
+		Move(Path from, Path to, List<FileMove> files)
+		{
+			this.from = from;
+			this.to = to;
+			this.files = files;
+		}
+
+		Path getFrom()
+		{
+			return from;
+		}
+
+		Path getTo()
+		{
+			return to;
+		}
+
+		/** the files that end up at their new place with this move */
+		List<FileMove> getFiles()
+		{
+			return files;
+		}
+
+		boolean isDirectory()
+		{
+			return files.size() != 1 || !files.get(0).from.equals(from);
+		}
+	}
+
+	private final Map<Path, FileMove> moves = new LinkedHashMap<Path, FileMove>();
+
+	void add(Path source, Path from, Path to)
+	{
+		moves.put(from, new FileMove(source, from, to));
+	}
+
+	/** true if the target file already moves for another source file */
+	boolean isMoved(Path from)
+	{
+		return moves.containsKey(from);
+	}
+
+	boolean isEmpty()
+	{
+		return moves.isEmpty();
+	}
+
+	/**
+	 * @param targetFiles all files of the target
+	 * @param existingDirectories the directories of the target, including the ones created by the sync
+	 * @param staying directories that must stay where they are, because the source has them, too
+	 * @return the directory moves first, then the single files
+	 */
+	List<Move> plan(Set<Path> targetFiles, Set<Path> existingDirectories, Set<Path> staying)
+	{
+		Map<Path, Integer> filesPerDirectory = new HashMap<Path, Integer>();
+		for (Path file : targetFiles)
+		{
+			Integer count = filesPerDirectory.get(file.getParent());
+			filesPerDirectory.put(file.getParent(), (count == null) ? 1 : count + 1);
+		}
+		Set<Path> directoriesWithSubdirectories = new HashSet<Path>();
+		for (Path dir : existingDirectories)
+			directoriesWithSubdirectories.add(dir.getParent());
+
+		Map<Path, List<FileMove>> movesPerDirectory = new LinkedHashMap<Path, List<FileMove>>();
+		for (FileMove move : moves.values())
+		{
+			List<FileMove> movesOfDirectory = movesPerDirectory.get(move.from.getParent());
+			if (movesOfDirectory == null)
+			{
+				movesOfDirectory = new ArrayList<FileMove>();
+				movesPerDirectory.put(move.from.getParent(), movesOfDirectory);
+			}
+			movesOfDirectory.add(move);
+		}
+
+		List<Move> directoryMoves = new ArrayList<Move>();
+		List<Move> fileMoves = new ArrayList<Move>();
+		Set<Path> newDirectories = new HashSet<Path>();
+		for (Map.Entry<Path, List<FileMove>> entry : movesPerDirectory.entrySet())
+		{
+			Path from = entry.getKey();
+			List<FileMove> files = entry.getValue();
+			Path to = files.get(0).to.getParent();
+			boolean wholeDirectory = files.size() == filesPerDirectory.get(from)
+					&& !directoriesWithSubdirectories.contains(from) && !staying.contains(from)
+					&& !existingDirectories.contains(to)
+					&& !newDirectories.contains(to) && !to.startsWith(from);
+			for (FileMove file : files)
+			{
+				if (!file.to.getParent().equals(to) || !file.to.getFileName().equals(file.from.getFileName()))
+					wholeDirectory = false;
+			}
+			if (wholeDirectory)
+			{
+				newDirectories.add(to);
+				directoryMoves.add(new Move(from, to, files));
+			} else
+			{
+				for (FileMove file : files)
+					fileMoves.add(new Move(file.from, file.to, Collections.singletonList(file)));
+			}
+		}
+		directoryMoves.addAll(fileMoves);
+		return directoryMoves;
+	}
+}
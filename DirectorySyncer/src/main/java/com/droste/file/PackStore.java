@@ -0,0 +1,460 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * An archive target that keeps files in a few large segment files instead of one file per source file, for targets
+ * where creating millions of small files is slow.<br/>
+ * Every file is deflated on its own and appended to the current segment, <code>pack-00000.dat</code> and following. A
+ * segment is closed when it reached the segment size, so a large file may exceed it. The index <code>pack.idx</code>
+ * has one line per stored file: size, modification time in millis, CRC32 of the content, segment, offset and length of
+ * the compressed data in the segment and the path relative to the source root, separated by tabs. Nothing is ever
+ * overwritten: a changed file gets a new line, the last line of a path wins.<br/>
+ * The index lines of new files are written by {@link #flush()} after the segment was forced to the disk, so the index
+ * never points to data that is not there. The store flushes by itself when a segment is closed and at checkpoints,
+ * after a minute or the checkpoint size of new data. Data written after the last flush is lost on a crash and written
+ * again by the next sync. Files with the same content are stored once and referenced by several lines.
+ */
+public class PackStore implements Closeable
+{
+	public static final String INDEX_FILE = "pack.idx";
+	private static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+	private static final long DEFAULT_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+	private static final long CHECKPOINT_MILLIS = 60 * 1000;
+
+	private final Path directory;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	/** the current entries by size, several of them may share their data */
+	private final Map<Long, List<Entry>> entriesBySize = new HashMap<Long, List<Entry>>();
+	private final List<Entry> unflushed = new ArrayList<Entry>();
+	/** compressed bytes appended since the last flush */
+	private long unflushedBytes = 0;
+	private long lastFlush = System.currentTimeMillis();
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+	private long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+	private int segment = 0;
+	private FileChannel segmentChannel;
+
+	/** A stored file. */
+	public static class Entry
+	{
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final long checksum;
+		private final int segment;
+		private final long offset;
+		private final long length;
+
+		Entry(String path, long size, long lastModified, long checksum, int segment, long offset, long length)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/** the path relative to the source root */
+		public String getPath()
+		{
+			return path;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		/** CRC32 of the uncompressed content */
+		public long getChecksum()
+		{
+			return checksum;
+		}
+
+		/** the size of the compressed content in the segment */
+		public long getStoredSize()
+		{
+			return length;
+		}
+
+		private boolean isSameData(Entry other)
+		{
+			return segment == other.segment && offset == other.offset;
+		}
+	}
+
+	public PackStore(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	/** Reads the index if the store exists. Broken lines are skipped. */
+	public PackStore load() throws IOException
+	{
+		Path indexFile = directory.resolve(INDEX_FILE);
+		if (Files.exists(indexFile))
+		{
+			try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					String[] fields = line.split("\t", 7);
+					if (fields.length < 7)
+						continue;
+					try
+					{
+						put(new Entry(fields[6], Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long
+								.parseLong(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]), Long
+								.parseLong(fields[5])));
+					} catch (NumberFormatException e)
+					{
+						// skip the broken line
+					}
+				}
+			}
+		}
+		if (Files.isDirectory(directory))
+		{
+			// continue after the last segment, even one that is not in the index
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "pack-*.dat"))
+			{
+				for (Path file : segments)
+				{
+					String name = file.getFileName().toString();
+					try
+					{
+						segment = Math.max(segment, Integer.parseInt(name.substring(5, name.length() - 4)));
+					} catch (NumberFormatException e)
+					{
+						// not a segment
+					}
+				}
+			}
+		}
+		return this;
+	}
+
+	/** The size after which the next segment is started, default is 256 MB. */
+	public void setSegmentSize(long segmentSize)
+	{
+		this.segmentSize = segmentSize;
+	}
+
+	/** The amount of new data after which the index is flushed, default is 64 MB. */
+	public void setCheckpointSize(long checkpointSize)
+	{
+		this.checkpointSize = checkpointSize;
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	/** @return the stored file, null if there is none */
+	public synchronized Entry get(String path)
+	{
+		return entries.get(path.toLowerCase());
+	}
+
+	/** all stored files, in the order they were stored */
+	public synchronized List<Entry> list()
+	{
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * A stored file with the same content as the file. Only if files of the same size are stored the file is read, and
+	 * only if the checksum matches as well the contents are compared.
+	 * @return the stored file, null if there is none
+	 */
+	public Entry findSameContent(Path file, long size) throws IOException
+	{
+		List<Entry> candidates;
+		synchronized (this)
+		{
+			List<Entry> sameSize = entriesBySize.get(size);
+			if (sameSize == null)
+				return null;
+			candidates = new ArrayList<Entry>(sameSize);
+		}
+		long checksum = checksum(file);
+		List<Entry> compared = new ArrayList<Entry>();
+		for (Entry candidate : candidates)
+		{
+			if (candidate.checksum != checksum || isSameData(compared, candidate))
+				continue;
+			compared.add(candidate);
+			if (sameContent(file, candidate))
+				return candidate;
+		}
+		return null;
+	}
+
+	private static boolean isSameData(List<Entry> entries, Entry entry)
+	{
+		for (Entry other : entries)
+		{
+			if (other.isSameData(entry))
+				return true;
+		}
+		return false;
+	}
+
+	/** Appends the content of the file to the current segment. */
+	public synchronized Entry add(String path, Path file, long lastModified) throws IOException
+	{
+		FileChannel channel = segmentChannel();
+		long offset = channel.size();
+		channel.position(offset);
+		CRC32 crc = new CRC32();
+		long size = 0;
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (InputStream in = Files.newInputStream(file))
+		{
+			DeflaterOutputStream out = new DeflaterOutputStream(Channels.newOutputStream(channel), deflater, 64 * 1024);
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > -1)
+			{
+				crc.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+				size += read;
+			}
+			// not closed, that would close the segment
+			out.finish();
+			out.flush();
+		} finally
+		{
+			deflater.end();
+		}
+		Entry entry = new Entry(path, size, lastModified, crc.getValue(), segment, offset, channel.position() - offset);
+		put(entry);
+		unflushed.add(entry);
+		unflushedBytes += entry.length;
+		checkpoint();
+		return entry;
+	}
+
+	/** Stores a file with the content of an already stored one, without writing the content again. */
+	public synchronized Entry link(String path, Entry content, long lastModified) throws IOException
+	{
+		Entry entry = new Entry(path, content.size, lastModified, content.checksum, content.segment, content.offset,
+				content.length);
+		put(entry);
+		unflushed.add(entry);
+		checkpoint();
+		return entry;
+	}
+
+	/** flushes after a minute or the checkpoint size, so a crash loses no more than that */
+	private void checkpoint() throws IOException
+	{
+		if (unflushedBytes >= checkpointSize || System.currentTimeMillis() - lastFlush >= CHECKPOINT_MILLIS)
+			flush();
+	}
+
+	/** The content of a stored file, the checksum is checked when the end is read. */
+	public InputStream open(final Entry entry) throws IOException
+	{
+		FileChannel channel = FileChannel.open(segmentFile(entry.segment), StandardOpenOption.READ);
+		channel.position(entry.offset);
+		final CheckedInputStream checked = new CheckedInputStream(new InflaterInputStream(
+				Channels.newInputStream(channel)), new CRC32());
+		return new FilterInputStream(checked)
+		{
+			private long read = 0;
+
+			@Override
+			public int read() throws IOException
+			{
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				int n = checked.read(b, off, len);
+				if (n > -1)
+					read += n;
+				else if (read != entry.size || checked.getChecksum().getValue() != entry.checksum)
+					throw new IOException("checksum mismatch in " + entry.path);
+				return n;
+			}
+		};
+	}
+
+	/** Writes a stored file to the given place, with its modification time. */
+	public void restore(String path, Path to) throws IOException
+	{
+		Entry entry = get(path);
+		if (entry == null)
+			throw new NoSuchFileException(path, null, "not in " + directory);
+		if (to.getParent() != null)
+			Files.createDirectories(to.getParent());
+		try (InputStream in = open(entry))
+		{
+			Files.copy(in, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.setLastModifiedTime(to, FileTime.fromMillis(entry.lastModified));
+	}
+
+	/** Writes all stored files below the given directory. @return the number of restored files */
+	public int restoreAll(Path targetDirectory) throws IOException
+	{
+		List<Entry> all = list();
+		for (Entry entry : all)
+			restore(entry.path, targetDirectory.resolve(entry.path));
+		return all.size();
+	}
+
+	/** Reads every stored file once. @return the paths whose content does not match their checksum */
+	public List<String> verify() throws IOException
+	{
+		List<String> broken = new ArrayList<String>();
+		byte[] buffer = new byte[64 * 1024];
+		for (Entry entry : list())
+		{
+			try (InputStream in = open(entry))
+			{
+				while (in.read(buffer) > -1)
+				{
+					// the stream checks the content at the end
+				}
+			} catch (IOException e)
+			{
+				broken.add(entry.path);
+			}
+		}
+		return broken;
+	}
+
+	/** Forces the written data to the disk, then appends the index lines for it. */
+	public synchronized void flush() throws IOException
+	{
+		if (unflushed.isEmpty())
+			return;
+		if (segmentChannel != null)
+			segmentChannel.force(false);
+		try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(INDEX_FILE), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+		{
+			for (Entry entry : unflushed)
+			{
+				writer.write(entry.size + "\t" + entry.lastModified + "\t" + entry.checksum + "\t" + entry.segment + "\t"
+						+ entry.offset + "\t" + entry.length + "\t" + entry.path);
+				writer.newLine();
+			}
+		}
+		unflushed.clear();
+		unflushedBytes = 0;
+		lastFlush = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		flush();
+		if (segmentChannel != null)
+		{
+			segmentChannel.close();
+			segmentChannel = null;
+		}
+	}
+
+	private void put(Entry entry)
+	{
+		String key = entry.path.toLowerCase();
+		Entry previous = entries.remove(key);
+		if (previous != null)
+			entriesBySize.get(previous.size).remove(previous);
+		entries.put(key, entry);
+		List<Entry> sameSize = entriesBySize.get(entry.size);
+		if (sameSize == null)
+		{
+			sameSize = new ArrayList<Entry>(1);
+			entriesBySize.put(entry.size, sameSize);
+		}
+		// every entry is kept, so another path with the same data stays a candidate when one path changes
+		sameSize.add(entry);
+	}
+
+	/** the channel of the current segment, the next one if the current is full */
+	private FileChannel segmentChannel() throws IOException
+	{
+		if (segmentChannel != null && segmentChannel.size() < segmentSize)
+			return segmentChannel;
+		if (segmentChannel != null)
+		{
+			flush();
+			segmentChannel.close();
+			segmentChannel = null;
+			segment++;
+		}
+		Files.createDirectories(directory);
+		segmentChannel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (segmentChannel.size() >= segmentSize)
+		{
+			segmentChannel.close();
+			segmentChannel = null;
+			segment++;
+			return segmentChannel();
+		}
+		return segmentChannel;
+	}
+
+	private Path segmentFile(int number)
+	{
+		return directory.resolve(String.format("pack-%05d.dat", number));
+	}
+
+	private boolean sameContent(Path file, Entry entry) throws IOException
+	{
+		try (InputStream in1 = new BufferedInputStream(Files.newInputStream(file));
+				InputStream in2 = new BufferedInputStream(open(entry)))
+		{
+			int b;
+			while ((b = in1.read()) > -1)
+			{
+				if (b != in2.read())
+					return false;
+			}
+			return in2.read() < 0;
+		}
+	}
+
+	private static long checksum(Path file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		try (InputStream in = Files.newInputStream(file))
+		{
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) > -1)
+				crc.update(buffer, 0, read);
+		}
+		return crc.getValue();
+	}
+}
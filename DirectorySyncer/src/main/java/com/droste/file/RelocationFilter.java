@@ -0,0 +1,166 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A Bloom filter over size and sampled fingerprint of the content hashed target files, built while the target is
+ * walked. A new source file that the filter does not contain can't be relocated, so it is not read completely for the
+ * lookup in the hashed target map.<br/>
+ * The fingerprint is a CRC32 over three samples of 4 KB at the start, the middle and the end of the file, so it costs
+ * at most 12 KB of reading on both sides. The filter grows by adding segments of twice the capacity with half the false
+ * positive rate, which keeps the total rate below 2 % for any number of files. It never answers no for a file that was
+ * added.
+ */
+class RelocationFilter
+{
+	static final int SAMPLE_SIZE = 4096;
+	private static final int FIRST_CAPACITY = 1024;
+	private static final double FIRST_FALSE_POSITIVE_RATE = 0.01;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	/** a target file could not be sampled, the filter can't rule anything out */
+	private boolean incomplete = false;
+
+	synchronized void add(long size, long fingerprint)
+	{
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.count >= segment.capacity)
+		{
+			int capacity = (segment == null) ? FIRST_CAPACITY : segment.capacity * 2;
+			double rate = (segment == null) ? FIRST_FALSE_POSITIVE_RATE : segment.falsePositiveRate / 2;
+			segment = new Segment(capacity, rate);
+			segments.add(segment);
+		}
+		segment.add(key(size, fingerprint));
+	}
+
+	/** Called for a target file that can't be sampled, from now on every file might be contained. */
+	synchronized void addUnknown()
+	{
+		incomplete = true;
+	}
+
+	/** false if no target file has this size and fingerprint, true means it is worth a full hash */
+	synchronized boolean mightContain(long size, long fingerprint)
+	{
+		if (incomplete)
+			return true;
+		long key = key(size, fingerprint);
+		for (Segment segment : segments)
+		{
+			if (segment.mightContain(key))
+				return true;
+		}
+		return false;
+	}
+
+	/** the number of bytes {@link #fingerprint(Path, long)} reads from a file of this size */
+	static long sampledBytes(long size)
+	{
+		return Math.min(size, 3L * SAMPLE_SIZE);
+	}
+
+	/** CRC32 over the samples at the start, the middle and the end, small files are read completely */
+	static long fingerprint(Path file, long size) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+			if (size <= 3L * SAMPLE_SIZE)
+			{
+				sample(channel, 0, size, buffer, crc);
+			} else
+			{
+				sample(channel, 0, SAMPLE_SIZE, buffer, crc);
+				sample(channel, size / 2 - SAMPLE_SIZE / 2, SAMPLE_SIZE, buffer, crc);
+				sample(channel, size - SAMPLE_SIZE, SAMPLE_SIZE, buffer, crc);
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static void sample(FileChannel channel, long position, long length, ByteBuffer buffer, CRC32 crc)
+			throws IOException
+	{
+		long end = position + length;
+		while (position < end)
+		{
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				return; // the file got shorter, the fingerprint simply won't match
+			crc.update(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+
+	/** mixes size and fingerprint into one 64 bit key, the finalizer of MurmurHash3 */
+	private static long key(long size, long fingerprint)
+	{
+		long key = size * 0x9E3779B97F4A7C15L ^ fingerprint;
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	/** A plain Bloom filter, the bit positions are derived from the two halves of the key (double hashing). */
+	private static class Segment
+	{
+		private final int capacity;
+		private final double falsePositiveRate;
+		private final long[] bits;
+		private final int numberOfBits;
+		private final int numberOfHashes;
+		private int count = 0;
+
+		Segment(int capacity, double falsePositiveRate)
+		{
+			this.capacity = capacity;
+			this.falsePositiveRate = falsePositiveRate;
+			double ln2 = Math.log(2);
+			numberOfBits = (int) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+			numberOfHashes = Math.max(1, (int) Math.round((double) numberOfBits / capacity * ln2));
+			bits = new long[(numberOfBits + 63) / 64];
+		}
+
+		void add(long key)
+		{
+			int hash1 = (int) key;
+			int hash2 = (int) (key >>> 32);
+			for (int i = 0; i < numberOfHashes; i++)
+			{
+				int bit = index(hash1 + i * hash2);
+				bits[bit >>> 6] |= 1L << bit;
+			}
+			count++;
+		}
+
+		boolean mightContain(long key)
+		{
+			int hash1 = (int) key;
+			int hash2 = (int) (key >>> 32);
+			for (int i = 0; i < numberOfHashes; i++)
+			{
+				int bit = index(hash1 + i * hash2);
+				if ((bits[bit >>> 6] & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		private int index(int hash)
+		{
+			return (hash & Integer.MAX_VALUE) % numberOfBits;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.droste.file;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The "name (n).ext" variants of the target files, which {@link DirectorySyncer} creates for changed files.<br/>
+ * Built while the target is walked: for every original name it keeps the sizes of the original and its variants by
+ * counter, so a changed file gets its new name without probing the file system. Only counters that run without gaps
+ * from 1 are variants, a file like "Report (2019).pdf" is a name of its own.
+ */
+class RenameIndex
+{
+	private static final Pattern VARIANT = Pattern.compile("(.*) \\(([1-9]\\d{0,8})\\)");
+	/** the sizes by counter for every original, 0 is the original itself */
+	private final Map<Path, Map<Integer, Long>> variants = new HashMap<Path, Map<Integer, Long>>();
+
+	/** Adds a target file, which is either an original or one of its "(n)" variants. */
+	void add(Path file, long size)
+	{
+		Path original = original(file);
+		Map<Integer, Long> sizes = variants.get(original);
+		if (sizes == null)
+		{
+			sizes = new HashMap<Integer, Long>();
+			variants.put(original, sizes);
+		}
+		sizes.put(counter(file), size);
+	}
+
+	/**
+	 * The counters are checked from 1 on like the old probing of the file system did: the first gap is the next free
+	 * counter.
+	 * @return null if the original or one of its variants already has the given size, else the variant with the next
+	 *         free counter
+	 */
+	Path nextVariant(Path original, long size)
+	{
+		Map<Integer, Long> sizes = variants.get(original);
+		if (sizes == null)
+			return original.resolveSibling(variantName(original.getFileName().toString(), 1));
+		Long originalSize = sizes.get(0);
+		if (originalSize != null && originalSize == size)
+			return null;
+		int counter = 1;
+		for (Long variantSize = sizes.get(counter); variantSize != null; variantSize = sizes.get(++counter))
+		{
+			if (variantSize == size)
+				return null;
+		}
+		return original.resolveSibling(variantName(original.getFileName().toString(), counter));
+	}
+
+	/** true if the file is a "(n)" variant and all counters below n are in use, too */
+	boolean isVariant(Path file)
+	{
+		int counter = counter(file);
+		if (counter == 0)
+			return false;
+		Map<Integer, Long> sizes = variants.get(original(file));
+		if (sizes == null)
+			return false;
+		for (int i = 1; i <= counter; i++)
+		{
+			if (!sizes.containsKey(i))
+				return false;
+		}
+		return true;
+	}
+
+	/** the n of "name (n).ext", 0 for other names */
+	private static int counter(Path file)
+	{
+		Matcher matcher = VARIANT.matcher(split(file.getFileName().toString())[0]);
+		return matcher.matches() ? Integer.parseInt(matcher.group(2)) : 0;
+	}
+
+	/** "name (n).ext" becomes "name.ext", other files are returned as they are */
+	static Path original(Path file)
+	{
+		String[] stemAndEnding = split(file.getFileName().toString());
+		Matcher matcher = VARIANT.matcher(stemAndEnding[0]);
+		if (!matcher.matches())
+			return file;
+		return file.resolveSibling(matcher.group(1) + stemAndEnding[1]);
+	}
+
+	/** "name.ext" becomes "name (counter).ext", a name without ending gets the counter at the end. */
+	static String variantName(String name, int counter)
+	{
+		String[] stemAndEnding = split(name);
+		return stemAndEnding[0] + " (" + counter + ")" + stemAndEnding[1];
+	}
+
+	/** the name up to the last dot and the ending including the dot, which is empty if there is none */
+	private static String[] split(String name)
+	{
+		int dot = name.lastIndexOf('.');
+		if (dot < 0)
+			return new String[] { name, "" };
+		return new String[] { name.substring(0, dot), name.substring(dot) };
+	}
+}
@@ -0,0 +1,254 @@
+package com.droste.file;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * gitignore-like patterns compiled into a trie over the path segments.<br/>
+ * Literal segments are children in a hash map, and so are endings like <code>*.tmp</code>. Other segments with
+ * <code>*</code>, <code>?</code> or <code>[...]</code> become a regular expression, <code>**</code> matches any
+ * number of segments. The trie is run like an automaton: the {@link State} of a directory is the set of nodes its path
+ * reaches, an entry in it is matched by one {@link #step} from that state. So the cost per entry does not grow with
+ * the depth or with rules for other names. Names and patterns are compared in lower case.<br/>
+ * The last rule that matches decides, a rule starting with <code>!</code> includes again. A rule ending with
+ * <code>/</code> only matches directories. A rule without a <code>/</code> in between matches at any depth below its
+ * base directory, all others are relative to it.
+ */
+class RuleMatcher
+{
+	private final Node root = new Node(null);
+	private int rules = 0;
+
+	private static class Node
+	{
+		private final Pattern glob;
+		private final Map<String, Node> literals = new HashMap<String, Node>();
+		/** "*.ext" children by their ending ".ext" */
+		private final Map<String, Node> endings = new HashMap<String, Node>();
+		private final Map<String, Node> globs = new LinkedHashMap<String, Node>();
+		/** the "**" child */
+		private Node anyDepth;
+		private boolean isAnyDepth;
+		/** the number of the last rule ending here, -1 if none */
+		private int rule = -1;
+		private boolean negated;
+		private boolean directoryOnly;
+
+		Node(Pattern glob)
+		{
+			this.glob = glob;
+		}
+	}
+
+	/** The nodes reached by a path, immutable. */
+	static class State
+	{
+		private final Node[] nodes;
+
+		private State(Node[] nodes)
+		{
+			this.nodes = nodes;
+		}
+
+		/** true if no rule can match anything below */
+		boolean isEmpty()
+		{
+			return nodes.length == 0;
+		}
+	}
+
+	/**
+	 * Adds a rule, later rules win over earlier ones. Comments and empty lines are ignored.
+	 * @param base the lower case segments of the directory the pattern is relative to, empty for the root
+	 * @return false if the line holds no rule
+	 */
+	boolean add(List<String> base, String line)
+	{
+		String pattern = line.trim();
+		if (pattern.isEmpty() || pattern.startsWith("#"))
+			return false;
+		boolean negated = pattern.startsWith("!");
+		if (negated)
+			pattern = pattern.substring(1);
+		else if (pattern.startsWith("\\!") || pattern.startsWith("\\#"))
+			pattern = pattern.substring(1);
+		boolean directoryOnly = pattern.endsWith("/");
+		pattern = pattern.toLowerCase();
+		boolean anchored = pattern.indexOf('/') >= 0 && pattern.indexOf('/') < pattern.length() - 1;
+		List<String> segments = new ArrayList<String>(base);
+		if (!anchored)
+			segments.add("**");
+		boolean hasSegment = false;
+		for (String segment : pattern.split("/"))
+		{
+			if (segment.isEmpty())
+				continue;
+			hasSegment = true;
+			if (!segment.equals("**") || segments.isEmpty() || !segments.get(segments.size() - 1).equals("**"))
+				segments.add(segment);
+		}
+		if (!hasSegment)
+			return false;
+		if (segments.get(segments.size() - 1).equals("**"))
+		{
+			// "dir/**" matches everything inside dir, but not dir itself
+			segments.set(segments.size() - 1, "*");
+			segments.add("**");
+		}
+		Node node = root;
+		for (String segment : segments)
+			node = child(node, segment);
+		node.rule = rules++;
+		node.negated = negated;
+		node.directoryOnly = directoryOnly;
+		return true;
+	}
+
+	private Node child(Node node, String segment)
+	{
+		if (segment.equals("**"))
+		{
+			if (node.anyDepth == null)
+			{
+				node.anyDepth = new Node(null);
+				node.anyDepth.isAnyDepth = true;
+			}
+			return node.anyDepth;
+		}
+		Map<String, Node> children;
+		String key = segment;
+		if (!isGlob(segment))
+		{
+			children = node.literals;
+		} else if (segment.startsWith("*.") && !isGlob(segment.substring(1)))
+		{
+			children = node.endings;
+			key = segment.substring(1);
+		} else
+		{
+			children = node.globs;
+		}
+		Node child = children.get(key);
+		if (child == null)
+		{
+			child = new Node((children == node.globs) ? Pattern.compile(toRegex(segment)) : null);
+			children.put(key, child);
+		}
+		return child;
+	}
+
+	private static boolean isGlob(String segment)
+	{
+		return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 || segment.indexOf('[') >= 0
+				|| segment.indexOf('\\') >= 0;
+	}
+
+	private static String toRegex(String glob)
+	{
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++)
+		{
+			char c = glob.charAt(i);
+			if (c == '*')
+			{
+				regex.append(".*");
+			} else if (c == '?')
+			{
+				regex.append('.');
+			} else if (c == '[' && glob.indexOf(']', i + 1) > i + 1)
+			{
+				int end = glob.indexOf(']', i + 1);
+				String range = glob.substring(i + 1, end);
+				if (range.startsWith("!"))
+					range = "^" + range.substring(1);
+				regex.append('[').append(range.replace("\\", "\\\\")).append(']');
+				i = end;
+			} else if (c == '\\' && i + 1 < glob.length())
+			{
+				regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+			} else
+			{
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return regex.toString();
+	}
+
+	/** the state of the base directory of the rules */
+	State start()
+	{
+		return closure(new ArrayList<Node>(Collections.singletonList(root)));
+	}
+
+	/** the state of the entry with this name in the directory of the given state */
+	State step(State state, String name)
+	{
+		if (state.isEmpty())
+			return state;
+		String lowerCase = name.toLowerCase();
+		List<Node> next = new ArrayList<Node>();
+		for (Node node : state.nodes)
+		{
+			if (node.isAnyDepth)
+				add(next, node);
+			Node literal = node.literals.get(lowerCase);
+			if (literal != null)
+				add(next, literal);
+			if (!node.endings.isEmpty())
+			{
+				for (int dot = lowerCase.indexOf('.'); dot > -1; dot = lowerCase.indexOf('.', dot + 1))
+				{
+					Node ending = node.endings.get(lowerCase.substring(dot));
+					if (ending != null)
+						add(next, ending);
+				}
+			}
+			for (Node glob : node.globs.values())
+			{
+				if (glob.glob.matcher(lowerCase).matches())
+					add(next, glob);
+			}
+		}
+		return closure(next);
+	}
+
+	/** true if the last rule matching the entry of this state is no negated one */
+	boolean matches(State state, boolean isDirectory)
+	{
+		return lastRule(state, isDirectory) > -1;
+	}
+
+	/** the number of the last rule matching the entry of this state, counted from 0, -1 if none or a negated one */
+	int lastRule(State state, boolean isDirectory)
+	{
+		Node decisive = null;
+		for (Node node : state.nodes)
+		{
+			if (node.rule > -1 && (isDirectory || !node.directoryOnly)
+					&& (decisive == null || node.rule > decisive.rule))
+				decisive = node;
+		}
+		return (decisive == null || decisive.negated) ? -1 : decisive.rule;
+	}
+
+	/** adds the "**" nodes, which may match no segment at all */
+	private State closure(List<Node> nodes)
+	{
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			if (nodes.get(i).anyDepth != null)
+				add(nodes, nodes.get(i).anyDepth);
+		}
+		return new State(nodes.toArray(new Node[nodes.size()]));
+	}
+
+	private static void add(List<Node> nodes, Node node)
+	{
+		for (Node added : nodes)
+		{
+			if (added == node)
+				return;
+		}
+		nodes.add(node);
+	}
+}
@@ -0,0 +1,187 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link StorageProvider} in memory that behaves like a remote target: every request waits for a fixed latency and
+ * content moves with a limited bandwidth, so parallel and batched syncs can be measured without a live service.
+ * Requests of several threads wait at the same time, like requests on several connections.<br/>
+ * As object store there are no real directories: a directory exists as long as a file is below it, mkdir costs no
+ * request and files can be written anywhere. As file server (like SFTP) directories must be created before files are
+ * written into them.
+ */
+public class SimulatedStorage implements StorageProvider
+{
+	private final boolean objectStore;
+	private final long latencyMillis;
+	private final long bytesPerSecond;
+	private final SortedMap<String, StoredFile> files = new TreeMap<String, StoredFile>();
+	private final Set<String> directories = new HashSet<String>(Collections.singleton(""));
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private static class StoredFile
+	{
+		private final byte[] content;
+		private final long lastModified;
+
+		StoredFile(byte[] content, long lastModified)
+		{
+			this.content = content;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * @param objectStore true for object store semantics, false for a file server
+	 * @param latencyMillis the time every request waits
+	 * @param bytesPerSecond the bandwidth of one request, 0 is unlimited
+	 */
+	public SimulatedStorage(boolean objectStore, long latencyMillis, long bytesPerSecond)
+	{
+		this.objectStore = objectStore;
+		this.latencyMillis = latencyMillis;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	@Override
+	public List<Entry> list(String directory) throws IOException
+	{
+		request(0);
+		String prefix = directory.isEmpty() ? "" : directory + "/";
+		Map<String, Entry> children = new TreeMap<String, Entry>();
+		synchronized (this)
+		{
+			if (!isDirectory(directory))
+				throw new NoSuchFileException(directory);
+			for (Map.Entry<String, StoredFile> file : files.tailMap(prefix).entrySet())
+			{
+				if (!file.getKey().startsWith(prefix))
+					break;
+				int slash = file.getKey().indexOf('/', prefix.length());
+				if (slash < 0)
+					children.put(file.getKey(), entry(file.getKey(), file.getValue()));
+				else
+					children.put(file.getKey().substring(0, slash), new Entry(file.getKey().substring(0, slash), true,
+							0, 0));
+			}
+			for (String dir : directories)
+			{
+				if (!dir.isEmpty() && dir.startsWith(prefix) && dir.indexOf('/', prefix.length()) < 0)
+					children.put(dir, new Entry(dir, true, 0, 0));
+			}
+		}
+		return new ArrayList<Entry>(children.values());
+	}
+
+	@Override
+	public Entry stat(String path) throws IOException
+	{
+		request(0);
+		synchronized (this)
+		{
+			StoredFile file = files.get(path);
+			if (file != null)
+				return entry(path, file);
+			return isDirectory(path) ? new Entry(path, true, 0, 0) : null;
+		}
+	}
+
+	@Override
+	public InputStream openRead(String path) throws IOException
+	{
+		StoredFile file;
+		synchronized (this)
+		{
+			file = files.get(path);
+		}
+		if (file == null)
+		{
+			request(0);
+			throw new NoSuchFileException(path);
+		}
+		request(file.content.length);
+		return new ByteArrayInputStream(file.content);
+	}
+
+	@Override
+	public void write(String path, InputStream content, long lastModified) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] chunk = new byte[64 * 1024];
+		int read;
+		while ((read = content.read(chunk)) > -1)
+			buffer.write(chunk, 0, read);
+		request(buffer.size());
+		synchronized (this)
+		{
+			if (!objectStore && !directories.contains(parent(path)))
+				throw new NoSuchFileException(parent(path), null, "parent of " + path + " does not exist");
+			files.put(path, new StoredFile(buffer.toByteArray(), lastModified));
+		}
+	}
+
+	@Override
+	public void mkdir(String path) throws IOException
+	{
+		if (objectStore)
+			return; // directories come with the files
+		request(0);
+		synchronized (this)
+		{
+			if (isDirectory(path) || files.containsKey(path))
+				throw new FileAlreadyExistsException(path);
+			if (!directories.contains(parent(path)))
+				throw new NoSuchFileException(parent(path));
+			directories.add(path);
+		}
+	}
+
+	/** the number of requests so far */
+	public int getRequests()
+	{
+		return requests.get();
+	}
+
+	/** waits for the latency and the transfer of the bytes, outside of any lock */
+	private void request(long bytes) throws InterruptedIOException
+	{
+		requests.incrementAndGet();
+		long millis = latencyMillis + ((bytesPerSecond > 0) ? bytes * 1000 / bytesPerSecond : 0);
+		if (millis <= 0)
+			return;
+		try
+		{
+			Thread.sleep(millis);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the storage");
+		}
+	}
+
+	private boolean isDirectory(String path)
+	{
+		if (directories.contains(path))
+			return true;
+		if (!objectStore)
+			return false;
+		String prefix = path + "/";
+		SortedMap<String, StoredFile> below = files.tailMap(prefix);
+		return !below.isEmpty() && below.firstKey().startsWith(prefix);
+	}
+
+	private static String parent(String path)
+	{
+		int slash = path.lastIndexOf('/');
+		return (slash < 0) ? "" : path.substring(0, slash);
+	}
+
+	private static Entry entry(String path, StoredFile file)
+	{
+		return new Entry(path, false, file.content.length, file.lastModified);
+	}
+}
@@ -0,0 +1,68 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The operations a sync needs from a target, so a target need not be a local directory. Paths are relative to the root
+ * of the storage and use <code>/</code> as separator, the root itself is the empty path. {@link LocalStorage} is the
+ * default, {@link SimulatedStorage} stands in for remote targets in tests and benchmarks.
+ */
+public interface StorageProvider
+{
+	/** A file or directory of the storage. */
+	final class Entry
+	{
+		private final String path;
+		private final boolean directory;
+		private final long size;
+		private final long lastModified;
+
+		public Entry(String path, boolean directory, long size, long lastModified)
+		{
+			this.path = path;
+			this.directory = directory;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public boolean isDirectory()
+		{
+			return directory;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		/** in millis */
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+	}
+
+	/** @return the files and directories directly in the directory, not in the order of any walk */
+	List<Entry> list(String directory) throws IOException;
+
+	/** @return the file or directory, null if it does not exist */
+	Entry stat(String path) throws IOException;
+
+	InputStream openRead(String path) throws IOException;
+
+	/**
+	 * Writes or replaces the file, with the given modification time. The parent directory exists. A write that fails
+	 * must not leave a partly written file under the path.
+	 */
+	void write(String path, InputStream content, long lastModified) throws IOException;
+
+	/** Creates the directory. The parent exists, the directory does not. */
+	void mkdir(String path) throws IOException;
+}
@@ -0,0 +1,257 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.droste.file.report.Report;
+
+/**
+ * Syncs a local source directory into a {@link StorageProvider}, for targets where every request has a latency.<br/>
+ * 1. the target is listed level by level, the directories of a level in parallel. <br/>
+ * 2. the source is walked and compared by size and modification time, the work is only collected. <br/>
+ * 3. missing directories are created level by level, the directories of a level in parallel. <br/>
+ * 4. new and changed files are written in parallel.<br/>
+ * With n threads about n requests wait at the same time, so a sync of many small files takes about 1/n of the time.
+ * Like in {@link DirectorySyncer} paths are compared case insensitive and a file is changed if its size differs. A
+ * changed file is written next to the old one as "name (n).ext", unless one of them already has its size, so both
+ * versions are kept. Relocated files are not detected, nothing is deleted. The target paths in the report are
+ * relative to the root of the storage.<br/>
+ * This is an entry point of its own next to {@link DirectorySyncer}, which works on local paths directly and does not
+ * go through a {@link StorageProvider}. The command line uses it with a {@link LocalStorage} for
+ * <code>--parallel-requests</code>.
+ */
+public class StorageSyncer
+{
+	private final Path source;
+	private final StorageProvider target;
+	private final boolean isSimulationMode;
+	private final Report report = new Report();
+	private final long startTime = System.currentTimeMillis();
+	private final RenameIndex renameIndex = new RenameIndex();
+	private int threads = 1;
+
+	/** A file that is written to the target. */
+	private static class Copy
+	{
+		private final Path file;
+		private final String path;
+		private final long lastModified;
+
+		Copy(Path file, String path, long lastModified)
+		{
+			this.file = file;
+			this.path = path;
+			this.lastModified = lastModified;
+		}
+	}
+
+	public StorageSyncer(String source, StorageProvider target, boolean isSimulationMode)
+	{
+		this.source = new File(source).toPath();
+		this.target = target;
+		this.isSimulationMode = isSimulationMode;
+	}
+
+	/** Number of requests to the target at the same time. */
+	public void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("at least one thread is needed, got " + threads);
+		this.threads = threads;
+	}
+
+	public Report getReport()
+	{
+		return report;
+	}
+
+	public Report sync() throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			final Map<String, StorageProvider.Entry> targetFiles = new HashMap<String, StorageProvider.Entry>();
+			final Set<String> targetDirectories = new HashSet<String>();
+			listTarget(executor, targetFiles, targetDirectories);
+
+			final List<String> newDirectories = new ArrayList<String>();
+			final List<Copy> copies = new ArrayList<Copy>();
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+				{
+					report.countDirectories();
+					String path = path(dir);
+					if (!path.isEmpty() && !targetDirectories.contains(path.toLowerCase()))
+					{
+						newDirectories.add(path);
+						report.addNewDirectory(Paths.get(path));
+					}
+					return super.preVisitDirectory(dir, attrs);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+				{
+					if (DirectorySyncer.isIgnoredName(file))
+						return super.visitFile(file, attrs);
+					report.countSourceFiles();
+					String path = path(file);
+					long lastModified = attrs.lastModifiedTime().toMillis();
+					StorageProvider.Entry existing = targetFiles.get(path.toLowerCase());
+					if (existing == null)
+					{
+						report.addNewFile(file, Paths.get(path));
+						copies.add(new Copy(file, path, lastModified));
+					} else if (existing.getSize() != attrs.size())
+					{
+						Path variant = renameIndex.nextVariant(Paths.get(existing.getPath()), attrs.size());
+						if (variant == null)
+							return super.visitFile(file, attrs); // an earlier sync already wrote it as "(n)"
+						renameIndex.add(variant, attrs.size());
+						String variantPath = variant.toString().replace(variant.getFileSystem().getSeparator(), "/");
+						report.addChangedFile(file, variant);
+						copies.add(new Copy(file, variantPath, lastModified));
+					}
+					return super.visitFile(file, attrs);
+				}
+			});
+			if (!isSimulationMode)
+			{
+				createDirectories(executor, newDirectories);
+				write(executor, copies);
+			}
+		} finally
+		{
+			executor.shutdownNow();
+		}
+		report.setSyncTime(System.currentTimeMillis() - startTime);
+		return report;
+	}
+
+	private void listTarget(ExecutorService executor, Map<String, StorageProvider.Entry> targetFiles,
+			Set<String> targetDirectories) throws IOException
+	{
+		List<String> level = Collections.singletonList("");
+		while (!level.isEmpty())
+		{
+			List<Callable<List<StorageProvider.Entry>>> listings = new ArrayList<Callable<List<StorageProvider.Entry>>>();
+			for (final String directory : level)
+			{
+				listings.add(new Callable<List<StorageProvider.Entry>>()
+				{
+					@Override
+					public List<StorageProvider.Entry> call() throws IOException
+					{
+						return target.list(directory);
+					}
+				});
+			}
+			List<String> nextLevel = new ArrayList<String>();
+			for (List<StorageProvider.Entry> entries : runAll(executor, listings))
+			{
+				for (StorageProvider.Entry entry : entries)
+				{
+					if (entry.isDirectory())
+					{
+						targetDirectories.add(entry.getPath().toLowerCase());
+						nextLevel.add(entry.getPath());
+					} else
+					{
+						report.countTargetFiles();
+						targetFiles.put(entry.getPath().toLowerCase(), entry);
+						renameIndex.add(Paths.get(entry.getPath()), entry.getSize());
+					}
+				}
+			}
+			level = nextLevel;
+		}
+	}
+
+	/** the parents always come before their children, so one batch per depth */
+	private void createDirectories(ExecutorService executor, List<String> directories) throws IOException
+	{
+		TreeMap<Integer, List<Callable<Void>>> batches = new TreeMap<Integer, List<Callable<Void>>>();
+		for (final String directory : directories)
+		{
+			int depth = directory.split("/").length;
+			List<Callable<Void>> batch = batches.get(depth);
+			if (batch == null)
+			{
+				batch = new ArrayList<Callable<Void>>();
+				batches.put(depth, batch);
+			}
+			batch.add(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					target.mkdir(directory);
+					return null;
+				}
+			});
+		}
+		for (List<Callable<Void>> batch : batches.values())
+			runAll(executor, batch);
+	}
+
+	private void write(ExecutorService executor, List<Copy> copies) throws IOException
+	{
+		List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+		for (final Copy copy : copies)
+		{
+			writes.add(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					try (InputStream in = Files.newInputStream(copy.file))
+					{
+						target.write(copy.path, in, copy.lastModified);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(executor, writes);
+	}
+
+	/** runs all tasks and waits for all of them, even if one fails. @return the results in the order of the tasks */
+	private <T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException
+	{
+		List<T> results = new ArrayList<T>(tasks.size());
+		List<String> failures = new ArrayList<String>();
+		Throwable firstFailure = null;
+		try
+		{
+			for (Future<T> future : executor.invokeAll(tasks))
+			{
+				try
+				{
+					results.add(future.get());
+				} catch (ExecutionException e)
+				{
+					failures.add(e.getCause().toString());
+					if (firstFailure == null)
+						firstFailure = e.getCause();
+				}
+			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the storage");
+		}
+		if (!failures.isEmpty())
+			throw new IOException(failures.size() + " requests failed, first: " + failures.get(0), firstFailure);
+		return results;
+	}
+
+	private String path(Path file)
+	{
+		return source.relativize(file).toString().replace(source.getFileSystem().getSeparator(), "/");
+	}
+}
@@ -0,0 +1,258 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * Write-ahead journal of the copies of one sync, kept in the target root.<br/>
+ * Every copy is written as PLAN before it starts and as DONE after it finished. The data goes to a temporary file
+ * next to the target file that is atomically renamed at the end, so a crash never leaves a half written file under the
+ * real name.<br/>
+ * After a crash the sync can be resumed: source files that are DONE and still have the size and modification time of
+ * the copy are skipped, for the files in flight the temporary file is removed and the copy is done again. The hashes computed so far are kept in a cache next to the
+ * journal, so the resumed run does not read unchanged files again. Both files are removed when the sync finishes.
+ */
+public class SyncJournal implements Closeable
+{
+	public static final String JOURNAL_FILE = ".dirsync-journal";
+	public static final String HASH_CACHE_FILE = ".dirsync-hashes";
+	public static final String PART_SUFFIX = ".dirsync-part";
+	private static final byte PLAN = 1;
+	private static final byte DONE = 2;
+	private static final long CHECKPOINT_MILLIS = 60 * 1000;
+	private final Path journalFile;
+	private final HashCache hashCache;
+	/** by the absolute, normalized path of the source */
+	private final Map<String, Entry> completedSources = new HashMap<String, Entry>();
+	private final FileOutputStream journalStream;
+	private final DataOutputStream journal;
+	private long lastCheckpoint = System.currentTimeMillis();
+
+	private SyncJournal(Path targetRoot, boolean resume) throws IOException
+	{
+		this.journalFile = targetRoot.resolve(JOURNAL_FILE);
+		this.hashCache = new HashCache(targetRoot.resolve(HASH_CACHE_FILE));
+		if (resume)
+		{
+			hashCache.load();
+			recover();
+		}
+		// the journal is written anew, the end of the old one may be cut off
+		this.journalStream = new FileOutputStream(journalFile.toFile());
+		this.journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+		for (Map.Entry<String, Entry> completed : completedSources.entrySet())
+			write(DONE, completed.getKey(), completed.getValue());
+	}
+
+	/** a copy as written to the journal */
+	private static class Entry
+	{
+		private final String target;
+		/** of the source when the copy started */
+		private final long size;
+		private final long lastModified;
+
+		Entry(String target, long size, long lastModified)
+		{
+			this.target = target;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/** Starts a new journal, an existing one is overwritten. */
+	public static SyncJournal start(Path targetRoot) throws IOException
+	{
+		return new SyncJournal(targetRoot, false);
+	}
+
+	/** Continues the journal of a sync that did not finish. Without a journal this is the same as a new start. */
+	public static SyncJournal resume(Path targetRoot) throws IOException
+	{
+		return new SyncJournal(targetRoot, true);
+	}
+
+	/** true for the journal, its hash cache and temporary files, which must not be synced */
+	public static boolean isJournalFile(Path file)
+	{
+		String name = file.getFileName().toString();
+		return name.equals(JOURNAL_FILE) || name.equals(HASH_CACHE_FILE) || name.endsWith(PART_SUFFIX);
+	}
+
+	public HashCache getHashCache()
+	{
+		return hashCache;
+	}
+
+	/** true if the file was copied by the interrupted sync and has not changed since */
+	public boolean isCompleted(Path sourceFile) throws IOException
+	{
+		Entry completed = completedSources.get(key(sourceFile));
+		if (completed == null)
+			return false;
+		BasicFileAttributes attrs;
+		try
+		{
+			attrs = Files.readAttributes(sourceFile, BasicFileAttributes.class);
+		} catch (NoSuchFileException e)
+		{
+			return false;
+		}
+		return attrs.size() == completed.size && attrs.lastModifiedTime().toMillis() == completed.lastModified;
+	}
+
+	public int getNoOfCompletedFiles()
+	{
+		return completedSources.size();
+	}
+
+	/** Wraps the copier: PLAN, copy into a temporary file, atomic rename, DONE. */
+	public FileCopier journaling(final FileCopier copier)
+	{
+		return new FileCopier()
+		{
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+					throw new FileAlreadyExistsException(target.toString());
+				BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+				Entry entry = new Entry(target.toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+				String key = key(source);
+				write(PLAN, key, entry);
+				Path partFile = partFile(target);
+				Files.deleteIfExists(partFile);
+				CopyStrategy strategy;
+				try
+				{
+					strategy = copier.copy(source, partFile);
+					// the data must be on disk before the rename, or a crash can leave an empty file under the real name
+					try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE))
+					{
+						channel.force(true);
+					}
+					Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE);
+				} catch (IOException e)
+				{
+					Files.deleteIfExists(partFile);
+					throw e;
+				}
+				write(DONE, key, entry);
+				checkpoint();
+				return strategy;
+			}
+		};
+	}
+
+	/** The sync finished, journal and hash cache are not needed any more. */
+	public void finish() throws IOException
+	{
+		journal.close();
+		Files.deleteIfExists(journalFile);
+		Files.deleteIfExists(hashCache.getCacheFile());
+	}
+
+	/** Keeps the journal for a later resume. */
+	@Override
+	public void close() throws IOException
+	{
+		journal.flush();
+		journalStream.getFD().sync();
+		journal.close();
+		hashCache.save();
+	}
+
+	private synchronized void write(byte type, String source, Entry entry) throws IOException
+	{
+		journal.writeByte(type);
+		journal.writeUTF(source);
+		journal.writeUTF(entry.target);
+		journal.writeLong(entry.size);
+		journal.writeLong(entry.lastModified);
+		journal.flush();
+	}
+
+	private static String key(Path sourceFile)
+	{
+		return sourceFile.toAbsolutePath().normalize().toString();
+	}
+
+	/** From time to time the journal is forced to disk and the hash cache is saved. */
+	private synchronized void checkpoint() throws IOException
+	{
+		long now = System.currentTimeMillis();
+		if (now - lastCheckpoint < CHECKPOINT_MILLIS)
+			return;
+		journalStream.getFD().sync();
+		hashCache.save();
+		lastCheckpoint = now;
+	}
+
+	/**
+	 * Reads the journal of the interrupted sync. A copy that was planned but not done is revalidated: if the rename
+	 * happened the target has the planned size and the copy counts as done, otherwise the temporary file is removed.
+	 * Whether the source changed since is checked by {@link #isCompleted}.
+	 */
+	private void recover() throws IOException
+	{
+		if (!Files.exists(journalFile))
+			return;
+		Map<String, Entry> inFlight = new HashMap<String, Entry>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile))))
+		{
+			while (true)
+			{
+				byte type = in.readByte();
+				String source = in.readUTF();
+				Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+				if (type == PLAN)
+				{
+					inFlight.put(source, entry);
+				} else if (type == DONE)
+				{
+					inFlight.remove(source);
+					completedSources.put(source, entry);
+				}
+			}
+		} catch (EOFException | UTFDataFormatException e)
+		{
+			// end of the journal, the last entry may be cut off by the crash
+		}
+		for (Map.Entry<String, Entry> planned : inFlight.entrySet())
+		{
+			Path target = Paths.get(planned.getValue().target);
+			Files.deleteIfExists(partFile(target));
+			if (Files.exists(target) && Files.size(target) == planned.getValue().size)
+			{
+				completedSources.put(planned.getKey(), planned.getValue());
+			} else
+			{
+				Logger.getLogger(SyncJournal.class.getName()).log(Level.INFO, "copy again: " + target);
+			}
+		}
+	}
+
+	/**
+	 * The real target of a temporary file. The listener of the wrapped copier sees the temporary file, which has the
+	 * size and modification time of the target after the rename. Other paths are returned as they are.
+	 */
+	static Path targetOf(Path file)
+	{
+		String name = file.getFileName().toString();
+		if (!name.endsWith(PART_SUFFIX))
+			return file;
+		return file.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length()));
+	}
+
+	private Path partFile(Path target)
+	{
+		return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+	}
+}
@@ -0,0 +1,161 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The decisions of a simulated sync: which directories are created, which files are copied, skipped or were found
+ * relocated in the target. {@link DirectorySyncer#applyPlan(SyncPlan)} executes it later without walking and hashing
+ * again.<br/>
+ * Saved as a text file: two header lines with the source and target root, then one line per step with type, size,
+ * modification time in millis and the source and target path relative to their roots, separated by tabs.
+ */
+public class SyncPlan
+{
+	public enum Type
+	{
+		MKDIR, COPY_NEW, COPY_CHANGED, SKIP, RELOCATED
+	}
+
+	public static class Step
+	{
+		private final Type type;
+		private final Path source;
+		private final Path target;
+		private final long size;
+		private final long lastModified;
+
+		Step(Type type, Path source, Path target, long size, long lastModified)
+		{
+			this.type = type;
+			this.source = source;
+			this.target = target;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public Type getType()
+		{
+			return type;
+		}
+
+		public Path getSource()
+		{
+			return source;
+		}
+
+		/** the file or directory in the target, null for {@link Type#SKIP} */
+		public Path getTarget()
+		{
+			return target;
+		}
+
+		/** size of the source file when the plan was made */
+		public long getSize()
+		{
+			return size;
+		}
+
+		/** modification time of the source file when the plan was made */
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+	}
+
+	private final Path source;
+	private final Path target;
+	private final List<Step> steps = new ArrayList<Step>();
+
+	SyncPlan(Path source, Path target)
+	{
+		this.source = source.toAbsolutePath().normalize();
+		this.target = target.toAbsolutePath().normalize();
+	}
+
+	/** Reads a plan saved with {@link #save(Path)}. */
+	public static SyncPlan load(Path planFile) throws IOException
+	{
+		try (BufferedReader reader = Files.newBufferedReader(planFile, StandardCharsets.UTF_8))
+		{
+			SyncPlan plan = new SyncPlan(Paths.get(header(reader, "source")), Paths.get(header(reader, "target")));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split("\t", 5);
+				if (fields.length < 5)
+					throw new IOException("broken line in " + planFile + ": " + line);
+				try
+				{
+					plan.add(Type.valueOf(fields[0]), plan.source.resolve(fields[3]),
+							fields[4].isEmpty() ? null : plan.target.resolve(fields[4]), Long.parseLong(fields[1]),
+							Long.parseLong(fields[2]));
+				} catch (IllegalArgumentException e)
+				{
+					throw new IOException("broken line in " + planFile + ": " + line, e);
+				}
+			}
+			return plan;
+		}
+	}
+
+	private static String header(BufferedReader reader, String name) throws IOException
+	{
+		String line = reader.readLine();
+		if (line == null || !line.startsWith(name + "\t"))
+			throw new IOException("no sync plan, " + name + " is missing");
+		return line.substring(name.length() + 1);
+	}
+
+	/** Writes to a temporary file first, like the {@link HashCache}. */
+	public void save(Path planFile) throws IOException
+	{
+		Path tempFile = planFile.resolveSibling(planFile.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+		{
+			writer.write("source\t" + source);
+			writer.newLine();
+			writer.write("target\t" + target);
+			writer.newLine();
+			for (Step step : steps)
+			{
+				writer.write(step.type + "\t" + step.size + "\t" + step.lastModified + "\t"
+						+ source.relativize(step.source) + "\t"
+						+ ((step.target == null) ? "" : target.relativize(step.target).toString()));
+				writer.newLine();
+			}
+		}
+		Files.move(tempFile, planFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	void add(Type type, Path sourcePath, Path targetPath, long size, long lastModified)
+	{
+		steps.add(new Step(type, sourcePath.toAbsolutePath().normalize(), (targetPath == null) ? null : targetPath
+				.toAbsolutePath().normalize(), size, lastModified));
+	}
+
+	/** true if the plan was made for the given source and target */
+	boolean isFor(Path sourceRoot, Path targetRoot)
+	{
+		return source.equals(sourceRoot.toAbsolutePath().normalize())
+				&& target.equals(targetRoot.toAbsolutePath().normalize());
+	}
+
+	public Path getSource()
+	{
+		return source;
+	}
+
+	public Path getTarget()
+	{
+		return target;
+	}
+
+	/** the steps in the order of the walk, directories come before their files */
+	public List<Step> getSteps()
+	{
+		return Collections.unmodifiableList(steps);
+	}
+}
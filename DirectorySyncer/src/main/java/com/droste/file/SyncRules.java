@@ -0,0 +1,319 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which files and directories a sync leaves alone and which files are identified by their size only.<br/>
+ * Ignore rules are gitignore patterns, see {@link RuleMatcher}. Besides the rules added here, every source directory
+ * may hold a rule file {@value #RULE_FILE} whose patterns apply below it, like a .gitignore. Excluded directories are
+ * skipped when the walk enters them, nothing below them is listed. Files outside the size limits or older than the
+ * maximum age are left alone as well. The target is matched against the same rules and rule files, so a mirror keeps
+ * what the source ignores. The defaults ignore thumbs.db and desktop.ini and identify multimedia files by their size
+ * for {@link HashStrategy#MIXED}.<br/>
+ * A rules file for {@link #load(Path)} holds patterns and these lines:<br/>
+ * <code>:min-size &lt;n&gt;[k|m|g|t]</code>, <code>:max-size &lt;n&gt;[k|m|g|t]</code>,
+ * <code>:max-age &lt;n&gt;d|h|m|s</code>, <code>:hash-by-size &lt;pattern&gt;</code>
+ */
+public class SyncRules
+{
+	public static final String RULE_FILE = ".dirsyncignore";
+	private static final String[] DEFAULT_IGNORES = { "thumbs.db", "desktop.ini" };
+	private static final String[] DEFAULT_HASH_BY_SIZE = { "*.png", "*.jpg", "*.jpeg", "*.gif", "*.pdf", "*.mp3",
+			"*.aif", "*.mpg", "*.mpe", "*.mpeg", "*.mpv2", "*.mp4", "*.mp4v", "*.m4v", "*.mov", "*.avi", "*.asf",
+			"*.wm", "*.wmv" };
+	private static final SyncRules DEFAULTS = new SyncRules();
+	private final RuleMatcher ignores = new RuleMatcher();
+	private final RuleMatcher hashedBySize = new RuleMatcher();
+	/** the relative directories whose rule file was read, in lower case */
+	private final Set<String> readRuleFiles = new HashSet<String>();
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+	private long maxAge = 0;
+	private boolean ruleFiles = true;
+
+	public SyncRules()
+	{
+		for (String pattern : DEFAULT_IGNORES)
+			addIgnore(pattern);
+		for (String pattern : DEFAULT_HASH_BY_SIZE)
+			addHashBySize(pattern);
+	}
+
+	/** The defaults and the rules of the file. */
+	public static SyncRules load(Path file) throws IOException
+	{
+		SyncRules rules = new SyncRules();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+		{
+			lineNumber++;
+			String trimmed = line.trim();
+			if (!trimmed.startsWith(":"))
+			{
+				rules.addIgnore(trimmed);
+				continue;
+			}
+			String[] words = trimmed.split("\\s+", 2);
+			try
+			{
+				if (words.length != 2)
+					throw new IllegalArgumentException("a value is missing");
+				switch (words[0])
+				{
+				case ":min-size":
+					rules.setMinSize(parseSize(words[1]));
+					break;
+				case ":max-size":
+					rules.setMaxSize(parseSize(words[1]));
+					break;
+				case ":max-age":
+					rules.setMaxAge(parseAge(words[1]));
+					break;
+				case ":hash-by-size":
+					rules.addHashBySize(words[1]);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown rule " + words[0]);
+				}
+			} catch (IllegalArgumentException e)
+			{
+				throw new IOException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+			}
+		}
+		return rules;
+	}
+
+	/** A gitignore pattern relative to the root of the walk, later rules win over earlier ones. */
+	public synchronized void addIgnore(String pattern)
+	{
+		ignores.add(Collections.<String> emptyList(), pattern);
+	}
+
+	/**
+	 * A gitignore pattern for files that are identified by their size instead of a content hash with
+	 * {@link HashStrategy#MIXED}. Only the name is matched, <code>!*.pdf</code> hashes pdf files again.
+	 */
+	public synchronized void addHashBySize(String pattern)
+	{
+		hashedBySize.add(Collections.<String> emptyList(), pattern);
+	}
+
+	/** Smaller files are left alone, default is 0. */
+	public void setMinSize(long minSize)
+	{
+		if (minSize < 0)
+			throw new IllegalArgumentException("the size can't be negative, got " + minSize);
+		this.minSize = minSize;
+	}
+
+	/** Bigger files are left alone, default is no limit. */
+	public void setMaxSize(long maxSize)
+	{
+		if (maxSize < 0)
+			throw new IllegalArgumentException("the size can't be negative, got " + maxSize);
+		this.maxSize = maxSize;
+	}
+
+	/** Files not modified for longer than this are left alone, 0 is the default and means no limit. */
+	public void setMaxAge(long maxAgeMillis)
+	{
+		if (maxAgeMillis < 0)
+			throw new IllegalArgumentException("the age can't be negative, got " + maxAgeMillis);
+		this.maxAge = maxAgeMillis;
+	}
+
+	/** Whether the rule files {@value #RULE_FILE} in the source are read, default is on. */
+	public void setRuleFiles(boolean ruleFiles)
+	{
+		this.ruleFiles = ruleFiles;
+	}
+
+	/** false if the file is identified by its size for {@link HashStrategy#MIXED} */
+	synchronized boolean usesContentHash(Path file)
+	{
+		return !hashedBySize.matches(hashedBySize.step(hashedBySize.start(), file.getFileName().toString()), false);
+	}
+
+	/** true if the name of the file is ignored by the default rules, for the walks that know no other rules */
+	static boolean isIgnoredByDefault(Path file)
+	{
+		synchronized (DEFAULTS)
+		{
+			RuleMatcher matcher = DEFAULTS.ignores;
+			return matcher.matches(matcher.step(matcher.start(), file.getFileName().toString()), false);
+		}
+	}
+
+	/**
+	 * The rules for one walk over a tree. Rule files are read once per instance of the rules.
+	 * @param root the directory the walk starts in
+	 * @param ruleRoot the directory whose subdirectories hold the rule files, the source of the sync
+	 */
+	Walk walk(Path root, Path ruleRoot)
+	{
+		return new Walk(root, ruleRoot);
+	}
+
+	/**
+	 * Follows a walk over a tree: {@link #enter(Path)} for every directory, {@link #leave()} after it. The state of a
+	 * directory is computed once from the state of its parent, the entries in it are matched by one step each.
+	 */
+	class Walk
+	{
+		private final Path root;
+		private final Path ruleRoot;
+		private final long oldest;
+		private final Deque<Path> directories = new ArrayDeque<Path>();
+		private final Deque<RuleMatcher.State> states = new ArrayDeque<RuleMatcher.State>();
+
+		private Walk(Path root, Path ruleRoot)
+		{
+			this.root = root;
+			this.ruleRoot = ruleRoot;
+			this.oldest = (maxAge == 0) ? Long.MIN_VALUE : System.currentTimeMillis() - maxAge;
+		}
+
+		/** false if the directory is excluded, the walk skips its subtree then and does not call {@link #leave()} */
+		boolean enter(Path dir)
+		{
+			RuleMatcher.State state = stateOf(dir);
+			if (state == null)
+				return false;
+			directories.push(dir);
+			states.push(state);
+			return true;
+		}
+
+		void leave()
+		{
+			directories.pop();
+			states.pop();
+		}
+
+		/** false if the file is excluded by a rule, its size or its age */
+		boolean includes(Path file, BasicFileAttributes attrs)
+		{
+			if (attrs.size() < minSize || attrs.size() > maxSize || attrs.lastModifiedTime().toMillis() < oldest)
+				return false;
+			RuleMatcher.State state = stateOf(file.getParent());
+			synchronized (SyncRules.this)
+			{
+				return state != null && !ignores.matches(ignores.step(state, file.getFileName().toString()), false);
+			}
+		}
+
+		/** from the state of the parent if the walk is in it, from the root otherwise, null if excluded */
+		private RuleMatcher.State stateOf(Path dir)
+		{
+			if (!directories.isEmpty() && directories.peek().equals(dir))
+				return states.peek();
+			if (!directories.isEmpty() && directories.peek().equals(dir.getParent()))
+				return enter(states.peek(), dir);
+			RuleMatcher.State state = enter(null, root);
+			Path current = root;
+			for (Path name : root.relativize(dir))
+			{
+				if (state == null || name.toString().isEmpty())
+					break;
+				current = current.resolve(name.toString());
+				state = enter(state, current);
+			}
+			return state;
+		}
+
+		/** the state of a directory, after reading its rule file. @param parent null for the root */
+		private RuleMatcher.State enter(RuleMatcher.State parent, Path dir)
+		{
+			synchronized (SyncRules.this)
+			{
+				RuleMatcher.State state = (parent == null) ? ignores.start() : ignores.step(parent,
+						dir.getFileName().toString());
+				if (parent != null && ignores.matches(state, true))
+					return null;
+				if (readRuleFile(dir))
+					state = (parent == null) ? ignores.start() : ignores.step(parent, dir.getFileName().toString());
+				return state;
+			}
+		}
+
+		/** true if rules were added */
+		private boolean readRuleFile(Path dir)
+		{
+			Path relative = root.relativize(dir);
+			if (!ruleFiles || !readRuleFiles.add(relative.toString().toLowerCase()))
+				return false;
+			Path ruleFile = ruleRoot.resolve(relative.toString()).resolve(RULE_FILE);
+			if (!Files.isRegularFile(ruleFile))
+				return false;
+			List<String> base = new ArrayList<String>();
+			for (Path name : relative)
+			{
+				if (!name.toString().isEmpty())
+					base.add(name.toString().toLowerCase());
+			}
+			boolean added = false;
+			try
+			{
+				for (String line : Files.readAllLines(ruleFile, StandardCharsets.UTF_8))
+				{
+					if (line.trim().startsWith(":"))
+						Logger.getLogger(SyncRules.class.getName()).warning("only patterns are allowed in " + ruleFile);
+					else
+						added |= ignores.add(base, line);
+				}
+			} catch (IOException ex)
+			{
+				Logger.getLogger(SyncRules.class.getName()).log(Level.WARNING, "can't read " + ruleFile, ex);
+			}
+			return added;
+		}
+	}
+
+	/** "512", "64k", "100m", "4g" or "1t", in bytes */
+	static long parseSize(String size)
+	{
+		String lowerCase = size.trim().toLowerCase();
+		int shift = 0;
+		if (!lowerCase.isEmpty() && "kmgt".indexOf(lowerCase.charAt(lowerCase.length() - 1)) > -1)
+		{
+			shift = 10 * ("kmgt".indexOf(lowerCase.charAt(lowerCase.length() - 1)) + 1);
+			lowerCase = lowerCase.substring(0, lowerCase.length() - 1);
+		}
+		try
+		{
+			long value = Long.parseLong(lowerCase);
+			if (value < 0 || value > (Long.MAX_VALUE >> shift))
+				throw new IllegalArgumentException("size out of range: " + size);
+			return value << shift;
+		} catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("not a size: " + size);
+		}
+	}
+
+	/** "30d", "12h", "90m" or "45s", in milliseconds */
+	static long parseAge(String age)
+	{
+		String lowerCase = age.trim().toLowerCase();
+		int unit = lowerCase.isEmpty() ? -1 : "smhd".indexOf(lowerCase.charAt(lowerCase.length() - 1));
+		if (unit < 0)
+			throw new IllegalArgumentException("an age needs a unit d, h, m or s: " + age);
+		long[] millis = { 1000L, 60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L };
+		try
+		{
+			long value = Long.parseLong(lowerCase.substring(0, lowerCase.length() - 1));
+			if (value < 0 || value > Long.MAX_VALUE / millis[unit])
+				throw new IllegalArgumentException("age out of range: " + age);
+			return value * millis[unit];
+		} catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("not an age: " + age);
+		}
+	}
+}
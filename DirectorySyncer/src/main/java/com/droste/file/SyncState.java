@@ -0,0 +1,138 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The files of a {@link BidirectionalSyncer} as they were after the last sync, the common base for the decision which
+ * side changed.<br/>
+ * The file has one line per synced file: size and modification time in millis on side A, the same on side B and the
+ * path relative to the roots, separated by tabs.
+ */
+public class SyncState
+{
+	private final Path stateFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** A file that was the same on both sides after the last sync. */
+	static class Entry
+	{
+		private final String path;
+		private final long sizeA;
+		private final long lastModifiedA;
+		private final long sizeB;
+		private final long lastModifiedB;
+
+		Entry(String path, long sizeA, long lastModifiedA, long sizeB, long lastModifiedB)
+		{
+			this.path = path;
+			this.sizeA = sizeA;
+			this.lastModifiedA = lastModifiedA;
+			this.sizeB = sizeB;
+			this.lastModifiedB = lastModifiedB;
+		}
+
+		/** the path relative to the roots */
+		String getPath()
+		{
+			return path;
+		}
+
+		/** true if the file on side A has the size and modification time of the last sync */
+		boolean isUnchangedA(FileInfo file)
+		{
+			return file.getSize() == sizeA && file.getLastModified() == lastModifiedA;
+		}
+
+		boolean isUnchangedB(FileInfo file)
+		{
+			return file.getSize() == sizeB && file.getLastModified() == lastModifiedB;
+		}
+	}
+
+	public SyncState(Path stateFile)
+	{
+		this.stateFile = stateFile;
+	}
+
+	/** Reads the state file if it exists. Broken lines are skipped, the file is treated as new on both sides. */
+	public SyncState load() throws IOException
+	{
+		if (!Files.exists(stateFile))
+			return this;
+		try (BufferedReader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split("\t", 5);
+				if (fields.length < 5)
+					continue;
+				try
+				{
+					put(new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long
+							.parseLong(fields[2]), Long.parseLong(fields[3])));
+				} catch (NumberFormatException e)
+				{
+					// skip the broken line
+				}
+			}
+		}
+		return this;
+	}
+
+	/** Writes to a temporary file first, like the {@link HashCache}. */
+	public void save() throws IOException
+	{
+		Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+		{
+			for (Entry entry : entries.values())
+			{
+				writer.write(entry.sizeA + "\t" + entry.lastModifiedA + "\t" + entry.sizeB + "\t" + entry.lastModifiedB
+						+ "\t" + entry.path);
+				writer.newLine();
+			}
+		}
+		Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public Path getStateFile()
+	{
+		return stateFile;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/** the lower case relative paths of all files */
+	Set<String> keys()
+	{
+		return entries.keySet();
+	}
+
+	/** @param key the lower case path relative to the roots */
+	Entry get(String key)
+	{
+		return entries.get(key);
+	}
+
+	void put(String path, FileInfo fileA, FileInfo fileB)
+	{
+		put(new Entry(path, fileA.getSize(), fileA.getLastModified(), fileB.getSize(), fileB.getLastModified()));
+	}
+
+	private void put(Entry entry)
+	{
+		entries.put(entry.path.toLowerCase(), entry);
+	}
+
+	void remove(String key)
+	{
+		entries.remove(key);
+	}
+}
@@ -0,0 +1,107 @@
+package com.droste.file;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the bytes and files per second of the hashing and copying of a sync, shared by all its threads. The rates can
+ * be changed while the sync runs, 0 means unlimited.<br/>
+ * Both are token buckets that hold at most one second of tokens. A caller takes what it needs and sleeps off its debt
+ * outside of the lock, so a large file goes through at once but the following calls wait until the average is back at
+ * the limit. Without a limit a call costs a volatile read.
+ */
+public class Throttle
+{
+	private final Bucket bytes = new Bucket();
+	private final Bucket files = new Bucket();
+	private final AtomicLong throttledNanos = new AtomicLong();
+
+	/** Rates of 0 mean no limit. */
+	public Throttle(long bytesPerSecond, long filesPerSecond)
+	{
+		setBytesPerSecond(bytesPerSecond);
+		setFilesPerSecond(filesPerSecond);
+	}
+
+	public void setBytesPerSecond(long bytesPerSecond)
+	{
+		bytes.setRate(bytesPerSecond);
+	}
+
+	public long getBytesPerSecond()
+	{
+		return bytes.rate;
+	}
+
+	public void setFilesPerSecond(long filesPerSecond)
+	{
+		files.setRate(filesPerSecond);
+	}
+
+	public long getFilesPerSecond()
+	{
+		return files.rate;
+	}
+
+	/** Waits until the given number of files and bytes may be read or written. */
+	public void acquire(int fileCount, long byteCount) throws InterruptedIOException
+	{
+		long wait = Math.max(files.take(fileCount), bytes.take(byteCount));
+		if (wait <= 0)
+			return;
+		throttledNanos.addAndGet(wait);
+		try
+		{
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while throttled");
+		}
+	}
+
+	/** the time all threads together waited for the throttle, in nanoseconds */
+	public long getThrottledNanos()
+	{
+		return throttledNanos.get();
+	}
+
+	private static class Bucket
+	{
+		private volatile long rate = 0;
+		private double tokens = 0;
+		private long lastRefill = System.nanoTime();
+
+		synchronized void setRate(long newRate)
+		{
+			if (newRate < 0)
+				throw new IllegalArgumentException("a rate can't be negative, got " + newRate);
+			refill();
+			// a new limit starts with a full bucket
+			tokens = (rate == 0) ? newRate : Math.min(tokens, newRate);
+			rate = newRate;
+		}
+
+		/** @return the nanoseconds the caller has to wait */
+		long take(long amount)
+		{
+			if (rate == 0 || amount == 0)
+				return 0;
+			synchronized (this)
+			{
+				if (rate == 0)
+					return 0;
+				refill();
+				tokens -= amount;
+				return (tokens >= 0) ? 0 : (long) (-tokens * 1e9 / rate);
+			}
+		}
+
+		private void refill()
+		{
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate / 1e9);
+			lastRefill = now;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.droste.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Adler32;
+
+import com.droste.file.report.Report;
+
+/**
+ * Compares a source and a synced target file by file, without changing anything.<br/>
+ * Every file of the source and its counterpart at the same place in the target are hashed. A file whose size and
+ * modification time are still the ones in the {@link HashCache}, but whose content hash is not, changed without
+ * anybody writing it: bit rot. It is reported as corrupt and its entry stays as it was, so the next audit finds it
+ * again. Files without an entry get one, so the next audit can check them. Source and target files whose contents
+ * differ are reported as mismatched, files that agree as verified. Files only in one tree are not audited.<br/>
+ * The files are hashed by several threads, in the hash lane of the I/O scheduler if there is one, and as fast as the
+ * throttle allows.
+ */
+public class TreeAuditor
+{
+	private final Path source;
+	private final Path target;
+	private final HashCache hashCache;
+	private final Report report = new Report();
+	private final long startTime = System.currentTimeMillis();
+	private int threads = 1;
+	private IoScheduler ioScheduler;
+	private Throttle throttle;
+
+	/** The result of one audited pair. */
+	private static class Audit
+	{
+		private final Path sourceFile;
+		private final Path targetFile;
+		private boolean sourceCorrupt;
+		private boolean targetCorrupt;
+		private boolean same;
+
+		Audit(Path sourceFile, Path targetFile)
+		{
+			this.sourceFile = sourceFile;
+			this.targetFile = targetFile;
+		}
+	}
+
+	public TreeAuditor(String source, String target, HashCache hashCache)
+	{
+		this.source = new File(source).toPath();
+		this.target = new File(target).toPath();
+		this.hashCache = hashCache;
+	}
+
+	public void setThreads(int threads)
+	{
+		if (threads < 1)
+			throw new IllegalArgumentException("at least one thread is needed, got " + threads);
+		this.threads = threads;
+	}
+
+	public void setIoScheduler(IoScheduler ioScheduler)
+	{
+		this.ioScheduler = ioScheduler;
+	}
+
+	/** Limits the bytes and files per second that are read for the hashes of both trees. */
+	public void setThrottle(Throttle throttle)
+	{
+		this.throttle = throttle;
+	}
+
+	public Report getReport()
+	{
+		return report;
+	}
+
+	public Report audit() throws IOException
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<Audit>> audits = new ArrayList<Future<Audit>>();
+		try
+		{
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+				{
+					report.countDirectories();
+					return super.preVisitDirectory(dir, attrs);
+				}
+
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException
+				{
+					if (DirectorySyncer.isIgnoredName(file))
+						return super.visitFile(file, attrs);
+					report.countSourceFiles();
+					final Path targetFile = target.resolve(source.relativize(file).toString());
+					final BasicFileAttributes targetAttrs;
+					try
+					{
+						targetAttrs = Files.readAttributes(targetFile, BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+					} catch (NoSuchFileException e)
+					{
+						return super.visitFile(file, attrs);
+					}
+					report.countTargetFiles();
+					audits.add(executor.submit(new Callable<Audit>()
+					{
+						@Override
+						public Audit call() throws IOException
+						{
+							return audit(file, attrs, targetFile, targetAttrs);
+						}
+					}));
+					return super.visitFile(file, attrs);
+				}
+			});
+			for (Future<Audit> future : audits)
+			{
+				Audit audit = future.get();
+				if (audit.sourceCorrupt)
+					report.addCorruptFile(audit.sourceFile);
+				if (audit.targetCorrupt)
+					report.addCorruptFile(audit.targetFile);
+				if (audit.same)
+					report.countVerifiedFile();
+				else if (!audit.sourceCorrupt && !audit.targetCorrupt)
+					report.addMismatchedFile(audit.sourceFile, audit.targetFile);
+			}
+		} catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("audit failed", e.getCause());
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while auditing");
+		} finally
+		{
+			executor.shutdownNow();
+		}
+		report.setSyncTime(System.currentTimeMillis() - startTime);
+		return report;
+	}
+
+	private Audit audit(Path sourceFile, BasicFileAttributes sourceAttrs, Path targetFile,
+			BasicFileAttributes targetAttrs) throws IOException
+	{
+		Audit audit = new Audit(sourceFile, targetFile);
+		long sourceHash = hash(sourceFile, sourceAttrs);
+		long targetHash = hash(targetFile, targetAttrs);
+		audit.sourceCorrupt = isRotten(sourceFile, sourceAttrs, sourceHash);
+		audit.targetCorrupt = isRotten(targetFile, targetAttrs, targetHash);
+		audit.same = sourceHash == targetHash && sourceAttrs.size() == targetAttrs.size();
+		return audit;
+	}
+
+	/** compares with the cache, files without an entry get one */
+	private boolean isRotten(Path file, BasicFileAttributes attrs, long hash)
+	{
+		long size = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		Long cached = hashCache.get(file, size, lastModified);
+		if (cached == null)
+			hashCache.put(file, size, lastModified, hash);
+		return cached != null && cached != hash;
+	}
+
+	private long hash(final Path file, BasicFileAttributes attrs) throws IOException
+	{
+		IoScheduler.IoTask<Long> task = new IoScheduler.IoTask<Long>()
+		{
+			@Override
+			public Long run() throws IOException
+			{
+				Adler32 adler = new Adler32();
+				throttle(1, 0);
+				try (InputStream in = Files.newInputStream(file))
+				{
+					byte[] buffer = new byte[64 * 1024];
+					int read;
+					while ((read = in.read(buffer)) > -1)
+					{
+						throttle(0, read);
+						adler.update(buffer, 0, read);
+					}
+				}
+				return adler.getValue();
+			}
+		};
+		return (ioScheduler == null) ? task.run() : ioScheduler.run(IoScheduler.Lane.HASH, file, attrs.size(), task);
+	}
+
+	private void throttle(int fileCount, long byteCount) throws InterruptedIOException
+	{
+		if (throttle != null)
+			throttle.acquire(fileCount, byteCount);
+	}
+}
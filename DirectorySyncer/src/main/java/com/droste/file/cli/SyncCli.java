@@ -0,0 +1,671 @@
+package com.droste.file.cli;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import com.droste.file.ArchiveSyncer;
+import com.droste.file.AsyncCopyEngine;
+import com.droste.file.CopyOrder;
+import com.droste.file.BidirectionalSyncer;
+import com.droste.file.DedupMode;
+import com.droste.file.DirectorySummaries;
+import com.droste.file.DirectorySyncer;
+import com.droste.file.FanOutSyncer;
+import com.droste.file.HashCache;
+import com.droste.file.HashStrategy;
+import com.droste.file.IoScheduler;
+import com.droste.file.LocalStorage;
+import com.droste.file.PackStore;
+import com.droste.file.SyncJournal;
+import com.droste.file.SyncPlan;
+import com.droste.file.SyncRules;
+import com.droste.file.StorageSyncer;
+import com.droste.file.SyncState;
+import com.droste.file.Throttle;
+import com.droste.file.TreeAuditor;
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+import com.droste.file.report.ReportListener;
+
+/**
+ * Command line entry point for batch jobs, needs no GUI classes at all.<br/>
+ * Prints one JSON summary line per target, or with <code>--output ndjson</code> one JSON line per change followed
+ * by the summaries. More than one target syncs all of them from a single walk over the source, see
+ * {@link FanOutSyncer}. <code>--simulate --plan &lt;file&gt;</code> saves the decisions of the simulation,
+ * <code>--plan &lt;file&gt;</code> alone executes them later without walking again. With <code>--control</code> the
+ * throttle can be changed while the sync runs, by lines like <code>bytes 1048576</code> or <code>files 0</code> on
+ * standard input. <code>--bidirectional --state &lt;file&gt;</code> syncs source and target in both directions, see
+ * {@link BidirectionalSyncer}. <code>--rules &lt;file&gt;</code> adds ignore rules and limits, see {@link SyncRules}.
+ * <code>--parallel-requests &lt;n&gt;</code> syncs to a target on a file server with n requests at the same time, see
+ * {@link StorageSyncer}.
+ * The exit code is 0 on success, 1 if the sync failed and 2 for wrong arguments.
+ */
+public class SyncCli
+{
+	public static final int EXIT_OK = 0;
+	public static final int EXIT_SYNC_FAILED = 1;
+	public static final int EXIT_USAGE = 2;
+
+	private static final String USAGE = "usage: SyncCli --source <dir> --target <dir> [--target <dir> ...] [--simulate]"
+			+ " [--threads <n>] [--device-limit <n>] [--hash mixed|content|size|staged] [--cache <file>]"
+			+ " [--dedup off|hardlink|local_copy] [--copy-engine blocking|async] [--hash-while-copy] [--verify]"
+			+ " [--copy-order walk|smallest_first|newest_first] [--copy-priority <pattern> ...]"
+			+ " [--large-file-size <bytes>]"
+			+ " [--journal | --resume] [--plan <file>] [--summaries <file>] [--rules <file>] [--no-prefilter]"
+			+ " [--mirror [--max-deletes <n>]] [--replay-moves] [--bidirectional --state <file>] [--archive] [--audit]"
+			+ " [--max-bytes-per-second <n>] [--max-files-per-second <n>] [--control] [--parallel-requests <n>]"
+			+ " [--output summary|ndjson]";
+
+	private String source;
+	private final List<String> targets = new ArrayList<String>();
+	private boolean simulate = false;
+	private int threads = 1;
+	private int deviceLimit = 0;
+	private HashStrategy hashStrategy = HashStrategy.MIXED;
+	private Path cacheFile;
+	private DedupMode dedupMode = DedupMode.OFF;
+	private boolean ndjson = false;
+	private boolean journal = false;
+	private boolean resume = false;
+	private Path planFile;
+	private Path summaryFile;
+	private long maxBytesPerSecond = 0;
+	private long maxFilesPerSecond = 0;
+	private boolean control = false;
+	private boolean prefilter = true;
+	private boolean mirror = false;
+	private int maxDeletes = -1;
+	private boolean replayMoves = false;
+	private boolean bidirectional = false;
+	private Path stateFile;
+	private boolean archive = false;
+	private boolean asyncCopy = false;
+	private boolean hashWhileCopy = false;
+	private boolean verify = false;
+	private boolean audit = false;
+	private Path rulesFile;
+	private CopyOrder copyOrder = CopyOrder.WALK;
+	private final List<String> copyPriorities = new ArrayList<String>();
+	private long largeFileSize = -1;
+	private int parallelRequests = 0;
+
+	public static void main(String[] args)
+	{
+		System.exit(new SyncCli().run(args, System.in, System.out, System.err));
+	}
+
+	/** Runs a sync with the given arguments, all results are written to out, errors to err. */
+	public int run(String[] args, PrintStream out, PrintStream err)
+	{
+		return run(args, null, out, err);
+	}
+
+	/** Like {@link #run(String[], PrintStream, PrintStream)}, with <code>--control</code> commands read from in. */
+	public int run(String[] args, InputStream in, PrintStream out, PrintStream err)
+	{
+		try
+		{
+			parse(args);
+		} catch (IllegalArgumentException e)
+		{
+			err.println(e.getMessage());
+			err.println(USAGE);
+			return EXIT_USAGE;
+		}
+		Throttle throttle = new Throttle(maxBytesPerSecond, maxFilesPerSecond);
+		if (control && in != null)
+			startControl(in, throttle, err);
+		try
+		{
+			List<Report> reports = sync(out, throttle);
+			for (int i = 0; i < reports.size(); i++)
+				out.println(toSummaryJson(reports.get(i), targets.get(i)));
+			out.flush();
+			if (audit && (!reports.get(0).getCorruptFiles().isEmpty() || !reports.get(0).getMismatchedFiles().isEmpty()))
+			{
+				err.println("audit found " + reports.get(0).getCorruptFiles().size() + " corrupt and "
+						+ reports.get(0).getMismatchedFiles().size() + " mismatched files");
+				return EXIT_SYNC_FAILED;
+			}
+			return EXIT_OK;
+		} catch (IOException | RuntimeException e)
+		{
+			out.flush();
+			err.println("sync failed: " + e);
+			return EXIT_SYNC_FAILED;
+		}
+	}
+
+	void parse(String[] args)
+	{
+		List<String> positional = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			switch (arg)
+			{
+			case "--source":
+				source = value(args, ++i, arg);
+				break;
+			case "--target":
+				targets.add(value(args, ++i, arg));
+				break;
+			case "--simulate":
+				simulate = true;
+				break;
+			case "--threads":
+				threads = intValue(args, ++i, arg);
+				break;
+			case "--device-limit":
+				deviceLimit = intValue(args, ++i, arg);
+				if (deviceLimit < 1)
+					throw new IllegalArgumentException("--device-limit needs at least 1");
+				break;
+			case "--hash":
+				hashStrategy = enumValue(HashStrategy.class, value(args, ++i, arg), arg);
+				break;
+			case "--dedup":
+				dedupMode = enumValue(DedupMode.class, value(args, ++i, arg), arg);
+				break;
+			case "--cache":
+				cacheFile = Paths.get(value(args, ++i, arg));
+				break;
+			case "--journal":
+				journal = true;
+				break;
+			case "--resume":
+				resume = true;
+				break;
+			case "--summaries":
+				summaryFile = Paths.get(value(args, ++i, arg));
+				break;
+			case "--plan":
+				planFile = Paths.get(value(args, ++i, arg));
+				break;
+			case "--max-bytes-per-second":
+				maxBytesPerSecond = longValue(args, ++i, arg);
+				break;
+			case "--max-files-per-second":
+				maxFilesPerSecond = longValue(args, ++i, arg);
+				break;
+			case "--mirror":
+				mirror = true;
+				break;
+			case "--max-deletes":
+				maxDeletes = intValue(args, ++i, arg);
+				if (maxDeletes < 0)
+					throw new IllegalArgumentException("--max-deletes can't be negative");
+				break;
+			case "--replay-moves":
+				replayMoves = true;
+				break;
+			case "--bidirectional":
+				bidirectional = true;
+				break;
+			case "--copy-engine":
+				String engine = value(args, ++i, arg);
+				if (!engine.equals("blocking") && !engine.equals("async"))
+					throw new IllegalArgumentException("unknown copy engine " + engine);
+				asyncCopy = engine.equals("async");
+				break;
+			case "--copy-order":
+				copyOrder = enumValue(CopyOrder.class, value(args, ++i, arg), arg);
+				break;
+			case "--copy-priority":
+				copyPriorities.add(value(args, ++i, arg));
+				break;
+			case "--large-file-size":
+				largeFileSize = longValue(args, ++i, arg);
+				if (largeFileSize < 0)
+					throw new IllegalArgumentException("--large-file-size can't be negative");
+				break;
+			case "--hash-while-copy":
+				hashWhileCopy = true;
+				break;
+			case "--verify":
+				verify = true;
+				break;
+			case "--audit":
+				audit = true;
+				break;
+			case "--archive":
+				archive = true;
+				break;
+			case "--state":
+				stateFile = Paths.get(value(args, ++i, arg));
+				break;
+			case "--rules":
+				rulesFile = Paths.get(value(args, ++i, arg));
+				break;
+			case "--no-prefilter":
+				prefilter = false;
+				break;
+			case "--control":
+				control = true;
+				break;
+			case "--parallel-requests":
+				parallelRequests = intValue(args, ++i, arg);
+				if (parallelRequests < 1)
+					throw new IllegalArgumentException("--parallel-requests needs at least 1");
+				break;
+			case "--output":
+				String output = value(args, ++i, arg);
+				if (!output.equals("summary") && !output.equals("ndjson"))
+					throw new IllegalArgumentException("unknown output " + output);
+				ndjson = output.equals("ndjson");
+				break;
+			default:
+				if (arg.startsWith("--"))
+					throw new IllegalArgumentException("unknown option " + arg);
+				positional.add(arg);
+			}
+		}
+		if (source == null && !positional.isEmpty())
+			source = positional.remove(0);
+		if (targets.isEmpty())
+		{
+			// all other positional arguments are targets
+			targets.addAll(positional);
+			positional.clear();
+		}
+		if (!positional.isEmpty())
+			throw new IllegalArgumentException("unexpected arguments " + positional);
+		if (source == null || targets.isEmpty())
+			throw new IllegalArgumentException("source and target are needed");
+		if (threads < 1)
+			throw new IllegalArgumentException("--threads needs at least 1");
+		if (maxBytesPerSecond < 0 || maxFilesPerSecond < 0)
+			throw new IllegalArgumentException("a throttle can't be negative, 0 means unlimited");
+		if (dedupMode != DedupMode.OFF && targets.size() > 1)
+			throw new IllegalArgumentException("--dedup works with a single target only");
+		if ((journal || resume) && targets.size() > 1)
+			throw new IllegalArgumentException("--journal and --resume work with a single target only");
+		if (summaryFile != null && targets.size() > 1)
+			throw new IllegalArgumentException("--summaries works with a single target only");
+		if (planFile != null && targets.size() > 1)
+			throw new IllegalArgumentException("--plan works with a single target only");
+		if (planFile != null && !simulate && !Files.isRegularFile(planFile))
+			throw new IllegalArgumentException("plan file not found: " + planFile);
+		if (bidirectional && (stateFile == null || targets.size() > 1))
+			throw new IllegalArgumentException("--bidirectional needs --state and a single target");
+		if (bidirectional && (dedupMode != DedupMode.OFF || journal || resume || planFile != null || summaryFile != null))
+			throw new IllegalArgumentException(
+					"--bidirectional can't be used with --dedup, --journal, --resume, --plan or --summaries");
+		if (archive
+				&& (targets.size() > 1 || bidirectional || mirror || replayMoves || dedupMode != DedupMode.OFF || journal
+						|| resume || planFile != null || summaryFile != null))
+			throw new IllegalArgumentException("--archive needs a single target and can't be used with --bidirectional,"
+					+ " --mirror, --replay-moves, --dedup, --journal, --resume, --plan or --summaries");
+		if (asyncCopy
+				&& (targets.size() > 1 || bidirectional || archive || dedupMode != DedupMode.OFF || journal || resume))
+			throw new IllegalArgumentException("--copy-engine async needs a single target and can't be used with"
+					+ " --bidirectional, --archive, --dedup, --journal or --resume");
+		if ((hashWhileCopy || verify) && (targets.size() > 1 || bidirectional || archive))
+			throw new IllegalArgumentException("--hash-while-copy and --verify need a single target and can't be used"
+					+ " with --bidirectional or --archive");
+		if (audit
+				&& (targets.size() > 1 || bidirectional || archive || mirror || replayMoves || dedupMode != DedupMode.OFF
+						|| journal || resume || planFile != null || summaryFile != null || hashWhileCopy || verify
+						|| rulesFile != null))
+			throw new IllegalArgumentException("--audit needs a single target and only works with --cache, --threads,"
+					+ " --device-limit and the throttle");
+		boolean ordered = copyOrder != CopyOrder.WALK || !copyPriorities.isEmpty();
+		if (ordered && (targets.size() > 1 || bidirectional || archive || audit || dedupMode != DedupMode.OFF))
+			throw new IllegalArgumentException("--copy-order and --copy-priority need a single target and can't be used"
+					+ " with --bidirectional, --archive, --audit or --dedup");
+		if (parallelRequests > 0
+				&& (targets.size() > 1 || bidirectional || archive || audit || mirror || replayMoves
+						|| dedupMode != DedupMode.OFF || journal || resume || planFile != null || summaryFile != null
+						|| hashWhileCopy || verify || asyncCopy || ordered || rulesFile != null || cacheFile != null
+						|| maxBytesPerSecond > 0 || maxFilesPerSecond > 0 || control))
+			throw new IllegalArgumentException("--parallel-requests needs a single target and only works with"
+					+ " --simulate and --output");
+		if (largeFileSize >= 0 && !ordered)
+			throw new IllegalArgumentException("--large-file-size works with --copy-order or --copy-priority only");
+		if (rulesFile != null && (bidirectional || archive))
+			throw new IllegalArgumentException("--rules can't be used with --bidirectional or --archive");
+		if (rulesFile != null && !Files.isRegularFile(rulesFile))
+			throw new IllegalArgumentException("rules file not found: " + rulesFile);
+		if (mirror && bidirectional)
+			throw new IllegalArgumentException("--mirror can't be used with --bidirectional");
+		if (replayMoves && (bidirectional || (planFile != null && !simulate)))
+			throw new IllegalArgumentException("--replay-moves can't be used with --bidirectional or to apply a --plan");
+		if (maxDeletes >= 0 && !mirror)
+			throw new IllegalArgumentException("--max-deletes works with --mirror only");
+		if (stateFile != null && !bidirectional)
+			throw new IllegalArgumentException("--state works with --bidirectional only");
+		if ((journal || resume) && simulate)
+			throw new IllegalArgumentException("--journal and --resume can't be used with --simulate");
+		if (!Files.isDirectory(Paths.get(source)))
+			throw new IllegalArgumentException("source is no directory: " + source);
+		for (String target : targets)
+		{
+			if (!Files.isDirectory(Paths.get(target)))
+				throw new IllegalArgumentException("target is no directory: " + target);
+		}
+	}
+
+	private List<Report> sync(PrintStream out, Throttle throttle) throws IOException
+	{
+		HashCache hashCache = (cacheFile == null) ? null : new HashCache(cacheFile).load();
+		SyncRules rules = (rulesFile == null) ? new SyncRules() : SyncRules.load(rulesFile);
+		List<Report> reports;
+		if (bidirectional)
+		{
+			SyncState state = new SyncState(stateFile).load();
+			BidirectionalSyncer syncer = new BidirectionalSyncer(source, targets.get(0), state, simulate);
+			syncer.setThrottle(throttle);
+			addEventListener(syncer.getReport(), out);
+			reports = Collections.singletonList(syncer.sync());
+			if (!simulate)
+				state.save();
+		} else if (audit)
+		{
+			TreeAuditor auditor = new TreeAuditor(source, targets.get(0), (hashCache == null) ? new HashCache()
+					: hashCache);
+			auditor.setThreads(threads);
+			auditor.setThrottle(throttle);
+			if (deviceLimit > 0)
+				auditor.setIoScheduler(new IoScheduler(deviceLimit));
+			addEventListener(auditor.getReport(), out);
+			reports = Collections.singletonList(auditor.audit());
+		} else if (archive)
+		{
+			try (PackStore store = new PackStore(Paths.get(targets.get(0))).load())
+			{
+				ArchiveSyncer syncer = new ArchiveSyncer(source, store, simulate);
+				syncer.setThrottle(throttle);
+				addEventListener(syncer.getReport(), out);
+				reports = Collections.singletonList(syncer.sync());
+			}
+		} else if (parallelRequests > 0)
+		{
+			StorageSyncer syncer = new StorageSyncer(source, new LocalStorage(Paths.get(targets.get(0))), simulate);
+			syncer.setThreads(parallelRequests);
+			addEventListener(syncer.getReport(), out);
+			reports = Collections.singletonList(syncer.sync());
+		} else if (targets.size() == 1)
+		{
+			DirectorySyncer syncer = new DirectorySyncer(source, targets.get(0), simulate);
+			syncer.setHashStrategy(hashStrategy);
+			syncer.setThreads(threads);
+			syncer.setDedupMode(dedupMode);
+			syncer.setThrottle(throttle);
+			syncer.setRelocationPrefilter(prefilter);
+			syncer.setRules(rules);
+			syncer.setMirror(mirror);
+			syncer.setReplayMoves(replayMoves);
+			if (maxDeletes >= 0)
+				syncer.setMaxDeletes(maxDeletes);
+			if (deviceLimit > 0)
+				syncer.setIoScheduler(new IoScheduler(deviceLimit));
+			if (hashCache != null)
+				syncer.setHashCache(hashCache);
+			AsyncCopyEngine asyncCopyEngine = asyncCopy ? new AsyncCopyEngine() : null;
+			if (asyncCopyEngine != null)
+				syncer.setFileCopier(asyncCopyEngine);
+			syncer.setHashWhileCopy(hashWhileCopy);
+			syncer.setCopyOrder(copyOrder);
+			syncer.setCopyPriorities(copyPriorities);
+			if (largeFileSize >= 0)
+				syncer.setLargeFileSize(largeFileSize);
+			syncer.setVerifyCopies(verify);
+			SyncJournal syncJournal = null;
+			if (resume)
+				syncJournal = SyncJournal.resume(Paths.get(targets.get(0)));
+			else if (journal)
+				syncJournal = SyncJournal.start(Paths.get(targets.get(0)));
+			if (syncJournal != null)
+				syncer.setJournal(syncJournal);
+			DirectorySummaries summaries = (summaryFile == null) ? null : new DirectorySummaries(summaryFile).load();
+			if (summaries != null)
+				syncer.setDirectorySummaries(summaries);
+			addEventListener(syncer.getReport(), out);
+			try
+			{
+				Report report;
+				if (planFile != null && !simulate)
+				{
+					report = syncer.applyPlan(SyncPlan.load(planFile));
+				} else
+				{
+					Map<String, Path> targetMap = syncer.buildTargetFileMap();
+					report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+				}
+				reports = Collections.singletonList(report);
+				if (planFile != null && simulate)
+					syncer.getPlan().save(planFile);
+			} catch (IOException | RuntimeException e)
+			{
+				// keep the journal, the next run with --resume continues here
+				if (syncJournal != null)
+					syncJournal.close();
+				throw e;
+			} finally
+			{
+				if (asyncCopyEngine != null)
+					asyncCopyEngine.close();
+			}
+			if (syncJournal != null)
+				syncJournal.finish();
+			if (summaries != null && !simulate)
+				summaries.save();
+		} else
+		{
+			FanOutSyncer syncer = new FanOutSyncer(source, targets, simulate);
+			syncer.setHashStrategy(hashStrategy);
+			syncer.setThreads(threads);
+			syncer.setThrottle(throttle);
+			syncer.setRelocationPrefilter(prefilter);
+			syncer.setRules(rules);
+			syncer.setMirror(mirror);
+			syncer.setReplayMoves(replayMoves);
+			if (maxDeletes >= 0)
+				syncer.setMaxDeletes(maxDeletes);
+			if (deviceLimit > 0)
+				syncer.setIoScheduler(new IoScheduler(deviceLimit));
+			if (hashCache != null)
+				syncer.setHashCache(hashCache);
+			for (Report report : syncer.getReports())
+				addEventListener(report, out);
+			reports = syncer.sync();
+		}
+		if (hashCache != null)
+			hashCache.save();
+		return reports;
+	}
+
+	/** Reads throttle commands in a daemon thread, which ends with the input or the program. */
+	private void startControl(final InputStream in, final Throttle throttle, final PrintStream err)
+	{
+		Thread reader = new Thread("throttle control")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					BufferedReader lines = new BufferedReader(new InputStreamReader(in));
+					String line;
+					while ((line = lines.readLine()) != null)
+					{
+						if (!line.trim().isEmpty() && !control(line, throttle))
+							err.println("unknown control command: " + line);
+					}
+				} catch (IOException e)
+				{
+					err.println("control input failed: " + e);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** Applies "bytes &lt;n&gt;" or "files &lt;n&gt;" per second, false if the line is no such command. */
+	static boolean control(String line, Throttle throttle)
+	{
+		String[] words = line.trim().split("\\s+");
+		if (words.length != 2)
+			return false;
+		try
+		{
+			long rate = Long.parseLong(words[1]);
+			if (rate < 0)
+				return false;
+			if (words[0].equals("bytes"))
+				throttle.setBytesPerSecond(rate);
+			else if (words[0].equals("files"))
+				throttle.setFilesPerSecond(rate);
+			else
+				return false;
+			return true;
+		} catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+
+	private void addEventListener(Report report, final PrintStream out)
+	{
+		if (!ndjson)
+			return;
+		report.addListener(new ReportListener()
+		{
+			@Override
+			public void reported(Type type, Path source, List<Path> targets)
+			{
+				out.println(toEventJson(type, source, targets));
+				out.flush();
+			}
+		});
+	}
+
+	String toEventJson(ReportListener.Type type, Path source, List<Path> targets)
+	{
+		StringBuilder json = new StringBuilder("{\"type\":\"").append(type.name().toLowerCase()).append('"');
+		if (source != null)
+			json.append(",\"source\":").append(quote(source.toString()));
+		json.append(",\"target\":[");
+		for (int i = 0; i < targets.size(); i++)
+		{
+			if (i > 0)
+				json.append(',');
+			json.append(quote(targets.get(i).toString()));
+		}
+		return json.append("]}").toString();
+	}
+
+	String toSummaryJson(Report report, String target)
+	{
+		return "{\"type\":\"summary\",\"simulation\":" + simulate + ",\"sourceFiles\":" + report.getNoOfSourceFiles()
+				+ ",\"sourceDirectories\":" + report.getNoOfSourceDirectories() + ",\"targetFiles\":"
+				+ report.getNoOfTargetFiles() + ",\"newFiles\":" + report.getNoOfNewFiles() + ",\"changedFiles\":"
+				+ report.getNoOfChangedFiles() + ",\"newDirectories\":" + report.getNoOfNewDirectories()
+				+ ",\"relocatedFiles\":" + report.getNoOfRelocatedFiles() + ",\"movedFiles\":"
+				+ report.getMovedFiles().size() + ",\"moveOperations\":" + report.getNoOfMoveOperations()
+				+ ",\"resumedFiles\":"
+				+ report.getNoOfResumedFiles() + ",\"unchangedFiles\":" + report.getNoOfUnchangedFiles()
+				+ ",\"staleFiles\":" + report.getStaleFiles().size() + ",\"deletedFiles\":"
+				+ report.getDeletedFiles().size() + ",\"deletedDirectories\":"
+				+ report.getDeletedDirectories().size() + ",\"conflicts\":" + report.getConflicts().size()
+				+ ",\"verifiedFiles\":" + report.getNoOfVerifiedFiles() + ",\"retriedCopies\":"
+				+ report.getNoOfRetriedCopies() + ",\"corruptFiles\":" + report.getCorruptFiles().size()
+				+ ",\"mismatchedFiles\":" + report.getMismatchedFiles().size() + ",\"additionalFiles\":"
+				+ report.getAdditionalFiles().size() + ",\"deduplicatedFiles\":" + report.getDeduplicatedFiles().size()
+				+ ",\"deduplicatedBytes\":" + report.getDeduplicatedBytes() + ",\"prefilterChecks\":"
+				+ report.getNoOfPrefilterChecks() + ",\"prefilterRejects\":" + report.getNoOfPrefilterRejects()
+				+ ",\"prefilterFalsePositives\":" + report.getNoOfPrefilterFalsePositives()
+				+ ",\"prefilterAvoidedBytes\":" + report.getPrefilterAvoidedBytes() + ",\"copyStrategies\":"
+				+ toCountJson(report.getCopyStrategies().values()) + ",\"syncTimeSeconds\":" + report.getSyncTime()
+				+ ",\"root\":" + quote(target) + "}";
+	}
+
+	private String toCountJson(Collection<CopyStrategy> strategies)
+	{
+		Map<CopyStrategy, Integer> counts = new EnumMap<CopyStrategy, Integer>(CopyStrategy.class);
+		for (CopyStrategy strategy : strategies)
+			counts.put(strategy, counts.containsKey(strategy) ? counts.get(strategy) + 1 : 1);
+		StringBuilder json = new StringBuilder("{");
+		for (Map.Entry<CopyStrategy, Integer> count : counts.entrySet())
+		{
+			if (json.length() > 1)
+				json.append(',');
+			json.append(quote(count.getKey().name().toLowerCase())).append(':').append(count.getValue());
+		}
+		return json.append('}').toString();
+	}
+
+	static String quote(String text)
+	{
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+		for (char c : text.toCharArray())
+		{
+			switch (c)
+			{
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					quoted.append(String.format("\\u%04x", (int) c));
+				else
+					quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static String value(String[] args, int index, String option)
+	{
+		if (index >= args.length)
+			throw new IllegalArgumentException(option + " needs a value");
+		return args[index];
+	}
+
+	private static int intValue(String[] args, int index, String option)
+	{
+		try
+		{
+			return Integer.parseInt(value(args, index, option));
+		} catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(option + " needs a number");
+		}
+	}
+
+	private static long longValue(String[] args, int index, String option)
+	{
+		try
+		{
+			return Long.parseLong(value(args, index, option));
+		} catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(option + " needs a number");
+		}
+	}
+
+	private static <E extends Enum<E>> E enumValue(Class<E> type, String value, String option)
+	{
+		try
+		{
+			return Enum.valueOf(type, value.toUpperCase());
+		} catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException("unknown value for " + option + ": " + value);
+		}
+	}
+}
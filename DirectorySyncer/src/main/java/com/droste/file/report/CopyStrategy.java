@@ -0,0 +1,20 @@
+package com.droste.file.report;
+
+/**
+ * How a file got into the target.
+ */
+public enum CopyStrategy
+{
+	/** copy-on-write clone, no data was copied (btrfs, XFS) */
+	REFLINK,
+	/** hard link to a file already in the target */
+	HARDLINK,
+	/** FileChannel.transferTo, the kernel copies the data */
+	TRANSFER_TO,
+	/** read and written through a buffer */
+	BUFFERED,
+	/** plain Files.copy */
+	FILES_COPY,
+	/** AsynchronousFileChannel with pooled direct buffers, several files in flight */
+	ASYNC
+}
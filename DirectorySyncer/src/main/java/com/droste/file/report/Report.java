@@ -1,157 +1,414 @@
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
-package com.droste.file.report;
-
-import java.nio.file.Path;
-import java.util.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.xml.datatype.*;
-
-/**
- * Contains the results of a synchronization
- */
-public class Report {
-    private int noOfChangedFiles = 0;
-    private final Map<Path, Path> changedFiles = new HashMap<Path, Path>();
-    private int noOfNewFiles = 0;
-    private final Map<Path, Path> newFiles = new HashMap<Path, Path>();
-    private final List<Path> newDirectories = new ArrayList<Path>();
-    private int noOfNewDirectories = 0;
-    private double syncTimeInSeconds = 0.0;
-    private int noOfSourceFiles = 0;
-    private int noOfSourceDirectories = 0;
-    private int noOfTargetFiles = 0;
-    private int noOfRelocatedFiles = 0;
-	private final Map<Path, Path> relocatedFiles = new HashMap<Path, Path>();
-	private final Map<Path, List<Path>> additionalFiles = new HashMap<Path, List<Path>>();
-    
-    public void addChangedFile(Path file, Path newTargetPath) {
-        noOfChangedFiles++;
-        changedFiles.put(file, newTargetPath);
-    }
-    
-    public void addNewFile(Path file, Path newTargetPath) {
-        noOfNewFiles++;
-        newFiles.put(file, newTargetPath);
-    }
-
-    public void addNewDirectory(Path newdir) {
-        noOfNewDirectories++;
-        newDirectories.add(newdir);
-    }
-    
-	public void addRelocatedFile(Path relocatedFile, Path fileInTarget)
-    {
-        noOfRelocatedFiles++;
-		relocatedFiles.put(relocatedFile, fileInTarget);
-    }
-
-	/** additional file: exists already at a different location in the target. Still copied */
-	public void addAdditionalFile(Path additionalFile, List<Path> filesInTarget)
-	{
-		additionalFiles.put(additionalFile, filesInTarget);
-	}
-
-    public int getNoOfChangedFiles()
-    {
-        return noOfChangedFiles;
-    }
-    
-    public int getNoOfNewFiles()
-    {
-        return noOfNewFiles;
-    }
-    
-    public int getNoOfNewDirectories()
-    {
-        return noOfNewDirectories;
-    }
-
-    public Map<Path, Path> getChangedFiles() {
-        return Collections.unmodifiableMap(changedFiles);
-    }
-  
-    
-    public Map<Path, Path> getNewFiles() {
-        return Collections.unmodifiableMap(newFiles);
-    }
-    
-    public List<Path> getNewDirectories() {
-        return Collections.unmodifiableList(newDirectories);
-    }
-    
-    /**
-     * List of files that have a new location in the target => nothing copied for them.
-     */
-	public Map<Path, Path> getRelocatedFiles()
-	{
-		return Collections.unmodifiableMap(relocatedFiles);
-    }
-
-	/** List of files that are copied even though they already exist at a different location in the target */
-	public Map<Path, List<Path>> getAdditionalFiles()
-	{
-		return additionalFiles;
-	}
-
-    public int getNoOfChanges() {
-        return getNoOfChangedFiles() + getNoOfNewDirectories() + getNoOfNewFiles();
-    }
-
-    public double getSyncTime() {
-        return syncTimeInSeconds;
-    }
-
-    public void setSyncTime(long timeDiffInMillis) {
-        try {
-            DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
-            Duration duration = datatypeFactory.newDuration(timeDiffInMillis);
-            this.syncTimeInSeconds = duration.getSeconds();
-            if (syncTimeInSeconds == 0) syncTimeInSeconds = timeDiffInMillis/1000.0;
-        } catch (DatatypeConfigurationException ex) {
-            Logger.getLogger(Report.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-
-    public void countSourceFiles() {
-        noOfSourceFiles++;
-    }
-    
-    public int getNoOfSourceFiles()
-    {
-        return noOfSourceFiles;
-    }
-
-    public void countDirectories() {
-        noOfSourceDirectories++;
-    }
-    
-    public int getNoOfSourceDirectories(){
-        return noOfSourceDirectories;
-    }
-
-    public void countTargetFiles() {
-        noOfTargetFiles++;
-    }
-    
-    public int getNoOfTargetFiles()
-    {
-        return noOfTargetFiles;
-    }
-    
-    /** files that had a new location in the target and were not copied */
-    public int getNoOfRelocatedFiles()
-    {
-        return noOfRelocatedFiles;
-    }
-
-	public void removeDirectory(Path directory)
-	{
-		noOfNewDirectories--;
-		newDirectories.remove(directory);
-	}
-}
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.droste.file.report;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Contains the results of a synchronization
+ */
+public class Report {
+    private int noOfChangedFiles = 0;
+    private final Map<Path, Path> changedFiles = new HashMap<Path, Path>();
+    private int noOfNewFiles = 0;
+    private final Map<Path, Path> newFiles = new HashMap<Path, Path>();
+    private final List<Path> newDirectories = new ArrayList<Path>();
+    private int noOfNewDirectories = 0;
+    private double syncTimeInSeconds = 0.0;
+    private int noOfSourceFiles = 0;
+    private int noOfSourceDirectories = 0;
+    private int noOfTargetFiles = 0;
+    private int noOfRelocatedFiles = 0;
+    private int noOfResumedFiles = 0;
+    private int noOfUnchangedFiles = 0;
+	private int noOfPrefilterChecks = 0;
+	private int noOfPrefilterRejects = 0;
+	private int noOfPrefilterFalsePositives = 0;
+	private long prefilterAvoidedBytes = 0;
+	private final Map<Path, Path> relocatedFiles = new HashMap<Path, Path>();
+	private final Map<Path, List<Path>> additionalFiles = new HashMap<Path, List<Path>>();
+	private final Map<Path, Path> deduplicatedFiles = new HashMap<Path, Path>();
+	private long deduplicatedBytes = 0;
+	private final List<Path> staleFiles = new ArrayList<Path>();
+	private final List<Path> deletedFiles = new ArrayList<Path>();
+	private final List<Path> deletedDirectories = new ArrayList<Path>();
+	private final Map<Path, Path> movedFiles = new HashMap<Path, Path>();
+	private int noOfMoveOperations = 0;
+	private final Map<Path, Path> conflicts = new HashMap<Path, Path>();
+	private final List<Path> corruptFiles = new ArrayList<Path>();
+	private final Map<Path, Path> mismatchedFiles = new HashMap<Path, Path>();
+	private int noOfVerifiedFiles = 0;
+	private int noOfRetriedCopies = 0;
+	private final Map<Path, CopyStrategy> copyStrategies = new HashMap<Path, CopyStrategy>();
+	private final List<ReportListener> listeners = new ArrayList<ReportListener>();
+
+	public void addListener(ReportListener listener)
+	{
+		listeners.add(listener);
+	}
+    
+    public void addChangedFile(Path file, Path newTargetPath) {
+        noOfChangedFiles++;
+        changedFiles.put(file, newTargetPath);
+        fire(ReportListener.Type.CHANGED_FILE, file, newTargetPath);
+    }
+    
+    public void addNewFile(Path file, Path newTargetPath) {
+        noOfNewFiles++;
+        newFiles.put(file, newTargetPath);
+        fire(ReportListener.Type.NEW_FILE, file, newTargetPath);
+    }
+
+    public void addNewDirectory(Path newdir) {
+        noOfNewDirectories++;
+        newDirectories.add(newdir);
+        fire(ReportListener.Type.NEW_DIRECTORY, null, newdir);
+    }
+    
+	public void addRelocatedFile(Path relocatedFile, Path fileInTarget)
+    {
+        noOfRelocatedFiles++;
+		relocatedFiles.put(relocatedFile, fileInTarget);
+		fire(ReportListener.Type.RELOCATED_FILE, relocatedFile, fileInTarget);
+    }
+
+	/** additional file: exists already at a different location in the target. Still copied */
+	public void addAdditionalFile(Path additionalFile, List<Path> filesInTarget)
+	{
+		additionalFiles.put(additionalFile, filesInTarget);
+		fire(ReportListener.Type.ADDITIONAL_FILE, additionalFile, filesInTarget);
+	}
+
+	/**
+	 * deduplicated file: its content was already written to the target during this sync, so it was created from that
+	 * target file instead of being copied from the source.
+	 * @param savedBytes the size if the file shares the data of the written one, 0 for a local copy
+	 */
+	public void addDeduplicatedFile(Path file, Path writtenTargetFile, long savedBytes)
+	{
+		deduplicatedFiles.put(file, writtenTargetFile);
+		deduplicatedBytes += savedBytes;
+		fire(ReportListener.Type.DEDUPLICATED_FILE, file, writtenTargetFile);
+	}
+
+	/** a file that was deleted because it is gone on the other side, or in the source of a mirror */
+	public void addDeletedFile(Path deletedFile)
+	{
+		deletedFiles.add(deletedFile);
+		fire(ReportListener.Type.DELETED_FILE, null, deletedFile);
+	}
+
+	/** a relocated target file was moved to the place of its source file */
+	public void addMovedFile(Path sourceFile, Path oldTargetFile, Path newTargetFile)
+	{
+		movedFiles.put(oldTargetFile, newTargetFile);
+		fire(ReportListener.Type.MOVED_FILE, sourceFile, Arrays.asList(oldTargetFile, newTargetFile));
+	}
+
+	/** one move in the target, of a single file or of a whole directory */
+	public void countMoveOperation()
+	{
+		noOfMoveOperations++;
+	}
+
+	/** a directory of a mirror that is gone in the source */
+	public void addDeletedDirectory(Path deletedDirectory)
+	{
+		deletedDirectories.add(deletedDirectory);
+		fire(ReportListener.Type.DELETED_DIRECTORY, null, deletedDirectory);
+	}
+
+	/** a file that changed on both sides since the last sync, or was changed on one side and deleted on the other */
+	public void addConflict(Path file, Path otherFile)
+	{
+		conflicts.put(file, otherFile);
+		fire(ReportListener.Type.CONFLICT, file, otherFile);
+	}
+
+	/** how the given file was written into the target, ignored if not known (null) */
+	public void addCopyStrategy(Path targetFile, CopyStrategy copyStrategy)
+	{
+		if (copyStrategy != null)
+			copyStrategies.put(targetFile, copyStrategy);
+	}
+
+	private void fire(ReportListener.Type type, Path source, Path target)
+	{
+		if (!listeners.isEmpty())
+			fire(type, source, Collections.singletonList(target));
+	}
+
+	private void fire(ReportListener.Type type, Path source, List<Path> targets)
+	{
+		for (ReportListener listener : listeners)
+		{
+			listener.reported(type, source, targets);
+		}
+	}
+
+    public int getNoOfChangedFiles()
+    {
+        return noOfChangedFiles;
+    }
+    
+    public int getNoOfNewFiles()
+    {
+        return noOfNewFiles;
+    }
+    
+    public int getNoOfNewDirectories()
+    {
+        return noOfNewDirectories;
+    }
+
+    public Map<Path, Path> getChangedFiles() {
+        return Collections.unmodifiableMap(changedFiles);
+    }
+  
+    
+    public Map<Path, Path> getNewFiles() {
+        return Collections.unmodifiableMap(newFiles);
+    }
+    
+    public List<Path> getNewDirectories() {
+        return Collections.unmodifiableList(newDirectories);
+    }
+    
+    /**
+     * List of files that have a new location in the target => nothing copied for them.
+     */
+	public Map<Path, Path> getRelocatedFiles()
+	{
+		return Collections.unmodifiableMap(relocatedFiles);
+    }
+
+	/** List of files that are copied even though they already exist at a different location in the target */
+	public Map<Path, List<Path>> getAdditionalFiles()
+	{
+		return additionalFiles;
+	}
+
+	/** source files that were not copied from the source, with the target file their content was taken from */
+	public Map<Path, Path> getDeduplicatedFiles()
+	{
+		return Collections.unmodifiableMap(deduplicatedFiles);
+	}
+
+	/** bytes of deduplicated files that take no space of their own, because they are hard links or reflinks */
+	public long getDeduplicatedBytes()
+	{
+		return deduplicatedBytes;
+	}
+
+	public List<Path> getDeletedFiles()
+	{
+		return Collections.unmodifiableList(deletedFiles);
+	}
+
+	public List<Path> getDeletedDirectories()
+	{
+		return Collections.unmodifiableList(deletedDirectories);
+	}
+
+	/** relocated target files with their new place in the target */
+	public Map<Path, Path> getMovedFiles()
+	{
+		return Collections.unmodifiableMap(movedFiles);
+	}
+
+	public int getNoOfMoveOperations()
+	{
+		return noOfMoveOperations;
+	}
+
+	/** conflicting files, left alone on both sides */
+	public Map<Path, Path> getConflicts()
+	{
+		return Collections.unmodifiableMap(conflicts);
+	}
+
+	/** a file whose content does not match its hash: a copy that failed verification, or bit rot found by an audit */
+	public void addCorruptFile(Path file)
+	{
+		corruptFiles.add(file);
+		fire(ReportListener.Type.CORRUPT_FILE, null, file);
+	}
+
+	public List<Path> getCorruptFiles()
+	{
+		return Collections.unmodifiableList(corruptFiles);
+	}
+
+	/** an audit found different contents in source and target */
+	public void addMismatchedFile(Path sourceFile, Path targetFile)
+	{
+		mismatchedFiles.put(sourceFile, targetFile);
+		fire(ReportListener.Type.MISMATCHED_FILE, sourceFile, targetFile);
+	}
+
+	public Map<Path, Path> getMismatchedFiles()
+	{
+		return Collections.unmodifiableMap(mismatchedFiles);
+	}
+
+	/** a copy or an audited file that matched its hash */
+	public void countVerifiedFile()
+	{
+		noOfVerifiedFiles++;
+	}
+
+	public int getNoOfVerifiedFiles()
+	{
+		return noOfVerifiedFiles;
+	}
+
+	/** a copy that failed verification was copied again */
+	public void countRetriedCopy()
+	{
+		noOfRetriedCopies++;
+	}
+
+	public int getNoOfRetriedCopies()
+	{
+		return noOfRetriedCopies;
+	}
+
+	/** files written into the target, with the way they were copied */
+	public Map<Path, CopyStrategy> getCopyStrategies()
+	{
+		return Collections.unmodifiableMap(copyStrategies);
+	}
+
+    public int getNoOfChanges() {
+        return getNoOfChangedFiles() + getNoOfNewDirectories() + getNoOfNewFiles();
+    }
+
+    public double getSyncTime() {
+        return syncTimeInSeconds;
+    }
+
+    public void setSyncTime(long timeDiffInMillis) {
+        this.syncTimeInSeconds = timeDiffInMillis / 1000.0;
+    }
+
+    public void countSourceFiles() {
+        noOfSourceFiles++;
+    }
+    
+    public int getNoOfSourceFiles()
+    {
+        return noOfSourceFiles;
+    }
+
+    public void countDirectories() {
+        noOfSourceDirectories++;
+    }
+    
+    public int getNoOfSourceDirectories(){
+        return noOfSourceDirectories;
+    }
+
+    public void countTargetFiles() {
+        noOfTargetFiles++;
+    }
+    
+    public int getNoOfTargetFiles()
+    {
+        return noOfTargetFiles;
+    }
+    
+    /** files that had a new location in the target and were not copied */
+    public int getNoOfRelocatedFiles()
+    {
+        return noOfRelocatedFiles;
+    }
+
+	/** a source file that was already copied by an interrupted sync, which is resumed now */
+	public void countResumedFile()
+	{
+		noOfResumedFiles++;
+	}
+
+	public int getNoOfResumedFiles()
+	{
+		return noOfResumedFiles;
+	}
+
+	/** a subtree that did not change since the last sync was skipped, its files and directories are counted anyway */
+	public void countUnchangedSubtree(int files, int directories)
+	{
+		noOfSourceFiles += files;
+		noOfSourceDirectories += directories;
+		noOfUnchangedFiles += files;
+	}
+
+	/** source files in subtrees that were skipped because nothing changed since the last sync */
+	public int getNoOfUnchangedFiles()
+	{
+		return noOfUnchangedFiles;
+	}
+
+	/**
+	 * a new source file was checked against the relocation prefilter. If it was rejected, it was not read completely
+	 * for the relocation lookup
+	 */
+	public void countPrefilterCheck(boolean rejected, long avoidedBytes)
+	{
+		noOfPrefilterChecks++;
+		if (rejected)
+		{
+			noOfPrefilterRejects++;
+			prefilterAvoidedBytes += avoidedBytes;
+		}
+	}
+
+	/** a new source file passed the relocation prefilter, but its full hash matched no target file */
+	public void countPrefilterFalsePositive()
+	{
+		noOfPrefilterFalsePositives++;
+	}
+
+	public int getNoOfPrefilterChecks()
+	{
+		return noOfPrefilterChecks;
+	}
+
+	/** full reads avoided by the relocation prefilter */
+	public int getNoOfPrefilterRejects()
+	{
+		return noOfPrefilterRejects;
+	}
+
+	public int getNoOfPrefilterFalsePositives()
+	{
+		return noOfPrefilterFalsePositives;
+	}
+
+	/** bytes not read thanks to the relocation prefilter */
+	public long getPrefilterAvoidedBytes()
+	{
+		return prefilterAvoidedBytes;
+	}
+
+	/** false positives among the files that passed the prefilter, 0 if none passed */
+	public double getPrefilterFalsePositiveRate()
+	{
+		int passed = noOfPrefilterChecks - noOfPrefilterRejects;
+		return (passed == 0) ? 0.0 : (double) noOfPrefilterFalsePositives / passed;
+	}
+
+	/** a source file of a sync plan that changed after the plan was made, it was left alone */
+	public void addStaleFile(Path file)
+	{
+		staleFiles.add(file);
+	}
+
+	/** source files left alone because the plan of the sync was out of date for them */
+	public List<Path> getStaleFiles()
+	{
+		return Collections.unmodifiableList(staleFiles);
+	}
+}
@@ -0,0 +1,22 @@
+package com.droste.file.report;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Gets every entry of a {@link Report} the moment it is added, e.g. to stream the results of a long sync.
+ */
+public interface ReportListener
+{
+	enum Type
+	{
+		NEW_FILE, CHANGED_FILE, NEW_DIRECTORY, RELOCATED_FILE, ADDITIONAL_FILE, DEDUPLICATED_FILE, DELETED_FILE,
+		DELETED_DIRECTORY, CONFLICT, MOVED_FILE, CORRUPT_FILE, MISMATCHED_FILE
+	}
+
+	/**
+	 * @param source the file or directory in the source, null for directories and deleted files
+	 * @param targets the affected location(s) in the target
+	 */
+	void reported(Type type, Path source, List<Path> targets);
+}
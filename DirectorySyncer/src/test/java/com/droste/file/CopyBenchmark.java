@@ -0,0 +1,76 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Compares the blocking {@link CopyEngine} with the {@link AsyncCopyEngine} on a directory of the device to measure.
+ * Not a test, run it with<br/>
+ * <code>java -cp target/classes:target/test-classes com.droste.file.CopyBenchmark &lt;dir&gt; [files] [size in KB]</code>
+ * <br/>
+ * The source files are written first and are likely in the page cache, so the numbers mostly show the write side of the
+ * device. Drop the caches between the runs for cold reads.
+ */
+public class CopyBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: CopyBenchmark <dir> [files] [size in KB]");
+			System.exit(2);
+		}
+		Path dir = Paths.get(args[0], "dirsync-benchmark");
+		int files = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		int size = (args.length > 2) ? Integer.parseInt(args[2]) * 1024 : 64 * 1024;
+		List<Path> sources = createSources(dir.resolve("source"), files, size);
+		try
+		{
+			for (int round = 0; round < 2; round++)
+			{
+				run("blocking", new CopyEngine(), sources, dir.resolve("blocking"), files, size);
+				AsyncCopyEngine asyncEngine = new AsyncCopyEngine();
+				try
+				{
+					run("async", asyncEngine, sources, dir.resolve("async"), files, size);
+				} finally
+				{
+					asyncEngine.close();
+				}
+			}
+		} finally
+		{
+			TempFiles.delete(dir);
+		}
+	}
+
+	private static void run(String name, FileCopier copier, List<Path> sources, Path targetDir, int files, int size)
+			throws IOException
+	{
+		TempFiles.delete(targetDir);
+		Files.createDirectories(targetDir);
+		long start = System.nanoTime();
+		for (Path source : sources)
+			copier.copy(source, targetDir.resolve(source.getFileName()));
+		if (copier instanceof AsyncCopyEngine)
+			((AsyncCopyEngine) copier).await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%-8s %6d files of %6d KB: %8.2f s, %8.1f files/s, %8.1f MB/s%n", name, files, size / 1024,
+				seconds, files / seconds, (double) files * size / seconds / 1024 / 1024);
+	}
+
+	private static List<Path> createSources(Path dir, int files, int size) throws IOException
+	{
+		Files.createDirectories(dir);
+		byte[] content = new byte[size];
+		Random random = new Random(42);
+		List<Path> sources = new ArrayList<Path>();
+		for (int i = 0; i < files; i++)
+		{
+			random.nextBytes(content);
+			sources.add(Files.write(dir.resolve("file" + i + ".bin"), content));
+		}
+		return sources;
+	}
+}
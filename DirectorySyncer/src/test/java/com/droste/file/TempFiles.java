@@ -0,0 +1,49 @@
+package com.droste.file;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The file helpers of the tests that work in temporary directories below the project.
+ */
+public final class TempFiles
+{
+	private TempFiles()
+	{
+	}
+
+	/** Deletes the directory with everything in it, a missing directory is fine. */
+	public static void delete(Path dir) throws IOException
+	{
+		if (!Files.exists(dir))
+			return;
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.delete(file);
+				return super.visitFile(file, attrs);
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				Files.delete(dir);
+				return super.postVisitDirectory(dir, exc);
+			}
+		});
+	}
+
+	public static void write(Path file, String content) throws IOException
+	{
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static String read(Path file) throws IOException
+	{
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,128 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.*;
+
+import com.droste.file.report.Report;
+
+public class TestBidirectionalSyncer
+{
+	private final Path sideA = Paths.get("tempbidiA");
+	private final Path sideB = Paths.get("tempbidiB");
+	private final Path stateFile = Paths.get("tempbidi.state");
+	private long time = 1000000000000L;
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(sideA.resolve("sub"));
+		Files.createDirectories(sideB);
+		write(sideA.resolve("sub/a.txt"), "from a");
+		write(sideB.resolve("b.txt"), "from b");
+		write(sideA.resolve("same.txt"), "same");
+		write(sideB.resolve("same.txt"), "same");
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(sideA);
+		TempFiles.delete(sideB);
+		Files.deleteIfExists(stateFile);
+	}
+
+	@Test
+	public void testFirstSyncCopiesBothWays() throws IOException
+	{
+		Report report = sync(false);
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(0, report.getConflicts().size());
+		assertEquals("from a", TempFiles.read(sideB.resolve("sub/a.txt")));
+		assertEquals("from b", TempFiles.read(sideA.resolve("b.txt")));
+		assertEquals(3, new SyncState(stateFile).load().size());
+
+		// nothing changed since
+		report = sync(false);
+		assertEquals(0, report.getNoOfNewFiles() + report.getNoOfChangedFiles() + report.getDeletedFiles().size());
+	}
+
+	@Test
+	public void testThrottle() throws IOException
+	{
+		BidirectionalSyncer syncer = new BidirectionalSyncer(sideA.toString(), sideB.toString(), new SyncState(
+				stateFile), false);
+		// two copies and a comparison of two files at three files per second
+		Throttle throttle = new Throttle(0, 3);
+		syncer.setThrottle(throttle);
+		assertEquals(2, syncer.sync().getNoOfNewFiles());
+		assertTrue(throttle.getThrottledNanos() > 0);
+	}
+
+	@Test
+	public void testChangesAndDeletesArePropagated() throws IOException
+	{
+		sync(false);
+		write(sideA.resolve("sub/a.txt"), "changed in a");
+		write(sideA.resolve("same.txt"), "changed in a, too");
+		Files.delete(sideB.resolve("b.txt"));
+
+		Report report = sync(false);
+		assertEquals(2, report.getNoOfChangedFiles());
+		assertEquals(1, report.getDeletedFiles().size());
+		assertEquals("changed in a", TempFiles.read(sideB.resolve("sub/a.txt")));
+		assertEquals("changed in a, too", TempFiles.read(sideB.resolve("same.txt")));
+		assertFalse(Files.exists(sideA.resolve("b.txt")));
+		assertEquals(2, new SyncState(stateFile).load().size());
+	}
+
+	@Test
+	public void testConflictsAreLeftAlone() throws IOException
+	{
+		sync(false);
+		write(sideA.resolve("same.txt"), "edited in a");
+		write(sideB.resolve("same.txt"), "edited in b");
+		write(sideB.resolve("sub/a.txt"), "edited in b");
+		Files.delete(sideA.resolve("sub/a.txt"));
+
+		Report report = sync(false);
+		assertEquals(2, report.getConflicts().size());
+		assertEquals("edited in a", TempFiles.read(sideA.resolve("same.txt")));
+		assertEquals("edited in b", TempFiles.read(sideB.resolve("same.txt")));
+		assertFalse(Files.exists(sideA.resolve("sub/a.txt")));
+
+		// still a conflict, until both sides are equal
+		assertEquals(2, sync(false).getConflicts().size());
+		write(sideA.resolve("same.txt"), "edited in b");
+		assertEquals(1, sync(false).getConflicts().size());
+	}
+
+	@Test
+	public void testSimulationChangesNothing() throws IOException
+	{
+		Report report = sync(true);
+		assertEquals(2, report.getNoOfNewFiles());
+		assertFalse(Files.exists(sideB.resolve("sub/a.txt")));
+		assertFalse(Files.exists(stateFile));
+	}
+
+	private Report sync(boolean simulation) throws IOException
+	{
+		SyncState state = new SyncState(stateFile).load();
+		Report report = new BidirectionalSyncer(sideA.toString(), sideB.toString(), state, simulation).sync();
+		if (!simulation)
+			state.save();
+		return report;
+	}
+
+	/** every write gets a new modification time, even within the same millisecond */
+	private void write(Path file, String content) throws IOException
+	{
+		TempFiles.write(file, content);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(time += 2000));
+	}
+}
@@ -0,0 +1,80 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class TestCandidateIndex
+{
+	/** hashes are given per file name, every computed hash is recorded */
+	private final Map<String, Long> heads = new HashMap<String, Long>();
+	private final Map<String, Long> contents = new HashMap<String, Long>();
+	private final List<String> hashed = new ArrayList<String>();
+	private final CandidateIndex index = new CandidateIndex(new CandidateIndex.Hasher()
+	{
+		@Override
+		public Long headHash(Path file, long size)
+		{
+			hashed.add("head " + file);
+			return heads.get(file.toString());
+		}
+
+		@Override
+		public Long fullHash(Path file, long size, long lastModified)
+		{
+			hashed.add("full " + file);
+			return contents.get(file.toString());
+		}
+	});
+
+	@Test
+	public void testUniqueSizeIsNeverRead()
+	{
+		index.add(Paths.get("a"), 10000, 0);
+		assertNull(index.find(Paths.get("b"), 20000, 0));
+		assertTrue(hashed.isEmpty());
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void testStagesNarrowTheCandidates()
+	{
+		file("a", 1, 100);
+		file("b", 2, 200);
+		file("c", 1, 300);
+		file("source", 1, 300);
+		index.add(Paths.get("a"), 10000, 0);
+		index.add(Paths.get("b"), 10000, 0);
+		index.add(Paths.get("c"), 10000, 0);
+
+		assertEquals(Arrays.asList(Paths.get("c")), index.find(Paths.get("source"), 10000, 0));
+		// b differs in its head, so it is not read completely
+		assertFalse(hashed.contains("full b"));
+		assertTrue(hashed.contains("full a"));
+
+		// the hashes of the target files are kept
+		hashed.clear();
+		file("other", 3, 400);
+		assertNull(index.find(Paths.get("other"), 10000, 0));
+		assertEquals(Arrays.asList("head other"), hashed);
+	}
+
+	@Test
+	public void testSmallFilesAreHashedByTheirHead()
+	{
+		file("a", 1, 100);
+		file("source", 1, 200);
+		index.add(Paths.get("a"), CandidateIndex.HEAD_SIZE, 0);
+		assertEquals(Arrays.asList(Paths.get("a")), index.find(Paths.get("source"), CandidateIndex.HEAD_SIZE, 0));
+		assertFalse(hashed.contains("full a"));
+	}
+
+	private void file(String name, long head, long content)
+	{
+		heads.put(name, head);
+		contents.put(name, content);
+	}
+}
@@ -0,0 +1,235 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+
+import org.junit.*;
+
+import com.droste.file.report.CopyStrategy;
+
+/**
+ * The reflink test needs a copy-on-write file system, e.g. a btrfs loopback image:<br/>
+ * <code>truncate -s 256M cow.img; mkfs.btrfs cow.img; mount -o loop cow.img /mnt/cow</code><br/>
+ * and <code>mvn test -Ddirsync.cowTestDir=/mnt/cow</code>. Without the property it is skipped.
+ */
+public class TestCopyEngine
+{
+	private final Path tempDir = Paths.get("tempcopy");
+	private Path source;
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(tempDir);
+		source = createFile(tempDir.resolve("source.bin"), 2 * 1024 * 1024);
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDir))
+		{
+			for (Path file : files)
+				Files.delete(file);
+		}
+		Files.delete(tempDir);
+	}
+
+	@Test
+	public void testCopy() throws IOException
+	{
+		Path target = tempDir.resolve("target.bin");
+		CopyStrategy strategy = new CopyEngine().copy(source, target);
+		assertTrue(strategy == CopyStrategy.TRANSFER_TO || strategy == CopyStrategy.REFLINK);
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+	}
+
+	@Test
+	public void testSmallFileIsNotCloned() throws IOException
+	{
+		Path small = createFile(tempDir.resolve("small.bin"), 100);
+		Path target = tempDir.resolve("target.bin");
+		assertEquals(CopyStrategy.TRANSFER_TO, new CopyEngine().copy(small, target));
+		assertArrayEquals(Files.readAllBytes(small), Files.readAllBytes(target));
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException
+	{
+		Path empty = createFile(tempDir.resolve("empty.bin"), 0);
+		Path target = tempDir.resolve("target.bin");
+		new CopyEngine().copy(empty, target);
+		assertEquals(0, Files.size(target));
+	}
+
+	@Test
+	public void testExistingTargetIsKept() throws IOException
+	{
+		Path target = createFile(tempDir.resolve("target.bin"), 10);
+		try
+		{
+			new CopyEngine().copy(source, target);
+			fail("existing target overwritten");
+		} catch (FileAlreadyExistsException e)
+		{
+			assertEquals(10, Files.size(target));
+		}
+	}
+
+	@Test
+	public void testListenerGetsChecksum() throws IOException
+	{
+		final List<Long> checksums = new ArrayList<Long>();
+		CopyEngine engine = new CopyEngine();
+		engine.setListener(new CopyListener()
+		{
+			@Override
+			public void copied(Path source, Path target, long checksum) throws IOException
+			{
+				checksums.add(checksum);
+				if (checksums.size() > 1)
+					throw new IOException("rejected");
+			}
+		});
+		Path target = tempDir.resolve("target.bin");
+		assertEquals(CopyStrategy.BUFFERED, engine.copy(source, target));
+		Adler32 adler = new Adler32();
+		adler.update(Files.readAllBytes(source));
+		assertEquals(Arrays.asList(adler.getValue()), checksums);
+
+		// a copy the listener rejects is deleted
+		try
+		{
+			engine.copy(source, tempDir.resolve("rejected.bin"));
+			fail("listener ignored");
+		} catch (IOException e)
+		{
+			assertFalse(Files.exists(tempDir.resolve("rejected.bin")));
+		}
+	}
+
+	@Test
+	public void testFailedCopyLeavesNoTarget() throws IOException
+	{
+		CopyEngine engine = new CopyEngine();
+		engine.setListener(new CopyListener()
+		{
+			@Override
+			public void copied(Path source, Path target, long checksum)
+			{
+			}
+		});
+		// reading a directory fails after the target was created
+		Path directory = Files.createDirectories(tempDir.resolve("directory"));
+		Path target = tempDir.resolve("target.bin");
+		try
+		{
+			engine.copy(directory, target);
+			fail("a directory can't be read");
+		} catch (IOException e)
+		{
+			assertFalse(Files.exists(target));
+		}
+	}
+
+	@Test
+	public void testAsyncCopy() throws IOException
+	{
+		final Map<Path, Long> checksums = new ConcurrentHashMap<Path, Long>();
+		List<Path> sources = Arrays.asList(source, createFile(tempDir.resolve("small.bin"), 100),
+				createFile(tempDir.resolve("empty.bin"), 0));
+		try (AsyncCopyEngine engine = new AsyncCopyEngine(2, 2))
+		{
+			engine.setListener(new CopyListener()
+			{
+				@Override
+				public void copied(Path source, Path target, long checksum)
+				{
+					checksums.put(source, checksum);
+				}
+			});
+			for (Path file : sources)
+				assertEquals(CopyStrategy.ASYNC, engine.copy(file, tempDir.resolve("copy-" + file.getFileName())));
+			engine.await();
+		}
+		for (Path file : sources)
+		{
+			byte[] content = Files.readAllBytes(file);
+			assertArrayEquals(content, Files.readAllBytes(tempDir.resolve("copy-" + file.getFileName())));
+			Adler32 adler = new Adler32();
+			adler.update(content);
+			assertEquals(Long.valueOf(adler.getValue()), checksums.get(file));
+		}
+	}
+
+	@Test
+	public void testAsyncExistingTargetIsKept() throws IOException
+	{
+		Path target = createFile(tempDir.resolve("target.bin"), 10);
+		try (AsyncCopyEngine engine = new AsyncCopyEngine())
+		{
+			engine.copy(source, target);
+			fail("existing target overwritten");
+		} catch (FileAlreadyExistsException e)
+		{
+			assertEquals(10, Files.size(target));
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testSourceShrinksDuringTransfer() throws IOException
+	{
+		Path target = tempDir.resolve("target.bin");
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+		{
+			long size = in.size();
+			try (FileChannel truncate = FileChannel.open(source, StandardOpenOption.WRITE))
+			{
+				truncate.truncate(1000);
+			}
+			CopyEngine.transfer(in, size, out);
+			fail("a shrunk source is no complete copy");
+		} catch (IOException e)
+		{
+			assertEquals(1000, Files.size(target));
+		}
+
+		// the copy falls back to the buffer and copies what is there
+		Files.delete(target);
+		new CopyEngine().copy(source, target);
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+	}
+
+	@Test
+	public void testReflinkOnCopyOnWriteFileSystem() throws IOException
+	{
+		String cowDir = System.getProperty("dirsync.cowTestDir");
+		assumeNotNull(cowDir);
+		Path cowSource = createFile(Paths.get(cowDir, "dirsync-source.bin"), 4 * 1024 * 1024);
+		Path cowTarget = Paths.get(cowDir, "dirsync-target.bin");
+		try
+		{
+			assertEquals(CopyStrategy.REFLINK, new CopyEngine().copy(cowSource, cowTarget));
+			assertArrayEquals(Files.readAllBytes(cowSource), Files.readAllBytes(cowTarget));
+		} finally
+		{
+			Files.deleteIfExists(cowSource);
+			Files.deleteIfExists(cowTarget);
+		}
+	}
+
+	private Path createFile(Path file, int size) throws IOException
+	{
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return Files.write(file, content);
+	}
+}
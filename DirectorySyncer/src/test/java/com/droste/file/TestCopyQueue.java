@@ -0,0 +1,142 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.droste.file.report.CopyStrategy;
+
+public class TestCopyQueue
+{
+	/** holds the copy of "first" until it is released, fails the copy of "broken" */
+	private static class RecordingCopier implements CopyQueue.Copier
+	{
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final List<Path> copies = Collections.synchronizedList(new ArrayList<Path>());
+		private final List<Path> reported = new ArrayList<Path>();
+		private final Set<Thread> reportingThreads = new HashSet<Thread>();
+
+		@Override
+		public CopyStrategy copy(Path source, long size, Path target) throws IOException
+		{
+			if (source.endsWith("first"))
+			{
+				started.countDown();
+				try
+				{
+					release.await();
+				} catch (InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+			}
+			if (source.endsWith("broken"))
+				throw new IOException("broken");
+			copies.add(source);
+			return CopyStrategy.BUFFERED;
+		}
+
+		@Override
+		public void copied(SyncPlan.Type type, Path source, Path target, CopyStrategy copyStrategy)
+		{
+			reported.add(source);
+			reportingThreads.add(Thread.currentThread());
+		}
+	}
+
+	private static void add(CopyQueue queue, String name, long size, long lastModified) throws IOException
+	{
+		queue.add(SyncPlan.Type.COPY_NEW, Paths.get("src", name), Paths.get(name), size, lastModified,
+				Paths.get("target", name));
+	}
+
+	@Test(timeout = 10000)
+	public void testOrderOfTheQueuedCopies() throws Exception
+	{
+		RecordingCopier copier = new RecordingCopier();
+		CopyQueue queue = new CopyQueue(CopyOrder.SMALLEST_FIRST, Arrays.asList("*.jpg"), 1000, copier);
+		// the first copy starts at once, the others queue up behind it
+		add(queue, "first", 1, 0);
+		copier.started.await();
+		add(queue, "big.txt", 500, 0);
+		add(queue, "small.txt", 10, 0);
+		add(queue, "photo.jpg", 900, 0);
+		add(queue, "medium.txt", 100, 0);
+		copier.release.countDown();
+		queue.finish();
+		assertEquals(Arrays.asList(Paths.get("src", "first"), Paths.get("src", "photo.jpg"),
+				Paths.get("src", "small.txt"), Paths.get("src", "medium.txt"), Paths.get("src", "big.txt")),
+				copier.copies);
+		assertEquals(5, copier.reported.size());
+		assertEquals(Collections.singleton(Thread.currentThread()), copier.reportingThreads);
+	}
+
+	@Test(timeout = 10000)
+	public void testLargeFilesDontWait() throws Exception
+	{
+		RecordingCopier copier = new RecordingCopier();
+		CopyQueue queue = new CopyQueue(CopyOrder.WALK, Collections.<String> emptyList(), 1000, copier);
+		add(queue, "first", 5000, 0);
+		copier.started.await();
+		add(queue, "small.txt", 10, 0);
+		// the small file is copied while the large one still runs
+		while (copier.copies.isEmpty())
+			Thread.sleep(10);
+		assertEquals(Arrays.asList(Paths.get("src", "small.txt")), copier.copies);
+		copier.release.countDown();
+		queue.finish();
+		assertEquals(2, copier.reported.size());
+	}
+
+	@Test(timeout = 10000)
+	public void testFailureSkipsTheRest() throws Exception
+	{
+		RecordingCopier copier = new RecordingCopier();
+		CopyQueue queue = new CopyQueue(CopyOrder.WALK, Collections.<String> emptyList(), 1000, copier);
+		add(queue, "first", 1, 0);
+		copier.started.await();
+		add(queue, "broken", 1, 0);
+		add(queue, "after.txt", 1, 0);
+		copier.release.countDown();
+		try
+		{
+			queue.finish();
+			fail("the failed copy must be thrown");
+		} catch (IOException e)
+		{
+			assertEquals("broken", e.getMessage());
+		}
+		// only the completed copy is reported
+		assertEquals(Arrays.asList(Paths.get("src", "first")), copier.reported);
+	}
+
+	@Test(timeout = 10000)
+	public void testCancelLetsTheRunningCopyFinish() throws Exception
+	{
+		final RecordingCopier copier = new RecordingCopier();
+		CopyQueue queue = new CopyQueue(CopyOrder.WALK, Collections.<String> emptyList(), 1000, copier);
+		add(queue, "first", 1, 0);
+		copier.started.await();
+		add(queue, "dropped.txt", 1, 0);
+		ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor();
+		releaser.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				copier.release.countDown();
+			}
+		}, 100, TimeUnit.MILLISECONDS);
+		queue.cancel();
+		releaser.shutdown();
+		assertEquals(Arrays.asList(Paths.get("src", "first")), copier.copies);
+		assertEquals(Arrays.asList(Paths.get("src", "first")), copier.reported);
+	}
+}
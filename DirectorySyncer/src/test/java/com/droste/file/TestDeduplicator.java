@@ -0,0 +1,61 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+import org.junit.Test;
+
+public class TestDeduplicator
+{
+	/** hashes by file name, records every full hash */
+	private static class RecordingHasher implements CandidateIndex.Hasher
+	{
+		private final List<Path> fullHashed = new ArrayList<Path>();
+
+		@Override
+		public Long headHash(Path file, long size)
+		{
+			return 1L;
+		}
+
+		@Override
+		public Long fullHash(Path file, long size, long lastModified)
+		{
+			fullHashed.add(file);
+			return file.getFileName().toString().startsWith("same") ? 42L : 7L;
+		}
+	}
+
+	@Test
+	public void testHashOfTheCopyIsUsed()
+	{
+		RecordingHasher hasher = new RecordingHasher();
+		Deduplicator deduplicator = new Deduplicator(DedupMode.HARDLINK, hasher);
+		Path written = Paths.get("src", "a.txt");
+		deduplicator.copied(written, 42);
+		deduplicator.written(written, Paths.get("target", "a.txt"), 10, 0);
+
+		assertEquals(Paths.get("target", "a.txt"), deduplicator.findWrittenCopy(Paths.get("src", "same.txt"), 10, 0));
+		assertNull(deduplicator.findWrittenCopy(Paths.get("src", "other.txt"), 10, 0));
+		assertNull(deduplicator.findWrittenCopy(Paths.get("src", "same.txt"), 11, 0));
+		// only the new source files are hashed, the written file is not read again
+		assertEquals(Arrays.asList(Paths.get("src", "same.txt"), Paths.get("src", "other.txt")), hasher.fullHashed);
+	}
+
+	@Test
+	public void testWrittenFileWithoutHashIsHashedOnce()
+	{
+		RecordingHasher hasher = new RecordingHasher();
+		Deduplicator deduplicator = new Deduplicator(DedupMode.LOCAL_COPY, hasher);
+		deduplicator.written(Paths.get("src", "same1.txt"), Paths.get("target", "same1.txt"), 10, 0);
+		assertEquals(Paths.get("target", "same1.txt"), deduplicator.findWrittenCopy(Paths.get("src", "same2.txt"), 10,
+				0));
+		assertEquals(Paths.get("target", "same1.txt"), deduplicator.findWrittenCopy(Paths.get("src", "same3.txt"), 10,
+				0));
+		assertEquals(Arrays.asList(Paths.get("src", "same2.txt"), Paths.get("src", "same1.txt"),
+				Paths.get("src", "same3.txt")), hasher.fullHashed);
+	}
+}
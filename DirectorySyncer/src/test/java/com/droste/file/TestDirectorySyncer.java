@@ -1,386 +1,1066 @@
-package com.droste.file;
-
-import static org.junit.Assert.*;
-
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.*;
-import java.util.Map.Entry;
-import java.util.zip.Adler32;
-
-import org.junit.*;
-
-import com.droste.file.report.Report;
-
-public class TestDirectorySyncer
-{
-	private final String tempSrcDir = "temp";
-	private final String tempTargetDir = "temp2";
-	private Path sourceFile;
-	private Path targetFile;
-
-	@Before
-	public void setup() throws IOException
-	{
-		sourceFile = createTempFile(tempSrcDir, "src/test/resources/source/einsteiger.php.html");
-		targetFile = createTempFile(tempTargetDir, "src/test/resources/target/einsteiger.php.html");
-	}
-
-	@After
-	public void cleanup() throws IOException
-	{
-		cleanup(tempSrcDir);
-		cleanup(tempTargetDir);
-	}
-
-	@Test
-	public void testAdler32Checksum() throws IOException
-	{
-		long time = System.currentTimeMillis();
-		Adler32 adler = new Adler32();
-		for (int i = 0; i < 1000; i++) {
-			adler.update(Files.readAllBytes(targetFile));
-			adler.getValue();
-			adler.reset();
-		}
-		assertTrue(System.currentTimeMillis() - time < 1000);
-	}
-
-	/** directory structure has files in the source but is empty in the target: delete it. */
-	@Test
-	public void testCleanupDirs() throws IOException
-	{
-		createTempFile(tempSrcDir + "/test/test2/test3", "src/test/resources/source/links.html");
-		Path targetDir = Paths.get(tempTargetDir + "/test/test2/test3");
-		Files.createDirectories(targetDir);
-		Report report = new Report();
-		report.addNewDirectory(targetDir);
-		report.addNewDirectory(targetDir.getParent());
-		report.addNewDirectory(targetDir.getParent().getParent());
-
-		Report cleanedReport = new DirectorySyncer(tempSrcDir, tempTargetDir, false).cleanupDirs(report);
-		assertEquals(0, cleanedReport.getNoOfNewDirectories());
-		assertEquals(0, report.getNewDirectories().size());
-	}
-
-	@Test
-	public void testBuildTargetFileMap() throws IOException
-	{
-		DirectorySyncer syncer = new DirectorySyncer("src/test/resources/source", "src/test/resources/target", false);
-		assertNotNull(syncer);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(9, targetMap.size());
-		// los gif exists twice in different locations:
-		assertEquals(8, syncer.getHashedTargetMap().size());
-	}
-
-	@Test
-	public void testRenameDuplicateFile()
-	{
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		assertEquals("einsteiger.php (1).html", syncer.renameDuplicateFile(sourceFile, 1));
-		assertEquals("einsteiger.php (2).html", syncer.renameDuplicateFile(sourceFile, 2));
-	}
-
-	@Test
-	public void testRenameWithExistingDuplicates() throws IOException
-	{
-		Files.copy(targetFile, new File(tempTargetDir + "/" + "einsteiger.php (1).html").toPath());
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(2, targetMap.size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-
-		assertTrue(Files.exists(new File("temp2/einsteiger.php (2).html").toPath()));
-		assertEquals(3, syncer.buildTargetFileMap().size());
-
-		checkReport(report, 1, 0, 0);
-		final Entry<Path, Path> theEntry = report.getChangedFiles().entrySet().iterator().next();
-		assertTrue(theEntry.getKey().endsWith("einsteiger.php.html"));
-		assertTrue(theEntry.getValue().endsWith("einsteiger.php (2).html"));
-	}
-
-	/**
-	 * if there was a sync before, the source file would already have been copied, but renamed. Find the renamed copy
-	 * and don't copy again
-	 */
-	@Test
-	public void testNoRenameWithExistingDuplicates() throws IOException
-	{
-		Files.copy(sourceFile, new File(tempTargetDir + "/" + "einsteiger.php (1).html").toPath());
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(2, targetMap.size());
-		assertEquals(2, syncer.getHashedTargetMap().size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-
-		assertFalse(Files.exists(new File("temp2/einsteiger.php (2).html").toPath()));
-		assertEquals(2, syncer.buildTargetFileMap().size());
-		checkReport(report, 0, 0, 0);
-	}
-
-	@Test
-	public void testDifferentFileSizeCopy() throws IOException
-	{
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(1, targetMap.size());
-		assertEquals(1, syncer.getHashedTargetMap().size());
-
-		assertFalse(Files.size(sourceFile) == Files.size(targetFile));
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		Path copyOfSource = targetFile.getParent().resolve("einsteiger.php (1).html");
-		assertTrue(Files.exists(copyOfSource));
-		assertTrue(Files.size(sourceFile) == Files.size(copyOfSource));
-		checkReport(report, 1, 0, 0);
-		final Entry<Path, Path> theEntry = report.getChangedFiles().entrySet().iterator().next();
-		assertTrue(theEntry.getKey().endsWith("einsteiger.php.html"));
-		assertTrue(theEntry.getValue().endsWith("einsteiger.php (1).html"));
-	}
-
-	@Test
-	public void testNewFileCopy() throws IOException
-	{
-		Files.delete(targetFile);
-
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(0, targetMap.size());
-
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertTrue(Files.exists(targetFile));
-		assertTrue(Files.size(sourceFile) == Files.size(targetFile));
-		checkReport(report, 0, 1, 0);
-	}
-
-	/**
-	 * Search for file(hash) in the whole target. if exists then <br/>
-	 * 1. check if the new location is in the source, too. If so, copy, because it's an add-on.<br/>
-	 * 2. else Compare the siblings in the source with the new target location. If all siblings are at the new location
-	 * in the target, too, we assume a move and don't copy.
-	 */
-	@Test
-	public void testFileWasMovedSiblingsTooDontCopy() throws IOException
-	{
-		Files.delete(targetFile);
-		Files.delete(sourceFile);
-		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/links.html");
-		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/martin.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/links.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/martin.html");
-		// special twist: this has to be ignored:
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/Thumbs.db");
-		// special twist 2: directories have to be ignored, too:
-		Files.createDirectory(Paths.get(tempTargetDir + "/newLocation/ignoredDir"));
-		Files.createDirectory(Paths.get(tempSrcDir + "/oldLocation/ignoredDir2"));
-
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(3, targetMap.size());
-		assertEquals(3, syncer.getHashedTargetMap().size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		report = syncer.cleanupDirs(report);
-		assertEquals(0, report.getNoOfNewFiles());
-		assertEquals(3, report.getNoOfRelocatedFiles());
-		// the directory was already empty in the source => is copied
-		assertEquals(2, report.getNoOfNewDirectories());
-	}
-
-	/** regression test: reorg of mp3-files caused double copy */
-	@Test
-	public void testDifferentFolderCapitalizationDontCopy() throws IOException
-	{
-		Files.delete(targetFile);
-		Files.delete(sourceFile);
-		createTempFile(tempTargetDir + "/Pearl Jam/Binaural",
-				"src/test/resources/source/multimedia/test1.avi");
-		createTempFile(tempSrcDir + "/pearl jam/Binaural", "src/test/resources/source/multimedia/test1.avi");
-
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(1, targetMap.size());
-		assertEquals(1, syncer.getHashedTargetMap().size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertEquals(0, report.getNoOfNewFiles());
-		assertEquals(0, report.getNoOfRelocatedFiles());
-		assertEquals(0, report.getNoOfChangedFiles());
-		assertEquals("Got new dirs", 0, report.getNoOfNewDirectories());
-	}
-
-	@Test
-	public void testFileWasMovedSiblingsNotCopy() throws IOException
-	{
-		Files.delete(targetFile);
-		Files.delete(sourceFile);
-		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/links.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/martin.html");
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(1, targetMap.size());
-		assertEquals(1, syncer.getHashedTargetMap().size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertEquals(3, report.getNoOfNewFiles());
-		assertEquals(0, report.getNoOfRelocatedFiles());
-		assertEquals(1, report.getAdditionalFiles().size());
-		String additionalFileName = report.getAdditionalFiles().keySet().toArray(new Path[0])[0].getFileName()
-				.toString();
-		assertEquals("einsteiger.php.html", additionalFileName);
-	}
-
-	@Test
-	public void testFileWasMovedButSourceHasNewLocationCopy() throws IOException
-	{
-		Files.delete(targetFile);
-		Files.delete(sourceFile);
-		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempSrcDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(1, targetMap.size());
-		assertEquals(1, syncer.getHashedTargetMap().size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertEquals(1, report.getNoOfNewFiles());
-		assertEquals(0, report.getNoOfRelocatedFiles());
-		assertEquals(1, report.getAdditionalFiles().size());
-	}
-
-	/**
-	 * file is twice in the target , one source-loc matches one of the target-locs, <br/>
-	 * the other is relocated
-	 */
-	@Test
-	public void testFileMultipleTimesInTarget() throws IOException
-	{
-		Files.delete(targetFile);
-		Files.copy(sourceFile, targetFile);
-		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
-		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(2, targetMap.size());
-		assertEquals(1, syncer.getHashedTargetMap().size());
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertEquals(0, report.getNoOfNewFiles());
-		assertEquals(1, report.getNoOfRelocatedFiles());
-		assertEquals(0, report.getAdditionalFiles().size());
-	}
-
-	/**
-	 * Multimedia files use the size as hash. i.e. there will be collisions.<br/>
-	 * The file still has to be copied if name is different.
-	 */
-	@Test
-	public void testMultiMediaFile() throws IOException
-	{
-		long emptyAvi = Files.size(Paths.get("src/test/resources/source/multimedia/test1.avi"));
-		long emptyAvi2 = Files.size(Paths.get("src/test/resources/target/multimedia/test2.avi"));
-		assertEquals(emptyAvi, emptyAvi2);
-
-		final Path rootSource = new File("src/test/resources/source/multimedia").toPath();
-		final Path rootTarget = new File("src/test/resources/target/multimedia").toPath();
-		copyDirectory(rootSource, tempSrcDir);
-		copyDirectory(rootTarget, tempTargetDir);
-
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertEquals(1, report.getNoOfNewFiles());
-	}
-
-	@Test
-	public void testAll() throws IOException
-	{
-		final Path rootSource = new File("src/test/resources/source").toPath();
-		final Path rootTarget = new File("src/test/resources/target").toPath();
-		copyDirectory(rootSource, tempSrcDir);
-		copyDirectory(rootTarget, tempTargetDir);
-
-		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
-		Map<String, Path> targetMap = syncer.buildTargetFileMap();
-		assertEquals(9, targetMap.size());
-		assertEquals(8, syncer.getHashedTargetMap().size());
-
-		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
-		assertEquals(20, syncer.buildTargetFileMap().size());
-		checkReport(report, 1, 10, 1);
-		assertEquals(29, report.getNoOfTargetFiles());
-		assertEquals(15, report.getNoOfSourceFiles());
-		assertEquals(5, report.getNoOfSourceDirectories());
-		assertTrue("report time was " + report.getSyncTime(), report.getSyncTime() > 0.0 && report.getSyncTime() < 1.0);
-	}
-
-	private void checkReport(Report report, int noChanged, int noNew, int noDir)
-	{
-		assertEquals(noChanged, report.getNoOfChangedFiles());
-		assertEquals(noNew, report.getNoOfNewFiles());
-		assertEquals(noDir, report.getNoOfNewDirectories());
-		Set<Entry<Path, Path>> changedFiles = report.getChangedFiles().entrySet();
-		assertEquals(noChanged, changedFiles.size());
-		Set<Entry<Path, Path>> newFiles = report.getNewFiles().entrySet();
-		assertEquals(noNew, newFiles.size());
-		List<Path> newDirs = report.getNewDirectories();
-		assertEquals(noDir, newDirs.size());
-	}
-
-	private void copyDirectory(final Path rootSource, final String copytodir) throws IOException
-	{
-		Files.walkFileTree(rootSource, new SimpleFileVisitor<Path>()
-		{
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
-			{
-				Files.copy(file, new File(copytodir + "/" + rootSource.relativize(file)).toPath(),
-						StandardCopyOption.REPLACE_EXISTING);
-				return super.visitFile(file, attrs);
-			}
-
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
-			{
-				Path newdir = new File(copytodir + "/" + rootSource.relativize(dir)).toPath();
-				if (!Files.exists(newdir))
-					Files.createDirectory(newdir);
-				return super.preVisitDirectory(dir, attrs);
-			}
-		});
-	}
-
-	private void cleanup(String dir) throws IOException
-	{
-		Files.walkFileTree(new File(dir).toPath(), new SimpleFileVisitor<Path>()
-		{
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
-			{
-				Files.delete(file);
-				return super.visitFile(file, attrs);
-			}
-
-			@Override
-			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
-			{
-				Files.delete(dir);
-				return super.postVisitDirectory(dir, exc);
-			}
-		});
-
-	}
-
-	private Path createTempFile(String tempDir, String filePath) throws IOException
-	{
-		Path path = new File(tempDir).toPath();
-		if (!Files.exists(path))
-			Files.createDirectories(path);
-		final Path source = new File(filePath).toPath();
-		Path target = new File(tempDir + "/" + source.getFileName()).toPath();
-		Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
-		return target;
-	}
-}
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.zip.Adler32;
+
+import org.junit.*;
+
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+
+public class TestDirectorySyncer
+{
+	private final String tempSrcDir = "temp";
+	private final String tempTargetDir = "temp2";
+	private Path sourceFile;
+	private Path targetFile;
+
+	@Before
+	public void setup() throws IOException
+	{
+		sourceFile = createTempFile(tempSrcDir, "src/test/resources/source/einsteiger.php.html");
+		targetFile = createTempFile(tempTargetDir, "src/test/resources/target/einsteiger.php.html");
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		cleanup(tempSrcDir);
+		cleanup(tempTargetDir);
+	}
+
+	@Test
+	public void testAdler32Checksum() throws IOException
+	{
+		long time = System.currentTimeMillis();
+		Adler32 adler = new Adler32();
+		for (int i = 0; i < 1000; i++) {
+			adler.update(Files.readAllBytes(targetFile));
+			adler.getValue();
+			adler.reset();
+		}
+		assertTrue(System.currentTimeMillis() - time < 1000);
+	}
+
+	/** directory structure has files in the source, but they are relocated in the target: no directory is created. */
+	@Test
+	public void testRelocatedDirsAreNotCreated() throws IOException
+	{
+		createTempFile(tempSrcDir + "/test/test2/test3", "src/test/resources/source/links.html");
+		createTempFile(tempTargetDir + "/moved/test3", "src/test/resources/source/links.html");
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(1, report.getNoOfRelocatedFiles());
+		assertEquals(0, report.getNoOfNewDirectories());
+		assertFalse(Files.exists(Paths.get(tempTargetDir, "test")));
+	}
+
+	/** new directories are created once, with all their parents, by the first file that needs them */
+	@Test
+	public void testNewDirsAreCreatedForFiles() throws IOException
+	{
+		createTempFile(tempSrcDir + "/test/test2/test3", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/test/test2/test3", "src/test/resources/source/martin.html");
+		Files.createDirectories(Paths.get(tempSrcDir, "test", "empty"));
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(4, report.getNoOfNewDirectories());
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "test", "test2", "test3", "martin.html")));
+		assertTrue(Files.isDirectory(Paths.get(tempTargetDir, "test", "empty")));
+	}
+
+	@Test
+	public void testBuildTargetFileMap() throws IOException
+	{
+		DirectorySyncer syncer = new DirectorySyncer("src/test/resources/source", "src/test/resources/target", false);
+		assertNotNull(syncer);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(9, targetMap.size());
+		// los gif exists twice in different locations:
+		assertEquals(8, syncer.getHashedTargetMap().size());
+	}
+
+	@Test
+	public void testBuildTargetFileMapWithThreadsAndCache() throws IOException
+	{
+		Path cacheFile = Paths.get(tempTargetDir, "hashes.cache");
+		DirectorySyncer syncer = new DirectorySyncer("src/test/resources/source", "src/test/resources/target", false);
+		syncer.setThreads(4);
+		syncer.setHashCache(new HashCache(cacheFile));
+		syncer.buildTargetFileMap();
+		assertEquals(8, syncer.getHashedTargetMap().size());
+
+		HashCache hashCache = new HashCache(cacheFile);
+		DirectorySyncer cachedSyncer = new DirectorySyncer("src/test/resources/source", "src/test/resources/target",
+				false);
+		cachedSyncer.setHashCache(hashCache);
+		cachedSyncer.buildTargetFileMap();
+		// html and js files are hashed, the multimedia files only by size
+		assertEquals(4, hashCache.size());
+		hashCache.save();
+		assertEquals(4, new HashCache(cacheFile).load().size());
+		Path html = Paths.get("src/test/resources/target/einsteiger.php.html");
+		long lastModified = Files.getLastModifiedTime(html).toMillis();
+		assertEquals(cachedSyncer.hash(html), hashCache.get(html, Files.size(html), lastModified));
+		assertNull(hashCache.get(html, Files.size(html), lastModified + 1));
+	}
+
+	@Test
+	public void testRenameDuplicateFile()
+	{
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		assertEquals("einsteiger.php (1).html", syncer.renameDuplicateFile(sourceFile, 1));
+		assertEquals("einsteiger.php (2).html", syncer.renameDuplicateFile(sourceFile, 2));
+		assertEquals("README (3)", syncer.renameDuplicateFile(Paths.get("README"), 3));
+	}
+
+	@Test
+	public void testRenameIndexFillsTheFirstGap() throws IOException
+	{
+		Files.copy(targetFile, Paths.get(tempTargetDir, "einsteiger.php (1).html"));
+		Files.copy(targetFile, Paths.get(tempTargetDir, "einsteiger.php (7).html"));
+		Files.write(Paths.get(tempTargetDir, "README (2)"), new byte[] { 1 });
+		Files.write(Paths.get(tempTargetDir, "Report (2019).pdf"), new byte[] { 1, 2 });
+		RenameIndex index = new RenameIndex();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(tempTargetDir)))
+		{
+			for (Path file : files)
+				index.add(file, Files.size(file));
+		}
+		Path original = Paths.get(tempTargetDir, "einsteiger.php.html");
+		assertEquals(Paths.get(tempTargetDir, "einsteiger.php (2).html"), index.nextVariant(original, 1));
+		assertNull(index.nextVariant(original, Files.size(targetFile)));
+		assertEquals(Paths.get(tempTargetDir, "README (1)"), index.nextVariant(Paths.get(tempTargetDir, "README"), 1));
+		// a year in the name is no counter, the file with the same size doesn't stop the copy
+		assertEquals(Paths.get(tempTargetDir, "Report (1).pdf"),
+				index.nextVariant(Paths.get(tempTargetDir, "Report.pdf"), 2));
+		assertTrue(index.isVariant(Paths.get(tempTargetDir, "einsteiger.php (1).html")));
+		assertFalse(index.isVariant(Paths.get(tempTargetDir, "einsteiger.php (7).html")));
+		assertFalse(index.isVariant(Paths.get(tempTargetDir, "Report (2019).pdf")));
+		assertFalse(index.isVariant(original));
+	}
+
+	@Test
+	public void testRenameWithExistingDuplicates() throws IOException
+	{
+		Files.copy(targetFile, new File(tempTargetDir + "/" + "einsteiger.php (1).html").toPath());
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(2, targetMap.size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+
+		assertTrue(Files.exists(new File("temp2/einsteiger.php (2).html").toPath()));
+		assertEquals(3, syncer.buildTargetFileMap().size());
+
+		checkReport(report, 1, 0, 0);
+		final Entry<Path, Path> theEntry = report.getChangedFiles().entrySet().iterator().next();
+		assertTrue(theEntry.getKey().endsWith("einsteiger.php.html"));
+		assertTrue(theEntry.getValue().endsWith("einsteiger.php (2).html"));
+	}
+
+	/**
+	 * if there was a sync before, the source file would already have been copied, but renamed. Find the renamed copy
+	 * and don't copy again
+	 */
+	@Test
+	public void testNoRenameWithExistingDuplicates() throws IOException
+	{
+		Files.copy(sourceFile, new File(tempTargetDir + "/" + "einsteiger.php (1).html").toPath());
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(2, targetMap.size());
+		assertEquals(2, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+
+		assertFalse(Files.exists(new File("temp2/einsteiger.php (2).html").toPath()));
+		assertEquals(2, syncer.buildTargetFileMap().size());
+		checkReport(report, 0, 0, 0);
+	}
+
+	@Test
+	public void testDifferentFileSizeCopy() throws IOException
+	{
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(1, targetMap.size());
+		assertEquals(1, syncer.getHashedTargetMap().size());
+
+		assertFalse(Files.size(sourceFile) == Files.size(targetFile));
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		Path copyOfSource = targetFile.getParent().resolve("einsteiger.php (1).html");
+		assertTrue(Files.exists(copyOfSource));
+		assertTrue(Files.size(sourceFile) == Files.size(copyOfSource));
+		checkReport(report, 1, 0, 0);
+		final Entry<Path, Path> theEntry = report.getChangedFiles().entrySet().iterator().next();
+		assertTrue(theEntry.getKey().endsWith("einsteiger.php.html"));
+		assertTrue(theEntry.getValue().endsWith("einsteiger.php (1).html"));
+	}
+
+	@Test
+	public void testAsyncCopyEngine() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		try (AsyncCopyEngine engine = new AsyncCopyEngine())
+		{
+			syncer.setFileCopier(engine);
+			Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+			checkReport(report, 1, 1, 0);
+			assertEquals(CopyStrategy.ASYNC, report.getCopyStrategies().get(Paths.get(tempTargetDir, "links.html")));
+			// the sync waited for the copies
+			assertEquals(Files.size(Paths.get(tempSrcDir, "links.html")), Files.size(Paths.get(tempTargetDir,
+					"links.html")));
+		}
+	}
+
+	@Test
+	public void testAsyncCopyEngineRejectsDedupAndJournal() throws IOException
+	{
+		try (AsyncCopyEngine engine = new AsyncCopyEngine())
+		{
+			DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+			syncer.setFileCopier(engine);
+			try
+			{
+				syncer.setDedupMode(DedupMode.HARDLINK);
+				fail("dedup with an async copier");
+			} catch (IllegalStateException e)
+			{
+				// expected
+			}
+			syncer.setDedupMode(DedupMode.OFF);
+
+			DirectorySyncer journaled = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+			SyncJournal journal = SyncJournal.start(Paths.get(tempTargetDir));
+			journaled.setJournal(journal);
+			try
+			{
+				journaled.setFileCopier(engine);
+				fail("journal with an async copier");
+			} catch (IllegalStateException e)
+			{
+				journal.finish();
+			}
+		}
+	}
+
+	@Test
+	public void testHashWhileCopyFillsHashCache() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		HashCache hashCache = new HashCache();
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setRelocationPrefilter(false);
+		syncer.setHashCache(hashCache);
+		syncer.setHashWhileCopy(true);
+		syncer.setVerifyCopies(true);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		checkReport(report, 1, 1, 0);
+		assertEquals(CopyStrategy.BUFFERED, report.getCopyStrategies().get(Paths.get(tempTargetDir, "links.html")));
+
+		Path copy = Paths.get(tempTargetDir, "links.html");
+		Adler32 adler = new Adler32();
+		adler.update(Files.readAllBytes(copy));
+		BasicFileAttributes attrs = Files.readAttributes(copy, BasicFileAttributes.class);
+		assertEquals(Long.valueOf(adler.getValue()),
+				hashCache.get(copy, attrs.size(), attrs.lastModifiedTime().toMillis()));
+	}
+
+	@Test
+	public void testHashWhileCopyWithJournalCachesTheTarget() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		HashCache hashCache = new HashCache();
+		SyncJournal journal = SyncJournal.start(Paths.get(tempTargetDir));
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setHashCache(hashCache);
+		syncer.setJournal(journal);
+		syncer.setHashWhileCopy(true);
+		syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		journal.finish();
+
+		Path copy = Paths.get(tempTargetDir, "links.html");
+		Adler32 adler = new Adler32();
+		adler.update(Files.readAllBytes(copy));
+		BasicFileAttributes attrs = Files.readAttributes(copy, BasicFileAttributes.class);
+		assertEquals(Long.valueOf(adler.getValue()),
+				hashCache.get(copy, attrs.size(), attrs.lastModifiedTime().toMillis()));
+		Path partFile = Paths.get(tempTargetDir, "links.html" + SyncJournal.PART_SUFFIX);
+		assertNull(hashCache.get(partFile, attrs.size(), attrs.lastModifiedTime().toMillis()));
+	}
+
+	@Test
+	public void testVerifyCopiesRetriesCorruptedCopy() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setFileCopier(new CorruptingCopier(1));
+		syncer.setVerifyCopies(true);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		checkReport(report, 1, 1, 0);
+		assertEquals(2, report.getNoOfVerifiedFiles());
+		assertEquals(1, report.getNoOfRetriedCopies());
+		assertArrayEquals(Files.readAllBytes(Paths.get(tempSrcDir, "links.html")),
+				Files.readAllBytes(Paths.get(tempTargetDir, "links.html")));
+	}
+
+	@Test
+	public void testVerifyCopiesWithJournal() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		SyncJournal journal = SyncJournal.start(Paths.get(tempTargetDir));
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setJournal(journal);
+		syncer.setVerifyCopies(true);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		journal.finish();
+		checkReport(report, 1, 1, 0);
+		assertEquals(2, report.getNoOfVerifiedFiles());
+		assertEquals(0, report.getNoOfRetriedCopies());
+		assertTrue(report.getCorruptFiles().isEmpty());
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(tempTargetDir)))
+		{
+			for (Path file : files)
+				assertFalse(file.toString(), file.toString().contains(SyncJournal.PART_SUFFIX));
+		}
+	}
+
+	@Test
+	public void testVerifyCopiesFailsAfterRetries() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setFileCopier(new CorruptingCopier(Integer.MAX_VALUE));
+		syncer.setVerifyCopies(true);
+		syncer.setVerifyRetries(1);
+		try
+		{
+			syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+			fail("corrupt copy accepted");
+		} catch (IOException e)
+		{
+			assertEquals(Arrays.asList(Paths.get(tempTargetDir, "links.html")), syncer.getReport().getCorruptFiles());
+			assertEquals(1, syncer.getReport().getNoOfRetriedCopies());
+		}
+	}
+
+	/** flips the first byte of the first copies of links.html after they were hashed */
+	private static class CorruptingCopier extends CopyEngine
+	{
+		private int corruptions;
+
+		CorruptingCopier(int corruptions)
+		{
+			this.corruptions = corruptions;
+		}
+
+		@Override
+		public CopyStrategy copy(Path source, Path target) throws IOException
+		{
+			CopyStrategy strategy = super.copy(source, target);
+			if (target.endsWith("links.html") && corruptions-- > 0)
+			{
+				byte[] content = Files.readAllBytes(target);
+				content[0] ^= 1;
+				Files.write(target, content);
+			}
+			return strategy;
+		}
+	}
+
+	@Test
+	public void testCopiesGoThroughFileCopier() throws IOException
+	{
+		createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		final List<Path> copied = new ArrayList<Path>();
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setFileCopier(new FileCopier()
+		{
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				copied.add(target.getFileName());
+				Files.copy(source, target);
+				return CopyStrategy.FILES_COPY;
+			}
+		});
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		checkReport(report, 1, 1, 0);
+		assertEquals(Arrays.asList(Paths.get("einsteiger.php (1).html"), Paths.get("links.html")), sorted(copied));
+	}
+
+	@Test
+	public void testOrderedCopies() throws IOException
+	{
+		createTempFile(tempSrcDir + "/b", "src/test/resources/source/martin.html");
+		createTempFile(tempSrcDir + "/a", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/c", "src/test/resources/source/msd2001c.jpg");
+		final List<Path> copied = Collections.synchronizedList(new ArrayList<Path>());
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setFileCopier(new CopyEngine()
+		{
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				copied.add(target.getFileName());
+				return super.copy(source, target);
+			}
+		});
+		syncer.setCopyOrder(CopyOrder.SMALLEST_FIRST);
+		syncer.setCopyPriorities(Arrays.asList("c/*.jpg"));
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		// the copies start during the walk, TestCopyQueue checks their order
+		checkReport(report, 1, 3, 3);
+		assertEquals(Arrays.asList(Paths.get("einsteiger.php (1).html"), Paths.get("links.html"),
+				Paths.get("martin.html"), Paths.get("msd2001c.jpg")), sorted(copied));
+		assertEquals(4, report.getCopyStrategies().size());
+
+		// the big file goes to the second thread
+		cleanup(tempTargetDir);
+		createTempFile(tempTargetDir, "src/test/resources/target/einsteiger.php.html");
+		copied.clear();
+		syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setFileCopier(new CopyEngine()
+		{
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				copied.add(target.getFileName());
+				return super.copy(source, target);
+			}
+		});
+		syncer.setCopyOrder(CopyOrder.SMALLEST_FIRST);
+		syncer.setLargeFileSize(5000);
+		report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(4, report.getCopyStrategies().size());
+		checkReport(report, 1, 3, 3);
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "c", "msd2001c.jpg")));
+	}
+
+	@Test
+	public void testDeduplicateWithHardLink() throws IOException
+	{
+		Files.delete(targetFile);
+		createTempFile(tempSrcDir + "/copy1", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/copy2", "src/test/resources/source/einsteiger.php.html");
+		// same size, different content: must be copied
+		Path sameSize = Paths.get(tempSrcDir, "copy2", "other.html");
+		byte[] content = Files.readAllBytes(sourceFile);
+		content[0]++;
+		Files.write(sameSize, content);
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setDedupMode(DedupMode.HARDLINK);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(4, report.getNoOfNewFiles());
+		assertEquals(2, report.getDeduplicatedFiles().size());
+		assertEquals(2 * Files.size(sourceFile), report.getDeduplicatedBytes());
+		Path link = Paths.get(tempTargetDir, "copy2", "einsteiger.php.html");
+		assertArrayEquals(Files.readAllBytes(sourceFile), Files.readAllBytes(link));
+		Object fileKey = Files.readAttributes(link, BasicFileAttributes.class).fileKey();
+		if (fileKey != null)
+			assertEquals(fileKey, Files.readAttributes(targetFile, BasicFileAttributes.class).fileKey());
+		assertArrayEquals(content, Files.readAllBytes(Paths.get(tempTargetDir, "copy2", "other.html")));
+		assertFalse(report.getDeduplicatedFiles().containsKey(sameSize));
+	}
+
+	@Test
+	public void testDeduplicateSimulation() throws IOException
+	{
+		Files.delete(targetFile);
+		createTempFile(tempSrcDir + "/copy1", "src/test/resources/source/einsteiger.php.html");
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		syncer.setDedupMode(DedupMode.LOCAL_COPY);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(1, report.getDeduplicatedFiles().size());
+		assertEquals(0, report.getDeduplicatedBytes());
+		assertFalse(Files.exists(targetFile));
+	}
+
+	@Test
+	public void testDeduplicateWithLocalCopy() throws IOException
+	{
+		Files.delete(targetFile);
+		createTempFile(tempSrcDir + "/copy1", "src/test/resources/source/einsteiger.php.html");
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setDedupMode(DedupMode.LOCAL_COPY);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(1, report.getDeduplicatedFiles().size());
+		// the copy needs its own space
+		assertEquals(0, report.getDeduplicatedBytes());
+		assertArrayEquals(Files.readAllBytes(sourceFile),
+				Files.readAllBytes(Paths.get(tempTargetDir, "copy1", "einsteiger.php.html")));
+	}
+
+	private List<Path> sorted(List<Path> paths)
+	{
+		Collections.sort(paths);
+		return paths;
+	}
+
+	@Test
+	public void testNewFileCopy() throws IOException
+	{
+		Files.delete(targetFile);
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(0, targetMap.size());
+
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertTrue(Files.exists(targetFile));
+		assertTrue(Files.size(sourceFile) == Files.size(targetFile));
+		checkReport(report, 0, 1, 0);
+		assertEquals(CopyStrategy.TRANSFER_TO, report.getCopyStrategies().get(targetFile));
+	}
+
+	@Test
+	public void testPrefilterAvoidsReadingNewFiles() throws IOException
+	{
+		createTempFile(tempSrcDir + "/new", "src/test/resources/source/links.html");
+		Files.write(Paths.get(tempSrcDir, "new", "big.dat"), new byte[50000]);
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(2, report.getNoOfPrefilterChecks());
+		assertEquals(2, report.getNoOfPrefilterRejects());
+		assertEquals(0, report.getNoOfPrefilterFalsePositives());
+		// the small file is sampled completely, so only the big one saves reading
+		assertEquals(50000 - 3 * RelocationFilter.SAMPLE_SIZE, report.getPrefilterAvoidedBytes());
+
+		syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		syncer.setRelocationPrefilter(false);
+		report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(0, report.getNoOfPrefilterChecks());
+	}
+
+	@Test
+	public void testPrefilterReusesCachedFingerprints() throws IOException
+	{
+		Path cacheFile = Files.createTempFile("hashes", ".cache");
+		try
+		{
+			HashCache hashCache = new HashCache(cacheFile);
+			DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+			syncer.setHashCache(hashCache);
+			syncer.buildTargetFileMap();
+			long size = Files.size(targetFile);
+			long lastModified = Files.getLastModifiedTime(targetFile).toMillis();
+			long fingerprint = RelocationFilter.fingerprint(targetFile, size);
+			assertEquals(Long.valueOf(fingerprint), hashCache.getFingerprint(targetFile, size, lastModified));
+			assertNull(hashCache.getFingerprint(targetFile, size, lastModified + 1));
+			hashCache.save();
+			hashCache = new HashCache(cacheFile).load();
+			assertEquals(Long.valueOf(fingerprint), hashCache.getFingerprint(targetFile, size, lastModified));
+			assertEquals(syncer.hash(targetFile), hashCache.get(targetFile, size, lastModified));
+
+			// a moved copy of the target file passes only with the real fingerprint, so the cached one is used
+			createTempFile(tempSrcDir + "/new", "src/test/resources/target/einsteiger.php.html");
+			hashCache.putFingerprint(targetFile, size, lastModified, fingerprint + 1);
+			syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+			syncer.setHashCache(hashCache);
+			Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+			assertEquals(1, report.getNoOfPrefilterRejects());
+			assertTrue(report.getNewFiles().containsKey(Paths.get(tempSrcDir, "new", "einsteiger.php.html")));
+		} finally
+		{
+			Files.deleteIfExists(cacheFile);
+		}
+	}
+
+	/**
+	 * Search for file(hash) in the whole target. if exists then <br/>
+	 * 1. check if the new location is in the source, too. If so, copy, because it's an add-on.<br/>
+	 * 2. else Compare the siblings in the source with the new target location. If all siblings are at the new location
+	 * in the target, too, we assume a move and don't copy.
+	 */
+	@Test
+	public void testFileWasMovedSiblingsTooDontCopy() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/links.html");
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/martin.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/martin.html");
+		// special twist: this has to be ignored:
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/Thumbs.db");
+		// special twist 2: directories have to be ignored, too:
+		Files.createDirectory(Paths.get(tempTargetDir + "/newLocation/ignoredDir"));
+		Files.createDirectory(Paths.get(tempSrcDir + "/oldLocation/ignoredDir2"));
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(3, targetMap.size());
+		assertEquals(3, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(0, report.getNoOfNewFiles());
+		assertEquals(3, report.getNoOfRelocatedFiles());
+		// the directory was already empty in the source => is copied
+		assertEquals(2, report.getNoOfNewDirectories());
+	}
+
+	@Test
+	public void testStagedHashingFindsRelocatedFiles() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/links.html");
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/msd2001c.jpg");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/msd2001c.jpg");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/martin.html");
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		syncer.setHashStrategy(HashStrategy.STAGED);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		// nothing is hashed while the target is walked
+		assertEquals(0, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		// martin.html is not in the target, so its siblings are copied, too
+		assertEquals(3, report.getNoOfNewFiles());
+		assertEquals(2, report.getAdditionalFiles().size());
+	}
+
+	@Test
+	public void testMirrorDeletesWhatIsGoneInSource() throws IOException
+	{
+		createTempFile(tempTargetDir + "/gone/deeper", "src/test/resources/source/links.html");
+		createTempFile(tempTargetDir + "/gone", "src/test/resources/source/martin.html");
+		Path goneFile = createTempFile(tempTargetDir, "src/test/resources/source/links.html");
+
+		Report report = mirror(true, 1000);
+		assertEquals(3, report.getDeletedFiles().size());
+		assertEquals(2, report.getDeletedDirectories().size());
+		assertTrue(Files.exists(goneFile));
+
+		try
+		{
+			mirror(false, 2);
+			fail("more deletes than allowed");
+		} catch (IOException e)
+		{
+			assertTrue(Files.exists(goneFile));
+		}
+
+		report = mirror(false, 3);
+		assertEquals(3, report.getDeletedFiles().size());
+		assertEquals(Arrays.asList(Paths.get(tempTargetDir, "gone", "deeper"), Paths.get(tempTargetDir, "gone")),
+				report.getDeletedDirectories());
+		assertFalse(Files.exists(goneFile));
+		assertFalse(Files.exists(Paths.get(tempTargetDir, "gone")));
+		assertTrue(Files.exists(targetFile));
+	}
+
+	@Test
+	public void testMirrorKeepsOnlyVariantsOfSourceFiles() throws IOException
+	{
+		Path variant = Paths.get(tempTargetDir, "einsteiger.php (1).html");
+		Path ownName = Paths.get(tempTargetDir, "einsteiger.php (2019).html");
+		Files.write(variant, new byte[] { 1 });
+		Files.write(ownName, new byte[] { 2 });
+
+		Report report = mirror(false, 1);
+		assertEquals(Arrays.asList(ownName), report.getDeletedFiles());
+		assertTrue(Files.exists(variant));
+	}
+
+	@Test
+	public void testMirrorKeepsRelocatedFiles() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/links.html");
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/martin.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/martin.html");
+
+		Report report = mirror(false, 0);
+		assertEquals(2, report.getNoOfRelocatedFiles());
+		assertEquals(0, report.getDeletedFiles().size());
+		assertEquals(0, report.getDeletedDirectories().size());
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "newLocation", "links.html")));
+	}
+
+	@Test
+	public void testReplayMovesRenamedFolder() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/before", "src/test/resources/source/links.html");
+		createTempFile(tempTargetDir + "/before", "src/test/resources/source/martin.html");
+		createTempFile(tempSrcDir + "/after", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/after", "src/test/resources/source/martin.html");
+
+		Report report = replayMoves(true);
+		assertEquals(2, report.getMovedFiles().size());
+		assertEquals(1, report.getNoOfMoveOperations());
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "before", "links.html")));
+
+		report = replayMoves(false);
+		assertEquals(2, report.getNoOfRelocatedFiles());
+		assertEquals(0, report.getNoOfNewFiles());
+		assertEquals(1, report.getNoOfMoveOperations());
+		assertEquals(Paths.get(tempTargetDir, "after", "martin.html"),
+				report.getMovedFiles().get(Paths.get(tempTargetDir, "before", "martin.html")));
+		assertFalse(Files.exists(Paths.get(tempTargetDir, "before")));
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "after", "links.html")));
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "after", "martin.html")));
+
+		// nothing left to move
+		report = replayMoves(false);
+		assertEquals(0, report.getNoOfRelocatedFiles());
+		assertEquals(0, report.getNoOfMoveOperations());
+	}
+
+	@Test
+	public void testRulesPruneSubtrees() throws IOException
+	{
+		createTempFile(tempSrcDir + "/project/node_modules/lib", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/project/build", "src/test/resources/source/martin.html");
+		createTempFile(tempSrcDir + "/project/keep", "src/test/resources/source/martin.html");
+		Files.write(Paths.get(tempSrcDir, "project", SyncRules.RULE_FILE), "build/\n".getBytes());
+		createTempFile(tempTargetDir + "/project/node_modules", "src/test/resources/source/martin.html");
+
+		SyncRules rules = new SyncRules();
+		rules.addIgnore("node_modules/");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setRules(rules);
+		syncer.setMirror(true);
+		Report report = syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+		// einsteiger.php.html, the rule file and keep/martin.html
+		assertEquals(3, report.getNoOfSourceFiles());
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(0, report.getDeletedFiles().size());
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "project", "keep", "martin.html")));
+		assertFalse(Files.exists(Paths.get(tempTargetDir, "project", "build")));
+		assertFalse(Files.exists(Paths.get(tempTargetDir, "project", "node_modules", "lib")));
+		// ignored by the rules, so the mirror keeps it
+		assertTrue(Files.exists(Paths.get(tempTargetDir, "project", "node_modules", "martin.html")));
+	}
+
+	private Report replayMoves(boolean simulation) throws IOException
+	{
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, simulation);
+		syncer.setReplayMoves(true);
+		return syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+	}
+
+	private Report mirror(boolean simulation, int maxDeletes) throws IOException
+	{
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, simulation);
+		syncer.setMirror(true);
+		syncer.setMaxDeletes(maxDeletes);
+		syncer.setThreads(2);
+		return syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+	}
+
+	/** regression test: reorg of mp3-files caused double copy */
+	@Test
+	public void testDifferentFolderCapitalizationDontCopy() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/Pearl Jam/Binaural",
+				"src/test/resources/source/multimedia/test1.avi");
+		createTempFile(tempSrcDir + "/pearl jam/Binaural", "src/test/resources/source/multimedia/test1.avi");
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(1, targetMap.size());
+		assertEquals(1, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(0, report.getNoOfNewFiles());
+		assertEquals(0, report.getNoOfRelocatedFiles());
+		assertEquals(0, report.getNoOfChangedFiles());
+		assertEquals("Got new dirs", 0, report.getNoOfNewDirectories());
+	}
+
+	@Test
+	public void testFileWasMovedSiblingsNotCopy() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/martin.html");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(1, targetMap.size());
+		assertEquals(1, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(3, report.getNoOfNewFiles());
+		assertEquals(0, report.getNoOfRelocatedFiles());
+		assertEquals(1, report.getAdditionalFiles().size());
+		String additionalFileName = report.getAdditionalFiles().keySet().toArray(new Path[0])[0].getFileName()
+				.toString();
+		assertEquals("einsteiger.php.html", additionalFileName);
+	}
+
+	@Test
+	public void testFileWasMovedButSourceHasNewLocationCopy() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.delete(sourceFile);
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(1, targetMap.size());
+		assertEquals(1, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(1, report.getNoOfNewFiles());
+		assertEquals(0, report.getNoOfRelocatedFiles());
+		assertEquals(1, report.getAdditionalFiles().size());
+	}
+
+	/**
+	 * file is twice in the target , one source-loc matches one of the target-locs, <br/>
+	 * the other is relocated
+	 */
+	@Test
+	public void testFileMultipleTimesInTarget() throws IOException
+	{
+		Files.delete(targetFile);
+		Files.copy(sourceFile, targetFile);
+		createTempFile(tempTargetDir + "/newLocation", "src/test/resources/source/einsteiger.php.html");
+		createTempFile(tempSrcDir + "/oldLocation", "src/test/resources/source/einsteiger.php.html");
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(2, targetMap.size());
+		assertEquals(1, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(0, report.getNoOfNewFiles());
+		assertEquals(1, report.getNoOfRelocatedFiles());
+		assertEquals(0, report.getAdditionalFiles().size());
+	}
+
+	/**
+	 * Multimedia files use the size as hash. i.e. there will be collisions.<br/>
+	 * The file still has to be copied if name is different.
+	 */
+	@Test
+	public void testMultiMediaFile() throws IOException
+	{
+		long emptyAvi = Files.size(Paths.get("src/test/resources/source/multimedia/test1.avi"));
+		long emptyAvi2 = Files.size(Paths.get("src/test/resources/target/multimedia/test2.avi"));
+		assertEquals(emptyAvi, emptyAvi2);
+
+		final Path rootSource = new File("src/test/resources/source/multimedia").toPath();
+		final Path rootTarget = new File("src/test/resources/target/multimedia").toPath();
+		copyDirectory(rootSource, tempSrcDir);
+		copyDirectory(rootTarget, tempTargetDir);
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(1, report.getNoOfNewFiles());
+	}
+
+	@Test
+	public void testAll() throws IOException
+	{
+		final Path rootSource = new File("src/test/resources/source").toPath();
+		final Path rootTarget = new File("src/test/resources/target").toPath();
+		copyDirectory(rootSource, tempSrcDir);
+		copyDirectory(rootTarget, tempTargetDir);
+
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(9, targetMap.size());
+		assertEquals(8, syncer.getHashedTargetMap().size());
+
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		assertEquals(20, syncer.buildTargetFileMap().size());
+		checkReport(report, 1, 10, 1);
+		assertEquals(29, report.getNoOfTargetFiles());
+		assertEquals(15, report.getNoOfSourceFiles());
+		assertEquals(5, report.getNoOfSourceDirectories());
+		assertTrue("report time was " + report.getSyncTime(), report.getSyncTime() > 0.0 && report.getSyncTime() < 1.0);
+	}
+
+	@Test
+	public void testApplySavedPlan() throws IOException
+	{
+		copyDirectory(new File("src/test/resources/source").toPath(), tempSrcDir);
+		copyDirectory(new File("src/test/resources/target").toPath(), tempTargetDir);
+		DirectorySyncer simulation = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		simulation.findAndHandleSourcesInTargetMap(simulation.buildTargetFileMap());
+		Path planFile = Paths.get("temp.plan");
+		try
+		{
+			simulation.getPlan().save(planFile);
+			assertEquals(9, new DirectorySyncer(tempSrcDir, tempTargetDir, false).buildTargetFileMap().size());
+
+			DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+			Report report = syncer.applyPlan(SyncPlan.load(planFile));
+			checkReport(report, 1, 10, 1);
+			assertEquals(15, report.getNoOfSourceFiles());
+			assertEquals(0, report.getNoOfTargetFiles());
+			assertTrue(report.getStaleFiles().isEmpty());
+			assertEquals(20, new DirectorySyncer(tempSrcDir, tempTargetDir, false).buildTargetFileMap().size());
+		} finally
+		{
+			Files.deleteIfExists(planFile);
+		}
+	}
+
+	@Test
+	public void testApplyPlanSkipsStaleFiles() throws IOException
+	{
+		Files.delete(targetFile);
+		Path otherFile = createTempFile(tempSrcDir, "src/test/resources/source/links.html");
+		DirectorySyncer simulation = new DirectorySyncer(tempSrcDir, tempTargetDir, true);
+		simulation.findAndHandleSourcesInTargetMap(simulation.buildTargetFileMap());
+		assertEquals(2, simulation.getPlan().getSteps().size());
+
+		Files.write(otherFile, "changed after the simulation".getBytes());
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		Report report = syncer.applyPlan(simulation.getPlan());
+		checkReport(report, 0, 1, 0);
+		assertTrue(Files.exists(targetFile));
+		assertFalse(Files.exists(Paths.get(tempTargetDir, "links.html")));
+		assertEquals(1, report.getStaleFiles().size());
+		assertTrue(report.getStaleFiles().get(0).endsWith("links.html"));
+	}
+
+	@Test
+	public void testUnchangedSubtreesAreSkipped() throws IOException
+	{
+		Files.delete(targetFile);
+		createTempFile(tempSrcDir + "/static/deep", "src/test/resources/source/links.html");
+		createTempFile(tempSrcDir + "/static", "src/test/resources/source/martin.html");
+		Path changing = createTempFile(tempSrcDir + "/changing", "src/test/resources/source/links.html");
+		Path summaryFile = Paths.get("temp.summaries");
+		try
+		{
+			Report first = syncWithSummaries(summaryFile, 0, 0);
+			assertEquals(4, first.getNoOfNewFiles());
+			assertEquals(0, first.getNoOfUnchangedFiles());
+
+			// the first sync wrote into every directory, the second one finds them in sync
+			// both links.html have the same hash
+			Report second = syncWithSummaries(summaryFile, 4, 3);
+			assertEquals(0, second.getNoOfNewFiles());
+			assertEquals(0, second.getNoOfUnchangedFiles());
+
+			// nothing changed, the target files are neither mapped nor hashed
+			Report third = syncWithSummaries(summaryFile, 0, 0);
+			assertEquals(4, third.getNoOfUnchangedFiles());
+			assertEquals(4, third.getNoOfSourceFiles());
+			assertEquals(4, third.getNoOfTargetFiles());
+
+			Files.write(changing, "new content".getBytes());
+			// the files in static are not mapped, those in the root and in changing are
+			Report fourth = syncWithSummaries(summaryFile, 2, 2);
+			assertEquals(1, fourth.getNoOfChangedFiles());
+			// only static and its subdirectory are skipped, the root contains the changed directory
+			assertEquals(2, fourth.getNoOfUnchangedFiles());
+			assertEquals(4, fourth.getNoOfSourceFiles());
+		} finally
+		{
+			Files.deleteIfExists(summaryFile);
+		}
+	}
+
+	private Report syncWithSummaries(Path summaryFile, int mappedTargetFiles, int targetHashes) throws IOException
+	{
+		DirectorySummaries summaries = new DirectorySummaries(summaryFile).load();
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir, tempTargetDir, false);
+		syncer.setDirectorySummaries(summaries);
+		Map<String, Path> targetMap = syncer.buildTargetFileMap();
+		assertEquals(mappedTargetFiles, targetMap.size());
+		assertEquals(targetHashes, syncer.getHashedTargetMap().size());
+		Report report = syncer.findAndHandleSourcesInTargetMap(targetMap);
+		summaries.save();
+		return report;
+	}
+
+	private void checkReport(Report report, int noChanged, int noNew, int noDir)
+	{
+		assertEquals(noChanged, report.getNoOfChangedFiles());
+		assertEquals(noNew, report.getNoOfNewFiles());
+		assertEquals(noDir, report.getNoOfNewDirectories());
+		Set<Entry<Path, Path>> changedFiles = report.getChangedFiles().entrySet();
+		assertEquals(noChanged, changedFiles.size());
+		Set<Entry<Path, Path>> newFiles = report.getNewFiles().entrySet();
+		assertEquals(noNew, newFiles.size());
+		List<Path> newDirs = report.getNewDirectories();
+		assertEquals(noDir, newDirs.size());
+	}
+
+	private void copyDirectory(final Path rootSource, final String copytodir) throws IOException
+	{
+		Files.walkFileTree(rootSource, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.copy(file, new File(copytodir + "/" + rootSource.relativize(file)).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+				return super.visitFile(file, attrs);
+			}
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				Path newdir = new File(copytodir + "/" + rootSource.relativize(dir)).toPath();
+				if (!Files.exists(newdir))
+					Files.createDirectory(newdir);
+				return super.preVisitDirectory(dir, attrs);
+			}
+		});
+	}
+
+	private void cleanup(String dir) throws IOException
+	{
+		Files.walkFileTree(new File(dir).toPath(), new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.delete(file);
+				return super.visitFile(file, attrs);
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				Files.delete(dir);
+				return super.postVisitDirectory(dir, exc);
+			}
+		});
+
+	}
+
+	private Path createTempFile(String tempDir, String filePath) throws IOException
+	{
+		Path path = new File(tempDir).toPath();
+		if (!Files.exists(path))
+			Files.createDirectories(path);
+		final Path source = new File(filePath).toPath();
+		Path target = new File(tempDir + "/" + source.getFileName()).toPath();
+		Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+		return target;
+	}
+}
@@ -0,0 +1,119 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+
+public class TestFanOutSyncer
+{
+	private final Path tempSrcDir = Paths.get("tempfan");
+	private final List<Path> tempTargetDirs = Arrays.asList(Paths.get("tempfan1"), Paths.get("tempfan2"),
+			Paths.get("tempfan3"));
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(tempSrcDir.resolve("sub"));
+		for (Path target : tempTargetDirs)
+			Files.createDirectories(target);
+		Files.copy(Paths.get("src/test/resources/source/links.html"), tempSrcDir.resolve("sub/links.html"));
+		Files.copy(Paths.get("src/test/resources/source/martin.html"), tempSrcDir.resolve("martin.html"));
+		byte[] bigFile = new byte[3 * 1024 * 1024 + 17];
+		new Random(42).nextBytes(bigFile);
+		Files.write(tempSrcDir.resolve("sub/big.bin"), bigFile);
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(tempSrcDir);
+		for (Path target : tempTargetDirs)
+			TempFiles.delete(target);
+	}
+
+	@Test
+	public void testCopyIntoAllTargets() throws IOException
+	{
+		// the second target already has martin.html, the third has it at another location, but without its siblings
+		Files.copy(tempSrcDir.resolve("martin.html"), tempTargetDirs.get(1).resolve("martin.html"));
+		Files.createDirectories(tempTargetDirs.get(2).resolve("moved"));
+		Files.copy(tempSrcDir.resolve("martin.html"), tempTargetDirs.get(2).resolve("moved/martin.html"));
+
+		FanOutSyncer syncer = new FanOutSyncer(tempSrcDir.toString(), toStrings(tempTargetDirs), false);
+		syncer.setQueuedChunksPerTarget(1);
+		List<Report> reports = syncer.sync();
+
+		assertEquals(3, reports.size());
+		assertEquals(3, reports.get(0).getNoOfNewFiles());
+		assertEquals(2, reports.get(1).getNoOfNewFiles());
+		assertEquals(3, reports.get(2).getNoOfNewFiles());
+		assertEquals(1, reports.get(2).getAdditionalFiles().size());
+		for (Path target : tempTargetDirs)
+		{
+			assertArrayEquals(Files.readAllBytes(tempSrcDir.resolve("sub/big.bin")),
+					Files.readAllBytes(target.resolve("sub/big.bin")));
+			assertArrayEquals(Files.readAllBytes(tempSrcDir.resolve("sub/links.html")),
+					Files.readAllBytes(target.resolve("sub/links.html")));
+		}
+		for (Report report : reports)
+			assertEquals(3, report.getNoOfSourceFiles());
+	}
+
+	@Test
+	public void testWritesGoThroughTheCopyLane() throws IOException
+	{
+		final List<Long> copiedBytes = Collections.synchronizedList(new ArrayList<Long>());
+		FanOutSyncer syncer = new FanOutSyncer(tempSrcDir.toString(), toStrings(tempTargetDirs), false);
+		syncer.setIoScheduler(new IoScheduler(2)
+		{
+			@Override
+			public <T> T run(Lane lane, Path file, long bytes, IoTask<T> task) throws IOException
+			{
+				if (lane == Lane.COPY)
+					copiedBytes.add(bytes);
+				return super.run(lane, file, bytes, task);
+			}
+		});
+		List<Report> reports = syncer.sync();
+
+		long sourceBytes = Files.size(tempSrcDir.resolve("sub/big.bin")) + Files.size(tempSrcDir.resolve(
+				"sub/links.html")) + Files.size(tempSrcDir.resolve("martin.html"));
+		long total = 0;
+		for (long bytes : copiedBytes)
+			total += bytes;
+		// only the writes, the syncers of the targets just record their copies
+		assertEquals(tempTargetDirs.size() * sourceBytes, total);
+		for (Report report : reports)
+		{
+			assertEquals(3, report.getCopyStrategies().size());
+			assertEquals(Collections.singleton(CopyStrategy.BUFFERED),
+					new HashSet<CopyStrategy>(report.getCopyStrategies().values()));
+		}
+	}
+
+	@Test
+	public void testSimulation() throws IOException
+	{
+		List<Report> reports = new FanOutSyncer(tempSrcDir.toString(), toStrings(tempTargetDirs), true).sync();
+		for (int i = 0; i < reports.size(); i++)
+		{
+			assertEquals(3, reports.get(i).getNoOfNewFiles());
+			assertFalse(Files.exists(tempTargetDirs.get(i).resolve("martin.html")));
+		}
+	}
+
+	private List<String> toStrings(List<Path> paths)
+	{
+		List<String> strings = new ArrayList<String>();
+		for (Path path : paths)
+			strings.add(path.toString());
+		return strings;
+	}
+}
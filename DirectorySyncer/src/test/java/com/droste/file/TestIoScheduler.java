@@ -0,0 +1,134 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+import com.droste.file.IoScheduler.Lane;
+
+public class TestIoScheduler
+{
+	private final Path file = Paths.get("pom.xml");
+
+	@Test
+	public void testLimitAdaptsToLatency() throws IOException
+	{
+		IoScheduler scheduler = new IoScheduler(4);
+		assertEquals(4, scheduler.getLimit(Lane.HASH, file));
+		for (int i = 0; i < 40; i++)
+			runFor(scheduler, Lane.HASH, 1);
+		assertEquals(4, scheduler.getLimit(Lane.HASH, file));
+		for (int i = 0; i < 8; i++)
+			runFor(scheduler, Lane.HASH, 30);
+		assertTrue(scheduler.getLimit(Lane.HASH, file) < 4);
+		// the other lanes are not affected
+		assertEquals(4, scheduler.getLimit(Lane.COPY, file));
+
+		for (int i = 0; i < 60; i++)
+			runFor(scheduler, Lane.HASH, 1);
+		assertEquals(4, scheduler.getLimit(Lane.HASH, file));
+	}
+
+	@Test
+	public void testDeviceLimitIsShared() throws Exception
+	{
+		final IoScheduler scheduler = new IoScheduler(2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(6);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 12; i++)
+		{
+			final Lane lane = (i % 2 == 0) ? Lane.HASH : Lane.COPY;
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					return scheduler.run(lane, file, 0, new IoScheduler.IoTask<Void>()
+					{
+						@Override
+						public Void run() throws IOException
+						{
+							int now = running.incrementAndGet();
+							synchronized (maxRunning)
+							{
+								maxRunning.set(Math.max(maxRunning.get(), now));
+							}
+							sleep(5);
+							running.decrementAndGet();
+							return null;
+						}
+					});
+				}
+			}));
+		}
+		for (Future<Void> future : futures)
+			future.get();
+		executor.shutdown();
+		assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 2);
+	}
+
+	@Test
+	public void testSortByInode() throws IOException
+	{
+		List<Path> files = new ArrayList<Path>();
+		Map<Path, BasicFileAttributes> attributes = new HashMap<Path, BasicFileAttributes>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get("src/test/resources/source")))
+		{
+			for (Path path : stream)
+			{
+				files.add(path);
+				attributes.put(path, Files.readAttributes(path, BasicFileAttributes.class));
+			}
+		}
+		IoScheduler.sortByInode(files, attributes);
+		for (int i = 1; i < files.size(); i++)
+		{
+			long inode = IoScheduler.inode(attributes.get(files.get(i)));
+			if (inode >= 0)
+				assertTrue(IoScheduler.inode(attributes.get(files.get(i - 1))) <= inode);
+		}
+	}
+
+	@Test
+	public void testSyncWithScheduler() throws IOException
+	{
+		DirectorySyncer syncer = new DirectorySyncer("src/test/resources/source", "src/test/resources/target", true);
+		syncer.setIoScheduler(new IoScheduler(2));
+		syncer.setThreads(3);
+		assertEquals(9, syncer.buildTargetFileMap().size());
+		assertEquals(8, syncer.getHashedTargetMap().size());
+	}
+
+	private void runFor(IoScheduler scheduler, Lane lane, final long millis) throws IOException
+	{
+		scheduler.run(lane, file, 0, new IoScheduler.IoTask<Void>()
+		{
+			@Override
+			public Void run()
+			{
+				sleep(millis);
+				return null;
+			}
+		});
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
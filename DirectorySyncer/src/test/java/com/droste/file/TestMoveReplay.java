@@ -0,0 +1,62 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class TestMoveReplay
+{
+	private final MoveReplay replay = new MoveReplay();
+	private final Set<Path> targetFiles = new HashSet<Path>();
+	private final Set<Path> directories = new HashSet<Path>();
+
+	@Before
+	public void setUp()
+	{
+		for (String file : new String[] { "t/old/a", "t/old/b", "t/mixed/c", "t/mixed/d" })
+			targetFiles.add(Paths.get(file));
+		directories.addAll(Arrays.asList(Paths.get("t"), Paths.get("t/old"), Paths.get("t/mixed")));
+	}
+
+	@Test
+	public void testFolderMovesAsWhole()
+	{
+		replay.add(Paths.get("s/new/a"), Paths.get("t/old/a"), Paths.get("t/new/a"));
+		replay.add(Paths.get("s/new/b"), Paths.get("t/old/b"), Paths.get("t/new/b"));
+		List<MoveReplay.Move> moves = replay.plan(targetFiles, directories, Collections.<Path> emptySet());
+		assertEquals(1, moves.size());
+		assertTrue(moves.get(0).isDirectory());
+		assertEquals(Paths.get("t/old"), moves.get(0).getFrom());
+		assertEquals(Paths.get("t/new"), moves.get(0).getTo());
+		assertEquals(2, moves.get(0).getFiles().size());
+		assertTrue(replay.isMoved(Paths.get("t/old/a")));
+	}
+
+	@Test
+	public void testPartialOrRenamedMovesFileByFile()
+	{
+		// only one of two files leaves the folder
+		replay.add(Paths.get("s/new/c"), Paths.get("t/mixed/c"), Paths.get("t/new/c"));
+		// a rename of the file
+		replay.add(Paths.get("s/new/x"), Paths.get("t/old/a"), Paths.get("t/new/x"));
+		replay.add(Paths.get("s/new/b"), Paths.get("t/old/b"), Paths.get("t/new/b"));
+		List<MoveReplay.Move> moves = replay.plan(targetFiles, directories, Collections.<Path> emptySet());
+		assertEquals(3, moves.size());
+		for (MoveReplay.Move move : moves)
+			assertFalse(move.isDirectory());
+	}
+
+	@Test
+	public void testExistingOrStayingFolderIsNotMoved()
+	{
+		replay.add(Paths.get("s/new/a"), Paths.get("t/old/a"), Paths.get("t/new/a"));
+		replay.add(Paths.get("s/new/b"), Paths.get("t/old/b"), Paths.get("t/new/b"));
+		assertFalse(replay.plan(targetFiles, directories, Collections.singleton(Paths.get("t/old"))).get(0)
+				.isDirectory());
+		directories.add(Paths.get("t/new"));
+		assertFalse(replay.plan(targetFiles, directories, Collections.<Path> emptySet()).get(0).isDirectory());
+	}
+}
@@ -0,0 +1,147 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.droste.file.report.Report;
+
+public class TestPackStore
+{
+	private final Path packDir = Paths.get("temppack");
+	private final Path sourceDir = Paths.get("temppacksrc");
+	private final Path restoreDir = Paths.get("temppackrestore");
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(sourceDir.resolve("sub"));
+		TempFiles.write(sourceDir.resolve("a.txt"), "first file");
+		TempFiles.write(sourceDir.resolve("sub/b.txt"), "second file, a bit longer than the first one");
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(packDir);
+		TempFiles.delete(sourceDir);
+		TempFiles.delete(restoreDir);
+	}
+
+	@Test
+	public void testStoreAndRestore() throws IOException
+	{
+		try (PackStore store = new PackStore(packDir).load())
+		{
+			store.setSegmentSize(10);
+			store.add("a.txt", sourceDir.resolve("a.txt"), 1000);
+			store.add("sub/b.txt", sourceDir.resolve("sub/b.txt"), 2000);
+		}
+		// every file started a new segment
+		assertTrue(Files.exists(packDir.resolve("pack-00001.dat")));
+
+		PackStore store = new PackStore(packDir).load();
+		assertEquals(2, store.size());
+		assertEquals(1000, store.get("A.TXT").getLastModified());
+		assertEquals(2, store.restoreAll(restoreDir));
+		assertEquals("first file", TempFiles.read(restoreDir.resolve("a.txt")));
+		assertEquals("second file, a bit longer than the first one", TempFiles.read(restoreDir.resolve("sub/b.txt")));
+		assertEquals(2000, Files.getLastModifiedTime(restoreDir.resolve("sub/b.txt")).toMillis());
+		assertTrue(store.verify().isEmpty());
+	}
+
+	@Test
+	public void testCorruptionIsDetected() throws IOException
+	{
+		try (PackStore store = new PackStore(packDir).load())
+		{
+			store.add("a.txt", sourceDir.resolve("a.txt"), 1000);
+			store.add("sub/b.txt", sourceDir.resolve("sub/b.txt"), 2000);
+		}
+		// flip a bit in the middle of the second file
+		long offset = Files.size(packDir.resolve("pack-00000.dat")) - 10;
+		try (FileChannel channel = FileChannel.open(packDir.resolve("pack-00000.dat"), StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(1);
+			channel.read(buffer, offset);
+			buffer.put(0, (byte) (buffer.get(0) ^ 0x10));
+			buffer.rewind();
+			channel.write(buffer, offset);
+		}
+		List<String> broken = new PackStore(packDir).load().verify();
+		assertEquals(Collections.singletonList("sub/b.txt"), broken);
+	}
+
+	@Test
+	public void testIndexIsFlushedAtCheckpoints() throws IOException
+	{
+		PackStore store = new PackStore(packDir).load();
+		store.setCheckpointSize(1);
+		store.add("a.txt", sourceDir.resolve("a.txt"), 1000);
+		// not closed, like after a crash
+		PackStore reopened = new PackStore(packDir).load();
+		assertEquals(1, reopened.size());
+		reopened.restore("a.txt", restoreDir.resolve("a.txt"));
+		assertEquals("first file", TempFiles.read(restoreDir.resolve("a.txt")));
+		store.close();
+	}
+
+	@Test
+	public void testSharedDataStaysACandidate() throws IOException
+	{
+		try (PackStore store = new PackStore(packDir).load())
+		{
+			PackStore.Entry first = store.add("sub/b.txt", sourceDir.resolve("sub/b.txt"), 1000);
+			store.link("copy.txt", first, 1000);
+			// the first path changes, the copy still has the data
+			store.add("sub/b.txt", sourceDir.resolve("a.txt"), 2000);
+			PackStore.Entry sameContent = store.findSameContent(sourceDir.resolve("sub/b.txt"),
+					Files.size(sourceDir.resolve("sub/b.txt")));
+			assertNotNull(sameContent);
+			assertEquals("copy.txt", sameContent.getPath());
+		}
+	}
+
+	@Test
+	public void testArchiveSync() throws IOException
+	{
+		Report report = archive(true);
+		assertEquals(2, report.getNoOfNewFiles());
+		assertFalse(Files.exists(packDir));
+
+		report = archive(false);
+		assertEquals(2, report.getNoOfNewFiles());
+
+		// unchanged files are not stored again, a moved file is only indexed
+		Files.copy(sourceDir.resolve("sub/b.txt"), sourceDir.resolve("moved.txt"));
+		report = archive(false);
+		assertEquals(3, report.getNoOfSourceFiles());
+		assertEquals(0, report.getNoOfNewFiles());
+		assertEquals(1, report.getNoOfRelocatedFiles());
+
+		TempFiles.write(sourceDir.resolve("a.txt"), "changed");
+		assertEquals(1, archive(false).getNoOfChangedFiles());
+
+		PackStore store = new PackStore(packDir).load();
+		assertEquals(3, store.size());
+		store.restore("moved.txt", restoreDir.resolve("moved.txt"));
+		assertEquals("second file, a bit longer than the first one", TempFiles.read(restoreDir.resolve("moved.txt")));
+		store.restore("a.txt", restoreDir.resolve("a.txt"));
+		assertEquals("changed", TempFiles.read(restoreDir.resolve("a.txt")));
+	}
+
+	private Report archive(boolean simulation) throws IOException
+	{
+		try (PackStore store = new PackStore(packDir).load())
+		{
+			return new ArchiveSyncer(sourceDir.toString(), store, simulation).sync();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+
+import org.junit.*;
+
+public class TestRelocationFilter
+{
+	private final Path tempFile = Paths.get("tempfilter.bin");
+
+	@After
+	public void cleanup() throws IOException
+	{
+		Files.deleteIfExists(tempFile);
+	}
+
+	@Test
+	public void testNoFalseNegativesAndFewFalsePositives()
+	{
+		RelocationFilter filter = new RelocationFilter();
+		// several segments are needed for this many files
+		for (long i = 0; i < 20000; i++)
+			filter.add(i, i * 31);
+		for (long i = 0; i < 20000; i++)
+			assertTrue(filter.mightContain(i, i * 31));
+		int falsePositives = 0;
+		for (long i = 0; i < 20000; i++)
+		{
+			if (filter.mightContain(i, i * 31 + 1))
+				falsePositives++;
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 20000 * 0.02);
+	}
+
+	@Test
+	public void testUnknownFileDisablesFilter()
+	{
+		RelocationFilter filter = new RelocationFilter();
+		filter.add(10, 20);
+		assertFalse(filter.mightContain(11, 20));
+		filter.addUnknown();
+		assertTrue(filter.mightContain(11, 20));
+	}
+
+	@Test
+	public void testFingerprintSamplesStartMiddleAndEnd() throws IOException
+	{
+		byte[] content = new byte[100000];
+		Files.write(tempFile, content);
+		long fingerprint = RelocationFilter.fingerprint(tempFile, content.length);
+		content[50000] = 1;
+		Files.write(tempFile, content);
+		assertFalse(fingerprint == RelocationFilter.fingerprint(tempFile, content.length));
+		Arrays.fill(content, (byte) 0);
+		// outside of the samples
+		content[20000] = 1;
+		Files.write(tempFile, content);
+		assertEquals(fingerprint, RelocationFilter.fingerprint(tempFile, content.length));
+		assertEquals(3 * RelocationFilter.SAMPLE_SIZE, RelocationFilter.sampledBytes(content.length));
+		assertEquals(10, RelocationFilter.sampledBytes(10));
+	}
+}
@@ -0,0 +1,111 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.*;
+
+import com.droste.file.report.Report;
+
+public class TestStorageSyncer
+{
+	private final Path sourceDir = Paths.get("tempstoragesrc");
+	private final Path targetDir = Paths.get("tempstoragetarget");
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(sourceDir.resolve("sub/deeper"));
+		write(sourceDir.resolve("a.txt"), "a");
+		write(sourceDir.resolve("sub/deeper/b.txt"), "b");
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(sourceDir);
+		TempFiles.delete(targetDir);
+	}
+
+	@Test
+	public void testSyncToFileServer() throws IOException
+	{
+		SimulatedStorage storage = new SimulatedStorage(false, 0, 0);
+		Report report = sync(storage, 2);
+		assertEquals(2, report.getNoOfNewFiles());
+		assertEquals(2, report.getNoOfNewDirectories());
+		assertEquals("b", read(storage, "sub/deeper/b.txt"));
+
+		assertEquals(0, sync(storage, 2).getNoOfChanges());
+		write(sourceDir.resolve("a.txt"), "changed");
+		report = sync(storage, 2);
+		// both versions are kept, like by the DirectorySyncer
+		assertEquals(1, report.getNoOfChangedFiles());
+		assertEquals("a", read(storage, "a.txt"));
+		assertEquals("changed", read(storage, "a (1).txt"));
+		assertEquals(0, sync(storage, 2).getNoOfChanges());
+	}
+
+	@Test
+	public void testSyncToLocalDirectory() throws IOException
+	{
+		Files.createDirectories(targetDir);
+		LocalStorage storage = new LocalStorage(targetDir);
+		assertEquals(2, sync(storage, 1).getNoOfNewFiles());
+		assertEquals(Files.getLastModifiedTime(sourceDir.resolve("sub/deeper/b.txt")),
+				Files.getLastModifiedTime(targetDir.resolve("sub/deeper/b.txt")));
+		assertEquals(0, sync(storage, 1).getNoOfChanges());
+
+		write(sourceDir.resolve("a.txt"), "changed");
+		assertEquals(1, sync(storage, 1).getNoOfChangedFiles());
+		assertEquals("changed", read(storage, "a (1).txt"));
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(targetDir, "*" + SyncJournal.PART_SUFFIX))
+		{
+			assertFalse("no part file is left", files.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testParallelRequestsOverlap() throws IOException
+	{
+		for (int i = 0; i < 16; i++)
+			write(sourceDir.resolve("file" + i + ".txt"), "content " + i);
+		SimulatedStorage storage = new SimulatedStorage(true, 50, 0);
+		long start = System.currentTimeMillis();
+		assertEquals(18, sync(storage, 8).getNoOfNewFiles());
+		// one listing and 18 writes, about 3 after each other
+		assertTrue(System.currentTimeMillis() - start < 18 * 50);
+		assertEquals(19, storage.getRequests());
+		assertNotNull(storage.stat("sub/deeper"));
+	}
+
+	private Report sync(StorageProvider storage, int threads) throws IOException
+	{
+		StorageSyncer syncer = new StorageSyncer(sourceDir.toString(), storage, false);
+		syncer.setThreads(threads);
+		return syncer.sync();
+	}
+
+	private void write(Path file, String content) throws IOException
+	{
+		TempFiles.write(file, content);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() / 1000 * 1000 + content.length()));
+	}
+
+	private String read(StorageProvider storage, String path) throws IOException
+	{
+		try (InputStream in = storage.openRead(path))
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) > -1)
+				out.write(buffer, 0, read);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
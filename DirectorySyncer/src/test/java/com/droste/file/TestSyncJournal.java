@@ -0,0 +1,168 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.droste.file.report.CopyStrategy;
+import com.droste.file.report.Report;
+
+public class TestSyncJournal
+{
+	private final Path tempSrcDir = Paths.get("tempjournal");
+	private final Path tempTargetDir = Paths.get("tempjournal2");
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(tempSrcDir.resolve("sub"));
+		Files.createDirectories(tempTargetDir);
+		Files.copy(Paths.get("src/test/resources/source/links.html"), tempSrcDir.resolve("sub/links.html"));
+		Files.copy(Paths.get("src/test/resources/source/martin.html"), tempSrcDir.resolve("martin.html"));
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(tempSrcDir);
+		TempFiles.delete(tempTargetDir);
+	}
+
+	@Test
+	public void testResumeAfterFailedCopy() throws IOException
+	{
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir.toString(), tempTargetDir.toString(), false);
+		syncer.setFileCopier(new FileCopier()
+		{
+			private int copies = 0;
+
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				if (++copies > 1)
+					throw new IOException("disk gone");
+				return FileCopier.FILES_COPY.copy(source, target);
+			}
+		});
+		SyncJournal journal = SyncJournal.start(tempTargetDir);
+		syncer.setJournal(journal);
+		try
+		{
+			syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+			fail("second copy should fail");
+		} catch (IOException e)
+		{
+			journal.close();
+		}
+		assertTrue(Files.exists(tempTargetDir.resolve(SyncJournal.JOURNAL_FILE)));
+
+		DirectorySyncer resumed = new DirectorySyncer(tempSrcDir.toString(), tempTargetDir.toString(), false);
+		SyncJournal resumedJournal = SyncJournal.resume(tempTargetDir);
+		assertEquals(1, resumedJournal.getNoOfCompletedFiles());
+		resumed.setJournal(resumedJournal);
+		Report report = resumed.findAndHandleSourcesInTargetMap(resumed.buildTargetFileMap());
+		resumedJournal.finish();
+		// the journal files are not counted as target files
+		assertEquals(1, report.getNoOfTargetFiles());
+		assertEquals(1, report.getNoOfResumedFiles());
+		assertEquals(1, report.getNoOfNewFiles());
+		assertTrue(Files.exists(tempTargetDir.resolve("sub/links.html")));
+		assertTrue(Files.exists(tempTargetDir.resolve("martin.html")));
+		assertFalse(Files.exists(tempTargetDir.resolve(SyncJournal.JOURNAL_FILE)));
+		assertFalse(Files.exists(tempTargetDir.resolve(SyncJournal.HASH_CACHE_FILE)));
+	}
+
+	@Test
+	public void testResumeWithAbsolutePaths() throws IOException
+	{
+		failAfterFirstCopy();
+		DirectorySyncer resumed = new DirectorySyncer(tempSrcDir.toAbsolutePath() + "/./",
+				tempTargetDir.toAbsolutePath().toString(), false);
+		SyncJournal resumedJournal = SyncJournal.resume(tempTargetDir);
+		resumed.setJournal(resumedJournal);
+		Report report = resumed.findAndHandleSourcesInTargetMap(resumed.buildTargetFileMap());
+		resumedJournal.finish();
+		assertEquals(1, report.getNoOfResumedFiles());
+		assertEquals(1, report.getNoOfNewFiles());
+	}
+
+	@Test
+	public void testChangedSourceIsNotResumed() throws IOException
+	{
+		Path copied = failAfterFirstCopy();
+		Files.write(copied, "changed".getBytes(), StandardOpenOption.APPEND);
+		SyncJournal resumedJournal = SyncJournal.resume(tempTargetDir);
+		assertEquals(1, resumedJournal.getNoOfCompletedFiles());
+		assertFalse(resumedJournal.isCompleted(copied));
+		resumedJournal.finish();
+	}
+
+	/** @return the source file that was copied before the sync failed */
+	private Path failAfterFirstCopy() throws IOException
+	{
+		final List<Path> copied = new ArrayList<Path>();
+		DirectorySyncer syncer = new DirectorySyncer(tempSrcDir.toString(), tempTargetDir.toString(), false);
+		syncer.setFileCopier(new FileCopier()
+		{
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				if (!copied.isEmpty())
+					throw new IOException("disk gone");
+				copied.add(source);
+				return FileCopier.FILES_COPY.copy(source, target);
+			}
+		});
+		SyncJournal journal = SyncJournal.start(tempTargetDir);
+		syncer.setJournal(journal);
+		try
+		{
+			syncer.findAndHandleSourcesInTargetMap(syncer.buildTargetFileMap());
+			fail("second copy should fail");
+		} catch (IOException e)
+		{
+			journal.close();
+		}
+		return copied.get(0);
+	}
+
+	@Test
+	public void testFailedCopyLeavesNoFile() throws IOException
+	{
+		SyncJournal journal = SyncJournal.start(tempTargetDir);
+		FileCopier failing = journal.journaling(new FileCopier()
+		{
+			@Override
+			public CopyStrategy copy(Path source, Path target) throws IOException
+			{
+				Files.write(target, new byte[] { 1, 2, 3 });
+				throw new IOException("disk full");
+			}
+		});
+		try
+		{
+			failing.copy(tempSrcDir.resolve("martin.html"), tempTargetDir.resolve("martin.html"));
+			fail("copy should fail");
+		} catch (IOException e)
+		{
+			// expected
+		}
+		journal.finish();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(tempTargetDir))
+		{
+			assertFalse(files.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testIsJournalFile()
+	{
+		assertTrue(SyncJournal.isJournalFile(Paths.get("x", SyncJournal.JOURNAL_FILE)));
+		assertTrue(SyncJournal.isJournalFile(Paths.get("x", "a.txt" + SyncJournal.PART_SUFFIX)));
+		assertFalse(SyncJournal.isJournalFile(Paths.get("x", "a.txt")));
+	}
+}
@@ -0,0 +1,131 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import org.junit.*;
+
+public class TestSyncRules
+{
+	private final Path root = Paths.get("temprules");
+
+	@After
+	public void cleanup() throws IOException
+	{
+		if (!Files.exists(root))
+			return;
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+			{
+				Files.delete(file);
+				return super.visitFile(file, attrs);
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
+			{
+				Files.delete(dir);
+				return super.postVisitDirectory(dir, exc);
+			}
+		});
+	}
+
+	@Test
+	public void testPatterns()
+	{
+		RuleMatcher matcher = new RuleMatcher();
+		List<String> root = Collections.emptyList();
+		matcher.add(root, "*.tmp");
+		matcher.add(root, "!keep.tmp");
+		matcher.add(root, "cache/");
+		matcher.add(root, "/docs/*.pdf");
+		matcher.add(root, "src/**/gen");
+		matcher.add(root, "out/**");
+		matcher.add(root, "[ab]?.log");
+		matcher.add(root, "# comment");
+
+		assertTrue(matches(matcher, false, "a.TMP"));
+		assertTrue(matches(matcher, false, "deep", "down", "x.tar.tmp"));
+		assertFalse(matches(matcher, false, "keep.tmp"));
+		assertTrue(matches(matcher, true, "x", "cache"));
+		assertFalse(matches(matcher, false, "x", "cache"));
+		assertTrue(matches(matcher, false, "docs", "a.pdf"));
+		assertFalse(matches(matcher, false, "x", "docs", "a.pdf"));
+		assertTrue(matches(matcher, true, "src", "gen"));
+		assertTrue(matches(matcher, true, "src", "a", "b", "gen"));
+		assertFalse(matches(matcher, true, "out"));
+		assertTrue(matches(matcher, false, "out", "a", "b.txt"));
+		assertTrue(matches(matcher, false, "b1.log"));
+		assertFalse(matches(matcher, false, "c1.log"));
+		assertFalse(matches(matcher, false, "# comment"));
+	}
+
+	@Test
+	public void testRuleFilesAndLimits() throws IOException
+	{
+		Files.createDirectories(root.resolve("a/node_modules/lib"));
+		Files.createDirectories(root.resolve("b/node_modules"));
+		Files.write(root.resolve("a/" + SyncRules.RULE_FILE), "node_modules/\n*.log\n".getBytes());
+		Path big = Files.write(root.resolve("a/big.bin"), new byte[2048]);
+		Path old = Files.write(root.resolve("a/old.txt"), new byte[1]);
+		Files.setLastModifiedTime(old, FileTime.fromMillis(System.currentTimeMillis() - 3 * 24 * 3600 * 1000L));
+		Path log = Files.write(root.resolve("b/x.log"), new byte[1]);
+
+		Path rulesFile = root.resolve("rules");
+		Files.write(rulesFile, ":max-size 1k\n:max-age 2d\n:hash-by-size *.bin\n!thumbs.db\n".getBytes());
+		SyncRules rules = SyncRules.load(rulesFile);
+		SyncRules.Walk walk = rules.walk(root, root);
+		assertTrue(walk.enter(root));
+		assertTrue(walk.enter(root.resolve("a")));
+		assertFalse(walk.enter(root.resolve("a/node_modules")));
+		assertFalse(walk.includes(big, attributes(big)));
+		assertFalse(walk.includes(old, attributes(old)));
+		assertFalse(walk.includes(root.resolve("a/y.log"), attributes(log)));
+		assertTrue(walk.includes(root.resolve("a/thumbs.db"), attributes(log)));
+		walk.leave();
+		// the rule file of a applies below a only
+		assertTrue(walk.enter(root.resolve("b/node_modules")));
+		assertTrue(walk.includes(log, attributes(log)));
+		assertFalse(rules.usesContentHash(big));
+		assertTrue(rules.usesContentHash(log));
+
+		// a walk that starts deeper reads the rule files on the way
+		assertFalse(new SyncRules().walk(root, root).enter(root.resolve("a/node_modules/lib")));
+	}
+
+	@Test
+	public void testParseLimits()
+	{
+		assertEquals(100L * 1024 * 1024, SyncRules.parseSize("100M"));
+		assertEquals(512, SyncRules.parseSize("512"));
+		assertEquals(36L * 3600 * 1000, SyncRules.parseAge("36h"));
+		try
+		{
+			SyncRules.parseAge("30");
+			fail("age without unit");
+		} catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+
+	private boolean matches(RuleMatcher matcher, boolean isDirectory, String... path)
+	{
+		RuleMatcher.State state = matcher.start();
+		for (String name : path)
+			state = matcher.step(state, name);
+		return matcher.matches(state, isDirectory);
+	}
+
+	private BasicFileAttributes attributes(Path file) throws IOException
+	{
+		return Files.readAttributes(file, BasicFileAttributes.class);
+	}
+}
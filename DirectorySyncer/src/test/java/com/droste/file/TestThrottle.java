@@ -0,0 +1,50 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.*;
+
+public class TestThrottle
+{
+	@Test
+	public void testUnlimitedDoesNotWait() throws IOException
+	{
+		Throttle throttle = new Throttle(0, 0);
+		for (int i = 0; i < 1000; i++)
+			throttle.acquire(1, 1024 * 1024);
+		assertEquals(0, throttle.getThrottledNanos());
+	}
+
+	@Test
+	public void testFilesPerSecond() throws IOException
+	{
+		Throttle throttle = new Throttle(0, 50);
+		long start = System.nanoTime();
+		// the first 50 are in the bucket, the next 25 take half a second
+		for (int i = 0; i < 75; i++)
+			throttle.acquire(1, 0);
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue("took " + millis + " ms", millis >= 400);
+		assertTrue(throttle.getThrottledNanos() > 0);
+	}
+
+	@Test
+	public void testRateChangesWhileRunning() throws IOException
+	{
+		Throttle throttle = new Throttle(1000, 0);
+		throttle.acquire(0, 1000);
+		throttle.setBytesPerSecond(0);
+		long start = System.nanoTime();
+		throttle.acquire(0, 1000000);
+		assertTrue((System.nanoTime() - start) / 1000000 < 100);
+		assertEquals(0, throttle.getBytesPerSecond());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeRate()
+	{
+		new Throttle(-1, 0);
+	}
+}
@@ -0,0 +1,82 @@
+package com.droste.file;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.*;
+
+import com.droste.file.report.Report;
+
+public class TestTreeAuditor
+{
+	private final Path sourceDir = Paths.get("tempauditsrc");
+	private final Path targetDir = Paths.get("tempaudittarget");
+	private final HashCache hashCache = new HashCache();
+
+	@Before
+	public void setup() throws IOException
+	{
+		for (Path dir : new Path[] { sourceDir, targetDir })
+		{
+			Files.createDirectories(dir.resolve("sub"));
+			TempFiles.write(dir.resolve("same.txt"), "same content");
+			TempFiles.write(dir.resolve("sub/rotting.txt"), "will rot in the target");
+		}
+		TempFiles.write(sourceDir.resolve("differs.txt"), "source version");
+		TempFiles.write(targetDir.resolve("differs.txt"), "target version");
+		TempFiles.write(sourceDir.resolve("only-in-source.txt"), "not audited");
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(sourceDir);
+		TempFiles.delete(targetDir);
+	}
+
+	@Test
+	public void testAuditFindsMismatchesAndBitRot() throws IOException
+	{
+		Report report = audit();
+		assertEquals(4, report.getNoOfSourceFiles());
+		assertEquals(3, report.getNoOfTargetFiles());
+		assertEquals(2, report.getNoOfVerifiedFiles());
+		assertEquals(1, report.getMismatchedFiles().size());
+		assertTrue(report.getCorruptFiles().isEmpty());
+
+		// same size and modification time, other content
+		Path rotting = targetDir.resolve("sub/rotting.txt");
+		FileTime lastModified = Files.getLastModifiedTime(rotting);
+		TempFiles.write(rotting, "will rot in the tArget");
+		Files.setLastModifiedTime(rotting, lastModified);
+		report = audit();
+		assertEquals(1, report.getNoOfVerifiedFiles());
+		assertEquals(1, report.getMismatchedFiles().size());
+		assertEquals(1, report.getCorruptFiles().size());
+		assertTrue(report.getCorruptFiles().get(0).endsWith("rotting.txt"));
+
+		// the cache keeps the good hash
+		assertEquals(1, audit().getCorruptFiles().size());
+	}
+
+	@Test
+	public void testThrottle() throws IOException
+	{
+		TreeAuditor auditor = new TreeAuditor(sourceDir.toString(), targetDir.toString(), hashCache);
+		// six files to hash at five files per second
+		Throttle throttle = new Throttle(0, 5);
+		auditor.setThrottle(throttle);
+		assertEquals(2, auditor.audit().getNoOfVerifiedFiles());
+		assertTrue(throttle.getThrottledNanos() > 0);
+	}
+
+	private Report audit() throws IOException
+	{
+		TreeAuditor auditor = new TreeAuditor(sourceDir.toString(), targetDir.toString(), hashCache);
+		auditor.setThreads(2);
+		return auditor.audit();
+	}
+}
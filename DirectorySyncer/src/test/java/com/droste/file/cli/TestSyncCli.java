@@ -0,0 +1,172 @@
+package com.droste.file.cli;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.junit.*;
+
+import com.droste.file.TempFiles;
+import com.droste.file.Throttle;
+
+public class TestSyncCli
+{
+	private final Path tempSrcDir = Paths.get("tempcli");
+	private final Path tempTargetDir = Paths.get("tempcli2");
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+	@Before
+	public void setup() throws IOException
+	{
+		Files.createDirectories(tempSrcDir.resolve("sub"));
+		Files.createDirectories(tempTargetDir);
+		Files.copy(Paths.get("src/test/resources/source/links.html"), tempSrcDir.resolve("sub/links.html"));
+		Files.copy(Paths.get("src/test/resources/source/martin.html"), tempSrcDir.resolve("martin.html"));
+	}
+
+	@After
+	public void cleanup() throws IOException
+	{
+		TempFiles.delete(tempSrcDir);
+		TempFiles.delete(tempTargetDir);
+		Files.deleteIfExists(Paths.get("tempcli.cache"));
+		Files.deleteIfExists(Paths.get("tempcli.plan"));
+	}
+
+	@Test
+	public void testSummary() throws IOException
+	{
+		int exitCode = run("--source", tempSrcDir.toString(), "--target", tempTargetDir.toString());
+		assertEquals(err.toString(), SyncCli.EXIT_OK, exitCode);
+		String[] lines = output();
+		assertEquals(1, lines.length);
+		assertTrue(lines[0], lines[0].startsWith("{\"type\":\"summary\",\"simulation\":false,\"sourceFiles\":2,"));
+		assertTrue(lines[0].contains("\"newFiles\":2,"));
+		assertTrue(Files.exists(tempTargetDir.resolve("sub/links.html")));
+	}
+
+	@Test
+	public void testNdjsonSimulationWithCache() throws IOException
+	{
+		int exitCode = run(tempSrcDir.toString(), tempTargetDir.toString(), "--simulate", "--output", "ndjson",
+				"--threads", "2", "--hash", "content", "--cache", "tempcli.cache");
+		assertEquals(err.toString(), SyncCli.EXIT_OK, exitCode);
+		String[] lines = output();
+		// two new files, one new directory and the summary
+		assertEquals(4, lines.length);
+		int newFiles = 0;
+		for (String line : lines)
+		{
+			if (line.startsWith("{\"type\":\"new_file\",\"source\":"))
+				newFiles++;
+		}
+		assertEquals(2, newFiles);
+		assertTrue(lines[3].startsWith("{\"type\":\"summary\",\"simulation\":true"));
+		assertFalse(Files.exists(tempTargetDir.resolve("sub")));
+		assertTrue(Files.exists(Paths.get("tempcli.cache")));
+	}
+
+	@Test
+	public void testSeveralTargets() throws IOException
+	{
+		Path secondTarget = Paths.get("tempcli3");
+		Files.createDirectories(secondTarget);
+		try
+		{
+			int exitCode = run(tempSrcDir.toString(), "--target", tempTargetDir.toString(), "--target",
+					secondTarget.toString());
+			assertEquals(err.toString(), SyncCli.EXIT_OK, exitCode);
+			String[] lines = output();
+			assertEquals(2, lines.length);
+			assertTrue(lines[0].endsWith("\"root\":\"tempcli2\"}"));
+			assertTrue(lines[1].endsWith("\"root\":\"tempcli3\"}"));
+			assertTrue(Files.exists(secondTarget.resolve("sub/links.html")));
+		} finally
+		{
+			TempFiles.delete(secondTarget);
+		}
+	}
+
+	@Test
+	public void testSimulatedPlanIsApplied() throws IOException
+	{
+		assertEquals(err.toString(), SyncCli.EXIT_OK,
+				run(tempSrcDir.toString(), tempTargetDir.toString(), "--simulate", "--plan", "tempcli.plan"));
+		assertTrue(Files.exists(Paths.get("tempcli.plan")));
+		assertFalse(Files.exists(tempTargetDir.resolve("martin.html")));
+		out.reset();
+		assertEquals(err.toString(), SyncCli.EXIT_OK,
+				run(tempSrcDir.toString(), tempTargetDir.toString(), "--plan", "tempcli.plan"));
+		String[] lines = output();
+		assertTrue(lines[0], lines[0].contains("\"newFiles\":2,"));
+		assertTrue(lines[0], lines[0].contains("\"staleFiles\":0,"));
+		assertTrue(Files.exists(tempTargetDir.resolve("sub/links.html")));
+	}
+
+	@Test
+	public void testParallelRequests() throws IOException
+	{
+		int exitCode = run(tempSrcDir.toString(), tempTargetDir.toString(), "--parallel-requests", "4");
+		assertEquals(err.toString(), SyncCli.EXIT_OK, exitCode);
+		assertTrue(output()[0], output()[0].contains("\"newFiles\":2,"));
+		assertTrue(Files.exists(tempTargetDir.resolve("sub/links.html")));
+		assertEquals(SyncCli.EXIT_USAGE,
+				run(tempSrcDir.toString(), tempTargetDir.toString(), "--parallel-requests", "4", "--mirror"));
+		assertEquals(SyncCli.EXIT_USAGE,
+				run(tempSrcDir.toString(), tempTargetDir.toString(), "--parallel-requests", "0"));
+	}
+
+	@Test
+	public void testThrottleControl() throws IOException
+	{
+		Throttle throttle = new Throttle(0, 0);
+		assertTrue(SyncCli.control("bytes 1048576", throttle));
+		assertTrue(SyncCli.control(" files  20 ", throttle));
+		assertEquals(1048576, throttle.getBytesPerSecond());
+		assertEquals(20, throttle.getFilesPerSecond());
+		assertFalse(SyncCli.control("bytes -1", throttle));
+		assertFalse(SyncCli.control("speed 5", throttle));
+
+		InputStream in = new ByteArrayInputStream("files 0\n".getBytes(StandardCharsets.UTF_8));
+		int exitCode = new SyncCli().run(new String[] { tempSrcDir.toString(), tempTargetDir.toString(),
+				"--max-files-per-second", "1000", "--control" }, in, new PrintStream(out), new PrintStream(err));
+		assertEquals(err.toString(), SyncCli.EXIT_OK, exitCode);
+		assertTrue(Files.exists(tempTargetDir.resolve("martin.html")));
+	}
+
+	@Test
+	public void testWrongArguments()
+	{
+		assertEquals(SyncCli.EXIT_USAGE, run("--source", tempSrcDir.toString()));
+		assertEquals(SyncCli.EXIT_USAGE, run(tempSrcDir.toString(), "doesNotExist"));
+		assertEquals(SyncCli.EXIT_USAGE,
+				run("--source", tempSrcDir.toString(), "--target", tempTargetDir.toString(), "extra"));
+		assertEquals(SyncCli.EXIT_USAGE, run(tempSrcDir.toString(), "--target", tempTargetDir.toString(), "extra"));
+		assertEquals(SyncCli.EXIT_USAGE, run(tempSrcDir.toString(), tempTargetDir.toString(), "--hash", "md5"));
+		assertEquals(SyncCli.EXIT_USAGE, run(tempSrcDir.toString(), tempTargetDir.toString(), "--threads", "0"));
+		assertEquals(SyncCli.EXIT_USAGE,
+				run(tempSrcDir.toString(), tempTargetDir.toString(), "--max-bytes-per-second", "-5"));
+		assertEquals(SyncCli.EXIT_USAGE, run(tempSrcDir.toString(), tempTargetDir.toString(), "--replay-moves",
+				"--bidirectional", "--state", "state.txt"));
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void testQuote()
+	{
+		assertEquals("\"c:\\\\dir\\\\\\\"x\\\"\\tb\"", SyncCli.quote("c:\\dir\\\"x\"\tb"));
+	}
+
+	private int run(String... args)
+	{
+		return new SyncCli().run(args, new PrintStream(out, true), new PrintStream(err, true));
+	}
+
+	private String[] output()
+	{
+		return new String(out.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n");
+	}
+}
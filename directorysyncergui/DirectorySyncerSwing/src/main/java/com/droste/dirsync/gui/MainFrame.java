@@ -6,13 +6,13 @@ package com.droste.dirsync.gui;
 
 import java.awt.HeadlessException;
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
 
 import javax.swing.*;
 
 import com.droste.file.DirectorySyncer;
+import com.droste.file.Throttle;
 import com.droste.file.report.Report;
 import java.awt.*;
 
@@ -25,6 +25,8 @@ public class MainFrame extends javax.swing.JFrame {
     private Report report;
     private Font defaultFont;
     private boolean isSimulationMode = false;
+    /** changed by the spinners, also while a sync runs */
+    private final Throttle throttle = new Throttle(0, 0);
 
     public Font getDefaultFont() {
         return defaultFont;
@@ -78,6 +80,10 @@ public class MainFrame extends javax.swing.JFrame {
         synchronizeButton = new javax.swing.JButton();
         simulationModeCheckBox = new javax.swing.JCheckBox();
         cancelButton = new javax.swing.JButton();
+        maxBytesLabel = new javax.swing.JLabel();
+        maxBytesSpinner = new javax.swing.JSpinner();
+        maxFilesLabel = new javax.swing.JLabel();
+        maxFilesSpinner = new javax.swing.JSpinner();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setBackground(new java.awt.Color(255, 255, 255));
@@ -169,6 +175,26 @@ public class MainFrame extends javax.swing.JFrame {
             }
         });
 
+        maxBytesLabel.setText("Max MB/s:");
+
+        maxBytesSpinner.setModel(new javax.swing.SpinnerNumberModel(0, 0, 10000, 1));
+        maxBytesSpinner.setToolTipText("Limits hashing and copying, 0 is unlimited");
+        maxBytesSpinner.addChangeListener(new javax.swing.event.ChangeListener() {
+            public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                maxBytesSpinnerStateChanged(evt);
+            }
+        });
+
+        maxFilesLabel.setText("Max files/s:");
+
+        maxFilesSpinner.setModel(new javax.swing.SpinnerNumberModel(0, 0, 100000, 10));
+        maxFilesSpinner.setToolTipText("Limits hashing and copying, 0 is unlimited");
+        maxFilesSpinner.addChangeListener(new javax.swing.event.ChangeListener() {
+            public void stateChanged(javax.swing.event.ChangeEvent evt) {
+                maxFilesSpinnerStateChanged(evt);
+            }
+        });
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -180,7 +206,16 @@ public class MainFrame extends javax.swing.JFrame {
                         .addComponent(synchronizeButton)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                         .addComponent(cancelButton, javax.swing.GroupLayout.PREFERRED_SIZE, 135, javax.swing.GroupLayout.PREFERRED_SIZE))
-                    .addComponent(simulationModeCheckBox)
+                    .addGroup(layout.createSequentialGroup()
+                        .addComponent(simulationModeCheckBox)
+                        .addGap(18, 18, 18)
+                        .addComponent(maxBytesLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(maxBytesSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 70, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(18, 18, 18)
+                        .addComponent(maxFilesLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(maxFilesSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 70, javax.swing.GroupLayout.PREFERRED_SIZE))
                     .addComponent(jPanel1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
@@ -190,7 +225,12 @@ public class MainFrame extends javax.swing.JFrame {
                 .addContainerGap()
                 .addComponent(jPanel1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
-                .addComponent(simulationModeCheckBox)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(simulationModeCheckBox)
+                    .addComponent(maxBytesLabel)
+                    .addComponent(maxBytesSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(maxFilesLabel)
+                    .addComponent(maxFilesSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addGap(18, 18, 18)
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                     .addComponent(synchronizeButton)
@@ -217,31 +257,37 @@ public class MainFrame extends javax.swing.JFrame {
         synchronizeButton.setEnabled(false);
         this.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-        try {
-                    final String sourceDir = sourceDirectoyField.getText();
-                    final String targetDir = targetDirectoryField.getText();
-                    if (sourceDir != null && targetDir != null) {
-                        DirectorySyncer directorySyncer = new DirectorySyncer(sourceDir, targetDir, isSimulationMode);
-                        Map<String, Path> targetMap = directorySyncer.buildTargetFileMap();
-                        report = directorySyncer.findAndHandleSourcesInTargetMap(targetMap);
-                        report = directorySyncer.cleanupDirs(report);
-                        this.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
-                        new ReportDialog(MainFrame.this, false).setVisible(true);
-                        //jDialog.setTitle("Syncing worked");
-                    }
-                //} catch (InterruptedException e) {
-                //    interrupt();
-                //    System.out.println("Unterbrechung in sleep()");
-                } catch (IOException e1) {
-                    JDialog jDialog = new JDialog(MainFrame.this);
-                    jDialog.setTitle("Syncing failed");
-                    this.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+        final String sourceDir = sourceDirectoyField.getText();
+        final String targetDir = targetDirectoryField.getText();
+        final boolean simulation = isSimulationMode;
+        // the sync runs in the background, so the throttle can be changed while it runs
+        new SwingWorker<Report, Void>() {
+
+            @Override
+            protected Report doInBackground() throws Exception {
+                DirectorySyncer directorySyncer = new DirectorySyncer(sourceDir, targetDir, simulation);
+                directorySyncer.setThrottle(throttle);
+                Map<String, Path> targetMap = directorySyncer.buildTargetFileMap();
+                return directorySyncer.findAndHandleSourcesInTargetMap(targetMap);
+            }
+
+            @Override
+            protected void done() {
+                MainFrame.this.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+                try {
+                    report = get();
                     new ReportDialog(MainFrame.this, false).setVisible(true);
-                } catch (Exception ex) {
-                    System.out.println(ex.getMessage());
-                    ex.printStackTrace();
-                    this.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    java.util.logging.Logger.getLogger(MainFrame.class.getName()).log(java.util.logging.Level.SEVERE,
+                            "syncing failed", e.getCause());
+                    JOptionPane.showMessageDialog(MainFrame.this, e.getCause().toString(), "Syncing failed",
+                            JOptionPane.ERROR_MESSAGE);
+                    synchronizeButton.setEnabled(true);
                 }
+            }
+        }.execute();
     }//GEN-LAST:event_synchronizeButtonActionPerformed
 
     private void simulationModeCheckActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_simulationModeCheckActionPerformed
@@ -256,6 +302,14 @@ public class MainFrame extends javax.swing.JFrame {
         }
     }//GEN-LAST:event_simulationModeCheckBoxActionPerformed
 
+    private void maxBytesSpinnerStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_maxBytesSpinnerStateChanged
+        throttle.setBytesPerSecond(((Number) maxBytesSpinner.getValue()).longValue() * 1024 * 1024);
+    }//GEN-LAST:event_maxBytesSpinnerStateChanged
+
+    private void maxFilesSpinnerStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_maxFilesSpinnerStateChanged
+        throttle.setFilesPerSecond(((Number) maxFilesSpinner.getValue()).longValue());
+    }//GEN-LAST:event_maxFilesSpinnerStateChanged
+
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
         System.exit(0);
     }//GEN-LAST:event_cancelButtonActionPerformed
@@ -326,6 +380,10 @@ catch (javax.swing.UnsupportedLookAndFeelException ex) {
     private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JPanel jPanel1;
+    private javax.swing.JLabel maxBytesLabel;
+    private javax.swing.JSpinner maxBytesSpinner;
+    private javax.swing.JLabel maxFilesLabel;
+    private javax.swing.JSpinner maxFilesSpinner;
     private javax.swing.JCheckBox simulationModeCheckBox;
     private javax.swing.JButton sourceButton;
     private javax.swing.JTextField sourceDirectoyField;
@@ -6,11 +6,8 @@ package com.droste.dirsync.gui;
 
 import com.droste.file.report.Report;
 import java.awt.*;
-import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import javax.swing.JScrollBar;
+import java.awt.event.*;
+import javax.swing.*;
 
 /**
  *
@@ -32,6 +29,8 @@ public class ReportDialog extends javax.swing.JDialog {
         Dimension dim = Toolkit.getDefaultToolkit().getScreenSize();
         this.setSize(((int)dim.getWidth())-80, ((int)dim.getHeight())-40);
         getContentPane().setBackground(Color.white);
+        for (JTable table : new JTable[] { changedFilesTable, newFilesTable, relocatedFilesTable, additionalFilesTable, newDirectoriesTable })
+            addSortingAndFiltering(table);
     }
 
     /**
@@ -78,12 +77,12 @@ public class ReportDialog extends javax.swing.JDialog {
 
         jScrollPane3.setBackground(new java.awt.Color(255, 255, 255));
 
-        changedFilesTable.setModel(new SyncTableModel(getChangedFiles()));
+        changedFilesTable.setModel(new SyncTableModel(getReport().getChangedFiles()));
         jScrollPane3.setViewportView(changedFilesTable);
 
         jScrollPane4.setBackground(new java.awt.Color(255, 255, 255));
 
-        newFilesTable.setModel(new SyncTableModel(getNewFiles()));
+        newFilesTable.setModel(new SyncTableModel(getReport().getNewFiles()));
         jScrollPane4.setViewportView(newFilesTable);
 
         newFilesText.setBorder(null);
@@ -109,7 +108,7 @@ public class ReportDialog extends javax.swing.JDialog {
 
         jScrollPane8.setBackground(new java.awt.Color(255, 255, 255));
 
-        relocatedFilesTable.setModel(new SyncTableModel(getRelocatedFiles())
+        relocatedFilesTable.setModel(new SyncTableModel(getReport().getRelocatedFiles())
         );
         relocatedFilesTable.setCellSelectionEnabled(true);
         jScrollPane8.setViewportView(relocatedFilesTable);
@@ -126,12 +125,12 @@ public class ReportDialog extends javax.swing.JDialog {
 
         jScrollPane10.setBackground(new java.awt.Color(255, 255, 255));
 
-        additionalFilesTable.setModel(new SyncTableModel(getAdditionalFiles()));
+        additionalFilesTable.setModel(new SyncTableModel(getReport().getAdditionalFiles()));
         jScrollPane10.setViewportView(additionalFilesTable);
 
         jScrollPane2.setBackground(new java.awt.Color(255, 255, 255));
 
-        newDirectoriesTable.setModel(new SyncTableModel(((MainFrame)getParent()).getReport().getNewDirectories()));
+        newDirectoriesTable.setModel(new SyncTableModel(getReport().getNewDirectories()));
         jScrollPane2.setViewportView(newDirectoriesTable);
 
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
@@ -230,43 +229,35 @@ public class ReportDialog extends javax.swing.JDialog {
                 + "Detailed list of additional files:</font>";
     }
     
-    private Map<Path, String> getAdditionalFiles()
-    {
-        final Map<Path, List<Path>> additionalFiles = ((MainFrame) getParent()).getReport().getAdditionalFiles();
-        final Map<Path, String> result = new HashMap<Path, String>();
-        for (Map.Entry<Path, List<Path>> file : additionalFiles.entrySet())
-        {
-           String newName = "";
-           for (Path value : file.getValue())
-           {
-               newName += value.toString();
-           }
-           result.put(file.getKey(), newName);
-        }
-        return result;
-    }
-    
-    private Map<Path, String> getNewFiles() {
-        return convert(((MainFrame) getParent()).getReport().getNewFiles());
+    private Report getReport() {
+        return ((MainFrame) getParent()).getReport();
     }
 
-    private Map<Path, String> getRelocatedFiles() {
-        return convert(((MainFrame) getParent()).getReport().getRelocatedFiles());
+    /**
+     * Click on a column header sorts the table, Ctrl+F asks for a text to filter the rows.
+     */
+    private void addSortingAndFiltering(final JTable table) {
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent evt) {
+                int column = table.columnAtPoint(evt.getPoint());
+                if (column >= 0)
+                    ((SyncTableModel) table.getModel()).sortBy(table.convertColumnIndexToModel(column));
+            }
+        });
+        table.getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK), "filterRows");
+        table.getActionMap().put("filterRows", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                SyncTableModel model = (SyncTableModel) table.getModel();
+                String filter = JOptionPane.showInputDialog(ReportDialog.this, "Show only rows containing:", model.getFilter());
+                if (filter != null)
+                    model.setFilter(filter);
+            }
+        });
     }
 
-    private Map<Path, String> getChangedFiles() {
-        return convert(((MainFrame) getParent()).getReport().getChangedFiles());
-    }
 
-    private Map<Path, String> convert(Map<Path, Path> files) {
-        final Map<Path, String> result = new HashMap<Path, String>();
-        for (Map.Entry<Path, Path> file : files.entrySet()) {
-            result.put(file.getKey(), file.getValue().toString());
-        }
-        return result;
-    }
-  
-    
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JTextPane additionalFilesPane;
     private javax.swing.JTable additionalFilesTable;
@@ -1,109 +1,199 @@
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
-package com.droste.dirsync.gui;
-
-import java.nio.file.Path;
-import java.util.*;
-
-import javax.swing.table.AbstractTableModel;
-
-class SyncTableModel extends AbstractTableModel {
- 
-    private final List<String> tableHeader;
-    private final List<List<String>> tableContent;
-
-    public SyncTableModel(Map<Path, String> files)
-    {
-        this.tableContent = getChangedFiles(files);
-        this.tableHeader = getTableHeader();
-    }
-    
-    
-    public SyncTableModel(List<Path> directories)
-    {
-        this.tableContent = toTableContent(directories);
-        this.tableHeader = toTableHeader("New Directories");
-    }
-
-	@Override
-    public int getRowCount() {
-        return tableContent.size();
-    }
-
-    @Override
-    public int getColumnCount() {
-        return tableHeader.size();
-    }
-
-    @Override
-    public Object getValueAt(int rowIndex, int columnIndex) {
-        return tableContent.get(rowIndex).get(columnIndex);
-    }
-
-    @Override
-    public boolean isCellEditable(int rowIndex, int columnIndex) {
-        return false;
-    }
-
-    @Override
-    public Class<?> getColumnClass(int columnIndex) {
-        return String.class;
-    }
-
-    @Override
-    public String getColumnName(int column) {
-        return tableHeader.get(column);
-    }
-    
-    private List<String> getTableHeader() {
-        final List<String> tableHeader = new ArrayList<String>();
-        tableHeader.add("Location in source folder");
-        tableHeader.add("Location in target folder");
-        return tableHeader;
-    }
-
-    private List<List<String>> getChangedFiles(Map<Path, String> files) {
-        List<List<String>> tableContent = new ArrayList<List<String>>();
-        for (Map.Entry<Path, String> entry : files.entrySet()) {
-            List<String> contentRow = new ArrayList<String>();
-            contentRow.add(entry.getKey().toString());
-            contentRow.add(entry.getValue());
-            tableContent.add(contentRow);
-        }
-        return tableContent;
-    }
-    
-    private List<List<String>> getConcatenatedFileNames(Map<Path, List<Path>> files)
-    {
-        List<List<String>> tableContent = new ArrayList<List<String>>();
-        for (Map.Entry<Path, List<Path>> entry : files.entrySet()) {
-            List<String> contentRow = new ArrayList<String>();
-            contentRow.add(entry.getKey().toString());
-            StringBuilder targetPaths = new StringBuilder();
-            final List<Path> values = entry.getValue();
-            for (Path value : values) targetPaths.append(value.toString()).append(" ");
-            contentRow.add(targetPaths.toString());
-            tableContent.add(contentRow);
-        }
-        return tableContent;
-    }
-
-    private List<List<String>> toTableContent(List<Path> directories) {
-        List<List<String>> tableContent = new ArrayList<List<String>>();
-        for (Path directory : directories)
-        {
-            List<String> contentRow = new ArrayList<String>();
-            contentRow.add(directory.toString());
-            tableContent.add(contentRow);
-        }
-        return tableContent;
-    }
-
-    private List<String> toTableHeader(String newDirectories) {
-        List<String> tableHeader = new ArrayList<String>();
-        tableHeader.add(newDirectories);
-        return tableHeader;
-    }
-}
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.droste.dirsync.gui;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model that reads its rows lazily from the maps and lists of the report.<br/>
+ * Only the row keys are kept (as references), the strings shown in the table are rendered on demand and kept in a
+ * small cache. Sorting and filtering work on an index of the rows, so no row is copied.
+ */
+class SyncTableModel extends AbstractTableModel {
+
+    private static final int CACHE_SIZE = 2048;
+    private final List<String> tableHeader;
+    private final Path[] rows;
+    private final Map<Path, ?> files;
+    private int[] viewToRow;
+    private int sortColumn = -1;
+    private boolean ascending = true;
+    private String filter = "";
+    private final Map<Integer, String[]> renderedRows = new LinkedHashMap<Integer, String[]>(CACHE_SIZE, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @param files source file as key, target file(s) as value: a Path or a collection of Paths
+     */
+    public SyncTableModel(Map<Path, ?> files)
+    {
+        this.files = files;
+        this.rows = files.keySet().toArray(new Path[files.size()]);
+        this.tableHeader = getTableHeader();
+        this.viewToRow = identity(rows.length);
+    }
+
+
+    public SyncTableModel(List<Path> directories)
+    {
+        this.files = null;
+        this.rows = directories.toArray(new Path[directories.size()]);
+        this.tableHeader = toTableHeader("New Directories");
+        this.viewToRow = identity(rows.length);
+    }
+
+	@Override
+    public int getRowCount() {
+        return viewToRow.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return tableHeader.size();
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        return render(viewToRow[rowIndex])[columnIndex];
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return false;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int columnIndex) {
+        return String.class;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return tableHeader.get(column);
+    }
+
+    /**
+     * Sorts by the given column. Calling it again for the same column reverses the order.
+     */
+    public void sortBy(int column) {
+        ascending = (column == sortColumn) ? !ascending : true;
+        sortColumn = column;
+        updateView();
+    }
+
+    /**
+     * Only show rows that contain the given text (case insensitive) in one of the columns. Empty text shows all rows.
+     */
+    public void setFilter(String text) {
+        filter = (text == null) ? "" : text.trim().toLowerCase();
+        updateView();
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    private void updateView() {
+        List<Integer> visibleRows = new ArrayList<Integer>();
+        for (int row = 0; row < rows.length; row++) {
+            if (matchesFilter(row))
+                visibleRows.add(row);
+        }
+        if (sortColumn >= 0) {
+            Collections.sort(visibleRows, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer row1, Integer row2) {
+                    int result = compareRows(row1, row2);
+                    return ascending ? result : -result;
+                }
+            });
+        }
+        int[] newView = new int[visibleRows.size()];
+        for (int i = 0; i < newView.length; i++) {
+            newView[i] = visibleRows.get(i);
+        }
+        viewToRow = newView;
+        fireTableDataChanged();
+    }
+
+    private boolean matchesFilter(int row) {
+        if (filter.isEmpty())
+            return true;
+        for (String cell : render(row)) {
+            if (cell.toLowerCase().contains(filter))
+                return true;
+        }
+        return false;
+    }
+
+    /** Compares the paths themselves, the rendered strings are not needed for that. */
+    private int compareRows(int row1, int row2) {
+        if (sortColumn == 0)
+            return rows[row1].compareTo(rows[row2]);
+        Path value1 = firstPath(files.get(rows[row1]));
+        Path value2 = firstPath(files.get(rows[row2]));
+        if (value1 == null || value2 == null)
+            return (value1 == null) ? ((value2 == null) ? 0 : -1) : 1;
+        return value1.compareTo(value2);
+    }
+
+    private Path firstPath(Object value) {
+        if (value instanceof Path)
+            return (Path) value;
+        if (value instanceof Collection && !((Collection<?>) value).isEmpty())
+            return (Path) ((Collection<?>) value).iterator().next();
+        return null;
+    }
+
+    private String[] render(int row) {
+        String[] rendered = renderedRows.get(row);
+        if (rendered == null) {
+            rendered = new String[tableHeader.size()];
+            rendered[0] = rows[row].toString();
+            if (files != null)
+                rendered[1] = toText(files.get(rows[row]));
+            renderedRows.put(row, rendered);
+        }
+        return rendered;
+    }
+
+    private String toText(Object value) {
+        if (value instanceof Collection) {
+            StringBuilder targetPaths = new StringBuilder();
+            for (Object path : (Collection<?>) value) targetPaths.append(path).append(" ");
+            return targetPaths.toString();
+        }
+        return String.valueOf(value);
+    }
+
+    private static int[] identity(int length) {
+        int[] view = new int[length];
+        for (int i = 0; i < length; i++) {
+            view[i] = i;
+        }
+        return view;
+    }
+
+    private List<String> getTableHeader() {
+        final List<String> tableHeader = new ArrayList<String>();
+        tableHeader.add("Location in source folder");
+        tableHeader.add("Location in target folder");
+        return tableHeader;
+    }
+
+    private List<String> toTableHeader(String newDirectories) {
+        List<String> tableHeader = new ArrayList<String>();
+        tableHeader.add(newDirectories);
+        return tableHeader;
+    }
+}